@@ -1,10 +1,25 @@
 package scratch.kevin.bbp;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
@@ -15,135 +30,378 @@ import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileUtils;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import edu.usc.kmilner.mpj.taskDispatch.AsyncPostBatchHook;
 
 public class MPJ_BBP_Utils {
 	
+	/**
+	 * Assembles the zip files for each simulation into master zip files (all files, and RotD/duration files only).
+	 * <br>
+	 * Sub zip files are opened, validated and read into memory on a pool of reader threads, and a single writer thread
+	 * appends their raw (still compressed) entries to the master zip files in the order that they were received.
+	 * <br>
+	 * Output is written in segments, and each completed segment is recorded in a checkpoint file along with the
+	 * simulation indexes it contains. If the job is restarted, simulations in completed segments are skipped rather
+	 * than re-copied, and all segments are merged into the final zip files on shutdown.
+	 * 
+	 * @author kevin
+	 *
+	 */
 	public static abstract class MasterZipHook extends AsyncPostBatchHook {
 		
-		private File ipZipFile;
+		private static final int default_reader_threads = 4;
+		private static final int default_checkpoint_interval = 1000;
+		private static final int max_queued_sims = 32;
+		
 		private File zipFile;
-		private File ipRDZipFile;
 		private File rdZipFile;
+		private File checkpointFile;
+		
+		private int checkpointInterval = default_checkpoint_interval;
+		
+		// indexes in segments completed before a restart, and indexes queued since (only used on the hook thread)
+		private HashSet<Integer> assembledIndexes;
+		private HashSet<Integer> queuedIndexes;
+		private int numSegments;
 		
+		private ExecutorService readExec;
+		private BlockingQueue<Future<SubZip>> queue;
+		private Thread writerThread;
+		
+		// writer thread state
 		private ZipArchiveOutputStream out;
 		private ZipArchiveOutputStream outRD;
-		private byte[] buffer = new byte[1048576];
-		
+		private List<Integer> segmentIndexes;
 		private boolean hasRD100;
+		
+		// throughput metrics
+		private Stopwatch writeWatch;
+		private long numSims;
+		private long numEntries;
+		private long numBytes;
+		
+		private static final int buffer_size = 4*1048576;
+		
+		private static final Future<SubZip> END = new CompletableFuture<>();
+		
+		private static class SubZip {
+			private final int index;
+			private final String simDirName;
+			private final List<ZipArchiveEntry> entries;
+			private final List<byte[]> rawData;
+			
+			public SubZip(int index, String simDirName) {
+				this.index = index;
+				this.simDirName = simDirName;
+				this.entries = new ArrayList<>();
+				this.rawData = new ArrayList<>();
+			}
+		}
 
 		public MasterZipHook(File zipFile, File rdZipFile) {
+			this(zipFile, rdZipFile, default_reader_threads);
+		}
+
+		public MasterZipHook(File zipFile, File rdZipFile, int readerThreads) {
 			super(1);
+			Preconditions.checkState(zipFile != null || rdZipFile != null);
 			this.zipFile = zipFile;
 			this.rdZipFile = rdZipFile;
+			File refFile = zipFile == null ? rdZipFile : zipFile;
+			checkpointFile = new File(refFile.getParentFile(), prefix(refFile)+"_checkpoint.txt");
+			
+			assembledIndexes = new HashSet<>();
+			queuedIndexes = new HashSet<>();
+			if (checkpointFile.exists()) {
+				try {
+					for (String line : Files.readLines(checkpointFile, Charset.defaultCharset())) {
+						line = line.trim();
+						if (line.isEmpty())
+							continue;
+						String[] split = line.split(" ");
+						Preconditions.checkState(Integer.parseInt(split[0]) == numSegments,
+								"Bad checkpoint line: %s", line);
+						if (zipFile != null)
+							Preconditions.checkState(segmentFile(zipFile, numSegments).exists());
+						if (rdZipFile != null)
+							Preconditions.checkState(segmentFile(rdZipFile, numSegments).exists());
+						for (int i=1; i<split.length; i++)
+							assembledIndexes.add(Integer.parseInt(split[i]));
+						numSegments++;
+					}
+				} catch (IOException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+			}
+			
+			readExec = Executors.newFixedThreadPool(readerThreads);
+			queue = new LinkedBlockingQueue<>(max_queued_sims);
+			segmentIndexes = new ArrayList<>();
+			writeWatch = Stopwatch.createUnstarted();
+			writerThread = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Future<SubZip> future = queue.take();
+							if (future == END)
+								break;
+							write(future.get());
+							if (segmentIndexes.size() >= checkpointInterval)
+								checkpoint();
+						}
+						checkpoint();
+					} catch (Exception e) {
+						e.printStackTrace();
+						abortAndExit(2);
+					}
+				}
+			};
+			writerThread.start();
+		}
+		
+		/**
+		 * @param checkpointInterval number of simulations written to each segment before checkpointing
+		 */
+		public void setCheckpointInterval(int checkpointInterval) {
+			Preconditions.checkArgument(checkpointInterval > 0);
+			this.checkpointInterval = checkpointInterval;
+		}
+		
+		private static String prefix(File file) {
+			String name = file.getName();
+			if (name.endsWith(".zip"))
+				name = name.substring(0, name.length()-4);
+			return name;
+		}
+		
+		private static File segmentFile(File file, int segment) {
+			return new File(file.getParentFile(), "partial_"+prefix(file)+"_part"+segment+".zip");
 		}
 
 		@Override
-		protected synchronized void batchProcessedAsync(int[] batch, int processIndex) {
+		protected void batchProcessedAsync(int[] batch, int processIndex) {
 			debug("running async post-batch hook for process "+processIndex+". "+getCountsString());
 			debug("async post-batch estimates: "+getRatesString());
+			int numSkipped = 0;
 			try {
-				if (out == null && zipFile != null) {
-					ipZipFile = new File(zipFile.getParentFile(), "partial_"+zipFile.getName());
-					out = new ZipArchiveOutputStream(new BufferedOutputStream(
-							new FileOutputStream(ipZipFile), buffer.length*4));
-				}
-				if (outRD == null && rdZipFile != null) {
-					ipRDZipFile = new File(rdZipFile.getParentFile(), "partial_"+rdZipFile.getName());
-					outRD = new ZipArchiveOutputStream(new BufferedOutputStream(
-							new FileOutputStream(ipRDZipFile), buffer.length*4));
-				}
-				Preconditions.checkState(out != null || outRD != null);
-				for (int index : batch) {
-					File subZipFile = getSimZipFile(index);
-					String subZipName = subZipFile.getName();
-					Preconditions.checkState(subZipFile.exists() && subZipName.endsWith(".zip"));
-					
-					String simDirName = subZipName.substring(0, subZipName.indexOf(".zip"))+"/";
-					ZipArchiveEntry dirEntry = new ZipArchiveEntry(simDirName);
-					if (out != null) {
-						out.putArchiveEntry(dirEntry);
-						out.closeArchiveEntry();
-					}
-					if (outRD != null) {
-						outRD.putArchiveEntry(dirEntry);
-						outRD.closeArchiveEntry();
+				for (final int index : batch) {
+					if (assembledIndexes.contains(index) || !queuedIndexes.add(index)) {
+						numSkipped++;
+						continue;
 					}
-					
-					ZipFile sub;
-					try {
-						sub = new ZipFile(subZipFile);
-					} catch (Exception e1) {
-						debug("Error with "+subZipFile.getAbsolutePath()+": "+e1.getMessage());
-						File subDir = new File(subZipFile.getParentFile(), simDirName);
-						if (subDir.exists()) {
-							debug("Re-zipping "+simDirName+" from directory");
-							FileUtils.createZipFile(subZipFile, subDir, true);
-							FileUtils.deleteRecursive(subDir);
-							sub = new ZipFile(subZipFile);
-						} else {
-							throw e1;
-						}
-					}
-					Enumeration<? extends ZipArchiveEntry> entries = sub.getEntries();
-					while (entries.hasMoreElements()) {
-						ZipArchiveEntry e = entries.nextElement();
-						String name = e.getName();
-						boolean rd = false;
-						if (name.endsWith(".rd50")) {
-							rd = !hasRD100;
-						} else if (name.endsWith(".rd100")) {
-							hasRD100 = true; // don't also keep RD50 files
-							rd = true;
-						} else if (name.endsWith(".rdvel")) {
-							// RotD vel
-							rd = true;
-						} else if (name.endsWith(".ard")) {
-							// also keep arias duration files, they're tiny
-							rd = true;
+					// blocks if the writer is too far behind
+					queue.put(readExec.submit(new Callable<SubZip>() {
+
+						@Override
+						public SubZip call() throws Exception {
+							return read(index);
 						}
-						if (out == null && !rd)
-							continue;
-						ZipArchiveEntry outEntry = new ZipArchiveEntry(simDirName+e.getName());
-						outEntry.setCompressedSize(e.getCompressedSize());
-						outEntry.setCrc(e.getCrc());
-						outEntry.setExternalAttributes(e.getExternalAttributes());
-						outEntry.setExtra(e.getExtra());
-						outEntry.setExtraFields(e.getExtraFields());
-						outEntry.setGeneralPurposeBit(e.getGeneralPurposeBit());
-						outEntry.setInternalAttributes(e.getInternalAttributes());
-						outEntry.setMethod(e.getMethod());
-						outEntry.setRawFlag(e.getRawFlag());
-						outEntry.setSize(e.getSize());
-						if (out != null)
-							out.addRawArchiveEntry(outEntry, sub.getRawInputStream(e));
-						if (rd && outRD != null)
-							outRD.addRawArchiveEntry(outEntry, sub.getRawInputStream(e));
-					}
-					sub.close();
+					}));
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
 				abortAndExit(2);
 			}
-			debug("done running async post-batch hook for process "+processIndex+". "+getCountsString());
+			if (numSkipped > 0)
+				debug("skipped "+numSkipped+" simulations which were already assembled");
+			debug("done queueing async post-batch hook for process "+processIndex+". "+getCountsString());
+		}
+		
+		private SubZip read(int index) throws IOException {
+			File subZipFile = getSimZipFile(index);
+			String subZipName = subZipFile.getName();
+			Preconditions.checkState(subZipFile.exists() && subZipName.endsWith(".zip"));
+			
+			String simDirName = subZipName.substring(0, subZipName.indexOf(".zip"))+"/";
+			
+			ZipFile sub;
+			try {
+				sub = new ZipFile(subZipFile);
+			} catch (Exception e1) {
+				debug("Error with "+subZipFile.getAbsolutePath()+": "+e1.getMessage());
+				File subDir = new File(subZipFile.getParentFile(), simDirName);
+				if (subDir.exists()) {
+					debug("Re-zipping "+simDirName+" from directory");
+					FileUtils.createZipFile(subZipFile, subDir, true);
+					FileUtils.deleteRecursive(subDir);
+					sub = new ZipFile(subZipFile);
+				} else {
+					throw e1;
+				}
+			}
+			SubZip ret = new SubZip(index, simDirName);
+			try {
+				Enumeration<? extends ZipArchiveEntry> entries = sub.getEntries();
+				while (entries.hasMoreElements()) {
+					ZipArchiveEntry e = entries.nextElement();
+					InputStream is = sub.getRawInputStream(e);
+					byte[] raw = ByteStreams.toByteArray(is);
+					is.close();
+					Preconditions.checkState(raw.length == e.getCompressedSize(),
+							"Bad compressed size for %s in %s", e.getName(), subZipFile.getAbsolutePath());
+					ret.entries.add(e);
+					ret.rawData.add(raw);
+				}
+			} finally {
+				sub.close();
+			}
+			return ret;
+		}
+		
+		private static ZipArchiveEntry copyEntry(ZipArchiveEntry e, String name) {
+			ZipArchiveEntry outEntry = new ZipArchiveEntry(name);
+			outEntry.setCompressedSize(e.getCompressedSize());
+			outEntry.setCrc(e.getCrc());
+			outEntry.setExternalAttributes(e.getExternalAttributes());
+			outEntry.setExtra(e.getExtra());
+			outEntry.setExtraFields(e.getExtraFields());
+			outEntry.setGeneralPurposeBit(e.getGeneralPurposeBit());
+			outEntry.setInternalAttributes(e.getInternalAttributes());
+			outEntry.setMethod(e.getMethod());
+			outEntry.setRawFlag(e.getRawFlag());
+			outEntry.setSize(e.getSize());
+			return outEntry;
+		}
+		
+		private static ZipArchiveOutputStream openZip(File file) throws IOException {
+			return new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(file), buffer_size));
+		}
+		
+		// writer thread only
+		private void write(SubZip sub) throws IOException {
+			writeWatch.start();
+			if (out == null && zipFile != null)
+				out = openZip(segmentFile(zipFile, numSegments));
+			if (outRD == null && rdZipFile != null)
+				outRD = openZip(segmentFile(rdZipFile, numSegments));
+			
+			ZipArchiveEntry dirEntry = new ZipArchiveEntry(sub.simDirName);
+			if (out != null) {
+				out.putArchiveEntry(dirEntry);
+				out.closeArchiveEntry();
+			}
+			if (outRD != null) {
+				outRD.putArchiveEntry(dirEntry);
+				outRD.closeArchiveEntry();
+			}
+			
+			for (int i=0; i<sub.entries.size(); i++) {
+				ZipArchiveEntry e = sub.entries.get(i);
+				String name = e.getName();
+				boolean rd = false;
+				if (name.endsWith(".rd50")) {
+					rd = !hasRD100;
+				} else if (name.endsWith(".rd100")) {
+					hasRD100 = true; // don't also keep RD50 files
+					rd = true;
+				} else if (name.endsWith(".rdvel")) {
+					// RotD vel
+					rd = true;
+				} else if (name.endsWith(".ard")) {
+					// also keep arias duration files, they're tiny
+					rd = true;
+				}
+				if (out == null && !rd)
+					continue;
+				ZipArchiveEntry outEntry = copyEntry(e, sub.simDirName+name);
+				byte[] raw = sub.rawData.get(i);
+				if (out != null) {
+					out.addRawArchiveEntry(outEntry, new ByteArrayInputStream(raw));
+					numBytes += raw.length;
+				}
+				if (rd && outRD != null) {
+					outRD.addRawArchiveEntry(outEntry, new ByteArrayInputStream(raw));
+					numBytes += raw.length;
+				}
+				numEntries++;
+			}
+			segmentIndexes.add(sub.index);
+			numSims++;
+			writeWatch.stop();
+		}
+		
+		// writer thread only
+		private void checkpoint() throws IOException {
+			if (segmentIndexes.isEmpty())
+				return;
+			writeWatch.start();
+			if (out != null)
+				out.close();
+			if (outRD != null)
+				outRD.close();
+			out = null;
+			outRD = null;
+			StringBuilder line = new StringBuilder().append(numSegments);
+			for (int index : segmentIndexes)
+				line.append(" ").append(index);
+			line.append("\n");
+			FileWriter fw = new FileWriter(checkpointFile, true);
+			fw.write(line.toString());
+			fw.close();
+			segmentIndexes.clear();
+			numSegments++;
+			writeWatch.stop();
+			debug("checkpointed master zip segment "+(numSegments-1)+". "+getThroughputString());
+		}
+		
+		private String getThroughputString() {
+			double secs = writeWatch.elapsed(TimeUnit.MILLISECONDS)/1000d;
+			double mb = numBytes/(1024d*1024d);
+			return "Wrote "+numSims+" sims, "+numEntries+" entries, "+(float)mb+" MB in "+(float)secs+" s ("
+					+(float)(mb/secs)+" MB/s, "+(float)(numEntries/secs)+" entries/s)";
+		}
+		
+		private void merge(File destFile) throws IOException {
+			File ipFile = new File(destFile.getParentFile(), "partial_"+destFile.getName());
+			if (numSegments == 1) {
+				Files.move(segmentFile(destFile, 0), destFile);
+				return;
+			}
+			debug("merging "+numSegments+" segments into "+destFile.getName());
+			ZipArchiveOutputStream mergeOut = openZip(ipFile);
+			for (int s=0; s<numSegments; s++) {
+				File segFile = segmentFile(destFile, s);
+				ZipFile seg = new ZipFile(segFile);
+				Enumeration<? extends ZipArchiveEntry> entries = seg.getEntries();
+				while (entries.hasMoreElements()) {
+					ZipArchiveEntry e = entries.nextElement();
+					if (e.isDirectory()) {
+						mergeOut.putArchiveEntry(new ZipArchiveEntry(e.getName()));
+						mergeOut.closeArchiveEntry();
+					} else {
+						mergeOut.addRawArchiveEntry(copyEntry(e, e.getName()), seg.getRawInputStream(e));
+					}
+				}
+				seg.close();
+			}
+			mergeOut.close();
+			Files.move(ipFile, destFile);
+			for (int s=0; s<numSegments; s++)
+				segmentFile(destFile, s).delete();
 		}
 
 		@Override
 		public void shutdown() {
 			super.shutdown();
 			try {
-				if (out != null) {
-					out.close();
-					Files.move(ipZipFile, zipFile);
-				}
-				if (outRD != null) {
-					outRD.close();
-					Files.move(ipRDZipFile, rdZipFile);
+				queue.put(END);
+				writerThread.join();
+				readExec.shutdown();
+				debug("done writing master zip segments. "+getThroughputString());
+				if (numSegments > 0) {
+					if (zipFile != null)
+						merge(zipFile);
+					if (rdZipFile != null)
+						merge(rdZipFile);
 				}
-			} catch (IOException e) {
+				checkpointFile.delete();
+			} catch (IOException | InterruptedException e) {
 				ExceptionUtils.throwAsRuntimeException(e);
 			}
 		}
@@ -0,0 +1,84 @@
+package scratch.kevin.markov;
+
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Walker/Vose alias tables for O(1) sampling from discrete frequency distributions. Tables are stored in flat
+ * probability and alias arrays (parallel to the frequencies they were built from) so that many distributions can
+ * share the same arrays, e.g. one per row of a {@link CompactMarkovChain}.
+ * @author kevin
+ *
+ */
+class AliasTable {
+
+	/**
+	 * Builds an alias table for the frequencies in weights[offset, offset+len), writing the results to the
+	 * same positions in probs and aliases. Alias values are relative to the offset.
+	 * @param weights
+	 * @param offset
+	 * @param len
+	 * @param probs
+	 * @param aliases
+	 */
+	static void build(double[] weights, int offset, int len, double[] probs, int[] aliases) {
+		Preconditions.checkArgument(len > 0, "Can't build an alias table without any values");
+		double tot = 0d;
+		for (int i=0; i<len; i++)
+			tot += weights[offset+i];
+		Preconditions.checkState(tot > 0d, "Frequencies must sum to a positive value: %s", tot);
+
+		double[] scaled = new double[len];
+		int[] small = new int[len];
+		int[] large = new int[len];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i=0; i<len; i++) {
+			scaled[i] = weights[offset+i]*len/tot;
+			if (scaled[i] < 1d)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			probs[offset+s] = scaled[s];
+			aliases[offset+s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1d;
+			if (scaled[l] < 1d)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+		// anything left over is 1 to within numerical precision
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			probs[offset+l] = 1d;
+			aliases[offset+l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			probs[offset+s] = 1d;
+			aliases[offset+s] = s;
+		}
+	}
+
+	/**
+	 * Draws a value from the alias table at the given offset
+	 * @param probs
+	 * @param aliases
+	 * @param offset
+	 * @param len
+	 * @param r
+	 * @return index of the drawn value, relative to the offset
+	 */
+	static int sample(double[] probs, int[] aliases, int offset, int len, Random r) {
+		int i = r.nextInt(len);
+		if (r.nextDouble() < probs[offset+i])
+			return i;
+		return aliases[offset+i];
+	}
+
+}
@@ -0,0 +1,351 @@
+package scratch.kevin.markov;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Frozen, compressed sparse row (CSR) form of an empirical Markov chain. Each distinct state is interned to an
+ * integer ID (the slot in {@link #getTotalStatesDataset()}), and transitions are stored as flat arrays: destinations
+ * of state i are at positions [rowStarts[i], rowStarts[i+1]) of the destination ID and frequency arrays, sorted by
+ * destination ID. Each row also has an alias table so that destinations can be drawn in constant time with a caller
+ * supplied random number generator, which keeps catalog generation reproducible and thread safe.
+ * <br>
+ * Collapsed and shifted chains are built directly from the interned path, without any per transition hashing.
+ * States can't be added once built, use {@link EmpiricalMarkovChain} if the chain must grow.
+ * @author kevin
+ *
+ */
+public class CompactMarkovChain extends MarkovChain {
+
+	private double firstBinCenter;
+
+	// interned states, slot is the state ID and value is the number of times that the state was occupied
+	private SparseNDimensionalHashDataset<Double> totalStatesDataset;
+	// path as state IDs
+	private int[] path;
+
+	// transitions
+	private int[] rowStarts;
+	private int[] destIDs;
+	private double[] freqs;
+	private double[] rowTots;
+	private double[] aliasProbs;
+	private int[] aliases;
+
+	// occupancy (destination counts over all transitions)
+	private int[] occIDs;
+	private double[] occFreqs;
+	private double[] occAliasProbs;
+	private int[] occAliases;
+
+	public CompactMarkovChain(List<int[]> fullPath, double distSpacing) {
+		Preconditions.checkArgument(fullPath.size() > 1, "path must have at least one transition");
+		int nDims = fullPath.get(0).length;
+		SparseNDimensionalHashDataset<Double> states =
+				new SparseNDimensionalHashDataset<Double>(nDims, distSpacing*0.5, distSpacing);
+		int[] path = new int[fullPath.size()];
+		for (int i=0; i<path.length; i++) {
+			int[] state = fullPath.get(i);
+			Preconditions.checkState(state.length == nDims);
+			path[i] = intern(states, state);
+		}
+		init(nDims, distSpacing, states, path);
+	}
+
+	private CompactMarkovChain(int nDims, double distSpacing, SparseNDimensionalHashDataset<Double> states,
+			int[] path) {
+		init(nDims, distSpacing, states, path);
+	}
+
+	private static int intern(SparseNDimensionalHashDataset<Double> states, int[] state) {
+		int id = states.getSlot(state);
+		if (id < 0) {
+			states.set(state, null);
+			id = states.size()-1;
+		}
+		return id;
+	}
+
+	private void init(int nDims, double distSpacing, SparseNDimensionalHashDataset<Double> states, int[] path) {
+		this.firstBinCenter = distSpacing*0.5;
+		this.totalStatesDataset = states;
+		this.path = path;
+		int numStates = states.size();
+
+		double[] counts = new double[numStates];
+		for (int id : path)
+			counts[id]++;
+		for (int id=0; id<numStates; id++)
+			states.setValue(id, counts[id]);
+
+		// sort transitions by (from, to) so that each unique transition is contiguous and rows are in order
+		long[] transKeys = new long[path.length-1];
+		for (int i=1; i<path.length; i++)
+			transKeys[i-1] = ((long)path[i-1] << 32) | path[i];
+		Arrays.sort(transKeys);
+
+		int numUnique = 0;
+		for (int i=0; i<transKeys.length; i++)
+			if (i == 0 || transKeys[i] != transKeys[i-1])
+				numUnique++;
+
+		rowStarts = new int[numStates+1];
+		destIDs = new int[numUnique];
+		freqs = new double[numUnique];
+		rowTots = new double[numStates];
+		double[] occCounts = new double[numStates];
+		int index = -1;
+		for (int i=0; i<transKeys.length; i++) {
+			int fromID = (int)(transKeys[i] >>> 32);
+			int toID = (int)transKeys[i];
+			if (i == 0 || transKeys[i] != transKeys[i-1]) {
+				index++;
+				destIDs[index] = toID;
+				rowStarts[fromID+1]++;
+			}
+			freqs[index]++;
+			rowTots[fromID]++;
+			occCounts[toID]++;
+		}
+		for (int id=0; id<numStates; id++)
+			rowStarts[id+1] += rowStarts[id];
+
+		aliasProbs = new double[numUnique];
+		aliases = new int[numUnique];
+		for (int id=0; id<numStates; id++) {
+			int len = rowStarts[id+1] - rowStarts[id];
+			if (len > 0)
+				AliasTable.build(freqs, rowStarts[id], len, aliasProbs, aliases);
+		}
+
+		int numOcc = 0;
+		for (double count : occCounts)
+			if (count > 0d)
+				numOcc++;
+		occIDs = new int[numOcc];
+		occFreqs = new double[numOcc];
+		PossibleStates occupancy = new PossibleStates(null);
+		index = 0;
+		for (int id=0; id<numStates; id++) {
+			if (occCounts[id] > 0d) {
+				occIDs[index] = id;
+				occFreqs[index] = occCounts[id];
+				occupancy.add(getState(id), occCounts[id]);
+				index++;
+			}
+		}
+		occAliasProbs = new double[numOcc];
+		occAliases = new int[numOcc];
+		AliasTable.build(occFreqs, 0, numOcc, occAliasProbs, occAliases);
+
+		super.init(nDims, distSpacing, occupancy);
+	}
+
+	public double getFirstBinCenter() {
+		return firstBinCenter;
+	}
+
+	/**
+	 * @return dataset of occupancy counts for each state. The slot for each state is its ID in this chain, and
+	 * it should not be modified.
+	 */
+	public SparseNDimensionalHashDataset<Double> getTotalStatesDataset() {
+		return totalStatesDataset;
+	}
+
+	public int getNumStates() {
+		return totalStatesDataset.size();
+	}
+
+	/**
+	 * @param state
+	 * @return ID of the given state, or -1 if it was never occupied
+	 */
+	public int getStateID(int[] state) {
+		return totalStatesDataset.getSlot(state);
+	}
+
+	/**
+	 * @param stateID
+	 * @return new array of indices for the given state ID
+	 */
+	public int[] getState(int stateID) {
+		return totalStatesDataset.getIndices(stateID);
+	}
+
+	/**
+	 * Copies the indices for the given state ID into the given array
+	 * @param stateID
+	 * @param dest
+	 * @return dest
+	 */
+	public int[] getState(int stateID, int[] dest) {
+		return totalStatesDataset.getIndices(stateID, dest);
+	}
+
+	/**
+	 * @param stateID
+	 * @param dim
+	 * @return index in the given dimension for the given state ID
+	 */
+	public int getStateIndex(int stateID, int dim) {
+		return totalStatesDataset.getIndex(stateID, dim);
+	}
+
+	public int getNumDestinations(int fromID) {
+		return rowStarts[fromID+1] - rowStarts[fromID];
+	}
+
+	/**
+	 * @param fromID
+	 * @param i destination index, from 0 to {@link #getNumDestinations(int)}-1
+	 * @return state ID of the given destination
+	 */
+	public int getDestinationID(int fromID, int i) {
+		Preconditions.checkElementIndex(i, getNumDestinations(fromID));
+		return destIDs[rowStarts[fromID]+i];
+	}
+
+	/**
+	 * @param fromID
+	 * @param i destination index, from 0 to {@link #getNumDestinations(int)}-1
+	 * @return transition frequency to the given destination
+	 */
+	public double getDestinationFrequency(int fromID, int i) {
+		Preconditions.checkElementIndex(i, getNumDestinations(fromID));
+		return freqs[rowStarts[fromID]+i];
+	}
+
+	/**
+	 * @param fromID
+	 * @return total frequency of all transitions from the given state
+	 */
+	public double getTotalFrequency(int fromID) {
+		return rowTots[fromID];
+	}
+
+	/**
+	 * @param fromID
+	 * @param toID
+	 * @return frequency of transitions between the given states
+	 */
+	public double getTransitionFrequency(int fromID, int toID) {
+		int index = Arrays.binarySearch(destIDs, rowStarts[fromID], rowStarts[fromID+1], toID);
+		if (index < 0)
+			return 0d;
+		return freqs[index];
+	}
+
+	/**
+	 * Draws a destination state in constant time
+	 * @param fromID
+	 * @param r
+	 * @return ID of the drawn state, or -1 if there are no transitions from the given state
+	 */
+	public int drawDestination(int fromID, Random r) {
+		int start = rowStarts[fromID];
+		int len = rowStarts[fromID+1] - start;
+		if (len == 0)
+			return -1;
+		return destIDs[start + AliasTable.sample(aliasProbs, aliases, start, len, r)];
+	}
+
+	/**
+	 * Draws a state from the occupancy distribution in constant time
+	 * @param r
+	 * @return ID of the drawn state
+	 */
+	public int drawOccupiedState(Random r) {
+		return occIDs[AliasTable.sample(occAliasProbs, occAliases, 0, occIDs.length, r)];
+	}
+
+	@Override
+	public double getTransitionProb(int[] fromState, int[] toState) {
+		int fromID = getStateID(fromState);
+		if (fromID < 0 || rowTots[fromID] == 0d)
+			return Double.NaN;
+		int toID = getStateID(toState);
+		if (toID < 0)
+			return 0d;
+		return getTransitionFrequency(fromID, toID) / rowTots[fromID];
+	}
+
+	/**
+	 * Builds a new {@link PossibleStates} instance for the given state. Use the ID based methods where possible
+	 * as this allocates.
+	 */
+	@Override
+	public PossibleStates getDestinationStates(int[] fromState) {
+		int fromID = getStateID(fromState);
+		if (fromID < 0 || getNumDestinations(fromID) == 0)
+			return null;
+		PossibleStates possible = new PossibleStates(fromState);
+		for (int i=rowStarts[fromID]; i<rowStarts[fromID+1]; i++)
+			possible.add(getState(destIDs[i]), freqs[i]);
+		return possible;
+	}
+
+	@Override
+	public void addState(int[] fromState, int[] toState) {
+		throw new UnsupportedOperationException("Compact Markov chains are frozen, use an EmpiricalMarkovChain");
+	}
+
+	@Override
+	public CompactMarkovChain getCollapsedChain(int... indices) {
+		int nDims = indices.length;
+		SparseNDimensionalHashDataset<Double> collapsedStates =
+				new SparseNDimensionalHashDataset<Double>(nDims, firstBinCenter, getDistSpacing());
+
+		// map each state ID to its collapsed state ID
+		int[] state = new int[getNDims()];
+		int[] collapsedIDs = new int[getNumStates()];
+		for (int id=0; id<collapsedIDs.length; id++) {
+			totalStatesDataset.getIndices(id, state);
+			collapsedIDs[id] = intern(collapsedStates, getCollapsedState(state, indices));
+		}
+
+		int[] collapsedPath = new int[path.length];
+		for (int i=0; i<path.length; i++)
+			collapsedPath[i] = collapsedIDs[path[i]];
+
+		return new CompactMarkovChain(nDims, getDistSpacing(), collapsedStates, collapsedPath);
+	}
+
+	/**
+	 * Returns a new Markov chain where the states have been shifted by the given amount.
+	 * @param shifts
+	 * @return
+	 * @see EmpiricalMarkovChain#getShiftedChain(int...)
+	 */
+	public CompactMarkovChain getShiftedChain(int... shifts) {
+		int nDims = getNDims();
+		Preconditions.checkArgument(shifts.length == nDims,
+				"must supply shift for each dimension (0 means no shift in that dimension)");
+		SparseNDimensionalHashDataset<Double> newStates =
+				new SparseNDimensionalHashDataset<Double>(nDims, firstBinCenter, getDistSpacing());
+
+		int minShift = 0;
+		int maxShift = 0;
+		for (int shift : shifts) {
+			minShift = Math.min(minShift, shift);
+			maxShift = Math.max(maxShift, shift);
+		}
+		int start = -minShift;
+		int end = path.length - maxShift;
+		Preconditions.checkState(end - start > 1);
+
+		int[] newPath = new int[end - start];
+		int[] newState = new int[nDims];
+		for (int i=start; i<end; i++) {
+			for (int n=0; n<nDims; n++)
+				newState[n] = totalStatesDataset.getIndex(path[i + shifts[n]], n);
+			newPath[i-start] = intern(newStates, newState);
+		}
+
+		return new CompactMarkovChain(nDims, getDistSpacing(), newStates, newPath);
+	}
+
+}
@@ -154,10 +154,12 @@ public class EmpiricalMarkovChain extends MarkovChain {
 		
 		PossibleStates initials = new PossibleStates(null);
 		
-		for (int[] state : this.stateTransitionDataset.getPopulatedIndices()) {
-			int[] collapsedState = getCollapsedState(state, indices);
-			double tot = this.totalStatesDataset.get(state);
-			PossibleStates states = this.stateTransitionDataset.get(state);
+		int[] fromState = new int[getNDims()];
+		for (int slot=0; slot<this.stateTransitionDataset.size(); slot++) {
+			this.stateTransitionDataset.getIndices(slot, fromState);
+			int[] collapsedState = getCollapsedState(fromState, indices);
+			double tot = this.totalStatesDataset.get(fromState);
+			PossibleStates states = this.stateTransitionDataset.getValue(slot);
 			
 			Double collapsedTot = collapsedTotalStatesDataset.get(collapsedState);
 			PossibleStates collapsedPossible = collapsedStateTransitionDataset.get(collapsedState);
@@ -170,7 +172,7 @@ public class EmpiricalMarkovChain extends MarkovChain {
 			collapsedTot += tot;
 			for (int i=0; i<states.getNumStates(); i++) {
 				int[] pState = states.getStates().get(i);
-				double pFreq = states.getFrequency(pState);
+				double pFreq = states.getFrequencyAt(i);
 				int[] collapsedPState = getCollapsedState(pState, indices);
 				collapsedPossible.add(collapsedPState, pFreq);
 				initials.add(collapsedPState, pFreq);
@@ -333,11 +335,12 @@ public class EmpiricalMarkovChain extends MarkovChain {
 		if (parentStatesMap == null) {
 			parentStatesMap = Maps.newHashMap();
 			
-			for (int[] state : stateTransitionDataset.getPopulatedIndices()) {
+			for (int slot=0; slot<stateTransitionDataset.size(); slot++) {
+				int[] state = stateTransitionDataset.getIndices(slot);
 //				System.out.println("Parent state: ["+state[0]+","+state[1]+"]");
 //				if (state[0] == 2 && state[1] == 2)
 //					System.out.println("I'm at [2,2]");
-				PossibleStates poss = stateTransitionDataset.get(state);
+				PossibleStates poss = stateTransitionDataset.getValue(slot);
 				for (int[] toState : poss.getStates()) {
 //					System.out.println("\tChild state: ["+toState[0]+","+t/oState[1]+"]");
 //					if (toState[0] == 3 && toState[1] == 3)
@@ -410,5 +413,12 @@ public class EmpiricalMarkovChain extends MarkovChain {
 	public List<int[]> getFullPath() {
 		return Collections.unmodifiableList(fullPath);
 	}
+	
+	/**
+	 * @return frozen compressed sparse row form of this chain, for fast lookups and sampling
+	 */
+	public CompactMarkovChain getCompactChain() {
+		return new CompactMarkovChain(fullPath, getDistSpacing());
+	}
 
 }
@@ -1,7 +1,10 @@
 package scratch.kevin.markov;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
@@ -10,10 +13,14 @@ import com.google.common.collect.Maps;
 public class PossibleStates {
 	List<int[]> states = Lists.newArrayList();
 	private Map<IndicesKey, Integer> stateIndexMap = Maps.newHashMap();
-	List<Double> frequencies = Lists.newArrayList();
+	private double[] frequencies = new double[4];
 	double tot = 0d;
 	int[] fromState;
 	
+	// alias table for sampling, built lazily and cleared whenever a state is added
+	private volatile double[] aliasProbs;
+	private int[] aliases;
+	
 	public PossibleStates(int[] fromState) {
 		this.fromState = fromState;
 	}
@@ -23,32 +30,59 @@ public class PossibleStates {
 		IndicesKey key = new IndicesKey(state);
 		Integer index = stateIndexMap.get(key);
 		if (index == null) {
-			stateIndexMap.put(key, states.size());
+			index = states.size();
+			stateIndexMap.put(key, index);
 			states.add(state);
-			frequencies.add(frequency);
-		} else {
-			frequencies.set(index, frequencies.get(index)+frequency);
+			if (index == frequencies.length)
+				frequencies = Arrays.copyOf(frequencies, 2*frequencies.length);
 		}
+		frequencies[index] += frequency;
 		tot += frequency;
+		aliasProbs = null;
 	}
 	
 	public double getFrequency(int[] indices) {
 		Integer index = stateIndexMap.get(new IndicesKey(indices));
 		if (index == null)
 			return 0d;
-		return frequencies.get(index);
+		return frequencies[index];
+	}
+	
+	/**
+	 * @param index
+	 * @return frequency of the state at the given index in {@link #getStates()}, without a hash lookup
+	 */
+	public double getFrequencyAt(int index) {
+		Preconditions.checkElementIndex(index, states.size());
+		return frequencies[index];
 	}
 	
 	public int[] drawState() {
-		double rand = Math.random()*tot;
-		double runningTot = 0d;
-		
-		for (int i=0; i<states.size(); i++) {
-			runningTot += frequencies.get(i);
-			if (rand <= runningTot)
-				return states.get(i);
+		return drawState(ThreadLocalRandom.current());
+	}
+	
+	/**
+	 * Draws a state in constant time using the given random number generator
+	 * @param r
+	 * @return
+	 */
+	public int[] drawState(Random r) {
+		double[] probs = aliasProbs;
+		if (probs == null)
+			probs = buildAliasTable();
+		return states.get(AliasTable.sample(probs, aliases, 0, states.size(), r));
+	}
+	
+	private synchronized double[] buildAliasTable() {
+		if (aliasProbs == null) {
+			int num = states.size();
+			double[] probs = new double[num];
+			int[] aliases = new int[num];
+			AliasTable.build(frequencies, 0, num, probs, aliases);
+			this.aliases = aliases;
+			aliasProbs = probs;
 		}
-		throw new IllegalStateException("Frequencies don't add up...");
+		return aliasProbs;
 	}
 	
 	public double getTot() {
@@ -87,9 +121,9 @@ public class PossibleStates {
 			newFromState = new int[] {fromState[index]};
 		PossibleStates marginal = new PossibleStates(newFromState);
 		
-		for (int[] state : states) {
-			int[] margState = {state[index]};
-			marginal.add(margState, getFrequency(state));
+		for (int i=0; i<states.size(); i++) {
+			int[] margState = {states.get(i)[index]};
+			marginal.add(margState, frequencies[i]);
 		}
 		
 		return marginal;
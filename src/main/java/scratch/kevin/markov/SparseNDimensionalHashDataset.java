@@ -1,68 +1,234 @@
 package scratch.kevin.markov;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 /**
  * This is an n-dimensional dataset without any set limits on dataset or dimensional size. Only non zero values
  * are stored. Solution space is assumed to be all zero before any set operations.
+ * <br>
+ * Each populated bin is assigned a slot (in the order that they were first set), and indices and values are stored
+ * in flat arrays by slot. Indices are packed into a single long key (63/nDims bits per dimension) and slots are
+ * found with an open addressing table, so lookups don't allocate. Indices which are negative or too large to be
+ * packed fall back to a regular hash map. Use {@link #size()}, {@link #getIndices(int, int[])} and
+ * {@link #getValue(int)} to iterate over populated bins without allocating.
  * @author kevin
  *
  */
 public class SparseNDimensionalHashDataset<E> {
-	
+
 	private static double[] asArray(double val, int num) {
 		double[] ret = new double[num];
 		for (int i=0; i<num; i++)
 			ret[i] = val;
 		return ret;
 	}
-	
+
 	private static final double PRECISION_SCALE = 1 + 1e-14;
-	
+
+	private static final int EMPTY = -1;
+	private static final int initial_table_bits = 4;
+
 	private int nDims;
 	private double[] zeroIndLocPerDim;
 	private double[] spacingsPerDim;
-	
-	private HashMap<IndicesKey, E> data;
-	
+
+	// bits used for each dimension in packed keys, 0 if keys can't be packed
+	private int bitsPerDim;
+	private long maxPackedIndex;
+
+	// open addressing table from packed keys to slots
+	private int tableBits;
+	private long[] tableKeys;
+	private int[] tableSlots;
+	private int numPacked;
+	// slots for indices which can't be packed
+	private HashMap<IndicesKey, Integer> unpackedSlots;
+
+	// indices (nDims per slot) and values for each slot
+	private int[] slotIndices;
+	private Object[] slotValues;
+	private int size;
+
 	public SparseNDimensionalHashDataset(int nDims, double minValsPerDim, double spacing) {
 		this(nDims, asArray(minValsPerDim, nDims), asArray(spacing, nDims));
 	}
-	
+
 	public SparseNDimensionalHashDataset(int nDims, double[] zeroIndLocPerDim, double[] spacingsPerDim) {
 		this.nDims = nDims;
 		this.zeroIndLocPerDim = zeroIndLocPerDim;
 		this.spacingsPerDim = spacingsPerDim;
-		
-		this.data = Maps.newHashMap();
+
+		bitsPerDim = nDims > 0 ? Math.min(31, 63/nDims) : 0;
+		maxPackedIndex = (1l << bitsPerDim) - 1l;
+		tableBits = initial_table_bits;
+		tableKeys = new long[1 << tableBits];
+		tableSlots = new int[1 << tableBits];
+		Arrays.fill(tableSlots, EMPTY);
+		unpackedSlots = new HashMap<>();
+
+		slotIndices = new int[16*Math.max(1, nDims)];
+		slotValues = new Object[16];
 	}
-	
+
 	public int getNDims() {
 		return nDims;
 	}
-	
-	public E get(int[] indices) {
+
+	/**
+	 * @param indices
+	 * @return packed key for the given indices, or -1 if they can't be packed
+	 */
+	private long pack(int[] indices) {
+		if (bitsPerDim == 0)
+			return -1l;
+		long key = 0l;
+		for (int index : indices) {
+			if (index < 0 || index > maxPackedIndex)
+				return -1l;
+			key = (key << bitsPerDim) | index;
+		}
+		return key;
+	}
+
+	private int tableIndex(long key) {
+		return (int)((key * 0x9E3779B97F4A7C15l) >>> (64 - tableBits));
+	}
+
+	/**
+	 * @param indices
+	 * @return slot for the given indices, or -1 if not populated
+	 */
+	public int getSlot(int[] indices) {
 		Preconditions.checkArgument(indices.length == this.nDims);
-		E val = data.get(new IndicesKey(indices));
-		return val;
+		long key = pack(indices);
+		if (key < 0l) {
+			Integer slot = unpackedSlots.get(new IndicesKey(indices));
+			return slot == null ? EMPTY : slot;
+		}
+		int mask = tableSlots.length - 1;
+		for (int i=tableIndex(key);; i=(i+1) & mask) {
+			int slot = tableSlots[i];
+			if (slot == EMPTY || tableKeys[i] == key)
+				return slot;
+		}
 	}
-	
+
+	@SuppressWarnings("unchecked")
+	public E get(int[] indices) {
+		int slot = getSlot(indices);
+		if (slot == EMPTY)
+			return null;
+		return (E)slotValues[slot];
+	}
+
 	public void set(int[] indices, E val) {
-		Preconditions.checkArgument(indices.length == this.nDims);
-		data.put(new IndicesKey(indices), val);
+		int slot = getSlot(indices);
+		if (slot == EMPTY)
+			slot = addSlot(indices);
+		slotValues[slot] = val;
 	}
-	
+
+	private int addSlot(int[] indices) {
+		int slot = size++;
+		if (slotValues.length < size) {
+			int newLen = 2*slotValues.length;
+			slotValues = Arrays.copyOf(slotValues, newLen);
+			slotIndices = Arrays.copyOf(slotIndices, newLen*nDims);
+		}
+		System.arraycopy(indices, 0, slotIndices, slot*nDims, nDims);
+
+		long key = pack(indices);
+		if (key < 0l) {
+			unpackedSlots.put(new IndicesKey(Arrays.copyOf(indices, nDims)), slot);
+		} else {
+			if (2*(numPacked+1) > tableSlots.length)
+				rehash();
+			insert(key, slot);
+			numPacked++;
+		}
+		return slot;
+	}
+
+	private void insert(long key, int slot) {
+		int mask = tableSlots.length - 1;
+		int i = tableIndex(key);
+		while (tableSlots[i] != EMPTY)
+			i = (i+1) & mask;
+		tableKeys[i] = key;
+		tableSlots[i] = slot;
+	}
+
+	private void rehash() {
+		long[] oldKeys = tableKeys;
+		int[] oldSlots = tableSlots;
+		tableBits++;
+		tableKeys = new long[1 << tableBits];
+		tableSlots = new int[1 << tableBits];
+		Arrays.fill(tableSlots, EMPTY);
+		for (int i=0; i<oldSlots.length; i++)
+			if (oldSlots[i] != EMPTY)
+				insert(oldKeys[i], oldSlots[i]);
+	}
+
+	/**
+	 * @return number of populated bins (slots)
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies the indices for the given slot into the given array
+	 * @param slot
+	 * @param dest
+	 * @return dest
+	 */
+	public int[] getIndices(int slot, int[] dest) {
+		Preconditions.checkElementIndex(slot, size);
+		System.arraycopy(slotIndices, slot*nDims, dest, 0, nDims);
+		return dest;
+	}
+
+	/**
+	 * @param slot
+	 * @return new array of indices for the given slot
+	 */
+	public int[] getIndices(int slot) {
+		return getIndices(slot, new int[nDims]);
+	}
+
+	/**
+	 * @param slot
+	 * @param dim
+	 * @return index in the given dimension for the given slot
+	 */
+	public int getIndex(int slot, int dim) {
+		Preconditions.checkElementIndex(slot, size);
+		return slotIndices[slot*nDims + dim];
+	}
+
+	@SuppressWarnings("unchecked")
+	public E getValue(int slot) {
+		Preconditions.checkElementIndex(slot, size);
+		return (E)slotValues[slot];
+	}
+
+	public void setValue(int slot, E val) {
+		Preconditions.checkElementIndex(slot, size);
+		slotValues[slot] = val;
+	}
+
 	public int indexForDimVal(int nDim, double val) {
 		double iVal = PRECISION_SCALE * (val - zeroIndLocPerDim[nDim]) / spacingsPerDim[nDim];
 		int i = (spacingsPerDim[nDim] == 0) ? 0 : (int) Math.round(iVal);
 		return i;
 	}
-	
+
 	public int[] indexesForDimVals(double[] vals) {
 		Preconditions.checkArgument(vals.length == this.nDims);
 		int[] indexes = new int[nDims];
@@ -70,11 +236,15 @@ public class SparseNDimensionalHashDataset<E> {
 			indexes[i] = indexForDimVal(i, vals[i]);
 		return indexes;
 	}
-	
+
+	/**
+	 * @return new list of indices for every populated bin, in slot order. Use {@link #size()} and
+	 * {@link #getIndices(int, int[])} to iterate without allocating
+	 */
 	public List<int[]> getPopulatedIndices() {
-		List<int[]> indicesList = Lists.newArrayList();
-		for (IndicesKey key : data.keySet())
-			indicesList.add(key.indices);
+		List<int[]> indicesList = Lists.newArrayListWithCapacity(size);
+		for (int slot=0; slot<size; slot++)
+			indicesList.add(getIndices(slot));
 		return indicesList;
 	}
 
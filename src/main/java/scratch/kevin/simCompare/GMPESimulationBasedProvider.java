@@ -2,10 +2,12 @@ package scratch.kevin.simCompare;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.random.Well19937c;
@@ -13,12 +15,17 @@ import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.data.function.LightFixedXFunc;
 import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.common.primitives.Doubles;
 
 public class GMPESimulationBasedProvider<E> implements SimulationRotDProvider<E> {
@@ -32,10 +39,41 @@ public class GMPESimulationBasedProvider<E> implements SimulationRotDProvider<E>
 	private boolean hasPGV = false;
 	private boolean hasDur = false;
 	
-	private NormalDistribution stdNorm;
+	// ruptures are numbered in the order that they were supplied, for stable random seeds
+	private Map<E, Integer> rupIndexes;
+	private long seed;
+	
+	// maximum number of cached values (8 bytes each) across all site/rupture pairs
+	private static final long max_cache_values = 25000000l;
 
-	private Table<Site, E, DiscretizedFunc[]> cache;
-	private Table<Site, E, double[]> pgvCache;
+	// packed values for each simulation (numSims x numPeriods for spectra, numSims for PGV). Samples are seeded
+	// from the key so that evicted values are identical when they are regenerated
+	private LoadingCache<CacheKey<E>, double[]> cache;
+	
+	private static class CacheKey<E> {
+		private final Site site;
+		private final E rupture;
+		private final boolean pgv;
+		
+		public CacheKey(Site site, E rupture, boolean pgv) {
+			this.site = site;
+			this.rupture = rupture;
+			this.pgv = pgv;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31*(31*site.hashCode() + rupture.hashCode()) + (pgv ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CacheKey))
+				return false;
+			CacheKey<?> o = (CacheKey<?>)obj;
+			return pgv == o.pgv && site.equals(o.site) && rupture.equals(o.rupture);
+		}
+	}
 	
 	public GMPESimulationBasedProvider(SimulationRotDProvider<E> simProv, List<? extends RuptureComparison<E>> comps,
 			String name, IMT[] imts) {
@@ -55,41 +93,119 @@ public class GMPESimulationBasedProvider<E> implements SimulationRotDProvider<E>
 		this.saPeriods = Doubles.toArray(saPeriods);
 		this.saIMTs = saIMTs.toArray(new IMT[0]);
 		compsMap = new HashMap<>();
-		for (RuptureComparison<E> comp : comps)
+		rupIndexes = new HashMap<>();
+		for (RuptureComparison<E> comp : comps) {
 			compsMap.put(comp.getRupture(), comp);
-		stdNorm = new NormalDistribution(new Well19937c(comps.size()), 0d, 1d);
-		cache = HashBasedTable.create();
-		cache = HashBasedTable.create();
+			if (!rupIndexes.containsKey(comp.getRupture()))
+				rupIndexes.put(comp.getRupture(), rupIndexes.size());
+		}
+		seed = comps.size();
+		cache = CacheBuilder.newBuilder().maximumWeight(max_cache_values).weigher(
+				new Weigher<CacheKey<E>, double[]>() {
+
+					@Override
+					public int weigh(CacheKey<E> key, double[] value) {
+						return value.length;
+					}
+				}).recordStats().build(new CacheLoader<CacheKey<E>, double[]>() {
+
+					@Override
+					public double[] load(CacheKey<E> key) throws Exception {
+						if (key.pgv)
+							return calcPGVs(key.site, key.rupture);
+						return calcRotD50s(key.site, key.rupture);
+					}
+				});
 	}
 	
 	public void clearCache() {
-		cache.clear();
+		cache.invalidateAll();
+	}
+	
+	/**
+	 * @return cache hit/miss/eviction statistics
+	 */
+	public CacheStats getCacheStats() {
+		return cache.stats();
 	}
 
 	@Override
 	public String getName() {
 		return name;
 	}
-
-	@Override
-	public synchronized DiscretizedFunc getRotD50(Site site, E rupture, int index) throws IOException {
-		if (cache.contains(site, rupture))
-			return cache.get(site, rupture)[index];
-		DiscretizedFunc[] funcs = new DiscretizedFunc[getNumSimulations(site, rupture)];
+	
+	private double[] getCached(Site site, E rupture, boolean pgv) throws IOException {
+		try {
+			return cache.get(new CacheKey<>(site, rupture, pgv));
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
+	}
+	
+	private double[] calcRotD50s(Site site, E rupture) {
+		int numSims = getNumSimulations(site, rupture);
 		RuptureComparison<E> comp = compsMap.get(rupture);
 		Preconditions.checkNotNull(comp, "Comp not found for rupture: %s", rupture);
-		for (int i=0; i<funcs.length; i++) {
-			double[] vals = new double[imts.length];
-			for (int p=0; p<saPeriods.length; p++) {
-				double logMean = comp.getLogMean(site, saIMTs[p]);
-				double stdDev = comp.getStdDev(site, saIMTs[p]);
-				double sample = stdNorm.sample();
-				vals[p] = Math.exp(logMean + stdDev*sample);
-			}
-			funcs[i] = new LightFixedXFunc(saPeriods, vals);
+		double[] logMeans = new double[saPeriods.length];
+		double[] stdDevs = new double[saPeriods.length];
+		for (int p=0; p<saPeriods.length; p++) {
+			logMeans[p] = comp.getLogMean(site, saIMTs[p]);
+			stdDevs[p] = comp.getStdDev(site, saIMTs[p]);
+		}
+		double[] vals = new double[numSims*saPeriods.length];
+		double[] samples = sample(site, rupture, false, vals.length);
+		for (int i=0; i<vals.length; i++) {
+			int p = i % saPeriods.length;
+			vals[i] = Math.exp(logMeans[p] + stdDevs[p]*samples[i]);
 		}
-		cache.put(site, rupture, funcs);
-		return funcs[index];
+		return vals;
+	}
+	
+	private double[] calcPGVs(Site site, E rupture) {
+		int numSims = getNumSimulations(site, rupture);
+		RuptureComparison<E> comp = compsMap.get(rupture);
+		Preconditions.checkNotNull(comp, "Comp not found for rupture: %s", rupture);
+		double logMean = comp.getLogMean(site, IMT.PGV);
+		double stdDev = comp.getStdDev(site, IMT.PGV);
+		double[] samples = sample(site, rupture, true, numSims);
+		double[] pgvs = new double[numSims];
+		for (int i=0; i<numSims; i++)
+			pgvs[i] = Math.exp(logMean + stdDev*samples[i]);
+		return pgvs;
+	}
+	
+	/**
+	 * Draws standard normal samples from a generator seeded by the given site, rupture and component, so that
+	 * values don't depend on cache evictions or thread scheduling
+	 */
+	private double[] sample(Site site, E rupture, boolean pgv, int num) {
+		long entrySeed = mix(seed);
+		entrySeed = mix(entrySeed ^ (site.getName() == null ? 0 : site.getName().hashCode()));
+		Location loc = site.getLocation();
+		entrySeed = mix(entrySeed ^ Double.doubleToLongBits(loc.getLatitude()));
+		entrySeed = mix(entrySeed ^ Double.doubleToLongBits(loc.getLongitude()));
+		entrySeed = mix(entrySeed ^ rupIndexes.get(rupture));
+		entrySeed = mix(entrySeed ^ (pgv ? 1 : 0));
+		NormalDistribution stdNorm = new NormalDistribution(new Well19937c(entrySeed), 0d, 1d);
+		return stdNorm.sample(num);
+	}
+	
+	// SplitMix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9l;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebl;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public DiscretizedFunc getRotD50(Site site, E rupture, int index) throws IOException {
+		double[] vals = getCached(site, rupture, false);
+		int start = index*saPeriods.length;
+		return new LightFixedXFunc(saPeriods, Arrays.copyOfRange(vals, start, start+saPeriods.length));
 	}
 
 	@Override
@@ -109,19 +225,7 @@ public class GMPESimulationBasedProvider<E> implements SimulationRotDProvider<E>
 
 	@Override
 	public double getPGV(Site site, E rupture, int index) throws IOException {
-		if (pgvCache.contains(site, rupture))
-			return pgvCache.get(site, rupture)[index];
-		double[] pgvs = new double[getNumSimulations(site, rupture)];
-		RuptureComparison<E> comp = compsMap.get(rupture);
-		Preconditions.checkNotNull(comp, "Comp not found for rupture: %s", rupture);
-		for (int i=0; i<pgvs.length; i++) {
-			double logMean = comp.getLogMean(site, IMT.PGV);
-			double stdDev = comp.getStdDev(site, IMT.PGV);
-			double sample = stdNorm.sample();
-			pgvs[i] = Math.exp(logMean + stdDev*sample);
-		}
-		pgvCache.put(site, rupture, pgvs);
-		return pgvs[index];
+		return getCached(site, rupture, true)[index];
 	}
 
 	@Override
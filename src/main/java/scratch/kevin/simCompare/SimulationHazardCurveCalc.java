@@ -3,15 +3,21 @@ package scratch.kevin.simCompare;
 import java.awt.geom.Point2D;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.data.function.UncertainArbDiscDataset;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.gui.infoTools.IMT_Info;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGV_Param;
@@ -97,13 +103,15 @@ public class SimulationHazardCurveCalc<E> {
 			Map<E, Double> rupRateScalars, Double fractile) throws IOException {
 		// annual rate curve
 		DiscretizedFunc curve = xValsMap.get(imt.getParamName()).deepClone();
+		double[] xVals = new double[curve.size()];
 		for (int i=0; i<curve.size(); i++)
-			curve.set(i, 0d);
-		int[] numExceed = new int[curve.size()];
+			xVals[i] = curve.getX(i);
+		// rates and counts binned by the number of x values exceeded, summed into curves once all values are in
+		double[] binRates = new double[xVals.length+1];
+		int[] binCounts = new int[xVals.length+1];
 		int numRuptures = 0;
 		double firstRate = -1;
 //		double minRate = Double.POSITIVE_INFINITY;
-		simProv.getMinimumCurvePlotRate(site);
 		boolean allRatesSame = true;
 		for (E rupture : simProv.getRupturesForSite(site)) {
 			double rupRate = simProv.getAnnualRate(rupture);
@@ -124,13 +132,9 @@ public class SimulationHazardCurveCalc<E> {
 			if (fractile == null) {
 				for (int j=0; j<vals.size(); j++) {
 					double simRate = simProv.getIndividualSimulationRate(rupture, rupRate, j, vals.size());
-					double val = vals.get(j);
-					for (int i=0; i<curve.size(); i++) {
-						if (curve.getX(i) <= val) {
-							numExceed[i]++;
-							curve.set(i, curve.getY(i)+simRate);
-						}
-					}
+					int numExceeded = numExceeded(xVals, vals.get(j));
+					binRates[numExceeded] += simRate;
+					binCounts[numExceeded]++;
 					numRuptures++;
 				}
 			} else {
@@ -138,15 +142,22 @@ public class SimulationHazardCurveCalc<E> {
 						"Must have multiple values per rupture for fractile curves");
 				double[] array = Doubles.toArray(vals);
 				double val = StatUtils.percentile(array, fractile*100d);
-				for (int i=0; i<curve.size(); i++) {
-					if (curve.getX(i) <= val) {
-						numExceed[i]++;
-						curve.set(i, curve.getY(i)+rupRate);
-					}
-				}
+				int numExceeded = numExceeded(xVals, val);
+				binRates[numExceeded] += rupRate;
+				binCounts[numExceeded]++;
 				numRuptures++;
 			}
 		}
+		int[] numExceed = new int[xVals.length];
+		double rateSum = 0d;
+		int countSum = 0;
+		for (int i=xVals.length; --i>=0;) {
+			// a value exceeds x[i] if it exceeds more than i x values
+			rateSum += binRates[i+1];
+			countSum += binCounts[i+1];
+			curve.set(i, rateSum);
+			numExceed[i] = countSum;
+		}
 		if (firstRate < 0)
 			return null;
 		
@@ -211,5 +222,59 @@ public class SimulationHazardCurveCalc<E> {
 		
 		return curve;
 	}
+	
+	/**
+	 * @param xVals sorted x values
+	 * @param val
+	 * @return the number of x values which are less than or equal to the given value
+	 */
+	private static int numExceeded(double[] xVals, double val) {
+		if (Double.isNaN(val))
+			return 0;
+		int index = Arrays.binarySearch(xVals, val);
+		if (index >= 0)
+			return index+1;
+		// insertion point
+		return -(index+1);
+	}
+	
+	/**
+	 * Calculates hazard curves for many sites in parallel. The simulation provider must support concurrent access.
+	 * @param sites
+	 * @param imts
+	 * @param curveDuration
+	 * @param exec executor service on which to calculate curves, one task per site
+	 * @return list of IMT to curve maps for each site, in the same order as the given sites. Curves for IMTs with no
+	 * ruptures at a site will be null
+	 * @throws IOException
+	 */
+	public List<Map<IMT, DiscretizedFunc>> calc(List<Site> sites, final IMT[] imts, final double curveDuration,
+			ExecutorService exec) throws IOException {
+		List<Future<Map<IMT, DiscretizedFunc>>> futures = new ArrayList<>();
+		for (final Site site : sites) {
+			futures.add(exec.submit(new Callable<Map<IMT, DiscretizedFunc>>() {
+
+				@Override
+				public Map<IMT, DiscretizedFunc> call() throws Exception {
+					Map<IMT, DiscretizedFunc> curves = new HashMap<>();
+					for (IMT imt : imts)
+						curves.put(imt, calc(site, imt, curveDuration));
+					return curves;
+				}
+			}));
+		}
+		
+		List<Map<IMT, DiscretizedFunc>> ret = new ArrayList<>();
+		for (Future<Map<IMT, DiscretizedFunc>> future : futures) {
+			try {
+				ret.add(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		return ret;
+	}
 
 }
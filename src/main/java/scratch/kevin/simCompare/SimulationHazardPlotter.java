@@ -186,6 +186,17 @@ public class SimulationHazardPlotter<E> {
 		return curve;
 	}
 	
+	/**
+	 * Sets an already calculated simulation curve (e.g. from a batch calculation across many sites), which will be
+	 * used in place of calculating it here
+	 * @param simCalc
+	 * @param imt
+	 * @param curve
+	 */
+	public synchronized void setSimCurve(SimulationHazardCurveCalc<?> simCalc, IMT imt, DiscretizedFunc curve) {
+		simCurves.put(simCalc, imt, curve);
+	}
+	
 	private DiscretizedFunc getGMPECurve(IMT imt, double sigmaTruncation, double fixedSigma) {
 		Preconditions.checkState(sigmaTruncation < 0 || fixedSigma < 0);
 		if (sigmaTruncation < 0 && fixedSigma < 0 && gmpeCurves.containsKey(imt))
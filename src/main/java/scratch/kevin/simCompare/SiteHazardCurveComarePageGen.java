@@ -34,7 +34,9 @@ import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
+import com.google.common.collect.Table.Cell;
 import com.google.common.primitives.Doubles;
 
 import scratch.kevin.simCompare.SimulationDisaggAttenuationRelationshipWrapper.Source;
@@ -66,6 +68,11 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 	
 	private LinkedList<DisaggCalc> disaggCalcsCache;
 	
+	private static final double curve_duration = 1d;
+	
+	// simulation curves calculated up front for many sites, see precalcSimCurves(...)
+	private Map<Site, Table<SimulationHazardCurveCalc<?>, IMT, DiscretizedFunc>> precalcSimCurves = new HashMap<>();
+	
 	private boolean replotCurves = true;
 	private boolean replotDisaggs = true;
 	
@@ -149,6 +156,36 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		return list;
 	}
 	
+	/**
+	 * Calculates simulation hazard curves for all of the given sites in parallel, which will then be used by
+	 * generateSitePage(...) rather than calculating curves one site at a time
+	 * @param sites
+	 * @param imts
+	 * @throws IOException
+	 */
+	public void precalcSimCurves(List<Site> sites, IMT[] imts) throws IOException {
+		List<SimulationHazardCurveCalc<?>> calcs = new ArrayList<>();
+		calcs.add(simCalc);
+		calcs.addAll(compCurveCals);
+		System.out.println("Calculating simulation hazard curves for "+sites.size()+" sites");
+		for (SimulationHazardCurveCalc<?> calc : calcs) {
+			List<Map<IMT, DiscretizedFunc>> siteCurves = calc.calc(sites, imts, curve_duration, getExec());
+			for (int i=0; i<sites.size(); i++) {
+				Site site = sites.get(i);
+				Table<SimulationHazardCurveCalc<?>, IMT, DiscretizedFunc> table = precalcSimCurves.get(site);
+				if (table == null) {
+					table = HashBasedTable.create();
+					precalcSimCurves.put(site, table);
+				}
+				for (IMT imt : imts) {
+					DiscretizedFunc curve = siteCurves.get(i).get(imt);
+					if (curve != null)
+						table.put(calc, imt, curve);
+				}
+			}
+		}
+	}
+	
 	public void generateSitePage(Site site, List<? extends RuptureComparison<E>> comps, File outputDir, List<String> headerLines,
 			IMT[] imts, AttenRelRef gmpeRef) throws IOException {
 		File resourcesDir = new File(outputDir, "resources");
@@ -195,9 +232,13 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		int tocIndex = lines.size();
 		String topLink = "*[(top)](#table-of-contents)*";
 		
-		double curveDuration = 1d;
+		double curveDuration = curve_duration;
 		
 		SimulationHazardPlotter<E> curvePlotter = new SimulationHazardPlotter<>(simCalc, compCurveCals, comps, site, curveDuration, gmpeRef);
+		Table<SimulationHazardCurveCalc<?>, IMT, DiscretizedFunc> siteSimCurves = precalcSimCurves.get(site);
+		if (siteSimCurves != null)
+			for (Cell<SimulationHazardCurveCalc<?>, IMT, DiscretizedFunc> cell : siteSimCurves.cellSet())
+				curvePlotter.setSimCurve(cell.getRowKey(), cell.getColumnKey(), cell.getValue());
 		curvePlotter.setGMPE_FixedSigmas(gmpe_fixed_sigmas);
 		curvePlotter.setGMPE_TruncationLevels(gmpe_truncs);
 		curvePlotter.setSourceContributionFractions(sourceRupContributionFracts, sourceRupContributionsMutuallyExclusive);
@@ -383,6 +424,7 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 			
 			if (replotCurves || !new File(resourcesDir, gmpeSimPrefix+".png").exists())
 				curvePlotter.plotGMPE_SimHazardCurves(resourcesDir, gmpeSimPrefix, imt, gmpeSimProv, numGMPESims);
+			System.out.println("GMPE simulation cache: "+gmpeSimProv.getCacheStats());
 			
 			lines.add("![Hazard Curve]("+resourcesDir.getName()+"/"+gmpeSimPrefix+".png)");
 			lines.add("");
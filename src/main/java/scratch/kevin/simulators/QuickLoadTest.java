@@ -1,6 +1,12 @@
 package scratch.kevin.simulators;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.sha.simulators.RSQSimEvent;
+
+import com.google.common.base.Stopwatch;
 
 import scratch.kevin.simulators.RSQSimCatalog.Catalogs;
 
@@ -9,7 +15,13 @@ public class QuickLoadTest {
 	public static void main(String[] args) throws IOException {
 		RSQSimCatalog catalog = Catalogs.BRUCE_2585_1MYR.instance();
 		
-		catalog.loader().skipSlipsAndTimes().load();
+		if (catalog.getEventIndex() == null)
+			catalog.buildEventIndex();
+		
+		Stopwatch watch = Stopwatch.createStarted();
+		List<RSQSimEvent> events = catalog.loader().skipYears(5000).minMag(7d).skipSlipsAndTimes().load();
+		watch.stop();
+		System.out.println("Loaded "+events.size()+" events in "+watch.elapsed(TimeUnit.SECONDS)+" s");
 	}
 
 }
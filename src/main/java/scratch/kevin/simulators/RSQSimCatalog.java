@@ -1,6 +1,7 @@
 package scratch.kevin.simulators;
 
 import java.awt.Color;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -10,6 +11,7 @@ import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -17,9 +19,11 @@ import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -30,7 +34,6 @@ import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
 import org.opensha.commons.data.function.DiscretizedFunc;
 import org.opensha.commons.data.function.UncertainArbDiscDataset;
 import org.opensha.commons.geo.Location;
-import org.opensha.commons.geo.Region;
 import org.opensha.commons.gui.plot.PlotPreferences;
 import org.opensha.commons.metadata.XMLSaveable;
 import org.opensha.commons.util.ComparablePairing;
@@ -53,17 +56,15 @@ import org.opensha.sha.simulators.iden.EventIDsRangeIden;
 import org.opensha.sha.simulators.iden.EventIDsRupIden;
 import org.opensha.sha.simulators.iden.EventTimeIdentifier;
 import org.opensha.sha.simulators.iden.LogicalAndRupIden;
-import org.opensha.sha.simulators.iden.LogicalOrRupIden;
 import org.opensha.sha.simulators.iden.MagRangeRuptureIdentifier;
-import org.opensha.sha.simulators.iden.RegionIden;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
-import org.opensha.sha.simulators.iden.SectionIDIden;
 import org.opensha.sha.simulators.iden.SkipYearsLoadIden;
 import org.opensha.sha.simulators.parsers.RSQSimFileReader;
 import org.opensha.sha.simulators.srf.RSQSimEventSlipTimeFunc;
 import org.opensha.sha.simulators.srf.RSQSimStateTransitionFileReader;
 import org.opensha.sha.simulators.srf.RSQSimStateTransitionFileReader.TransVersion;
 import org.opensha.sha.simulators.srf.RSQSimTransValidIden;
+import org.opensha.sha.simulators.utils.General_EQSIM_Tools;
 import org.opensha.sha.simulators.utils.RSQSimSubSectEqkRupture;
 import org.opensha.sha.simulators.utils.RSQSimSubSectionMapper;
 import org.opensha.sha.simulators.utils.RSQSimSubSectionMapper.SlipAlongSectAlgorithm;
@@ -83,6 +84,7 @@ import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.UCERF3_DataUtils;
 import scratch.kevin.bbp.BBP_Module.VelocityModel;
+import scratch.kevin.simulators.RSQSimElementIndex.ElementIDsIden;
 import scratch.kevin.simulators.plots.AbstractPlot;
 import scratch.kevin.simulators.plots.MFDPlot;
 import scratch.kevin.simulators.plots.MagAreaScalingPlot;
@@ -90,6 +92,7 @@ import scratch.kevin.simulators.plots.MomentRateVaribilityPlot;
 import scratch.kevin.simulators.plots.NormalizedFaultRecurrenceIntervalPlot;
 import scratch.kevin.simulators.plots.PaleoOpenIntervalPlot;
 import scratch.kevin.simulators.plots.PaleoRecurrencePlot;
+import scratch.kevin.simulators.plots.PlotEventBus;
 import scratch.kevin.simulators.plots.RecurrenceIntervalPlot;
 import scratch.kevin.simulators.plots.RuptureVelocityPlot;
 import scratch.kevin.simulators.plots.SectParticipationNucleationPlot;
@@ -105,7 +108,7 @@ import scratch.kevin.simulators.ruptures.BBP_PartBValidationConfig.FilterMethod;
 import scratch.kevin.simulators.ruptures.BBP_PartBValidationConfig.Scenario;
 import scratch.kevin.simulators.ruptures.rotation.RSQSimRotatedRupVariabilityMagDistPageGen.RuptureType;
 
-public class RSQSimCatalog implements XMLSaveable {
+public class RSQSimCatalog implements XMLSaveable, Closeable {
 	
 	public enum Catalogs {
 		BRUCE_2142("bruce/rundir2142", "Bruce 2142", "Bruce Shaw", cal(2017, 6, 16),
@@ -565,12 +568,22 @@ public class RSQSimCatalog implements XMLSaveable {
 	
 	private List<SimulatorElement> elements;
 	private RSQSimStateTransitionFileReader transReader;
+	// transitions readers aren't thread safe, so slip time functions borrow an idle reader from this pool. A new
+	// reader is only opened when all existing ones are in use, and all of them are closed with the catalog.
+	// pooledTransReaders holds every open pooled reader, and is the lock for returning readers to the idle queue
+	private final ConcurrentLinkedQueue<RSQSimStateTransitionFileReader> idleTransReaders =
+			new ConcurrentLinkedQueue<>();
+	private final List<RSQSimStateTransitionFileReader> pooledTransReaders = new ArrayList<>();
 	private List<? extends FaultSection> subSects;
 	private Map<Integer, Double> subSectAreas;
 	private Map<IDPairing, Double> subSectDistsCache;
 	private RSQSimSubSectionMapper subSectMapper;
-	
+	private RSQSimEventIndex eventIndex;
+	private RSQSimElementIndex elementIndex;
+	private SubSectDistances subSectDistances;
+
 	private static final File fmDmSolDir = new File(System.getProperty("user.home"), ".opensha/ucerf3_fm_dm_sols/");
+	private static final File subSectDistsCacheDir = new File(System.getProperty("user.home"), ".opensha/sub_sect_dists/");
 	private FaultSystemSolution compSol;
 	
 	public static final double MIN_SUB_SECT_FRACT_DEFAULT = 0.2;
@@ -1335,7 +1348,18 @@ public class RSQSimCatalog implements XMLSaveable {
 	public synchronized List<SimulatorElement> getElements() throws IOException {
 		if (elements == null) {
 			File geomFile = getGeomFile();
-			elements = RSQSimFileReader.readGeometryFile(geomFile, 11, 'N');
+			File cacheFile = new File(geomFile.getParentFile(), RSQSimGeometryCache.FILE_NAME);
+			if (RSQSimGeometryCache.isCurrent(cacheFile, geomFile)) {
+				elements = RSQSimGeometryCache.read(cacheFile);
+			} else {
+				elements = RSQSimFileReader.readGeometryFile(geomFile, 11, 'N');
+				try {
+					RSQSimGeometryCache.write(elements, geomFile, cacheFile);
+				} catch (IOException e) {
+					// catalog directory may be read only, we'll just parse it next time
+					System.out.println("Couldn't write geometry cache: "+e.getMessage());
+				}
+			}
 		}
 		return elements;
 	}
@@ -1343,6 +1367,51 @@ public class RSQSimCatalog implements XMLSaveable {
 	public Loader loader() throws IOException {
 		return new Loader(getElements(), getCatalogDir());
 	}
+
+	/**
+	 * @return spatial and section index over this catalog's elements, used by {@link Loader} distance and section
+	 * filters
+	 * @throws IOException
+	 */
+	public synchronized RSQSimElementIndex getElementIndex() throws IOException {
+		if (elementIndex == null)
+			elementIndex = new RSQSimElementIndex(getElements());
+		return elementIndex;
+	}
+
+	/**
+	 * @return event index for this catalog, or null if it hasn't been built (see {@link #buildEventIndex()}) or is
+	 * out of date
+	 * @throws IOException
+	 */
+	public synchronized RSQSimEventIndex getEventIndex() throws IOException {
+		if (eventIndex == null) {
+			File indexFile = RSQSimEventIndex.getIndexFile(getCatalogDir());
+			if (!indexFile.exists())
+				return null;
+			RSQSimEventIndex index = new RSQSimEventIndex(indexFile);
+			if (!index.isCurrent(getCatalogDir())) {
+				System.out.println("Event index is out of date, ignoring: "+indexFile.getAbsolutePath());
+				index.close();
+				return null;
+			}
+			eventIndex = index;
+		}
+		return eventIndex;
+	}
+
+	/**
+	 * Builds (or rebuilds) the event index for this catalog, which will then be used by {@link Loader} queries
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized RSQSimEventIndex buildEventIndex() throws IOException {
+		if (eventIndex != null)
+			eventIndex.close();
+		eventIndex = null;
+		RSQSimEventIndex.build(getCatalogDir(), getElements(), RSQSimEventIndex.getIndexFile(getCatalogDir()));
+		return getEventIndex();
+	}
 	
 	private static File getTransFile(File dir, boolean transV) throws FileNotFoundException {
 		for (File file : dir.listFiles()) {
@@ -1354,48 +1423,114 @@ public class RSQSimCatalog implements XMLSaveable {
 	}
 	
 	public synchronized RSQSimStateTransitionFileReader getTransitions() throws IOException {
-		if (transReader == null) {
-//			File transFile = getTransFile(getCatalogDir(), isVariableSlipSpeed());
-			File transFile = null;
-			TransVersion transVersion = null;
-			boolean transV = isVariableSlipSpeed();
-			Map<String, String> params = getParams();
-			
-			String newStyleStr = params.get("writeSlipSpeedInMainTransFile");
-			if (newStyleStr != null) {
-				int newStyleInt = Integer.parseInt(newStyleStr);
-				if (newStyleInt == 0)
-					transVersion = TransVersion.ORIGINAL;
-				else
-					transVersion = TransVersion.CONSOLIDATED_RELATIVE;
-			}
-			for (File file : getCatalogDir().listFiles()) {
-				String name = file.getName().toLowerCase();
-				if (!name.startsWith("trans") || !name.endsWith(".out"))
-					continue;
-				if (name.startsWith("transv.")) {
-					transFile = file;
-					Preconditions.checkState(transV, "have a transV file params indicate not transv: %s", file.getName());
-					transVersion = TransVersion.TRANSV;
-					// if we have a transv, use that. might have an old style plain trans as well
-					break;
-				} else {
-					transFile = file;
-				}
+		if (transReader == null)
+			transReader = buildTransitionsReader();
+		return transReader;
+	}
+	
+	private RSQSimStateTransitionFileReader buildTransitionsReader() throws IOException {
+//		File transFile = getTransFile(getCatalogDir(), isVariableSlipSpeed());
+		File transFile = null;
+		TransVersion transVersion = null;
+		boolean transV = isVariableSlipSpeed();
+		Map<String, String> params = getParams();
+		
+		String newStyleStr = params.get("writeSlipSpeedInMainTransFile");
+		if (newStyleStr != null) {
+			int newStyleInt = Integer.parseInt(newStyleStr);
+			if (newStyleInt == 0)
+				transVersion = TransVersion.ORIGINAL;
+			else
+				transVersion = TransVersion.CONSOLIDATED_RELATIVE;
+		}
+		for (File file : getCatalogDir().listFiles()) {
+			String name = file.getName().toLowerCase();
+			if (!name.startsWith("trans") || !name.endsWith(".out"))
+				continue;
+			if (name.startsWith("transv.")) {
+				transFile = file;
+				Preconditions.checkState(transV, "have a transV file params indicate not transv: %s", file.getName());
+				transVersion = TransVersion.TRANSV;
+				// if we have a transv, use that. might have an old style plain trans as well
+				break;
+			} else {
+				transFile = file;
+			}
+		}
+//		System.out.println("Trans file: "+transFile.getAbsolutePath());
+//		System.out.println("Trans version: "+transVersion);
+//		System.out.println("TransV: "+transV);
+		RSQSimStateTransitionFileReader reader = new RSQSimStateTransitionFileReader(
+				transFile, getElements(), transVersion);
+		transVersion = reader.getVersion();
+		if (transVersion == TransVersion.ORIGINAL)
+			reader.setPatchFixedVelocities(getSlipVelocities());
+		return reader;
+	}
+	
+	/**
+	 * Builds the slip time function for the given event. This is safe to call concurrently from many threads: each
+	 * call borrows a reader from a pool, so there are only as many open readers as concurrent calls (see
+	 * {@link #getTransitions()} for a shared instance). Pooled readers are closed by {@link #close()}.
+	 * @param event
+	 * @return
+	 * @throws IOException
+	 */
+	public RSQSimEventSlipTimeFunc getSlipTimeFunc(RSQSimEvent event) throws IOException {
+		RSQSimStateTransitionFileReader reader = idleTransReaders.poll();
+		if (reader == null) {
+			reader = buildTransitionsReader();
+			synchronized (pooledTransReaders) {
+				pooledTransReaders.add(reader);
 			}
-//			System.out.println("Trans file: "+transFile.getAbsolutePath());
-//			System.out.println("Trans version: "+transVersion);
-//			System.out.println("TransV: "+transV);
-			transReader = new RSQSimStateTransitionFileReader(transFile, getElements(), transVersion);
-			transVersion = transReader.getVersion();
-			if (transVersion == TransVersion.ORIGINAL)
-				transReader.setPatchFixedVelocities(getSlipVelocities());
 		}
-		return transReader;
+		try {
+			return new RSQSimEventSlipTimeFunc(reader.getTransitions(event));
+		} finally {
+			boolean closed;
+			synchronized (pooledTransReaders) {
+				// if the pool was closed while this reader was borrowed, it's no longer in the pool
+				closed = !pooledTransReaders.contains(reader);
+				if (!closed)
+					idleTransReaders.add(reader);
+			}
+			if (closed)
+				closeReader(reader);
+		}
 	}
 	
-	public synchronized RSQSimEventSlipTimeFunc getSlipTimeFunc(RSQSimEvent event) throws IOException {
-		return new RSQSimEventSlipTimeFunc(getTransitions().getTransitions(event));
+	/**
+	 * Closes any open transitions readers. They will be reopened if needed.
+	 */
+	@Override
+	public void close() throws IOException {
+		// only idle readers are closed here, any that are currently borrowed are closed when they are returned
+		List<RSQSimStateTransitionFileReader> readers = new ArrayList<>();
+		synchronized (pooledTransReaders) {
+			pooledTransReaders.clear();
+			RSQSimStateTransitionFileReader reader;
+			while ((reader = idleTransReaders.poll()) != null)
+				readers.add(reader);
+		}
+		synchronized (this) {
+			if (transReader != null)
+				readers.add(transReader);
+			transReader = null;
+		}
+		for (RSQSimStateTransitionFileReader reader : readers)
+			closeReader(reader);
+	}
+	
+	private static void closeReader(Object reader) throws IOException {
+		if (reader instanceof AutoCloseable) {
+			try {
+				((AutoCloseable)reader).close();
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
 	}
 
 	static GregorianCalendar cal(int year, int month, int day) {
@@ -1481,6 +1616,26 @@ public class RSQSimCatalog implements XMLSaveable {
 		return subSectDistsCache;
 	}
 	
+	/**
+	 * @return minimum horizontal trace distances between each pair of UCERF3 subsections. This is cached to disk by
+	 * fault model, and memory mapped on reuse.
+	 * @throws IOException
+	 */
+	public synchronized SubSectDistances getSubSectDistances() throws IOException {
+		if (subSectDistances == null) {
+			List<? extends FaultSection> subSects = getU3SubSects();
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (getFaultModel() == null) {
+				subSectDistances = SubSectDistanceMatrix.calculate(subSects, Double.POSITIVE_INFINITY, threads);
+			} else {
+				File cacheFile = new File(subSectDistsCacheDir, getFaultModel().encodeChoiceString()+"_trace_dists.bin");
+				subSectDistances = SubSectDistanceMatrix.loadOrCalculate(
+						cacheFile, subSects, Double.POSITIVE_INFINITY, threads);
+			}
+		}
+		return subSectDistances;
+	}
+	
 	public synchronized RSQSimSubSectionMapper getSubSectMapper() throws IOException {
 		if (subSectMapper == null)
 			subSectMapper = new RSQSimSubSectionMapper(getU3SubSects(), getElements(), minFractForInclusion,
@@ -1516,12 +1671,33 @@ public class RSQSimCatalog implements XMLSaveable {
 		return allSects;
 	}
 	
+	/**
+	 * Loader predicate which can be evaluated against an {@link RSQSimEventIndex} row, see {@link Loader}
+	 */
+	private static abstract class IndexPredicate {
+		
+		/**
+		 * Called before each pass through the index, for predicates which depend on the first event they see
+		 */
+		void reset() {}
+		
+		abstract boolean matches(RSQSimEventIndex index, int row);
+	}
+	
+	/**
+	 * Builds up event loading filters. If an up to date {@link RSQSimEventIndex} exists for the catalog (see
+	 * {@link RSQSimCatalog#buildEventIndex()}) and all filters can be answered by it, matching events are found with
+	 * the index and only those events' records are read from the list files.
+	 */
 	public class Loader {
 		private List<SimulatorElement> elements;
 		private File catalogDir;
 		private boolean skipSlipsAndTimes = false;
 		
 		private List<RuptureIdentifier> loadIdens;
+		// index versions of each load iden, in the same order. only valid if indexable is true
+		private List<IndexPredicate> indexPreds;
+		private boolean indexable = true;
 		
 		private Loader(List<SimulatorElement> elements, File catalogDir) {
 			super();
@@ -1529,10 +1705,19 @@ public class RSQSimCatalog implements XMLSaveable {
 			this.catalogDir = catalogDir;
 			
 			loadIdens = new ArrayList<>();
+			indexPreds = new ArrayList<>();
 		}
 		
-		public Loader magRange(double minMag, double maxMag) {
+		public Loader magRange(final double minMag, final double maxMag) {
 			loadIdens.add(new MagRangeRuptureIdentifier(minMag, maxMag));
+			indexPreds.add(new IndexPredicate() {
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					double mag = index.getMag(row);
+					return mag >= minMag && mag <= maxMag;
+				}
+			});
 			return this;
 		}
 		
@@ -1549,40 +1734,92 @@ public class RSQSimCatalog implements XMLSaveable {
 			return this;
 		}
 		
-		public Loader skipYears(double years) {
-			if (years > 0)
+		public Loader skipYears(final double years) {
+			if (years > 0) {
 				loadIdens.add(new SkipYearsLoadIden(years));
+				indexPreds.add(new IndexPredicate() {
+					
+					private double startTime;
+					
+					@Override
+					void reset() {
+						startTime = Double.NaN;
+					}
+					
+					@Override
+					boolean matches(RSQSimEventIndex index, int row) {
+						double time = index.getTime(row);
+						if (Double.isNaN(startTime))
+							startTime = time;
+						return time >= startTime + years*General_EQSIM_Tools.SECONDS_PER_YEAR;
+					}
+				});
+			}
 			return this;
 		}
 		
-		public Loader withinTimeRange(double tStartSecs, double tEndSecs) {
+		public Loader withinTimeRange(final double tStartSecs, final double tEndSecs) {
 			loadIdens.add(new EventTimeIdentifier(tStartSecs, tEndSecs, false));
+			indexPreds.add(new IndexPredicate() {
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					double time = index.getTime(row);
+					return time >= tStartSecs && time <= tEndSecs;
+				}
+			});
 			return this;
 		}
 		
-		public Loader maxDuration(double years) {
+		public Loader maxDuration(final double years) {
 			loadIdens.add(new CatalogLengthLoadIden(years));
+			indexPreds.add(new IndexPredicate() {
+				
+				private double startTime;
+				
+				@Override
+				void reset() {
+					startTime = Double.NaN;
+				}
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					double time = index.getTime(row);
+					if (Double.isNaN(startTime))
+						startTime = time;
+					return time <= startTime + years*General_EQSIM_Tools.SECONDS_PER_YEAR;
+				}
+			});
 			return this;
 		}
 		
 		public Loader matches(RuptureIdentifier iden) {
 			loadIdens.add(iden);
+			// arbitrary identifiers need the full event
+			indexable = false;
 			return this;
 		}
 		
-		public Loader withinCutoffDist(double maxDist, Collection<Location> locs) {
-			return withinCutoffDist(maxDist, locs.toArray(new Location[0]));
+		/**
+		 * Only include events with at least one element center within the given distance of any of the given
+		 * locations. Matching elements are found up front with the {@link RSQSimElementIndex}.
+		 * @param maxDist maximum horizontal distance in km
+		 * @param locs
+		 * @return
+		 * @throws IOException
+		 */
+		public Loader withinCutoffDist(double maxDist, Collection<Location> locs) throws IOException {
+			BitSet elementIDs = getElementIndex().getElementsWithin(maxDist, locs);
+			return matches(new ElementIDsIden(elementIDs, "Within "+(float)maxDist+" km of "+locs.size()+" locations"));
 		}
 		
-		public Loader withinCutoffDist(double maxDist, Location... locs) {
-			List<RegionIden> regIdens = new ArrayList<>();
-			for (Location loc : locs)
-				regIdens.add(new RegionIden(new Region(loc, maxDist)));
-			return matches(new LogicalOrRupIden(regIdens));
+		public Loader withinCutoffDist(double maxDist, Location... locs) throws IOException {
+			return withinCutoffDist(maxDist, Arrays.asList(locs));
 		}
 		
 		public Loader hasTransitions() throws IOException {
 			loadIdens.add(new RSQSimTransValidIden(getTransitions()));
+			indexable = false;
 			return this;
 		}
 		
@@ -1602,7 +1839,22 @@ public class RSQSimCatalog implements XMLSaveable {
 						sectionIDs[i] -= offset;
 				}
 			}
-			loadIdens.add(new SectionIDIden(XML_METADATA_NAME, getElements(), sectionIDs));
+			loadIdens.add(new ElementIDsIden(getElementIndex().getElementsForSections(sectionIDs),
+					"On "+sectionIDs.length+" sections"));
+			int maxSectID = 0;
+			for (int sectID : sectionIDs)
+				maxSectID = Math.max(maxSectID, sectID);
+			final boolean[] sectMembership = new boolean[maxSectID+1];
+			for (int sectID : sectionIDs)
+				if (sectID >= 0)
+					sectMembership[sectID] = true;
+			indexPreds.add(new IndexPredicate() {
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					return index.touchesAny(row, sectMembership);
+				}
+			});
 			return this;
 		}
 		
@@ -1614,25 +1866,140 @@ public class RSQSimCatalog implements XMLSaveable {
 		
 		public List<RSQSimEvent> byIDs(int... eventIDs) throws IOException {
 			loadIdens.add(new EventIDsRupIden(eventIDs));
+			final int[] sortedIDs = Arrays.copyOf(eventIDs, eventIDs.length);
+			Arrays.sort(sortedIDs);
+			indexPreds.add(new IndexPredicate() {
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					return Arrays.binarySearch(sortedIDs, index.getEventID(row)) >= 0;
+				}
+			});
 			return this.load();
 		}
 		
 		public Loader maxEventID(int maxID) {
-			loadIdens.add(new EventIDsRangeIden(com.google.common.collect.Range.closed(Integer.MIN_VALUE, maxID)));
-			return this;
+			return forEventIDRange(com.google.common.collect.Range.closed(Integer.MIN_VALUE, maxID));
 		}
 		
 		public Loader minEventID(int minID) {
-			loadIdens.add(new EventIDsRangeIden(com.google.common.collect.Range.closed(minID, Integer.MAX_VALUE)));
-			return this;
+			return forEventIDRange(com.google.common.collect.Range.closed(minID, Integer.MAX_VALUE));
 		}
 		
-		public Loader forEventIDRange(com.google.common.collect.Range<Integer> range) {
+		public Loader forEventIDRange(final com.google.common.collect.Range<Integer> range) {
 			loadIdens.add(new EventIDsRangeIden(range));
+			indexPreds.add(new IndexPredicate() {
+				
+				@Override
+				boolean matches(RSQSimEventIndex index, int row) {
+					return range.contains(index.getEventID(row));
+				}
+			});
 			return this;
 		}
 		
+		/**
+		 * @return event index if all filters can be answered by it and it is available, otherwise null
+		 * @throws IOException
+		 */
+		private RSQSimEventIndex getIndexForQuery() throws IOException {
+			// nothing to gain if there aren't any filters
+			if (!indexable || indexPreds.isEmpty())
+				return null;
+			return getEventIndex();
+		}
+		
+		/**
+		 * Finds the IDs of all events matching this loader's filters using the event index, without reading the
+		 * list files. Filters are applied in the order they were added, each only seeing events which passed the
+		 * previous ones.
+		 * @return sorted IDs of matching events, or null if the index is unavailable or a filter can't be answered
+		 * by it (see {@link #matches(RuptureIdentifier)})
+		 * @throws IOException
+		 */
+		public int[] indexMatches() throws IOException {
+			if (!indexable)
+				return null;
+			RSQSimEventIndex index = getEventIndex();
+			if (index == null)
+				return null;
+			int[] rows = indexMatchRows(index);
+			int[] ids = new int[rows.length];
+			for (int i=0; i<rows.length; i++)
+				ids[i] = index.getEventID(rows[i]);
+			return ids;
+		}
+		
+		/**
+		 * @param index
+		 * @return sorted index rows of all events matching this loader's filters
+		 */
+		private int[] indexMatchRows(RSQSimEventIndex index) {
+			for (IndexPredicate pred : indexPreds)
+				pred.reset();
+			int numEvents = index.getNumEvents();
+			int[] rows = new int[Math.min(numEvents, 1000)];
+			int numMatches = 0;
+			for (int row=0; row<numEvents; row++) {
+				boolean match = true;
+				for (IndexPredicate pred : indexPreds) {
+					if (!pred.matches(index, row)) {
+						match = false;
+						break;
+					}
+				}
+				if (match) {
+					if (numMatches == rows.length)
+						rows = Arrays.copyOf(rows, Math.max(1000, rows.length*2));
+					rows[numMatches++] = row;
+				}
+			}
+			return Arrays.copyOf(rows, numMatches);
+		}
+		
+		/**
+		 * @param index
+		 * @param rows
+		 * @return iterable which reads each of the given events directly from its records in the list files
+		 */
+		private Iterable<RSQSimEvent> indexedIterable(final RSQSimEventIndex index, final int[] rows) {
+			return new Iterable<RSQSimEvent>() {
+				
+				@Override
+				public Iterator<RSQSimEvent> iterator() {
+					return new Iterator<RSQSimEvent>() {
+						
+						private int i = 0;
+						
+						@Override
+						public boolean hasNext() {
+							return i < rows.length;
+						}
+						
+						@Override
+						public RSQSimEvent next() {
+							Preconditions.checkState(hasNext(), "No more events");
+							try {
+								return index.readEvent(rows[i++], elements, skipSlipsAndTimes);
+							} catch (IOException e) {
+								throw ExceptionUtils.asRuntimeException(e);
+							}
+						}
+					};
+				}
+			};
+		}
+		
 		public List<RSQSimEvent> load() throws IOException {
+			RSQSimEventIndex index = getIndexForQuery();
+			if (index != null) {
+				int[] rows = indexMatchRows(index);
+				System.out.println("Event index matched "+rows.length+"/"+index.getNumEvents()+" events");
+				List<RSQSimEvent> events = new ArrayList<>(rows.length);
+				for (RSQSimEvent e : indexedIterable(index, rows))
+					events.add(e);
+				return events;
+			}
 			LogicalAndRupIden loadIden = new LogicalAndRupIden(loadIdens);
 			List<RuptureIdentifier> rupIdens = new ArrayList<>();
 			rupIdens.add(loadIden);
@@ -1640,6 +2007,9 @@ public class RSQSimCatalog implements XMLSaveable {
 		}
 		
 		public Iterable<RSQSimEvent> iterable() throws IOException {
+			RSQSimEventIndex index = getIndexForQuery();
+			if (index != null)
+				return indexedIterable(index, indexMatchRows(index));
 			LogicalAndRupIden loadIden = new LogicalAndRupIden(loadIdens);
 			List<RuptureIdentifier> rupIdens = new ArrayList<>();
 			rupIdens.add(loadIden);
@@ -2449,9 +2819,11 @@ public class RSQSimCatalog implements XMLSaveable {
 		System.out.println("Iterating through catalog and generating "+plots.size()+" plots");
 		Iterable<RSQSimEvent> iterable = l.iterable();
 		
+		PlotEventBus bus = new PlotEventBus(plots, Runtime.getRuntime().availableProcessors());
 		for (RSQSimEvent e : iterable)
-			for (AbstractPlot p : plots)
-				p.processEvent(e);
+			bus.publish(e);
+		bus.finish();
+		bus.printTimings();
 		
 		System.out.println("Finalizing plots");
 		for (AbstractPlot p : plots) {
@@ -0,0 +1,194 @@
+package scratch.kevin.simulators;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.SimulatorEvent;
+import org.opensha.sha.simulators.iden.AbstractRuptureIdentifier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Spatial and section index over simulator elements, used to turn distance and section filters into element ID
+ * bitsets. Events can then be tested with a single bitset lookup per element ID (see {@link ElementIDsIden}) rather than
+ * testing every element against every location or section.
+ * <br>
+ * Element centers are bucketed into a regular lat/lon grid, so that distance queries only test elements in nearby
+ * cells. Bitsets are indexed by element ID (1-based).
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimElementIndex {
+
+	private static final double cell_size_deg = 0.1;
+	// conservative km per degree of latitude, used to find candidate cells
+	private static final double min_km_per_deg = 110d;
+
+	private final List<SimulatorElement> elements;
+	private final int maxID;
+
+	private final double minLat, minLon;
+	private final int numLatCells, numLonCells;
+	// element indexes (into the elements list) in each cell, compressed row storage
+	private final int[] cellStarts;
+	private final int[] cellElements;
+	private final double[] centerLats, centerLons;
+
+	private final Map<Integer, BitSet> sectElements;
+
+	public RSQSimElementIndex(List<SimulatorElement> elements) {
+		Preconditions.checkArgument(!elements.isEmpty(), "Must supply at least one element");
+		this.elements = elements;
+
+		int numElems = elements.size();
+		centerLats = new double[numElems];
+		centerLons = new double[numElems];
+		double minLat = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		int maxID = 0;
+		sectElements = new HashMap<>();
+		for (int i=0; i<numElems; i++) {
+			SimulatorElement elem = elements.get(i);
+			Location center = elem.getCenterLocation();
+			centerLats[i] = center.getLatitude();
+			centerLons[i] = center.getLongitude();
+			minLat = Math.min(minLat, centerLats[i]);
+			maxLat = Math.max(maxLat, centerLats[i]);
+			minLon = Math.min(minLon, centerLons[i]);
+			maxLon = Math.max(maxLon, centerLons[i]);
+			maxID = Math.max(maxID, elem.getID());
+
+			BitSet sectBits = sectElements.get(elem.getSectionID());
+			if (sectBits == null) {
+				sectBits = new BitSet();
+				sectElements.put(elem.getSectionID(), sectBits);
+			}
+			sectBits.set(elem.getID());
+		}
+		this.maxID = maxID;
+		this.minLat = minLat;
+		this.minLon = minLon;
+		numLatCells = 1 + (int)((maxLat - minLat)/cell_size_deg);
+		numLonCells = 1 + (int)((maxLon - minLon)/cell_size_deg);
+
+		// count, then fill
+		int[] cellIndexes = new int[numElems];
+		cellStarts = new int[numLatCells*numLonCells + 1];
+		for (int i=0; i<numElems; i++) {
+			cellIndexes[i] = latCell(centerLats[i])*numLonCells + lonCell(centerLons[i]);
+			cellStarts[cellIndexes[i]+1]++;
+		}
+		for (int c=0; c<numLatCells*numLonCells; c++)
+			cellStarts[c+1] += cellStarts[c];
+		int[] cellCounts = new int[numLatCells*numLonCells];
+		cellElements = new int[numElems];
+		for (int i=0; i<numElems; i++) {
+			int cell = cellIndexes[i];
+			cellElements[cellStarts[cell] + cellCounts[cell]++] = i;
+		}
+	}
+
+	private int latCell(double lat) {
+		return Math.max(0, Math.min(numLatCells-1, (int)((lat - minLat)/cell_size_deg)));
+	}
+
+	private int lonCell(double lon) {
+		return Math.max(0, Math.min(numLonCells-1, (int)((lon - minLon)/cell_size_deg)));
+	}
+
+	/**
+	 * @param maxDist maximum horizontal distance in km
+	 * @param locs
+	 * @return IDs of all elements with a center within maxDist of any of the given locations
+	 */
+	public BitSet getElementsWithin(double maxDist, Collection<Location> locs) {
+		BitSet ret = new BitSet(maxID+1);
+		for (Location loc : locs)
+			addElementsWithin(maxDist, loc, ret);
+		return ret;
+	}
+
+	private void addElementsWithin(double maxDist, Location loc, BitSet bits) {
+		double lat = loc.getLatitude();
+		double lon = loc.getLongitude();
+		double latBuffer = maxDist/min_km_per_deg;
+		double maxAbsLat = Math.min(89.9, Math.max(Math.abs(lat - latBuffer), Math.abs(lat + latBuffer)));
+		double lonBuffer = maxDist/(min_km_per_deg*Math.cos(Math.toRadians(maxAbsLat)));
+		if (lat + latBuffer < minLat || lat - latBuffer > minLat + numLatCells*cell_size_deg
+				|| lon + lonBuffer < minLon || lon - lonBuffer > minLon + numLonCells*cell_size_deg)
+			return;
+		int startLatCell = latCell(lat - latBuffer);
+		int endLatCell = latCell(lat + latBuffer);
+		int startLonCell = lonCell(lon - lonBuffer);
+		int endLonCell = lonCell(lon + lonBuffer);
+		for (int latCell=startLatCell; latCell<=endLatCell; latCell++) {
+			for (int lonCell=startLonCell; lonCell<=endLonCell; lonCell++) {
+				int cell = latCell*numLonCells + lonCell;
+				for (int i=cellStarts[cell]; i<cellStarts[cell+1]; i++) {
+					int index = cellElements[i];
+					int id = elements.get(index).getID();
+					if (bits.get(id))
+						continue;
+					Location center = new Location(centerLats[index], centerLons[index]);
+					if (LocationUtils.horzDistanceFast(loc, center) <= maxDist)
+						bits.set(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param sectionIDs
+	 * @return IDs of all elements on any of the given sections
+	 */
+	public BitSet getElementsForSections(int... sectionIDs) {
+		BitSet ret = new BitSet(maxID+1);
+		for (int sectID : sectionIDs) {
+			BitSet sectBits = sectElements.get(sectID);
+			if (sectBits != null)
+				ret.or(sectBits);
+		}
+		return ret;
+	}
+
+	/**
+	 * Matches events which include any element in the given bitset
+	 *
+	 * @author kevin
+	 *
+	 */
+	public static class ElementIDsIden extends AbstractRuptureIdentifier {
+
+		private final BitSet elementIDs;
+		private final String name;
+
+		public ElementIDsIden(BitSet elementIDs, String name) {
+			this.elementIDs = elementIDs;
+			this.name = name;
+		}
+
+		@Override
+		public boolean isMatch(SimulatorEvent event) {
+			for (int id : event.getAllElementIDs())
+				if (elementIDs.get(id))
+					return true;
+			return false;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+	}
+
+}
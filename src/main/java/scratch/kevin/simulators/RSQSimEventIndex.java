@@ -0,0 +1,474 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.calc.FaultMomentCalc;
+import org.opensha.commons.eq.MagUtils;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.RSQSimEventRecord;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.parsers.RSQSimFileReader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Sidecar index of event summaries for an RSQSim catalog, stored as memory mapped columns next to the catalog so that
+ * loader predicates on event ID, time, magnitude and sections can be evaluated without scanning the list files:
+ * <pre>
+ * int magic, int version, int numEvents, int flags, long numSectEntries
+ * long[4] eList, pList, dList and tList file lengths
+ * int[numEvents] event IDs (padded to 8 bytes)
+ * double[numEvents] event times (seconds)
+ * double[numEvents] magnitudes
+ * long[numEvents+1] record offsets (index of each event's first record in the list files)
+ * long[numEvents+1] section offsets (start index of each event's sections in the column below)
+ * int[numSectEntries] section IDs touched by each event, sorted
+ * </pre>
+ * List file records are fixed width (4 byte eList and pList, 8 byte dList and tList), so matching events can be read
+ * directly from their record offsets with {@link #readEvent(int, List, boolean)} rather than by decoding the list
+ * files from the start. Flag bit 0 is set if the list files are big endian.
+ * <br>
+ * The index is built once with a full pass through the catalog (see {@link #build(File, List, File)}) and is
+ * considered stale if the size of any of the list files changes.
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimEventIndex implements Closeable {
+
+	public static final String FILE_NAME = "event_index.bin";
+
+	public static final int MAGIC = 0x52534549; // "RSEI"
+	public static final int VERSION = 2;
+	private static final int HEADER_LEN = 4 + 4 + 4 + 4 + 8 + 8*4;
+
+	/**
+	 * List file extensions, in the order their lengths are stored in the header
+	 */
+	private static final String[] LIST_EXTS = { "eList", "pList", "dList", "tList" };
+	/**
+	 * Record width in bytes for each list file
+	 */
+	private static final int[] LIST_RECORD_LENS = { 4, 4, 8, 8 };
+	private static final int FLAG_BIG_ENDIAN = 1;
+
+	private MappedFileReader reader;
+	private final File catalogDir;
+	private final int numEvents;
+	private final boolean bigEndian;
+	private final long[] listLengths;
+	private final long numSectEntries;
+
+	private final long idsPos;
+	private final long timesPos;
+	private final long magsPos;
+	private final long recordOffsetsPos;
+	private final long sectOffsetsPos;
+	private final long sectIDsPos;
+
+	// list file readers, mapped on first use
+	private MappedFileReader[] listReaders;
+
+	public RSQSimEventIndex(File file) throws IOException {
+		reader = new MappedFileReader(file);
+		Preconditions.checkState(reader.getInt(0) == MAGIC, "Not an RSQSim event index file: %s", file);
+		int version = reader.getInt(4);
+		Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+		catalogDir = file.getAbsoluteFile().getParentFile();
+		numEvents = reader.getInt(8);
+		bigEndian = (reader.getInt(12) & FLAG_BIG_ENDIAN) != 0;
+		numSectEntries = reader.getLong(16);
+		listLengths = new long[LIST_EXTS.length];
+		for (int i=0; i<listLengths.length; i++)
+			listLengths[i] = reader.getLong(24 + 8l*i);
+
+		idsPos = HEADER_LEN;
+		timesPos = padded(idsPos + 4l*numEvents);
+		magsPos = timesPos + 8l*numEvents;
+		recordOffsetsPos = magsPos + 8l*numEvents;
+		sectOffsetsPos = recordOffsetsPos + 8l*(numEvents+1);
+		sectIDsPos = sectOffsetsPos + 8l*(numEvents+1);
+		long expectedLen = sectIDsPos + 4l*numSectEntries;
+		Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+				expectedLen, reader.length());
+	}
+
+	private static long padded(long pos) {
+		return pos + MappedFileReader.padding(pos);
+	}
+
+	/**
+	 * @param catalogDir
+	 * @return index file location for the given catalog directory
+	 */
+	public static File getIndexFile(File catalogDir) {
+		return new File(catalogDir, FILE_NAME);
+	}
+
+	/**
+	 * @param catalogDir
+	 * @return true if an index exists for the given catalog and is up to date with its list files
+	 * @throws IOException
+	 */
+	public static boolean isAvailable(File catalogDir) throws IOException {
+		File indexFile = getIndexFile(catalogDir);
+		if (!indexFile.exists())
+			return false;
+		RSQSimEventIndex index = new RSQSimEventIndex(indexFile);
+		try {
+			return index.isCurrent(catalogDir);
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * @param catalogDir
+	 * @return true if each list file in the given catalog directory matches the length of the one used to build
+	 * this index
+	 * @throws IOException
+	 */
+	public boolean isCurrent(File catalogDir) throws IOException {
+		for (int i=0; i<LIST_EXTS.length; i++) {
+			File listFile = RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]);
+			if (listFile == null || listFile.length() != listLengths[i])
+				return false;
+		}
+		return true;
+	}
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	public int getEventID(int index) {
+		return reader.getInt(idsPos + 4l*index);
+	}
+
+	/**
+	 * @param index
+	 * @return event time in seconds
+	 */
+	public double getTime(int index) {
+		return reader.getDouble(timesPos + 8l*index);
+	}
+
+	public double getMag(int index) {
+		return reader.getDouble(magsPos + 8l*index);
+	}
+
+	/**
+	 * @param index
+	 * @return index of this event's first record in each of the list files
+	 */
+	public long getFirstRecord(int index) {
+		return reader.getLong(recordOffsetsPos + 8l*index);
+	}
+
+	/**
+	 * @param index
+	 * @return number of list file records (slipped patches) for this event
+	 */
+	public int getNumRecords(int index) {
+		return (int)(reader.getLong(recordOffsetsPos + 8l*(index+1)) - getFirstRecord(index));
+	}
+
+	/**
+	 * @param index
+	 * @return sorted IDs of all sections which participated in this event
+	 */
+	public int[] getSectionIDs(int index) {
+		long start = reader.getLong(sectOffsetsPos + 8l*index);
+		long end = reader.getLong(sectOffsetsPos + 8l*(index+1));
+		int[] ret = new int[(int)(end - start)];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = reader.getInt(sectIDsPos + 4l*(start+i));
+		return ret;
+	}
+
+	/**
+	 * @param index
+	 * @param sectMembership array indexed by section ID, true for each section of interest
+	 * @return true if this event touches any of the given sections
+	 */
+	public boolean touchesAny(int index, boolean[] sectMembership) {
+		long start = reader.getLong(sectOffsetsPos + 8l*index);
+		long end = reader.getLong(sectOffsetsPos + 8l*(index+1));
+		for (long i=start; i<end; i++) {
+			int sectID = reader.getInt(sectIDsPos + 4l*i);
+			if (sectID >= 0 && sectID < sectMembership.length && sectMembership[sectID])
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized MappedFileReader[] getListReaders() throws IOException {
+		if (listReaders == null) {
+			Preconditions.checkState(isCurrent(catalogDir), "List files have changed since this index was built: %s",
+					catalogDir.getAbsolutePath());
+			ByteOrder order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			MappedFileReader[] readers = new MappedFileReader[LIST_EXTS.length];
+			for (int i=0; i<LIST_EXTS.length; i++)
+				readers[i] = new MappedFileReader(RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]), order);
+			listReaders = readers;
+		}
+		return listReaders;
+	}
+
+	/**
+	 * Reads the given event directly from its records in the list files. As with {@link RSQSimFileReader}, the event
+	 * has one record per section, magnitude is computed from the total moment and the event time is that of the first
+	 * patch to slip.
+	 * @param index
+	 * @param elements catalog elements
+	 * @param skipSlipsAndTimes if true, only element IDs will be stored on each record
+	 * @return
+	 * @throws IOException
+	 */
+	public RSQSimEvent readEvent(int index, List<SimulatorElement> elements, boolean skipSlipsAndTimes)
+			throws IOException {
+		MappedFileReader[] readers = getListReaders();
+		int eventID = getEventID(index);
+		long first = getFirstRecord(index);
+		int num = getNumRecords(index);
+
+		int[] eventIDs = new int[num];
+		int[] patchIDs = new int[num];
+		double[] slips = new double[num];
+		double[] times = new double[num];
+		readers[0].getInts(LIST_RECORD_LENS[0]*first, eventIDs, 0, num);
+		readers[1].getInts(LIST_RECORD_LENS[1]*first, patchIDs, 0, num);
+		readers[2].getDoubles(LIST_RECORD_LENS[2]*first, slips, 0, num);
+		readers[3].getDoubles(LIST_RECORD_LENS[3]*first, times, 0, num);
+
+		Map<Integer, RSQSimEventRecord> sectRecords = new HashMap<>();
+		List<RSQSimEventRecord> records = new ArrayList<>();
+		double totMoment = 0d;
+		for (int i=0; i<num; i++) {
+			Preconditions.checkState(eventIDs[i] == eventID, "Record %s is for event %s, expected %s",
+					first+i, eventIDs[i], eventID);
+			SimulatorElement elem = elements.get(patchIDs[i]-1);
+			Preconditions.checkState(elem.getID() == patchIDs[i]);
+			int sectID = elem.getSectionID();
+			RSQSimEventRecord record = sectRecords.get(sectID);
+			if (record == null) {
+				record = new RSQSimEventRecord(elements);
+				record.setID(eventID);
+				record.setSectionID(sectID);
+				record.setTime(times[i]);
+				record.setFirstPatchToSlip(patchIDs[i]);
+				sectRecords.put(sectID, record);
+				records.add(record);
+			} else if (times[i] < record.getTime()) {
+				record.setTime(times[i]);
+				record.setFirstPatchToSlip(patchIDs[i]);
+			}
+			double moment = FaultMomentCalc.getMoment(elem.getArea(), slips[i]);
+			record.setMoment(record.getMoment() + moment);
+			record.setArea(record.getArea() + elem.getArea());
+			totMoment += moment;
+			if (skipSlipsAndTimes)
+				record.addSlip(patchIDs[i], slips[i]);
+			else
+				record.addSlip(patchIDs[i], slips[i], times[i]);
+		}
+		double mag = MagUtils.momentToMag(totMoment);
+		for (RSQSimEventRecord record : records)
+			record.setMagnitude(mag);
+
+		RSQSimEvent event = new RSQSimEvent(records);
+		if (index < numEvents-1)
+			event.setNextEventTime(getTime(index+1));
+		return event;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+		if (listReaders != null)
+			for (MappedFileReader listReader : listReaders)
+				listReader.close();
+		listReaders = null;
+	}
+
+	/**
+	 * Builds an index for the given catalog with a single pass through the list files
+	 * @param catalogDir
+	 * @param elements
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void build(File catalogDir, List<SimulatorElement> elements, File outputFile) throws IOException {
+		File[] listFiles = new File[LIST_EXTS.length];
+		for (int i=0; i<LIST_EXTS.length; i++) {
+			listFiles[i] = RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]);
+			Preconditions.checkNotNull(listFiles[i], "No %s file found in %s", LIST_EXTS[i], catalogDir.getAbsolutePath());
+		}
+		long numRecords = listFiles[0].length()/LIST_RECORD_LENS[0];
+		for (int i=0; i<LIST_EXTS.length; i++)
+			Preconditions.checkState(listFiles[i].length() == numRecords*LIST_RECORD_LENS[i],
+					"%s file length (%s) inconsistent with %s records", LIST_EXTS[i], listFiles[i].length(), numRecords);
+		boolean bigEndian = isBigEndian(listFiles[1], elements.size());
+		ByteOrder order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+		System.out.println("Building event index for "+catalogDir.getAbsolutePath());
+		Stopwatch watch = Stopwatch.createStarted();
+
+		int[] ids = new int[1000];
+		double[] times = new double[1000];
+		double[] mags = new double[1000];
+		long[] recordOffsets = new long[1001];
+		long[] sectOffsets = new long[1001];
+		int[] sectIDs = new int[1000];
+		int numEvents = 0;
+		int numSectEntries = 0;
+
+		int maxSectID = 0;
+		for (SimulatorElement elem : elements)
+			maxSectID = Math.max(maxSectID, elem.getSectionID());
+		// elements without a section (negative ID) can't match any section query, and aren't indexed
+		boolean[] touched = new boolean[maxSectID+1];
+		int[] eventSects = new int[touched.length];
+
+		// record offsets come from scanning the eList file directly, each event is a contiguous run of its ID
+		MappedFileReader eListReader = new MappedFileReader(listFiles[0], order);
+		int[] eListBuf = new int[8192];
+		int eListBufLen = 0;
+		int eListBufIndex = 0;
+		long recordsRead = 0;
+
+		Iterable<RSQSimEvent> iterable = RSQSimFileReader.getEventsIterable(
+				catalogDir, elements, new ArrayList<RuptureIdentifier>(), true);
+		int prevID = Integer.MIN_VALUE;
+		for (RSQSimEvent e : iterable) {
+			Preconditions.checkState(e.getID() > prevID, "Events not sorted by ID: %s after %s", e.getID(), prevID);
+			prevID = e.getID();
+			if (numEvents == ids.length) {
+				int newLen = ids.length*2;
+				ids = Arrays.copyOf(ids, newLen);
+				times = Arrays.copyOf(times, newLen);
+				mags = Arrays.copyOf(mags, newLen);
+				recordOffsets = Arrays.copyOf(recordOffsets, newLen+1);
+				sectOffsets = Arrays.copyOf(sectOffsets, newLen+1);
+			}
+			ids[numEvents] = e.getID();
+
+			// skip any records for events which the reader didn't return, then consume this event's run
+			long firstRecord = -1;
+			while (true) {
+				if (eListBufIndex == eListBufLen) {
+					if (recordsRead == numRecords)
+						break;
+					eListBufLen = (int)Math.min(eListBuf.length, numRecords - recordsRead);
+					eListReader.getInts(LIST_RECORD_LENS[0]*recordsRead, eListBuf, 0, eListBufLen);
+					recordsRead += eListBufLen;
+					eListBufIndex = 0;
+				}
+				int recordID = eListBuf[eListBufIndex];
+				if (recordID > e.getID())
+					break;
+				Preconditions.checkState(recordID == e.getID() || firstRecord < 0,
+						"eList records for event %s aren't contiguous", e.getID());
+				if (recordID == e.getID() && firstRecord < 0)
+					firstRecord = recordsRead - eListBufLen + eListBufIndex;
+				eListBufIndex++;
+			}
+			Preconditions.checkState(firstRecord >= 0, "No eList records found for event %s", e.getID());
+			recordOffsets[numEvents] = firstRecord;
+			recordOffsets[numEvents+1] = recordsRead - eListBufLen + eListBufIndex;
+			times[numEvents] = e.getTime();
+			mags[numEvents] = e.getMagnitude();
+
+			int numEventSects = 0;
+			for (int elemID : e.getAllElementIDs()) {
+				int sectID = elements.get(elemID-1).getSectionID();
+				if (sectID >= 0 && !touched[sectID]) {
+					touched[sectID] = true;
+					eventSects[numEventSects++] = sectID;
+				}
+			}
+			Arrays.sort(eventSects, 0, numEventSects);
+			while (numSectEntries + numEventSects > sectIDs.length)
+				sectIDs = Arrays.copyOf(sectIDs, sectIDs.length*2);
+			for (int i=0; i<numEventSects; i++) {
+				sectIDs[numSectEntries++] = eventSects[i];
+				touched[eventSects[i]] = false;
+			}
+			numEvents++;
+			sectOffsets[numEvents] = numSectEntries;
+
+			if (numEvents % 1000000 == 0)
+				System.out.println("Indexed "+numEvents+" events");
+		}
+
+		eListReader.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numEvents);
+		out.writeInt(bigEndian ? FLAG_BIG_ENDIAN : 0);
+		out.writeLong(numSectEntries);
+		for (File listFile : listFiles)
+			out.writeLong(listFile.length());
+		for (int i=0; i<numEvents; i++)
+			out.writeInt(ids[i]);
+		for (int i=0; i<MappedFileReader.padding(HEADER_LEN + 4l*numEvents); i++)
+			out.writeByte(0);
+		for (int i=0; i<numEvents; i++)
+			out.writeDouble(times[i]);
+		for (int i=0; i<numEvents; i++)
+			out.writeDouble(mags[i]);
+		for (int i=0; i<=numEvents; i++)
+			out.writeLong(recordOffsets[i]);
+		for (int i=0; i<=numEvents; i++)
+			out.writeLong(sectOffsets[i]);
+		for (int i=0; i<numSectEntries; i++)
+			out.writeInt(sectIDs[i]);
+		out.close();
+
+		watch.stop();
+		System.out.println("Indexed "+numEvents+" events in "+watch.elapsed(TimeUnit.SECONDS)+" s");
+	}
+
+	/**
+	 * Determines list file byte order from the first patch ID, which must be a valid (1-based) element ID
+	 * @param pListFile
+	 * @param numElements
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean isBigEndian(File pListFile, int numElements) throws IOException {
+		Preconditions.checkState(pListFile.length() >= 4, "Empty pList file: %s", pListFile.getAbsolutePath());
+		MappedFileReader bigReader = new MappedFileReader(pListFile, ByteOrder.BIG_ENDIAN);
+		int bigID = bigReader.getInt(0);
+		bigReader.close();
+		MappedFileReader littleReader = new MappedFileReader(pListFile, ByteOrder.LITTLE_ENDIAN);
+		int littleID = littleReader.getInt(0);
+		littleReader.close();
+		boolean bigValid = bigID >= 1 && bigID <= numElements;
+		boolean littleValid = littleID >= 1 && littleID <= numElements;
+		Preconditions.checkState(bigValid || littleValid, "Couldn't determine byte order of %s",
+				pListFile.getAbsolutePath());
+		return bigValid;
+	}
+
+}
@@ -0,0 +1,192 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.FocalMechanism;
+import org.opensha.sha.simulators.RectangularElement;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.TriangularElement;
+import org.opensha.sha.simulators.Vertex;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compact binary cache of a parsed RSQSim geometry file, so that elements don't need to be re-parsed (and converted
+ * from UTM) at each JVM start. The cache records the length and modification time of the geometry file it was built
+ * from, and is ignored if either changes. Caches are written to a temporary file and atomically moved into place, so
+ * that other processes never see a partially written cache.
+ * <pre>
+ * int magic, int version, long source length, long source last modified, int numElements
+ * int numSectNames, UTF[numSectNames] section names
+ * for each element:
+ *   byte type (0: triangular, 1: rectangular, 2: perfect rectangular), int id, int sectNameIndex (-1 for null),
+ *   int faultID, int sectionID, int numAlongStrike, int numDownDip, double slipRate, double aseisFactor,
+ *   boolean hasMech, [double strike, double dip, double rake], byte numVertices,
+ *   for each vertex: double lat, double lon, double depth, int id, double DAS, int traceFlag
+ * </pre>
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimGeometryCache {
+
+	public static final String FILE_NAME = "geometry_cache.bin";
+
+	public static final int MAGIC = 0x52534743; // "RSGC"
+	public static final int VERSION = 1;
+
+	private static final byte TYPE_TRI = 0;
+	private static final byte TYPE_RECT = 1;
+	private static final byte TYPE_RECT_PERFECT = 2;
+
+	/**
+	 * @param cacheFile
+	 * @param geomFile
+	 * @return true if the given cache file exists and was built from the given geometry file in its current state
+	 * @throws IOException
+	 */
+	public static boolean isCurrent(File cacheFile, File geomFile) throws IOException {
+		if (!cacheFile.exists())
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+		try {
+			return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == geomFile.length()
+					&& in.readLong() == geomFile.lastModified();
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void write(List<SimulatorElement> elements, File geomFile, File cacheFile) throws IOException {
+		File dir = cacheFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(cacheFile.getName()+".", ".tmp", dir);
+		try {
+			doWrite(elements, geomFile, tempFile);
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	private static void doWrite(List<SimulatorElement> elements, File geomFile, File cacheFile) throws IOException {
+		Map<String, Integer> sectNameIndexes = new HashMap<>();
+		List<String> sectNames = new ArrayList<>();
+		for (SimulatorElement elem : elements) {
+			String name = elem.getSectionName();
+			if (name != null && !sectNameIndexes.containsKey(name)) {
+				sectNameIndexes.put(name, sectNames.size());
+				sectNames.add(name);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(geomFile.length());
+		out.writeLong(geomFile.lastModified());
+		out.writeInt(elements.size());
+		out.writeInt(sectNames.size());
+		for (String name : sectNames)
+			out.writeUTF(name);
+		for (SimulatorElement elem : elements) {
+			if (elem instanceof TriangularElement)
+				out.writeByte(TYPE_TRI);
+			else if (elem instanceof RectangularElement)
+				out.writeByte(((RectangularElement)elem).isPerfect() ? TYPE_RECT_PERFECT : TYPE_RECT);
+			else
+				throw new IllegalStateException("Only supports triangular and rectangular elements");
+			out.writeInt(elem.getID());
+			String name = elem.getSectionName();
+			out.writeInt(name == null ? -1 : sectNameIndexes.get(name));
+			out.writeInt(elem.getFaultID());
+			out.writeInt(elem.getSectionID());
+			out.writeInt(elem.getNumAlongStrike());
+			out.writeInt(elem.getNumDownDip());
+			out.writeDouble(elem.getSlipRate());
+			out.writeDouble(elem.getAseisFactor());
+			FocalMechanism mech = elem.getFocalMechanism();
+			out.writeBoolean(mech != null);
+			if (mech != null) {
+				out.writeDouble(mech.getStrike());
+				out.writeDouble(mech.getDip());
+				out.writeDouble(mech.getRake());
+			}
+			Vertex[] verts = elem.getVertices();
+			Preconditions.checkState(verts.length < Byte.MAX_VALUE);
+			out.writeByte(verts.length);
+			for (Vertex vert : verts) {
+				out.writeDouble(vert.getLatitude());
+				out.writeDouble(vert.getLongitude());
+				out.writeDouble(vert.getDepth());
+				out.writeInt(vert.getID());
+				out.writeDouble(vert.getDAS());
+				out.writeInt(vert.getTraceFlag());
+			}
+		}
+		out.close();
+	}
+
+	public static List<SimulatorElement> read(File cacheFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			Preconditions.checkState(in.readInt() == MAGIC, "Not a geometry cache file: %s", cacheFile);
+			int version = in.readInt();
+			Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+			in.readLong();
+			in.readLong();
+			int numElements = in.readInt();
+			String[] sectNames = new String[in.readInt()];
+			for (int i=0; i<sectNames.length; i++)
+				sectNames[i] = in.readUTF();
+			List<SimulatorElement> elements = new ArrayList<>(numElements);
+			for (int e=0; e<numElements; e++) {
+				byte type = in.readByte();
+				int id = in.readInt();
+				int sectNameIndex = in.readInt();
+				String sectName = sectNameIndex < 0 ? null : sectNames[sectNameIndex];
+				int faultID = in.readInt();
+				int sectionID = in.readInt();
+				int numAlongStrike = in.readInt();
+				int numDownDip = in.readInt();
+				double slipRate = in.readDouble();
+				double aseisFactor = in.readDouble();
+				FocalMechanism mech = null;
+				if (in.readBoolean())
+					mech = new FocalMechanism(in.readDouble(), in.readDouble(), in.readDouble());
+				Vertex[] verts = new Vertex[in.readByte()];
+				for (int v=0; v<verts.length; v++) {
+					Location loc = new Location(in.readDouble(), in.readDouble(), in.readDouble());
+					verts[v] = new Vertex(loc, in.readInt(), in.readDouble(), in.readInt());
+				}
+				if (type == TYPE_TRI)
+					elements.add(new TriangularElement(id, verts, sectName, faultID, sectionID,
+							numAlongStrike, numDownDip, slipRate, aseisFactor, mech));
+				else
+					elements.add(new RectangularElement(id, verts, sectName, faultID, sectionID, numAlongStrike,
+							numDownDip, slipRate, aseisFactor, mech, type == TYPE_RECT_PERFECT));
+			}
+			return elements;
+		} finally {
+			in.close();
+		}
+	}
+
+}
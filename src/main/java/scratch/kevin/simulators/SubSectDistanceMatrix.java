@@ -0,0 +1,286 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Minimum horizontal distance between the fault traces of each pair of subsections, stored as a packed upper
+ * triangular float matrix (4 bytes per pair rather than two boxed map entries). Pairs farther apart than an optional
+ * cutoff distance are stored as infinite, and are skipped during calculation if a quick lower bound shows that they
+ * must be beyond the cutoff.
+ * <br>
+ * Matrices can be written to and memory mapped from a binary file:
+ * <pre>
+ * int magic, int version, int numSections, int reserved, double cutoff
+ * float[numSections*(numSections-1)/2] distances for each i &lt; j, row major
+ * </pre>
+ * See {@link #loadOrCalculate(File, List, double, int)} for file based caching. Cache files are written to a
+ * temporary file and atomically moved into place, and any file which is truncated or otherwise doesn't match is
+ * recalculated.
+ *
+ * @author kevin
+ *
+ */
+public class SubSectDistanceMatrix implements SubSectDistances, Closeable {
+
+	public static final int MAGIC = 0x5353444D; // "SSDM"
+	public static final int VERSION = 1;
+	private static final int HEADER_LEN = 4 + 4 + 4 + 4 + 8;
+
+	private final int numSects;
+	private final double cutoff;
+
+	// in memory distances
+	private float[] dists;
+	// or memory mapped file
+	private MappedFileReader reader;
+
+	private SubSectDistanceMatrix(int numSects, double cutoff, float[] dists) {
+		Preconditions.checkArgument(dists.length == numPairs(numSects));
+		this.numSects = numSects;
+		this.cutoff = cutoff;
+		this.dists = dists;
+	}
+
+	private SubSectDistanceMatrix(MappedFileReader reader) {
+		Preconditions.checkState(reader.getInt(0) == MAGIC, "Not a subsection distance file: %s", reader.getFile());
+		int version = reader.getInt(4);
+		Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+		numSects = reader.getInt(8);
+		cutoff = reader.getDouble(16);
+		long expectedLen = HEADER_LEN + 4l*numPairs(numSects);
+		Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+				expectedLen, reader.length());
+		this.reader = reader;
+	}
+
+	private static long numPairs(int numSects) {
+		return (long)numSects*(numSects-1)/2;
+	}
+
+	private long index(int i, int j) {
+		// i < j
+		return (long)i*(2*numSects - i - 1)/2 + (j - i - 1);
+	}
+
+	@Override
+	public int getNumSections() {
+		return numSects;
+	}
+
+	/**
+	 * @return cutoff distance, or {@link Double#POSITIVE_INFINITY} if none
+	 */
+	public double getCutoff() {
+		return cutoff;
+	}
+
+	@Override
+	public double getDistance(int sectID1, int sectID2) {
+		Preconditions.checkElementIndex(sectID1, numSects);
+		Preconditions.checkElementIndex(sectID2, numSects);
+		if (sectID1 == sectID2)
+			return 0d;
+		long index = sectID1 < sectID2 ? index(sectID1, sectID2) : index(sectID2, sectID1);
+		if (dists != null)
+			return dists[(int)index];
+		return reader.getFloat(HEADER_LEN + 4l*index);
+	}
+
+	/**
+	 * Calculates distances between all pairs of the given subsections in parallel
+	 * @param subSects subsections, with IDs equal to their index in the list
+	 * @param cutoff pairs farther apart than this will be infinite, or {@link Double#POSITIVE_INFINITY} for no cutoff
+	 * @param numThreads
+	 * @return
+	 */
+	public static SubSectDistanceMatrix calculate(List<? extends FaultSection> subSects, double cutoff,
+			int numThreads) {
+		Preconditions.checkArgument(cutoff > 0, "Cutoff must be positive");
+		int numSects = subSects.size();
+		final List<List<Location>> traces = new ArrayList<>();
+		// first trace location and max distance from it to any other trace location, used for quick lower bounds
+		final double[] radii = new double[numSects];
+		for (int s=0; s<numSects; s++) {
+			FaultSection sect = subSects.get(s);
+			Preconditions.checkState(sect.getSectionId() == s, "Section IDs must equal their index");
+			List<Location> trace = new ArrayList<>(sect.getFaultTrace());
+			traces.add(trace);
+			for (Location loc : trace)
+				radii[s] = Math.max(radii[s], LocationUtils.horzDistance(trace.get(0), loc));
+		}
+
+		System.out.println("Calculating distances between "+numSects+" subsections"
+				+(Double.isInfinite(cutoff) ? "" : " with a "+(float)cutoff+" km cutoff"));
+		Stopwatch watch = Stopwatch.createStarted();
+		final float[] dists = new float[(int)numPairs(numSects)];
+		final SubSectDistanceMatrix ret = new SubSectDistanceMatrix(numSects, cutoff, dists);
+
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i=0; i<numSects-1; i++) {
+			final int s1 = i;
+			futures.add(exec.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					List<Location> trace1 = traces.get(s1);
+					for (int s2=s1+1; s2<traces.size(); s2++) {
+						List<Location> trace2 = traces.get(s2);
+						double minDist = Double.POSITIVE_INFINITY;
+						double lowerBound = LocationUtils.horzDistance(trace1.get(0), trace2.get(0))
+								- radii[s1] - radii[s2];
+						if (lowerBound <= ret.cutoff) {
+							for (Location loc1 : trace1) {
+								for (Location loc2 : trace2) {
+									double dist = LocationUtils.horzDistance(loc1, loc2);
+									if (dist < minDist)
+										minDist = dist;
+								}
+							}
+							if (minDist > ret.cutoff)
+								minDist = Double.POSITIVE_INFINITY;
+						}
+						dists[(int)ret.index(s1, s2)] = (float)minDist;
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		watch.stop();
+		System.out.println("Calculated "+dists.length+" distances in "+watch.elapsed(TimeUnit.SECONDS)+" s");
+		return ret;
+	}
+
+	/**
+	 * Loads distances from the given cache file if it exists and matches the given subsections and cutoff, otherwise
+	 * calculates them and writes the cache file
+	 * @param cacheFile
+	 * @param subSects
+	 * @param cutoff
+	 * @param numThreads
+	 * @return
+	 * @throws IOException
+	 */
+	public static SubSectDistanceMatrix loadOrCalculate(File cacheFile, List<? extends FaultSection> subSects,
+			double cutoff, int numThreads) throws IOException {
+		if (cacheFile.exists()) {
+			if (isCompatible(cacheFile, subSects.size(), cutoff)) {
+				System.out.println("Loading subsection distances from "+cacheFile.getAbsolutePath());
+				return load(cacheFile);
+			}
+			System.out.println("Subsection distance cache is incomplete or doesn't match, recalculating: "
+					+cacheFile.getAbsolutePath());
+		}
+		SubSectDistanceMatrix ret = calculate(subSects, cutoff, numThreads);
+		File dir = cacheFile.getAbsoluteFile().getParentFile();
+		if (dir.exists() || dir.mkdirs()) {
+			System.out.println("Writing subsection distances to "+cacheFile.getAbsolutePath());
+			ret.write(cacheFile);
+		}
+		return ret;
+	}
+
+	private static boolean isCompatible(File file, int numSects, double cutoff) throws IOException {
+		if (file.length() != HEADER_LEN + 4l*numPairs(numSects))
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != numSects)
+				return false;
+			in.readInt();
+			return in.readDouble() == cutoff;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Memory maps the given distance file
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SubSectDistanceMatrix load(File file) throws IOException {
+		return new SubSectDistanceMatrix(new MappedFileReader(file));
+	}
+
+	/**
+	 * Writes distances to the given file. Data are first written to a temporary file in the same directory which is
+	 * then atomically moved into place, so an interrupted write never leaves a partial file at the given location.
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public void write(File outputFile) throws IOException {
+		File dir = outputFile.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(outputFile.getName()+".", ".tmp", dir);
+		try {
+			doWrite(tempFile);
+			Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	private void doWrite(File outputFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numSects);
+			out.writeInt(0);
+			out.writeDouble(cutoff);
+			for (int i=0; i<numSects; i++)
+				for (int j=i+1; j<numSects; j++)
+					out.writeFloat((float)getDistance(i, j));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+	}
+
+}
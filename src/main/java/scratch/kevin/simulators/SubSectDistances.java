@@ -0,0 +1,21 @@
+package scratch.kevin.simulators;
+
+/**
+ * Read only access to distances between pairs of subsections, indexed by subsection ID (0-based, contiguous)
+ *
+ * @author kevin
+ *
+ */
+public interface SubSectDistances {
+
+	public int getNumSections();
+
+	/**
+	 * @param sectID1
+	 * @param sectID2
+	 * @return distance in km between the given subsections, or {@link Double#POSITIVE_INFINITY} if they are farther
+	 * apart than the cutoff distance (if any)
+	 */
+	public double getDistance(int sectID1, int sectID2);
+
+}
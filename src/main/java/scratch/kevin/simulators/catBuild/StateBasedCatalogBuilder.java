@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
 import org.jfree.data.Range;
@@ -27,6 +28,7 @@ import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
 import org.opensha.sha.simulators.utils.General_EQSIM_Tools;
 
+import scratch.kevin.markov.CompactMarkovChain;
 import scratch.kevin.markov.EmpiricalMarkovChain;
 import scratch.kevin.markov.IndicesKey;
 import scratch.kevin.markov.PossibleStates;
@@ -45,11 +47,23 @@ import com.google.common.primitives.Ints;
 
 public class StateBasedCatalogBuilder implements CatalogBuilder {
 	
+	private List<int[]> statesPath;
+	private CompactMarkovChain compactChain;
+	// only built if needed to back up out of a dead end, see getStateTransitionDataset()
 	private EmpiricalMarkovChain chain;
 	
 	private SparseNDimensionalHashDataset<Double> totalStatesDataset;
-	private SparseNDimensionalHashDataset<PossibleStates> stateTransitionDataset;
 	private double distSpacing;
+	
+	private Random r = new Random();
+	
+	/**
+	 * Sets the seed used for all random draws, so that catalogs can be reproduced
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		r = new Random(seed);
+	}
 
 	@Override
 	public List<SimulatorEvent> buildCatalog(List<? extends SimulatorEvent> events,
@@ -59,10 +73,11 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 		distSpacing = 10d;
 		
 		// build Markov chain
-		chain = MarkovChainBuilder.build(distSpacing, matchesLists);
-		int nDims = chain.getNDims();
-		totalStatesDataset = chain.getTotalStatesDataset();
-		stateTransitionDataset = chain.getStateTransitionDataset();
+		statesPath = MarkovChainBuilder.getStatesPath(distSpacing, matchesLists, 0d);
+		chain = null;
+		compactChain = new CompactMarkovChain(statesPath, distSpacing);
+		int nDims = compactChain.getNDims();
+		totalStatesDataset = compactChain.getTotalStatesDataset();
 		
 		// this is the randomized sequence of events for each fault from which to sample
 		List<List<SimulatorEvent>> eventsToReuse = Lists.newArrayList();
@@ -70,7 +85,7 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 		for (int i=0; i<matchesLists.size(); i++) {
 			List<? extends SimulatorEvent> matches = matchesLists.get(i);
 			List<SimulatorEvent> rand = Lists.newArrayList(matches);
-			Collections.shuffle(rand);
+			Collections.shuffle(rand, r);
 			eventsToReuse.add(rand);
 			eventsToReuseIndexes[i] = 0;
 		}
@@ -78,7 +93,7 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 //		double minVal = 0.5d*distSpacing;
 		
 		// now pick random initial state from the distribution of total states
-		int[] prevState = chain.getOccupancy().drawState();
+		int[] prevState = compactChain.getState(compactChain.drawOccupiedState(r));
 		
 		double maxTime = events.get(events.size()-1).getTimeInYears();
 		double startTime = events.get(0).getTimeInYears();
@@ -101,9 +116,10 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 		
 		for (int step=0; step<numSteps; step++) {
 			// choose current state randomly from previous state's transition states
-			PossibleStates possibilities = stateTransitionDataset.get(prevState);
+			int prevID = compactChain.getStateID(prevState);
+			PossibleStates possibilities = null;
 			
-			if (possibilities == null) {
+			if (prevID < 0 || compactChain.getNumDestinations(prevID) == 0) {
 				// this means we found the last state in the system, and it was only reached
 				// in that last state
 				System.out.println("Reached orig last state in system, no transitions! (step="+step+")");
@@ -113,18 +129,21 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 			}
 			
 			int[] curState = null;
-			if (possibilities.getTot() == 0) {
+			if (possibilities == null) {
+				// common case, constant time draw from the compact chain
+				curState = compactChain.getState(compactChain.drawDestination(prevID, r));
+			} else if (possibilities.getTot() == 0) {
 				System.out.println("Possibilities are empty, backing up!");
 				// go back up and get out of this path
 				
 				for (int redoStep=step-1; redoStep>=0; redoStep--) {
 					int[] redoPrevIndices = statesTracker.get(redoStep);
-					possibilities = stateTransitionDataset.get(redoPrevIndices);
+					possibilities = getStateTransitionDataset().get(redoPrevIndices);
 					if (possibilities.getNumStates() > 1) {
 						// this means there was another option
-						int[] newDestState = possibilities.drawState();
+						int[] newDestState = possibilities.drawState(r);
 						while (!Arrays.equals(newDestState, statesTracker.get(redoStep+1)))
-							newDestState = possibilities.drawState();
+							newDestState = possibilities.drawState(r);
 						// now make sure
 						
 						System.out.println("Backed up to step "+redoStep+" ("+(step-redoStep)+" steps). New State: "
@@ -134,12 +153,12 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 						// now make sure this state doesn't lead to it as well!
 						int[] prevTestState = newDestState;
 						for (int i=0; i<2*(step-redoStep); i++) {
-							PossibleStates testPossibilities = stateTransitionDataset.get(prevTestState);
+							PossibleStates testPossibilities = getStateTransitionDataset().get(prevTestState);
 							if (testPossibilities == null || testPossibilities.getTot() == 0) {
 								newStateStuck = true;
 								break;
 							}
-							prevTestState = testPossibilities.drawState();
+							prevTestState = testPossibilities.drawState(r);
 						}
 						
 						if (newStateStuck) {
@@ -164,7 +183,7 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 				}
 				Preconditions.checkNotNull(curState);
 			} else {
-				curState = possibilities.drawState();
+				curState = possibilities.drawState(r);
 			}
 			
 			double rupTimeYears = startTime + distSpacing*step;
@@ -197,6 +216,17 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 		return randomizedEvents;
 	}
 
+	/**
+	 * The full transition dataset is only needed to back up out of a dead end (or for diagnostics), so the
+	 * empirical chain is built from the states path on first use rather than alongside the compact chain.
+	 * @return
+	 */
+	private SparseNDimensionalHashDataset<PossibleStates> getStateTransitionDataset() {
+		if (chain == null)
+			chain = new EmpiricalMarkovChain(statesPath, distSpacing);
+		return chain.getStateTransitionDataset();
+	}
+
 	static void findPossibleStates(int[] curState, int index,
 			SparseNDimensionalHashDataset<Double> totalStatesDataset, List<int[]> runningPossibleStates) {
 		int[] stateNoRup = Arrays.copyOf(curState, curState.length);
@@ -238,6 +268,7 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 	
 	private List<File> write2DDists(File writeDir, int index1, String name1, List<? extends SimulatorEvent> matches1,
 			int index2, String name2, List<? extends SimulatorEvent> matches2) throws IOException {
+		SparseNDimensionalHashDataset<PossibleStates> stateTransitionDataset = getStateTransitionDataset();
 		String probFName = "prob_dists_"+PeriodicityPlotter.getFileSafeString(name1)+"_"+PeriodicityPlotter.getFileSafeString(name2);
 		File probFile = new File(writeDir, probFName+".pdf");
 		String synchFName = "synch_dists_"+PeriodicityPlotter.getFileSafeString(name1)+"_"+PeriodicityPlotter.getFileSafeString(name2);
@@ -453,6 +484,7 @@ public class StateBasedCatalogBuilder implements CatalogBuilder {
 	}
 	
 	private void writeTransitionStats(File writeDir) {
+		SparseNDimensionalHashDataset<PossibleStates> stateTransitionDataset = getStateTransitionDataset();
 //		NoCollissionFunc noRupProbs = new NoCollissionFunc();
 //		NoCollissionFunc rupProbs = new NoCollissionFunc();
 		HistogramFunction noRupProbs = new HistogramFunction(0.025, 20, 0.05d);
@@ -0,0 +1,344 @@
+package scratch.kevin.simulators.momRateVariation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.EventRecord;
+import org.opensha.sha.simulators.SimulatorEvent;
+import org.opensha.sha.simulators.utils.General_EQSIM_Tools;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Calculates moment rate time series for many window lengths from a single pass over a catalog.
+ * <br>
+ * Event moments are binned once onto the given year grid, using the same event to year mapping as
+ * {@link SimulatorMomRateVarCalc#calcTaperedMomRates(List, double[], double[])}. Tapered series are then a
+ * convolution of that grid with the taper, which is computed with an FFT for long tapers (the transform of the grid
+ * is reused for every taper) or directly for short ones. Moving average (boxcar) series, as in
+ * {@link SimulatorMomRateVarCalc#calcWindowedMomentRate(List, int, double, double[], boolean)}, are computed from
+ * prefix sums of event moments.
+ * <br>
+ * Results are equal to the per year calculations to within floating point precision, as summation order differs.
+ * @author kevin
+ *
+ */
+public class MomRateSeriesEngine {
+
+	// tapers at least this long are convolved with an FFT
+	private static final int fft_min_taper_len = 32;
+
+	// event times and moments, sorted by time
+	private final double[] eventTimes;
+	private final double[] eventMoments;
+	// cumulative moment before each event, length numEvents+1
+	private final double[] cumMoments;
+	// year grid index for each event, see calcTaperedMomRates
+	private final int[] eventBins;
+
+	private final double[] years;
+	private final int maxTaperLen;
+	// binned moments, grid index k is stored at k + maxTaperLen for k in [-maxTaperLen, years.length+maxTaperLen)
+	private final double[] binnedMoments;
+
+	// FFT of binned moments, [real/imaginary][index]
+	private double[][] binnedTransform;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param events events sorted by time
+	 * @param years year grid, ascending
+	 * @param maxTaperLen maximum taper length which will be used with this engine
+	 */
+	public MomRateSeriesEngine(List<? extends SimulatorEvent> events, double[] years, int maxTaperLen) {
+		this(getTimes(events), getTimesInYears(events), getMoments(events), years, maxTaperLen);
+	}
+
+	/**
+	 * @param eventTimes event times in seconds, ascending
+	 * @param eventTimesYears event times in years, ascending
+	 * @param eventMoments event moments
+	 * @param years year grid, ascending
+	 * @param maxTaperLen maximum taper length which will be used with this engine
+	 */
+	public MomRateSeriesEngine(double[] eventTimes, double[] eventTimesYears, double[] eventMoments,
+			double[] years, int maxTaperLen) {
+		Preconditions.checkArgument(eventTimes.length == eventMoments.length
+				&& eventTimesYears.length == eventMoments.length);
+		Preconditions.checkArgument(years.length > 0, "Must supply at least one year");
+		Preconditions.checkArgument(maxTaperLen > 0);
+		this.eventTimes = eventTimes;
+		this.eventMoments = eventMoments;
+		this.years = years;
+		this.maxTaperLen = maxTaperLen;
+
+		cumMoments = new double[eventMoments.length+1];
+		for (int i=0; i<eventMoments.length; i++)
+			cumMoments[i+1] = cumMoments[i] + eventMoments[i];
+
+		eventBins = new int[eventMoments.length];
+		binnedMoments = new double[years.length + 2*maxTaperLen];
+		for (int i=0; i<eventMoments.length; i++) {
+			int bin = getYearIndex(years, eventTimesYears[i]);
+			eventBins[i] = bin;
+			int index = bin + maxTaperLen;
+			// events outside of this range can't contribute to any year with a taper of at most maxTaperLen
+			if (index >= 0 && index < binnedMoments.length)
+				binnedMoments[index] += eventMoments[i];
+		}
+	}
+
+	private static double[] getTimes(List<? extends SimulatorEvent> events) {
+		double[] ret = new double[events.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = events.get(i).getTime();
+		return ret;
+	}
+
+	private static double[] getTimesInYears(List<? extends SimulatorEvent> events) {
+		double[] ret = new double[events.size()];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = events.get(i).getTimeInYears();
+		return ret;
+	}
+
+	private static double[] getMoments(List<? extends SimulatorEvent> events) {
+		double[] ret = new double[events.size()];
+		for (int i=0; i<ret.length; i++)
+			for (EventRecord r : events.get(i))
+				ret[i] += r.getMoment();
+		return ret;
+	}
+
+	/**
+	 * Maps an event time to a year index, which can be outside of the year array for events before or after
+	 * @param years
+	 * @param t time in years
+	 * @return
+	 */
+	static int getYearIndex(double[] years, double t) {
+		int index = Arrays.binarySearch(years, t);
+		if (index < 0)
+			index = -(index + 1);
+		// edge case treatment
+		if (index == 0) {
+			// it's before
+			double delta = years[0] - t;
+			Preconditions.checkState(delta >= 0, "Negative delta? "+delta);
+			index = -(int)(delta + 0.5);
+		} else if (index == years.length) {
+			// after the end
+			double delta = t - years[years.length - 1];
+			Preconditions.checkState(delta > 0);
+			index = years.length + (int)(delta + 0.5);
+		}
+		return index;
+	}
+
+	public void setNumThreads(int numThreads) {
+		Preconditions.checkArgument(numThreads > 0);
+		this.numThreads = numThreads;
+	}
+
+	public double[] getYears() {
+		return years;
+	}
+
+	/**
+	 * @param time time in seconds
+	 * @return index of the first event at or after the given time
+	 */
+	private int firstIndexAtOrAfter(double time) {
+		int low = 0;
+		int high = eventTimes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (eventTimes[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @param time time in seconds
+	 * @return index of the first event after the given time
+	 */
+	private int firstIndexAfter(double time) {
+		int low = 0;
+		int high = eventTimes.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (eventTimes[mid] <= time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Tapered moment rates at each year, equivalent to
+	 * {@link SimulatorMomRateVarCalc#calcTaperedMomRates(List, double[], double[])}
+	 * @param taper
+	 * @return
+	 */
+	public double[] calcTaperedMomRates(double[] taper) {
+		Preconditions.checkArgument(taper.length <= maxTaperLen,
+				"Taper length (%s) exceeds max of %s", taper.length, maxTaperLen);
+		int halfWidth = taper.length/2;
+
+		double[] momRates;
+		if (taper.length >= fft_min_taper_len)
+			momRates = convolveFFT(taper, halfWidth);
+		else
+			momRates = convolveDirect(taper, halfWidth);
+
+		// the per year calculation skips events before this index (which is compared against times in seconds)
+		int startIndex = firstIndexAtOrAfter(years[0] - taper.length);
+		for (int i=0; i<startIndex; i++) {
+			int taperStart = eventBins[i] - halfWidth;
+			for (int j=Math.max(0, -taperStart); j<taper.length && taperStart+j < years.length; j++)
+				momRates[taperStart+j] -= eventMoments[i]*taper[j];
+		}
+
+		return momRates;
+	}
+
+	private double[] convolveDirect(double[] taper, int halfWidth) {
+		double[] momRates = new double[years.length];
+		for (int y=0; y<momRates.length; y++) {
+			// grid index k contributes to year k - halfWidth + j
+			int offset = y + halfWidth + maxTaperLen;
+			double sum = 0d;
+			for (int j=0; j<taper.length; j++)
+				sum += binnedMoments[offset-j]*taper[j];
+			momRates[y] = sum;
+		}
+		return momRates;
+	}
+
+	private static int getTransformSize(int len) {
+		int size = Integer.highestOneBit(len);
+		if (size < len)
+			size <<= 1;
+		return size;
+	}
+
+	private synchronized double[][] getBinnedTransform() {
+		if (binnedTransform == null) {
+			// large enough for a taper of maxTaperLen without any wrap around
+			int size = getTransformSize(binnedMoments.length + maxTaperLen);
+			double[][] transform = new double[2][size];
+			System.arraycopy(binnedMoments, 0, transform[0], 0, binnedMoments.length);
+			FastFourierTransformer.transformInPlace(transform, DftNormalization.STANDARD, TransformType.FORWARD);
+			binnedTransform = transform;
+		}
+		return binnedTransform;
+	}
+
+	private double[] convolveFFT(double[] taper, int halfWidth) {
+		double[][] gridTransform = getBinnedTransform();
+		int size = gridTransform[0].length;
+
+		double[][] product = new double[2][size];
+		System.arraycopy(taper, 0, product[0], 0, taper.length);
+		FastFourierTransformer.transformInPlace(product, DftNormalization.STANDARD, TransformType.FORWARD);
+		double[] re = product[0];
+		double[] im = product[1];
+		for (int i=0; i<size; i++) {
+			double gRe = gridTransform[0][i];
+			double gIm = gridTransform[1][i];
+			double tRe = re[i];
+			double tIm = im[i];
+			re[i] = gRe*tRe - gIm*tIm;
+			im[i] = gRe*tIm + gIm*tRe;
+		}
+		FastFourierTransformer.transformInPlace(product, DftNormalization.STANDARD, TransformType.INVERSE);
+
+		double[] momRates = new double[years.length];
+		int offset = halfWidth + maxTaperLen;
+		for (int y=0; y<momRates.length; y++)
+			// moments and tapers are non negative, anything below zero is round off
+			momRates[y] = Math.max(0d, re[y + offset]);
+		return momRates;
+	}
+
+	/**
+	 * Calculates tapered moment rates for each taper in parallel
+	 * @param tapers
+	 * @return moment rates for each taper
+	 */
+	public List<double[]> calcTaperedMomRates(List<double[]> tapers) {
+		if (tapers.size() == 1 || numThreads == 1) {
+			List<double[]> ret = new ArrayList<>();
+			for (double[] taper : tapers)
+				ret.add(calcTaperedMomRates(taper));
+			return ret;
+		}
+
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(numThreads, tapers.size()));
+
+		List<Future<double[]>> futures = new ArrayList<>();
+		for (final double[] taper : tapers) {
+			futures.add(exec.submit(new Callable<double[]>() {
+
+				@Override
+				public double[] call() throws Exception {
+					return calcTaperedMomRates(taper);
+				}
+			}));
+		}
+
+		List<double[]> ret = new ArrayList<>();
+		try {
+			for (Future<double[]> future : futures)
+				ret.add(future.get());
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		return ret;
+	}
+
+	/**
+	 * Moving average moment rate at each year, equivalent to
+	 * {@link SimulatorMomRateVarCalc#calcWindowedMomentRate(List, int, double, double[], boolean)} without a taper
+	 * @param windowLen window length in years
+	 * @param twoWay if true, windows are centered on each year, otherwise they end at each year
+	 * @return
+	 */
+	public double[] calcWindowedMomRates(int windowLen, boolean twoWay) {
+		double windowSecs = General_EQSIM_Tools.SECONDS_PER_YEAR*(double)windowLen;
+		double halfWindowSecs = windowSecs*0.5;
+
+		double[] momRates = new double[years.length];
+		for (int y=0; y<years.length; y++) {
+			double windowStart;
+			if (twoWay)
+				windowStart = years[y]*General_EQSIM_Tools.SECONDS_PER_YEAR-halfWindowSecs;
+			else
+				windowStart = years[y]*General_EQSIM_Tools.SECONDS_PER_YEAR-windowSecs;
+			double windowEnd = windowStart + windowSecs;
+
+			int startIndex = firstIndexAtOrAfter(windowStart);
+			int endIndex = firstIndexAfter(windowEnd);
+			if (endIndex > startIndex)
+				momRates[y] = (cumMoments[endIndex] - cumMoments[startIndex])/(double)windowLen;
+		}
+		return momRates;
+	}
+
+}
@@ -5,7 +5,6 @@ import java.awt.Font;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -346,67 +345,7 @@ public class SimulatorMomRateVarCalc {
 	}
 	
 	public static double[] calcTaperedMomRates(List<? extends SimulatorEvent> events, double[] years, double[] taper) {
-		double startYear = years[0] - taper.length;
-		
-		int startIndex = findFirstEventIndexAfter(startYear, events);
-		
-		double[] momRates = new double[years.length];
-		
-		int taperHalfWidth = taper.length/2;
-		
-		for (int i=startIndex; i<events.size(); i++) {
-			// find closest year
-			SimulatorEvent e = events.get(i);
-			
-			double t = e.getTimeInYears();
-			
-			// center index of the taper
-			int index = Arrays.binarySearch(years, t);
-			if (index < 0)
-				index = -(index + 1);
-			// edge case treatment
-			if (index == 0) {
-				// it's before
-				double delta = years[0] - t;
-				Preconditions.checkState(delta >= 0, "Negative delta? "+delta);
-				index = -(int)(delta + 0.5);
-			} else if (index == years.length) {
-				// after the end
-				double delta = t - years[years.length - 1];
-				Preconditions.checkState(delta > 0);
-				index = years.length + (int)(delta + 0.5);
-			}
-			
-			int taperStart = index - taperHalfWidth;
-			if (taperStart >= years.length)
-				break;
-			
-			double m = 0;
-			for (EventRecord r : e)
-				m += r.getMoment();
-			
-//			if (i == 1000) {
-//				System.out.println("Debug for event "+i+" with moment "+m);
-//				System.out.println("Event time: "+t);
-//				System.out.println("Mapped to year "+years[index]+" at index "+index);
-//			}
-			
-			for (int j=0; j<taper.length; j++) {
-				int yearIndex = taperStart + j;
-				if (yearIndex < 0)
-					continue;
-				if (yearIndex >= years.length)
-					break;
-				
-				momRates[yearIndex] += m*taper[j];
-//				if (i == 1000) {
-//					System.out.println("\tAdding "+m*taper[j]+" moment to year "
-//							+years[yearIndex]+" at index "+yearIndex);
-//				}
-			}
-		}
-		
-		return momRates;
+		return new MomRateSeriesEngine(events, years, taper.length).calcTaperedMomRates(taper);
 	}
 	
 	static void plotMomRateVar(List<? extends SimulatorEvent> events, int[] windowLens, String name,
@@ -421,25 +360,34 @@ public class SimulatorMomRateVarCalc {
 		Range xRange = null;
 		Range yRange = new Range(1e18, 1e20);
 		
-		for (int windowLen : windowLens) {
-			double[] taper = null;
-			if (hanningTaper)
-				taper = buildHanningTaper(windowLen);
+		// bin the catalog once for all window lengths
+		double[] years = new double[plotEndYears - plotStartYears];
+		for (int i=0; i<years.length; i++)
+			years[i] = plotStartYears+i;
+		int maxWindowLen = 0;
+		for (int windowLen : windowLens)
+			maxWindowLen = Math.max(maxWindowLen, windowLen);
+		MomRateSeriesEngine engine = new MomRateSeriesEngine(events, years, maxWindowLen);
+		List<double[]> taperedMomRates = null;
+		if (hanningTaper) {
+			List<double[]> tapers = Lists.newArrayList();
+			for (int windowLen : windowLens)
+				tapers.add(buildHanningTaper(windowLen));
+			taperedMomRates = engine.calcTaperedMomRates(tapers);
+		}
+		
+		for (int w=0; w<windowLens.length; w++) {
+			int windowLen = windowLens[w];
 			
 			ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
-			if (taper != null) {
-				double[] years = new double[plotEndYears - plotStartYears];
-				for (int i=0; i<years.length; i++)
-					years[i] = plotStartYears+i;
-				double[] momRates = calcTaperedMomRates(events, years, taper);
+			if (hanningTaper) {
+				double[] momRates = taperedMomRates.get(w);
 				for (int i=0; i<momRates.length; i++)
 					func.set((double)i, momRates[i]);
 			} else {
-				for (int i=plotStartYears; i<plotEndYears; i++) {
-					double moment = calcWindowedMomentRate(events, windowLen, (double)i, taper, twoWay);
-					
-					func.set((double)i, moment);
-				}
+				double[] momRates = engine.calcWindowedMomRates(windowLen, twoWay);
+				for (int i=0; i<momRates.length; i++)
+					func.set(years[i], momRates[i]);
 			}
 			
 			if (xRange == null)
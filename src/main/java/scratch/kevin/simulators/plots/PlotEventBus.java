@@ -0,0 +1,285 @@
+package scratch.kevin.simulators.plots;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.SimulatorEvent;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Fans catalog events out to {@link AbstractPlot}s on worker threads, so that event decoding (on the calling thread)
+ * and plot processing are pipelined and plots are processed in parallel.
+ * <br>
+ * Each plot is assigned to a single worker, and each worker consumes batches of events from its own bounded queue in
+ * order, so every plot still sees events in the order they were published. When a worker falls behind, its queue
+ * fills and {@link #publish(SimulatorEvent)} blocks until there is space.
+ * <br>
+ * Events are shared across workers, so they must not be modified by any plot.
+ *
+ * @author kevin
+ *
+ */
+public class PlotEventBus {
+
+	private static final int events_per_batch = 256;
+	private static final int batches_per_queue = 16;
+
+	private static final Batch END = new Batch();
+
+	private final List<AbstractPlot> plots;
+	private final Worker[] workers;
+	// worker and index within that worker for each plot
+	private final Map<AbstractPlot, int[]> plotMappings;
+
+	private ExecutorService exec;
+	private List<Future<?>> futures;
+
+	private Batch[] pending;
+	private int[] targetCounts;
+
+	private long numPublished = 0;
+	private long blockedNanos = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param plots plots to process
+	 * @param numThreads number of worker threads, will be reduced to the number of plots if greater
+	 */
+	public PlotEventBus(List<? extends AbstractPlot> plots, int numThreads) {
+		Preconditions.checkArgument(!plots.isEmpty(), "Must supply at least one plot");
+		Preconditions.checkArgument(numThreads > 0, "Must have at least one thread");
+		this.plots = new ArrayList<>(plots);
+		int numWorkers = Math.min(numThreads, plots.size());
+
+		workers = new Worker[numWorkers];
+		for (int w=0; w<numWorkers; w++)
+			workers[w] = new Worker();
+		plotMappings = new IdentityHashMap<>();
+		for (int p=0; p<plots.size(); p++) {
+			AbstractPlot plot = plots.get(p);
+			Preconditions.checkArgument(!plotMappings.containsKey(plot), "Plot supplied multiple times");
+			int w = p % numWorkers;
+			plotMappings.put(plot, new int[] { w, workers[w].plots.size() });
+			workers[w].plots.add(plot);
+		}
+
+		pending = new Batch[numWorkers];
+		targetCounts = new int[numWorkers];
+		exec = Executors.newFixedThreadPool(numWorkers);
+		futures = new ArrayList<>();
+		for (Worker worker : workers) {
+			worker.nanos = new long[worker.plots.size()];
+			worker.counts = new long[worker.plots.size()];
+			futures.add(exec.submit(worker));
+		}
+	}
+
+	/**
+	 * Publishes the given event to all plots
+	 * @param e
+	 */
+	public void publish(SimulatorEvent e) {
+		Preconditions.checkState(!finished, "Already finished");
+		for (int w=0; w<workers.length; w++)
+			add(w, e, null);
+		numPublished++;
+	}
+
+	/**
+	 * Publishes the given event to the given subset of plots
+	 * @param e
+	 * @param targets plots which should process this event, each must have been supplied to the constructor
+	 */
+	public void publish(SimulatorEvent e, Collection<? extends AbstractPlot> targets) {
+		Preconditions.checkState(!finished, "Already finished");
+		if (targets.isEmpty())
+			return;
+		for (AbstractPlot plot : targets)
+			targetCounts[mapping(plot)[0]]++;
+		int[][] workerTargets = new int[workers.length][];
+		for (int w=0; w<workers.length; w++) {
+			if (targetCounts[w] > 0)
+				workerTargets[w] = new int[targetCounts[w]];
+			targetCounts[w] = 0;
+		}
+		for (AbstractPlot plot : targets) {
+			int[] mapping = mapping(plot);
+			workerTargets[mapping[0]][targetCounts[mapping[0]]++] = mapping[1];
+		}
+		for (int w=0; w<workers.length; w++) {
+			if (workerTargets[w] != null)
+				add(w, e, workerTargets[w]);
+			targetCounts[w] = 0;
+		}
+		numPublished++;
+	}
+
+	private int[] mapping(AbstractPlot plot) {
+		int[] mapping = plotMappings.get(plot);
+		Preconditions.checkNotNull(mapping, "Unknown plot: %s", plot);
+		return mapping;
+	}
+
+	private void add(int w, SimulatorEvent e, int[] targets) {
+		Batch batch = pending[w];
+		if (batch == null) {
+			batch = new Batch();
+			pending[w] = batch;
+		}
+		batch.events[batch.size] = e;
+		batch.targets[batch.size] = targets;
+		batch.size++;
+		if (batch.size == events_per_batch) {
+			send(w, batch);
+			pending[w] = null;
+		}
+	}
+
+	private void send(int w, Batch batch) {
+		try {
+			if (workers[w].queue.offer(batch))
+				return;
+			long start = System.nanoTime();
+			while (!workers[w].queue.offer(batch, 1, TimeUnit.SECONDS))
+				// make sure that the worker didn't fail, otherwise we'd wait forever
+				checkFailed();
+			blockedNanos += System.nanoTime() - start;
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+
+	private void checkFailed() {
+		for (Future<?> future : futures) {
+			if (future.isDone()) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				} catch (ExecutionException e) {
+					throw ExceptionUtils.asRuntimeException(e.getCause());
+				}
+				throw new IllegalStateException("Worker exited early");
+			}
+		}
+	}
+
+	/**
+	 * Flushes any pending events and waits for all plots to finish processing them. This must be called before
+	 * finalizing any plots.
+	 */
+	public void finish() {
+		if (finished)
+			return;
+		finished = true;
+		for (int w=0; w<workers.length; w++) {
+			if (pending[w] != null)
+				send(w, pending[w]);
+			pending[w] = null;
+			send(w, END);
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/**
+	 * Prints the number of events and time spent processing them for each plot, slowest first
+	 */
+	public void printTimings() {
+		Preconditions.checkState(finished, "Must call finish() first");
+		List<AbstractPlot> sorted = new ArrayList<>(plots);
+		Collections.sort(sorted, new Comparator<AbstractPlot>() {
+
+			@Override
+			public int compare(AbstractPlot o1, AbstractPlot o2) {
+				return Long.compare(getNanos(o2), getNanos(o1));
+			}
+		});
+		System.out.println("Published "+numPublished+" events to "+plots.size()+" plots on "+workers.length
+				+" threads, blocked for "+secs(blockedNanos)+" s");
+		for (AbstractPlot plot : sorted) {
+			int[] mapping = mapping(plot);
+			String name = plot.getClass().getSimpleName();
+			if (name.isEmpty())
+				name = plot.getClass().getName();
+			System.out.println("\t"+name+": "+workers[mapping[0]].counts[mapping[1]]
+					+" events in "+secs(getNanos(plot))+" s");
+		}
+	}
+
+	private long getNanos(AbstractPlot plot) {
+		int[] mapping = mapping(plot);
+		return workers[mapping[0]].nanos[mapping[1]];
+	}
+
+	private static float secs(long nanos) {
+		return (float)(nanos/1e9);
+	}
+
+	private static class Batch {
+		private final SimulatorEvent[] events = new SimulatorEvent[events_per_batch];
+		// indexes of target plots within the worker for each event, or null for all
+		private final int[][] targets = new int[events_per_batch][];
+		private int size = 0;
+	}
+
+	private static class Worker implements Callable<Void> {
+
+		private final List<AbstractPlot> plots = new ArrayList<>();
+		private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(batches_per_queue);
+		// only written by the worker thread, read after it completes
+		private long[] nanos;
+		private long[] counts;
+
+		@Override
+		public Void call() throws Exception {
+			while (true) {
+				Batch batch = queue.take();
+				if (batch == END)
+					return null;
+				for (int i=0; i<batch.size; i++) {
+					SimulatorEvent e = batch.events[i];
+					int[] targets = batch.targets[i];
+					if (targets == null) {
+						for (int p=0; p<plots.size(); p++)
+							process(p, e);
+					} else {
+						for (int p : targets)
+							process(p, e);
+					}
+				}
+			}
+		}
+
+		private void process(int p, SimulatorEvent e) {
+			long start = System.nanoTime();
+			plots.get(p).processEvent(e);
+			nanos[p] += System.nanoTime() - start;
+			counts[p]++;
+		}
+	}
+
+}
@@ -307,6 +307,11 @@ public class RSQSimBatchPlotGen {
 		skipYears.setRequired(false);
 		ops.addOption(skipYears);
 		
+		Option threads = new Option("t", "threads", true,
+				"Number of plot processing threads (default is the number of available processors)");
+		threads.setRequired(false);
+		ops.addOption(threads);
+		
 		// add individual plots
 		for (PlotConfig plot : PlotConfig.values())
 			ops.addOption(plot.op);
@@ -439,6 +444,14 @@ public class RSQSimBatchPlotGen {
 		countDF.setGroupingUsed(true);
 		countDF.setGroupingSize(3);
 		
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		if (cmd.hasOption("threads"))
+			numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
+		List<AbstractPlot> allPlots = new ArrayList<>();
+		for (List<? extends AbstractPlot> myPlots : plots)
+			allPlots.addAll(myPlots);
+		PlotEventBus bus = new PlotEventBus(allPlots, numThreads);
+		
 		int count = 0;
 		int mod = 1000;
 		int nextMod = mod*10;
@@ -463,17 +476,13 @@ public class RSQSimBatchPlotGen {
 			if (count == 0)
 				System.out.println("First event processed at "+(float)e.getTimeInYears()+" years");
 			
-			// first process plots specific to all elements
-			for (AbstractPlot plot : allElementPlots)
-				plot.processEvent(e);
-			// now process plots specific to the elements of this event
-			HashSet<AbstractPlot> elemPlots = new HashSet<AbstractPlot>();
+			// plots specific to all elements, plus plots specific to the elements of this event
+			HashSet<AbstractPlot> eventPlots = new HashSet<AbstractPlot>(allElementPlots);
 			for (EventRecord rec : e)
 				for (SimulatorElement elem : rec.getElements())
 					for (AbstractPlot plot : elementSpecificPlots.get(elem))
-						elemPlots.add(plot);
-			for (AbstractPlot plot : elemPlots)
-				plot.processEvent(e);
+						eventPlots.add(plot);
+			bus.publish(e, eventPlots);
 			count++;
 			if (count >= nextMod) {
 				mod = nextMod;
@@ -482,7 +491,9 @@ public class RSQSimBatchPlotGen {
 			if (count % mod == 0)
 				System.out.println("Processed "+countDF.format(count)+" events");
 		}
+		bus.finish();
 		System.out.println("Done processing "+count+" events");
+		bus.printTimings();
 		
 		System.out.println("Finalizing plots");
 		for (int i=0; i<plots.size(); i++) {
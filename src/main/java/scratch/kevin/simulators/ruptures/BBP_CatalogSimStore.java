@@ -0,0 +1,488 @@
+package scratch.kevin.simulators.ruptures;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.utils.RSQSimUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.primitives.Ints;
+
+import scratch.kevin.bbp.BBP_Site;
+import scratch.kevin.simCompare.SimulationRotDProvider;
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Packed, memory mapped alternative to {@link BBP_CatalogSimZipLoader}. Results for each site are stored as columns
+ * on a fixed period grid so that any value can be read directly, without decompressing and parsing text files:
+ * <pre>
+ * int magic, int version, int numSites, int numPeriods, int flags, int reserved
+ * double[numPeriods] periods
+ * for each site: int numEvents, int numNameChars, long dataOffset, char[numNameChars] name (padded to 8 bytes)
+ * for each site, starting at dataOffset:
+ *   int[numEvents] event IDs, sorted (padded to 8 bytes)
+ *   float[numEvents*numPeriods] RotD50 (if present)
+ *   float[numEvents*numPeriods] RotD100 (if present)
+ *   float[numEvents] RotD50 PGV (if present)
+ *   float[numEvents*3] geometric mean 5-75%, 5-95% and 20-80% durations (if present)
+ *   (padded to 8 bytes)
+ * </pre>
+ * Use {@link #convert(BBP_CatalogSimZipLoader, List, File)} to build a store from a results zip file.
+ *
+ * @author kevin
+ *
+ */
+public class BBP_CatalogSimStore implements SimulationRotDProvider<RSQSimEvent>, Closeable {
+
+	public static final int MAGIC = 0x42425053; // "BBPS"
+	public static final int VERSION = 1;
+	private static final int HEADER_LEN = 6*4;
+
+	private static final int FLAG_RD50 = 1;
+	private static final int FLAG_RD100 = 2;
+	private static final int FLAG_PGV = 4;
+	private static final int FLAG_DURATIONS = 8;
+
+	private static final DurationTimeInterval[] duration_intervals = { DurationTimeInterval.INTERVAL_5_75,
+			DurationTimeInterval.INTERVAL_5_95, DurationTimeInterval.INTERVAL_20_80 };
+
+	private MappedFileReader reader;
+	private final int flags;
+	private final double[] periods;
+
+	private final Map<String, Integer> siteIndexes;
+	private final int[][] siteEventIDs;
+	private final long[] rd50Pos, rd100Pos, pgvPos, durationsPos;
+
+	private BiMap<BBP_Site, Site> gmpeSites;
+	private Map<Site, BBP_Site> gmpeToBBP;
+	private Map<Integer, RSQSimEvent> eventsMap;
+	private double durationYears;
+
+	public BBP_CatalogSimStore(File file, BiMap<BBP_Site, Site> gmpeSites, Map<Integer, RSQSimEvent> eventsMap)
+			throws IOException {
+		this.gmpeSites = gmpeSites;
+		this.gmpeToBBP = gmpeSites.inverse();
+		this.eventsMap = eventsMap;
+		double minTime = Double.POSITIVE_INFINITY;
+		double maxTime = Double.NEGATIVE_INFINITY;
+		for (RSQSimEvent event : eventsMap.values()) {
+			double t = event.getTimeInYears();
+			minTime = Math.min(minTime, t);
+			maxTime = Math.max(maxTime, t);
+		}
+		durationYears = maxTime - minTime;
+
+		reader = new MappedFileReader(file);
+		Preconditions.checkState(reader.getInt(0) == MAGIC, "Not a BBP simulation store: %s", file);
+		int version = reader.getInt(4);
+		Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+		int numSites = reader.getInt(8);
+		int numPeriods = reader.getInt(12);
+		flags = reader.getInt(16);
+		periods = new double[numPeriods];
+		reader.getDoubles(HEADER_LEN, periods, 0, numPeriods);
+
+		siteIndexes = new HashMap<>();
+		siteEventIDs = new int[numSites][];
+		rd50Pos = new long[numSites];
+		rd100Pos = new long[numSites];
+		pgvPos = new long[numSites];
+		durationsPos = new long[numSites];
+		long pos = HEADER_LEN + 8l*numPeriods;
+		for (int s=0; s<numSites; s++) {
+			int numEvents = reader.getInt(pos);
+			int numNameChars = reader.getInt(pos+4);
+			long dataPos = reader.getLong(pos+8);
+			pos += 16;
+			char[] name = new char[numNameChars];
+			for (int i=0; i<numNameChars; i++)
+				name[i] = (char)reader.getShort(pos + 2*i);
+			pos = padded(pos + 2l*numNameChars);
+			siteIndexes.put(new String(name), s);
+
+			int[] ids = new int[numEvents];
+			for (int i=0; i<numEvents; i++)
+				ids[i] = reader.getInt(dataPos + 4l*i);
+			siteEventIDs[s] = ids;
+			dataPos = padded(dataPos + 4l*numEvents);
+			if (hasFlag(FLAG_RD50)) {
+				rd50Pos[s] = dataPos;
+				dataPos += 4l*numEvents*numPeriods;
+			}
+			if (hasFlag(FLAG_RD100)) {
+				rd100Pos[s] = dataPos;
+				dataPos += 4l*numEvents*numPeriods;
+			}
+			if (hasFlag(FLAG_PGV)) {
+				pgvPos[s] = dataPos;
+				dataPos += 4l*numEvents;
+			}
+			if (hasFlag(FLAG_DURATIONS)) {
+				durationsPos[s] = dataPos;
+				dataPos += 4l*numEvents*duration_intervals.length;
+			}
+			if (s == numSites-1) {
+				long expectedLen = padded(dataPos);
+				Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+						expectedLen, reader.length());
+			}
+		}
+	}
+
+	private static long padded(long pos) {
+		return pos + MappedFileReader.padding(pos);
+	}
+
+	private boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	private static long siteDataLength(int numEvents, int numPeriods, int flags) {
+		long len = padded(4l*numEvents);
+		if ((flags & FLAG_RD50) != 0)
+			len += 4l*numEvents*numPeriods;
+		if ((flags & FLAG_RD100) != 0)
+			len += 4l*numEvents*numPeriods;
+		if ((flags & FLAG_PGV) != 0)
+			len += 4l*numEvents;
+		if ((flags & FLAG_DURATIONS) != 0)
+			len += 4l*numEvents*duration_intervals.length;
+		return padded(len);
+	}
+
+	private int siteIndex(Site site) {
+		BBP_Site bbpSite = gmpeToBBP.get(site);
+		Preconditions.checkNotNull(bbpSite, "No mapping for site %s", site.getName());
+		Integer index = siteIndexes.get(bbpSite.getName());
+		Preconditions.checkNotNull(index, "Site %s not found in store", bbpSite.getName());
+		return index;
+	}
+
+	private int eventIndex(int siteIndex, int eventID) {
+		int index = Arrays.binarySearch(siteEventIDs[siteIndex], eventID);
+		Preconditions.checkState(index >= 0, "Event %s not found for site %s", eventID, siteIndex);
+		return index;
+	}
+
+	private DiscretizedFunc readSpectrum(long[] sitePositions, Site site, RSQSimEvent rupture) {
+		int s = siteIndex(site);
+		int e = eventIndex(s, rupture.getID());
+		float[] vals = new float[periods.length];
+		reader.getFloats(sitePositions[s] + 4l*e*periods.length, vals, 0, periods.length);
+		double[] yVals = new double[periods.length];
+		for (int p=0; p<periods.length; p++)
+			yVals[p] = vals[p];
+		return new LightFixedXFunc(periods, yVals);
+	}
+
+	public double[] getPeriods() {
+		return periods;
+	}
+
+	@Override
+	public DiscretizedFunc getRotD50(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		Preconditions.checkState(hasRotD50(), "RotD50 not in store");
+		return readSpectrum(rd50Pos, site, rupture);
+	}
+
+	@Override
+	public DiscretizedFunc getRotD100(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		Preconditions.checkState(hasRotD100(), "RotD100 not in store");
+		return readSpectrum(rd100Pos, site, rupture);
+	}
+
+	@Override
+	public DiscretizedFunc[] getRotD(Site site, RSQSimEvent rupture, int index) throws IOException {
+		return new DiscretizedFunc[] { getRotD50(site, rupture, index), getRotD100(site, rupture, index) };
+	}
+
+	@Override
+	public DiscretizedFunc getRotDRatio(Site site, RSQSimEvent rupture, int index) throws IOException {
+		return SimulationRotDProvider.calcRotDRatio(getRotD(site, rupture, index));
+	}
+
+	@Override
+	public double getPGV(Site site, RSQSimEvent rupture, int index) throws IOException {
+		Preconditions.checkState(index == 0);
+		Preconditions.checkState(hasPGV(), "PGV not in store");
+		int s = siteIndex(site);
+		int e = eventIndex(s, rupture.getID());
+		return reader.getFloat(pgvPos[s] + 4l*e);
+	}
+
+	@Override
+	public double getDuration(Site site, RSQSimEvent rupture, DurationTimeInterval interval, int index)
+			throws IOException {
+		Preconditions.checkState(index == 0);
+		Preconditions.checkState(hasDurations(), "Durations not in store");
+		int i = Arrays.asList(duration_intervals).indexOf(interval);
+		Preconditions.checkState(i >= 0, "Unsupported duration interval: %s", interval);
+		int s = siteIndex(site);
+		int e = eventIndex(s, rupture.getID());
+		return reader.getFloat(durationsPos[s] + 4l*(e*duration_intervals.length + i));
+	}
+
+	@Override
+	public int getNumSimulations(Site site, RSQSimEvent rupture) {
+		Preconditions.checkNotNull(site, "Site is null");
+		Preconditions.checkNotNull(rupture, "Rupture is null");
+		if (Arrays.binarySearch(siteEventIDs[siteIndex(site)], rupture.getID()) >= 0)
+			return 1;
+		return 0;
+	}
+
+	@Override
+	public Location getHypocenter(RSQSimEvent rupture, int index) {
+		return RSQSimUtils.getHypocenter(rupture);
+	}
+
+	@Override
+	public Collection<RSQSimEvent> getRupturesForSite(Site site) {
+		List<RSQSimEvent> events = new ArrayList<>();
+		for (int id : siteEventIDs[siteIndex(site)]) {
+			RSQSimEvent event = eventsMap.get(id);
+			if (event != null)
+				events.add(event);
+		}
+		return events;
+	}
+
+	@Override
+	public boolean hasRotD50() {
+		return hasFlag(FLAG_RD50);
+	}
+
+	@Override
+	public boolean hasRotD100() {
+		return hasFlag(FLAG_RD100);
+	}
+
+	@Override
+	public boolean hasPGV() {
+		return hasFlag(FLAG_PGV);
+	}
+
+	@Override
+	public boolean hasDurations() {
+		return hasFlag(FLAG_DURATIONS);
+	}
+
+	@Override
+	public double getAnnualRate(RSQSimEvent rupture) {
+		return 1d/durationYears;
+	}
+
+	@Override
+	public double getMinimumCurvePlotRate(Site site) {
+		return getAnnualRate(null);
+	}
+
+	@Override
+	public double getMagnitude(RSQSimEvent rupture) {
+		return rupture.getMagnitude();
+	}
+
+	@Override
+	public String getName() {
+		return "RSQSim-BBP";
+	}
+
+	public BiMap<BBP_Site, Site> getGMPESites() {
+		return gmpeSites;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+	}
+
+	/**
+	 * Converts all results for the given sites in the given zip loader to a packed store. Spectra must all use the
+	 * same periods.
+	 * @param loader
+	 * @param sites
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void convert(BBP_CatalogSimZipLoader loader, List<BBP_Site> sites, File outputFile)
+			throws IOException {
+		int flags = 0;
+		if (loader.hasRotD50() || loader.hasRotD100())
+			flags |= FLAG_RD50;
+		if (loader.hasRotD100())
+			flags |= FLAG_RD100;
+		if (loader.hasPGV())
+			flags |= FLAG_PGV;
+		if (loader.hasDurations())
+			flags |= FLAG_DURATIONS;
+		Preconditions.checkState((flags & FLAG_RD50) != 0, "Zip file must contain RotD50 or RotD100 results");
+
+		List<int[]> siteEventIDs = new ArrayList<>();
+		for (BBP_Site site : sites) {
+			int[] ids = Ints.toArray(loader.getEventIDs(site));
+			Arrays.sort(ids);
+			siteEventIDs.add(ids);
+		}
+
+		// period grid from the first spectrum
+		double[] periods = null;
+		for (int s=0; s<sites.size() && periods == null; s++) {
+			if (siteEventIDs.get(s).length > 0) {
+				DiscretizedFunc rd50 = loader.readRotD50(sites.get(s),
+						BBP_CatalogSimZipLoader.getDirName(siteEventIDs.get(s)[0]));
+				periods = new double[rd50.size()];
+				for (int p=0; p<periods.length; p++)
+					periods[p] = rd50.getX(p);
+			}
+		}
+		Preconditions.checkNotNull(periods, "No results found");
+
+		// header, with site data offsets
+		long pos = HEADER_LEN + 8l*periods.length;
+		for (BBP_Site site : sites)
+			pos = padded(pos + 16 + 2l*site.getName().length());
+		long[] dataOffsets = new long[sites.size()];
+		for (int s=0; s<sites.size(); s++) {
+			dataOffsets[s] = pos;
+			pos += siteDataLength(siteEventIDs.get(s).length, periods.length, flags);
+		}
+
+		Stopwatch watch = Stopwatch.createStarted();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(sites.size());
+		out.writeInt(periods.length);
+		out.writeInt(flags);
+		out.writeInt(0);
+		for (double period : periods)
+			out.writeDouble(period);
+		pos = HEADER_LEN + 8l*periods.length;
+		for (int s=0; s<sites.size(); s++) {
+			String name = sites.get(s).getName();
+			out.writeInt(siteEventIDs.get(s).length);
+			out.writeInt(name.length());
+			out.writeLong(dataOffsets[s]);
+			out.writeChars(name);
+			pos = pad(out, pos + 16 + 2l*name.length());
+		}
+
+		for (int s=0; s<sites.size(); s++) {
+			Preconditions.checkState(pos == dataOffsets[s]);
+			BBP_Site site = sites.get(s);
+			int[] ids = siteEventIDs.get(s);
+			System.out.println("Converting "+ids.length+" results for site "+site.getName());
+
+			float[] rd50s = new float[ids.length*periods.length];
+			float[] rd100s = (flags & FLAG_RD100) != 0 ? new float[rd50s.length] : null;
+			float[] pgvs = (flags & FLAG_PGV) != 0 ? new float[ids.length] : null;
+			float[] durations = (flags & FLAG_DURATIONS) != 0 ? new float[ids.length*duration_intervals.length] : null;
+			for (int e=0; e<ids.length; e++) {
+				// read directly rather than through the caching loader methods
+				String dirName = BBP_CatalogSimZipLoader.getDirName(ids[e]);
+				if (rd100s != null) {
+					DiscretizedFunc[] rds = loader.readRotD(site, dirName);
+					copySpectrum(rds[0], periods, rd50s, e);
+					copySpectrum(rds[1], periods, rd100s, e);
+				} else {
+					copySpectrum(loader.readRotD50(site, dirName), periods, rd50s, e);
+				}
+				if (pgvs != null)
+					pgvs[e] = (float)loader.readPGV(site, dirName)[0];
+				if (durations != null) {
+					Map<DurationTimeInterval, double[]> durs = loader.readDurations(site, dirName);
+					for (int i=0; i<duration_intervals.length; i++)
+						durations[e*duration_intervals.length + i] = (float)durs.get(duration_intervals[i])[3];
+				}
+			}
+
+			for (int id : ids)
+				out.writeInt(id);
+			pos = pad(out, pos + 4l*ids.length);
+			pos += writeFloats(out, rd50s);
+			if (rd100s != null)
+				pos += writeFloats(out, rd100s);
+			if (pgvs != null)
+				pos += writeFloats(out, pgvs);
+			if (durations != null)
+				pos += writeFloats(out, durations);
+			pos = pad(out, pos);
+		}
+		out.close();
+		watch.stop();
+		System.out.println("Wrote "+outputFile.getAbsolutePath()+" in "+watch.elapsed(TimeUnit.SECONDS)+" s");
+	}
+
+	private static void copySpectrum(DiscretizedFunc spectrum, double[] periods, float[] dest, int eventIndex) {
+		Preconditions.checkState(spectrum.size() == periods.length, "Spectra must all use the same periods");
+		for (int p=0; p<periods.length; p++) {
+			Preconditions.checkState((float)spectrum.getX(p) == (float)periods[p],
+					"Spectra must all use the same periods");
+			dest[eventIndex*periods.length + p] = (float)spectrum.getY(p);
+		}
+	}
+
+	private static long writeFloats(DataOutputStream out, float[] vals) throws IOException {
+		for (float val : vals)
+			out.writeFloat(val);
+		return 4l*vals.length;
+	}
+
+	private static long pad(DataOutputStream out, long pos) throws IOException {
+		int padding = MappedFileReader.padding(pos);
+		for (int i=0; i<padding; i++)
+			out.writeByte(0);
+		return pos + padding;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 3) {
+			System.err.println("USAGE: <results.zip> <bbp-dir-with-sites> <output-file>");
+			System.exit(2);
+		}
+		File zipFile = new File(args[0]);
+		List<BBP_Site> sites = BBP_Site.readFile(new File(args[1]));
+		File outputFile = new File(args[2]);
+
+		// all events in the zip file
+		BBP_CatalogSimZipLoader loader = new BBP_CatalogSimZipLoader(zipFile, sites,
+				HashBiMap.<BBP_Site, Site>create(), new HashMap<Integer, RSQSimEvent>()) {
+
+			@Override
+			public Collection<Integer> getEventIDs(BBP_Site site) {
+				List<Integer> ids = new ArrayList<>();
+				for (String dirName : getDirNames(site))
+					if (!dirName.contains("rup_gen"))
+						ids.add(Integer.parseInt(dirName.substring("event_".length())));
+				return ids;
+			}
+		};
+		convert(loader, sites, outputFile);
+	}
+
+}
@@ -2,8 +2,15 @@ package scratch.kevin.simulators.ruptures;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.simulators.RSQSimEvent;
 import org.opensha.sha.simulators.srf.RSQSimEventSlipTimeFunc;
 import org.opensha.sha.simulators.srf.RSQSimSRFGenerator;
@@ -20,31 +27,51 @@ public class CatalogSRF_Writer {
 
 	public static void main(String[] args) throws IOException {
 		File baseDir = new File("/data/kevin/simulators/catalogs");
-		RSQSimCatalog catalog = Catalogs.BRUCE_2457.instance(baseDir);
+		final RSQSimCatalog catalog = Catalogs.BRUCE_2457.instance(baseDir);
 		
-		File outputDir = new File(catalog.getCatalogDir(), "srfs");
+		final File outputDir = new File(catalog.getCatalogDir(), "srfs");
 		Preconditions.checkState(outputDir.exists() || outputDir.mkdir());
 		
 		double minMag = 6.5;
 		double skipYears = 5000;
 		double maxDuration = 10000;
 		
-		double dt = RSQSimBBP_Config.SRF_DT;
-		SRFInterpolationMode interp = RSQSimBBP_Config.SRF_INTERP_MODE;
-		double srfVersion = RSQSimBBP_Config.SRF_VERSION;
+		final double dt = RSQSimBBP_Config.SRF_DT;
+		final SRFInterpolationMode interp = RSQSimBBP_Config.SRF_INTERP_MODE;
+		final double srfVersion = RSQSimBBP_Config.SRF_VERSION;
 		
 		List<RSQSimEvent> events = catalog.loader().minMag(minMag).skipYears(skipYears).maxDuration(maxDuration).load();
 		System.out.println("Loaded "+events.size()+" events in "+SimulatorUtils.getSimulationDurationYears(events)+" yrs");
 		
-		int cnt = 0;
-		for (RSQSimEvent e : events) {
-			if (cnt % 100 == 0)
-				System.out.println("Writing event "+cnt+"/"+events.size());
-			cnt++;
-			RSQSimEventSlipTimeFunc slipTimeFunc = catalog.getSlipTimeFunc(e);
-			File srfFile = new File(outputDir, "event_"+e.getID()+".srf");
-			List<SRF_PointData> srfPoints = RSQSimSRFGenerator.buildSRF(slipTimeFunc, e.getAllElements(), dt, interp);
-			SRF_PointData.writeSRF(srfFile, srfPoints, srfVersion);
+		// slip time functions can be built concurrently, so write SRFs in parallel
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (final RSQSimEvent e : events) {
+			futures.add(exec.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					RSQSimEventSlipTimeFunc slipTimeFunc = catalog.getSlipTimeFunc(e);
+					File srfFile = new File(outputDir, "event_"+e.getID()+".srf");
+					List<SRF_PointData> srfPoints = RSQSimSRFGenerator.buildSRF(
+							slipTimeFunc, e.getAllElements(), dt, interp);
+					SRF_PointData.writeSRF(srfFile, srfPoints, srfVersion);
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (int i=0; i<futures.size(); i++) {
+				if (i % 100 == 0)
+					System.out.println("Writing event "+i+"/"+events.size());
+				futures.get(i).get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
 		}
 	}
 
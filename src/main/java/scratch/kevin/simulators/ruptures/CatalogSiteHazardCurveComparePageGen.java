@@ -167,14 +167,22 @@ public class CatalogSiteHazardCurveComparePageGen extends SiteHazardCurveComareP
 //		pageGen.setSourceRupContributionFractions(sourceContribFracts, 4e-4, 10);
 		pageGen.setSourceRupContributionFractions(sourceContribFracts, 0d, 10); // 0 = RTGM
 		
+		List<Site> pageSites = new ArrayList<>();
+		for (String siteName : siteNames) {
+			Site site = null;
+			for (Site oSite : gmpeComp.getGMPESites())
+				if (oSite.getName().equals(siteName))
+					site = oSite;
+			Preconditions.checkNotNull(site, "Site %s not found", siteName);
+			pageSites.add(site);
+		}
+		// simulation curves don't depend on the GMPE, calculate them for all sites at once
+		pageGen.precalcSimCurves(pageSites, imts);
+		
 		for (AttenRelRef gmpeRef : gmpeRefs) {
 			List<EventComparison> comps = gmpeComp.loadCalcComps(gmpeRef, imts);
-			for (String siteName : siteNames) {
-				Site site = null;
-				for (Site oSite : gmpeComp.getGMPESites())
-					if (oSite.getName().equals(siteName))
-						site = oSite;
-				Preconditions.checkNotNull(site, "Site %s not found", siteName);
+			for (Site site : pageSites) {
+				String siteName = site.getName();
 				List<EventComparison> myComps = new ArrayList<>();
 				for (EventComparison comp : comps)
 					if (comp.hasSite(site))
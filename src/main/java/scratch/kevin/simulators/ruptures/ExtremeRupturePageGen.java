@@ -41,6 +41,7 @@ import com.google.common.base.Preconditions;
 
 import scratch.kevin.simulators.RSQSimCatalog;
 import scratch.kevin.simulators.RSQSimCatalog.Catalogs;
+import scratch.kevin.simulators.SubSectDistances;
 
 import org.opensha.commons.util.IDPairing;
 import org.opensha.commons.util.MarkdownUtils;
@@ -54,7 +55,7 @@ public class ExtremeRupturePageGen {
 				+ "after application of minimum subsection area filter") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				return eventSections.size();
 			}
 		},
@@ -63,7 +64,7 @@ public class ExtremeRupturePageGen {
 				+ "after application of minimum subsection area filter") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				HashSet<Integer> parentIDs = new HashSet<>();
 				for (FaultSection sect : eventSections)
 					parentIDs.add(sect.getParentSectionId());
@@ -74,7 +75,7 @@ public class ExtremeRupturePageGen {
 //				+ " to the idealized length, defined as the distance between the furthest 2 elements") {
 //			@Override
 //			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<FaultSectionPrefData> eventSections,
-//					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+//					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 //				double totLen = SimulatorUtils.estimateRuptureLength(event);
 //				List<SimulatorElement> elems = event.getAllElements();
 //				double idealLen = 0d;
@@ -88,11 +89,11 @@ public class ExtremeRupturePageGen {
 				+ " to the idealized length, defined as the straight line distance between the furthest 2 subsections") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				double totLen = 0d;
 				for (FaultSection sect : eventSections)
 					totLen += sect.getTraceLength();
-				double idealLen = calcIdealMinLength(eventSections, subSectsDistCache);
+				double idealLen = calcIdealMinLength(eventSections, subSectDists);
 				Preconditions.checkState(idealLen > 0);
 				double ratio = totLen / idealLen;
 //				if (ratio > 50)
@@ -104,11 +105,11 @@ public class ExtremeRupturePageGen {
 				+ " minus the idealized length, defined as the straight line distance between the furthest 2 subsections") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				double totLen = 0d;
 				for (FaultSection sect : eventSections)
 					totLen += sect.getTraceLength();
-				double idealLen = calcIdealMinLength(eventSections, subSectsDistCache);
+				double idealLen = calcIdealMinLength(eventSections, subSectDists);
 				Preconditions.checkState(idealLen > 0);
 				return totLen - idealLen;
 			}
@@ -117,7 +118,7 @@ public class ExtremeRupturePageGen {
 				"Moment of simulator elements not included in mapped UCERF3 subsection rupture") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				
 				HashSet<Integer> mappedIDs = new HashSet<>();
 				for (FaultSection sect : eventSections)
@@ -138,7 +139,7 @@ public class ExtremeRupturePageGen {
 		MAG("Magnitude", "mag", null, "Event Moment Magnitude") {
 			@Override
 			public double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				return event.getMagnitude();
 			}
 		},
@@ -148,7 +149,7 @@ public class ExtremeRupturePageGen {
 			private Map<FaultSectionPrefData, Region> sectRegions;
 			@Override
 			public synchronized double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-					int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache) {
+					int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache) {
 				if (sectRegions == null)
 					sectRegions = new HashMap<>();
 				List<Region> myRegions = new ArrayList<>(eventSections.size());
@@ -197,10 +198,10 @@ public class ExtremeRupturePageGen {
 		}
 		
 		public abstract double calculate(RSQSimCatalog catalog, RSQSimEvent event, List<? extends FaultSection> eventSections,
-				int subSectIDOffset, Map<IDPairing, Double> subSectsDistCache, Map<IDPairing, Double> elementDistsCache);
+				int subSectIDOffset, SubSectDistances subSectDists, Map<IDPairing, Double> elementDistsCache);
 	}
 	
-	private static double calcIdealMinLength(List<? extends FaultSection> subSects, Map<IDPairing, Double> subSectsDistCache) {
+	private static double calcIdealMinLength(List<? extends FaultSection> subSects, SubSectDistances subSectDists) {
 		FaultSection farS1 = null;
 		FaultSection farS2 = null;
 		double maxDist = 0d;
@@ -208,7 +209,7 @@ public class ExtremeRupturePageGen {
 			FaultSection s1 = subSects.get(i);
 			for (int j=i; j<subSects.size(); j++) {
 				FaultSection s2 = subSects.get(j);
-				double dist = getSubSectDist(subSectsDistCache, s1, s2);
+				double dist = subSectDists.getDistance(s1.getSectionId(), s2.getSectionId());
 				if (dist >= maxDist) {
 					maxDist = dist;
 					farS1 = s1;
@@ -252,26 +253,6 @@ public class ExtremeRupturePageGen {
 		
 	}
 	
-	private static double getSubSectDist(Map<IDPairing, Double> distsCache, FaultSection s1, FaultSection s2) {
-		if (s1.getSectionId() == s2.getSectionId())
-			return 0d;
-		IDPairing pairing = new IDPairing(s1.getSectionId(), s2.getSectionId());
-		Double cachedDist = distsCache.get(pairing);
-		if (cachedDist != null)
-			return cachedDist;
-		double minDist = Double.POSITIVE_INFINITY;
-		for (Location loc1 : s1.getFaultTrace()) {
-			for (Location loc2 : s2.getFaultTrace()) {
-				double dist = LocationUtils.horzDistance(loc1, loc2);
-				if (dist < minDist)
-					minDist = dist;
-			}
-		}
-		distsCache.put(pairing, minDist);
-		distsCache.put(pairing.getReversed(), minDist);
-		return minDist;
-	}
-	
 	private static double getElementDist2D(Map<IDPairing, Double> distsCache, SimulatorElement e1, SimulatorElement e2) {
 		if (e1.getID() == e2.getID())
 			return 0d;
@@ -388,7 +369,7 @@ public class ExtremeRupturePageGen {
 		
 		List<EventScore> eventScores = new ArrayList<>();
 		
-		Map<IDPairing, Double> sectDistsCache = catalog.getSubSectDistsCache();
+		SubSectDistances sectDists = catalog.getSubSectDistances();
 		Map<IDPairing, Double> elemDistsCache = new HashMap<>();
 		
 		int subSectIDOffset = RSQSimUtils.getSubSectIndexOffset(catalog.getElements(), catalog.getU3SubSects());
@@ -399,7 +380,7 @@ public class ExtremeRupturePageGen {
 			List<? extends FaultSection> subSects = catalog.getSubSectsForRupture(event);
 			
 			for (Metric metric : metrics)
-				scores.put(metric, metric.calculate(catalog, event, subSects, subSectIDOffset, sectDistsCache, elemDistsCache));
+				scores.put(metric, metric.calculate(catalog, event, subSects, subSectIDOffset, sectDists, elemDistsCache));
 			
 			eventScores.add(new EventScore(event, scores));
 		}
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -15,9 +16,9 @@ import org.opensha.commons.geo.Location;
 import org.opensha.sha.imr.param.IntensityMeasureParams.DurationTimeInterval;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
 import com.google.common.collect.Table.Cell;
 
 import scratch.kevin.bbp.BBP_SimZipLoader;
@@ -32,11 +33,12 @@ public class LightweightBBP_CatalogSimZipLoader extends BBP_SimZipLoader impleme
 	
 	private Map<BBP_Site, List<Integer>> eventIDsMap;
 	
-	private Table<Integer, BBP_Site, DiscretizedFunc> rd50Table;
-	private Table<Integer, Site, DiscretizedFunc> rdRatioTable;
-	private Table<Integer, BBP_Site, DiscretizedFunc[]> rdTable;
-	private Table<Integer, BBP_Site, double[]> pgvTable;
-	private Table<Integer, BBP_Site, Map<DurationTimeInterval, double[]>> durationTable;
+	// keyed by event ID and GMPE site. different keys load concurrently, see BBP_CatalogSimZipLoader.getCached(...)
+	private Cache<BBP_CatalogSimZipLoader.EventSiteKey, DiscretizedFunc> rd50Table;
+	private Cache<BBP_CatalogSimZipLoader.EventSiteKey, DiscretizedFunc> rdRatioTable;
+	private Cache<BBP_CatalogSimZipLoader.EventSiteKey, DiscretizedFunc[]> rdTable;
+	private Cache<BBP_CatalogSimZipLoader.EventSiteKey, double[]> pgvTable;
+	private Cache<BBP_CatalogSimZipLoader.EventSiteKey, Map<DurationTimeInterval, double[]>> durationTable;
 	
 	public LightweightBBP_CatalogSimZipLoader(ZipFile zip, List<BBP_Site> sites, BiMap<BBP_Site, Site> gmpeSites, double durationYears) {
 		super(zip, sites);
@@ -61,15 +63,15 @@ public class LightweightBBP_CatalogSimZipLoader extends BBP_SimZipLoader impleme
 		System.out.println("Detected "+eventIDsMap.size()+" RSQSim events/site mappings in zip file");
 		
 		gmpeToBBP = gmpeSites.inverse();
-		rd50Table = HashBasedTable.create();
+		rd50Table = CacheBuilder.newBuilder().build();
 		if (hasRotD100()) {
-			rdTable = HashBasedTable.create();
-			rdRatioTable = HashBasedTable.create();
+			rdTable = CacheBuilder.newBuilder().build();
+			rdRatioTable = CacheBuilder.newBuilder().build();
 		}
 		if (hasPGV())
-			pgvTable = HashBasedTable.create();
+			pgvTable = CacheBuilder.newBuilder().build();
 		if (hasDurations())
-			durationTable = HashBasedTable.create();
+			durationTable = CacheBuilder.newBuilder().build();
 	}
 
 	@Override
@@ -78,21 +80,18 @@ public class LightweightBBP_CatalogSimZipLoader extends BBP_SimZipLoader impleme
 	}
 
 	@Override
-	public DiscretizedFunc getRotD50(Site site, Integer eventID, int index) throws IOException {
+	public DiscretizedFunc getRotD50(final Site site, final Integer eventID, int index) throws IOException {
 		Preconditions.checkState(index == 0);
 		if (rdTable != null)
 			return getRotD(site, eventID, index)[0];
-		if (rd50Table.contains(eventID, site))
-			return rd50Table.get(eventID, site);
-		synchronized (rd50Table) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rd50Table.contains(eventID, site))
-				return rd50Table.get(eventID, site);
-			BBP_Site bbpSite = gmpeToBBP.get(site);
-			DiscretizedFunc spectra = readRotD50(bbpSite, getDirName(eventID));
-			rd50Table.put(eventID, bbpSite, spectra);
-			return spectra;
-		}
+		return BBP_CatalogSimZipLoader.getCached(rd50Table, new BBP_CatalogSimZipLoader.EventSiteKey(eventID, site),
+				new Callable<DiscretizedFunc>() {
+
+			@Override
+			public DiscretizedFunc call() throws Exception {
+				return readRotD50(gmpeToBBP.get(site), getDirName(eventID));
+			}
+		});
 	}
 
 	@Override
@@ -102,68 +101,57 @@ public class LightweightBBP_CatalogSimZipLoader extends BBP_SimZipLoader impleme
 	}
 
 	@Override
-	public DiscretizedFunc[] getRotD(Site site, Integer eventID, int index) throws IOException {
+	public DiscretizedFunc[] getRotD(final Site site, final Integer eventID, int index) throws IOException {
 		Preconditions.checkState(index == 0);
-		if (rdTable.contains(eventID, site))
-			return rdTable.get(eventID, site);
-		synchronized (rdTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rdTable.contains(eventID, site))
-				return rdTable.get(eventID, site);
-			BBP_Site bbpSite = gmpeToBBP.get(site);
-			DiscretizedFunc[] spectras = readRotD(bbpSite, getDirName(eventID));
-			rdTable.put(eventID, bbpSite, spectras);
-			return spectras;
-		}
+		return BBP_CatalogSimZipLoader.getCached(rdTable, new BBP_CatalogSimZipLoader.EventSiteKey(eventID, site),
+				new Callable<DiscretizedFunc[]>() {
+
+			@Override
+			public DiscretizedFunc[] call() throws Exception {
+				return readRotD(gmpeToBBP.get(site), getDirName(eventID));
+			}
+		});
 	}
 
 	@Override
-	public DiscretizedFunc getRotDRatio(Site site, Integer eventID, int index) throws IOException {
+	public DiscretizedFunc getRotDRatio(final Site site, final Integer eventID, final int index) throws IOException {
 		Preconditions.checkState(index == 0);
-		if (rdRatioTable.contains(eventID, site))
-			return rdRatioTable.get(eventID, site);
-		synchronized (rdTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (rdRatioTable.contains(eventID, site))
-				return rdRatioTable.get(eventID, site);
-			DiscretizedFunc[] spectras = getRotD(site, eventID, index);
-			DiscretizedFunc ratio = SimulationRotDProvider.calcRotDRatio(spectras);
-			rdRatioTable.put(eventID, site, ratio);
-			return ratio;
-		}
+		return BBP_CatalogSimZipLoader.getCached(rdRatioTable,
+				new BBP_CatalogSimZipLoader.EventSiteKey(eventID, site), new Callable<DiscretizedFunc>() {
+
+			@Override
+			public DiscretizedFunc call() throws Exception {
+				return SimulationRotDProvider.calcRotDRatio(getRotD(site, eventID, index));
+			}
+		});
 	}
 
 	@Override
-	public double getPGV(Site site, Integer eventID, int index) throws IOException {
+	public double getPGV(final Site site, final Integer eventID, int index) throws IOException {
 		Preconditions.checkState(index == 0);
-		if (pgvTable.contains(eventID, site))
-			return pgvTable.get(eventID, site)[0];
-		synchronized (pgvTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (pgvTable.contains(eventID, site))
-				return pgvTable.get(eventID, site)[0];
-			BBP_Site bbpSite = gmpeToBBP.get(site);
-			double[] vals = readPGV(bbpSite, getDirName(eventID));
-			pgvTable.put(eventID, bbpSite, vals);
-			return vals[0];
-		}
+		return BBP_CatalogSimZipLoader.getCached(pgvTable, new BBP_CatalogSimZipLoader.EventSiteKey(eventID, site),
+				new Callable<double[]>() {
+
+			@Override
+			public double[] call() throws Exception {
+				return readPGV(gmpeToBBP.get(site), getDirName(eventID));
+			}
+		})[0];
 	}
 
 	@Override
-	public double getDuration(Site site, Integer eventID, DurationTimeInterval interval, int index)
+	public double getDuration(final Site site, final Integer eventID, DurationTimeInterval interval, int index)
 			throws IOException {
 		Preconditions.checkState(index == 0);
-		if (durationTable.contains(eventID, site))
-			return durationTable.get(eventID, site).get(interval)[3];
-		synchronized (durationTable) {
-			// repeat here as could have been populated while waiting for the lock
-			if (durationTable.contains(eventID, site))
-				return durationTable.get(eventID, site).get(interval)[3];
-			BBP_Site bbpSite = gmpeToBBP.get(site);
-			Map<DurationTimeInterval, double[]> vals = readDurations(bbpSite, getDirName(eventID));
-			durationTable.put(eventID, bbpSite, vals);
-			return vals.get(interval)[3];
-		}
+		return BBP_CatalogSimZipLoader.getCached(durationTable,
+				new BBP_CatalogSimZipLoader.EventSiteKey(eventID, site),
+				new Callable<Map<DurationTimeInterval, double[]>>() {
+
+			@Override
+			public Map<DurationTimeInterval, double[]> call() throws Exception {
+				return readDurations(gmpeToBBP.get(site), getDirName(eventID));
+			}
+		}).get(interval)[3];
 	}
 	
 	private static String getDirName(int eventID) {
@@ -63,7 +63,8 @@ public class DistanceMethodsComparePageGen {
 		Location siteLoc = new Location(34.0192, -118.286);
 		Site site = new Site(siteLoc);
 		site.addParameterList(gmpe.getSiteParams());
-		LocationElementDistanceCache siteDistCache = SimRuptureDistCalcUtils.buildSiteLocDistCache(siteLoc);
+		LocationElementDistanceCache siteDistCache = SimRuptureDistCalcUtils.buildSiteLocDistCache(siteLoc,
+				SimRuptureDistCalcUtils.getVertexTable(catalog.getElements()));
 		
 		List<Scalar> scalars = new ArrayList<>();
 		List<double[]> thresholds = new ArrayList<>();
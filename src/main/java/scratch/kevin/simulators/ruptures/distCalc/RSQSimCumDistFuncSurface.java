@@ -12,8 +12,6 @@ import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.faultSurface.RuptureSurface;
 import org.opensha.sha.simulators.RSQSimEvent;
 
-import scratch.kevin.simulators.ruptures.distCalc.SimRuptureDistCalcUtils.DistanceType;
-import scratch.kevin.simulators.ruptures.distCalc.SimRuptureDistCalcUtils.LocationElementDistanceCache;
 import scratch.kevin.simulators.ruptures.distCalc.SimRuptureDistCalcUtils.Scalar;
 
 public class RSQSimCumDistFuncSurface extends CompoundSurface {
@@ -43,10 +41,12 @@ public class RSQSimCumDistFuncSurface extends CompoundSurface {
 	public CompoundSurfaceDistances calcDistances(Location loc) {
 		CompoundSurfaceDistances dists = super.calcDistances(loc);
 		
-		LocationElementDistanceCache siteLocDistCache = SimRuptureDistCalcUtils.buildSiteLocDistCache(loc);
+		// distances to this event are only needed once per site, so calculate them directly rather than caching
+		double[] rJBs = new double[event.getNumElements()];
+		double[] rRups = new double[rJBs.length];
+		SimRuptureDistCalcUtils.calcElementDistances(event, loc, rJBs, rRups);
 		
-		DiscretizedFunc rJBFunc = SimRuptureDistCalcUtils.calcDistScalarFunc(event, loc, siteLocDistCache,
-				DistanceType.R_JB, scalar);
+		DiscretizedFunc rJBFunc = SimRuptureDistCalcUtils.calcDistScalarFunc(event, rJBs, scalar);
 		double distanceJB = Double.NaN;
 		double targetVal = threshold * rJBFunc.getY(rJBFunc.size()-1);
 		for (Point2D pt : rJBFunc) {
@@ -56,8 +56,7 @@ public class RSQSimCumDistFuncSurface extends CompoundSurface {
 			}
 		}
 		
-		DiscretizedFunc rRupFunc = SimRuptureDistCalcUtils.calcDistScalarFunc(event, loc, siteLocDistCache,
-				DistanceType.R_RUP, scalar);
+		DiscretizedFunc rRupFunc = SimRuptureDistCalcUtils.calcDistScalarFunc(event, rRups, scalar);
 		double distanceRup = Double.NaN;
 		targetVal = threshold * rRupFunc.getY(rRupFunc.size()-1);
 		for (Point2D pt : rRupFunc) {
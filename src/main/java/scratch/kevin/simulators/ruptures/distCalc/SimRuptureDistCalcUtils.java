@@ -1,6 +1,7 @@
 package scratch.kevin.simulators.ruptures.distCalc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,56 +23,197 @@ import com.google.common.base.Preconditions;
 public class SimRuptureDistCalcUtils {
 	
 	public static LocationElementDistanceCache buildSiteLocDistCache(Location siteLoc) {
-		return new LocationElementDistanceCache(siteLoc);
+		return new LocationElementDistanceCache(siteLoc, null);
 	}
 	
+	/**
+	 * @param siteLoc
+	 * @param vertexTable shared vertex table for the geometry, see {@link #getVertexTable(List)}
+	 * @return distance cache which also caches distances to each unique vertex
+	 */
+	public static LocationElementDistanceCache buildSiteLocDistCache(Location siteLoc, ElementVertexTable vertexTable) {
+		return new LocationElementDistanceCache(siteLoc, vertexTable);
+	}
+	
+	private static List<SimulatorElement> prevTableElements;
+	private static ElementVertexTable prevTable;
+	
+	/**
+	 * @param elements full list of simulator elements for a geometry
+	 * @return vertex table for the given geometry, cached for the most recently requested element list
+	 */
+	public static synchronized ElementVertexTable getVertexTable(List<SimulatorElement> elements) {
+		if (prevTableElements != elements) {
+			prevTable = new ElementVertexTable(elements);
+			prevTableElements = elements;
+		}
+		return prevTable;
+	}
+	
+	/**
+	 * Unique (float rounded) vertex locations for every element in a geometry, and the vertex indexes for each
+	 * element, indexed by element ID. This is immutable and can be shared across sites and threads.
+	 */
+	public static class ElementVertexTable {
+		
+		private final float[] vertLats, vertLons, vertDepths;
+		// vertex indexes for each element ID, compressed row storage
+		private final int[] elemStarts;
+		private final int[] elemVerts;
+		
+		private ElementVertexTable(List<SimulatorElement> elements) {
+			int maxID = 0;
+			int numElemVerts = 0;
+			for (SimulatorElement elem : elements) {
+				maxID = Integer.max(maxID, elem.getID());
+				numElemVerts += elem.getVertices().length;
+			}
+			SimulatorElement[] byID = new SimulatorElement[maxID+1];
+			for (SimulatorElement elem : elements)
+				byID[elem.getID()] = elem;
+			
+			// need to convert to vanilla locations, with equals and hashCode based on location only and not any
+			// vertex metadata. also do some rounding, such that almost identical points are mapped to the same location
+			Map<Location, Integer> vertIndexes = new HashMap<>();
+			List<Location> uniqueLocs = new ArrayList<>();
+			elemStarts = new int[maxID+2];
+			elemVerts = new int[numElemVerts];
+			int count = 0;
+			for (int id=0; id<=maxID; id++) {
+				elemStarts[id] = count;
+				if (byID[id] == null)
+					continue;
+				for (Vertex vert : byID[id].getVertices()) {
+					Location loc = new Location((float)vert.getLatitude(),
+							(float)vert.getLongitude(), (float)vert.getDepth());
+					Integer index = vertIndexes.get(loc);
+					if (index == null) {
+						index = uniqueLocs.size();
+						vertIndexes.put(loc, index);
+						uniqueLocs.add(loc);
+					}
+					elemVerts[count++] = index;
+				}
+			}
+			elemStarts[maxID+1] = count;
+			
+			vertLats = new float[uniqueLocs.size()];
+			vertLons = new float[uniqueLocs.size()];
+			vertDepths = new float[uniqueLocs.size()];
+			for (int i=0; i<vertLats.length; i++) {
+				Location loc = uniqueLocs.get(i);
+				vertLats[i] = (float)loc.getLatitude();
+				vertLons[i] = (float)loc.getLongitude();
+				vertDepths[i] = (float)loc.getDepth();
+			}
+		}
+		
+		public int getNumVertices() {
+			return vertLats.length;
+		}
+		
+		public int getMaxElementID() {
+			return elemStarts.length-2;
+		}
+	}
+	
+	/**
+	 * Caches rJB and rRup from a single site to each simulator element, in flat float arrays indexed by element ID.
+	 * Distances are calculated with respect to element vertices (rounded to float precision).
+	 * <br>
+	 * This is safe for concurrent use. Cached values are deterministic, so racing threads at worst calculate the same
+	 * value twice.
+	 */
 	public static class LocationElementDistanceCache {
 		
-		private Location siteLoc;
-		private Map<SimulatorElement, Location[]> elemVertexMap;
-		private Map<Location, SurfaceDistances> vertexDistsMap;
-		private Map<SimulatorElement, SurfaceDistances> elemDistsMap;
+		private final Location siteLoc;
+		private final ElementVertexTable vertexTable;
+		// rJB for each unique vertex in the vertex table, NaN if not yet calculated
+		private final float[] vertJBs;
+		// rJB and rRup for each element, interleaved and indexed as 2*id and 2*id+1, NaN if not yet calculated
+		private volatile float[] elemDists;
 
-		private LocationElementDistanceCache(Location siteLoc) {
+		private LocationElementDistanceCache(Location siteLoc, ElementVertexTable vertexTable) {
 			this.siteLoc = siteLoc;
+			this.vertexTable = vertexTable;
 			
-			elemVertexMap = new HashMap<>();
-			vertexDistsMap = new HashMap<>();
-			elemDistsMap = new HashMap<>();
+			if (vertexTable == null) {
+				vertJBs = null;
+				elemDists = new float[0];
+			} else {
+				vertJBs = new float[vertexTable.getNumVertices()];
+				Arrays.fill(vertJBs, Float.NaN);
+				elemDists = new float[2*(vertexTable.getMaxElementID()+1)];
+				Arrays.fill(elemDists, Float.NaN);
+			}
 		}
 		
 		public SurfaceDistances getDistances(SimulatorElement elem) {
-			SurfaceDistances dists = elemDistsMap.get(elem);
-			if (dists == null) {
-				// calculate it
-				Location[] locs = elemVertexMap.get(elem);
-				if (locs == null) {
-					// need to convert to vanilla locations, with equals and hashCode based on location only and not any
-					// vertex metadata. also do some rounding, such that almost identical points are mapped to the same location
-					Vertex[] verts = elem.getVertices();
-					locs = new Location[verts.length];
-					for (int i=0; i<locs.length; i++)
-						locs[i] = new Location((float)verts[i].getLatitude(),
-								(float)verts[i].getLongitude(), (float)verts[i].getDepth());
-					elemVertexMap.putIfAbsent(elem, locs);
-				}
-				double rJB = Double.POSITIVE_INFINITY;
-				double rRup = Double.POSITIVE_INFINITY;
-				for (Location loc : locs) {
-					SurfaceDistances vertDists = vertexDistsMap.get(loc);
-					if (vertDists == null) {
-						double vertJB = LocationUtils.horzDistanceFast(siteLoc, loc);
-						double vertRup = Math.sqrt(vertJB*vertJB + loc.getDepth()*loc.getDepth());
-						vertDists = new SurfaceDistances(vertRup, vertJB, Double.NaN);
-						vertexDistsMap.putIfAbsent(loc, vertDists);
+			return new SurfaceDistances(getDistanceRup(elem), getDistanceJB(elem), Double.NaN);
+		}
+		
+		public double getDistanceJB(SimulatorElement elem) {
+			return getCached(elem, 0);
+		}
+		
+		public double getDistanceRup(SimulatorElement elem) {
+			return getCached(elem, 1);
+		}
+		
+		private double getCached(SimulatorElement elem, int offset) {
+			int index = 2*elem.getID() + offset;
+			float[] dists = elemDists;
+			if (index < dists.length) {
+				float val = dists[index];
+				if (!Float.isNaN(val))
+					return val;
+			}
+			return calculate(elem, offset);
+		}
+		
+		private double calculate(SimulatorElement elem, int offset) {
+			float rJB = Float.POSITIVE_INFINITY;
+			float rRup = Float.POSITIVE_INFINITY;
+			if (vertexTable != null && elem.getID() <= vertexTable.getMaxElementID()) {
+				for (int i=vertexTable.elemStarts[elem.getID()]; i<vertexTable.elemStarts[elem.getID()+1]; i++) {
+					int v = vertexTable.elemVerts[i];
+					float depth = vertexTable.vertDepths[v];
+					float vertJB = vertJBs[v];
+					if (Float.isNaN(vertJB)) {
+						vertJB = (float)LocationUtils.horzDistanceFast(siteLoc,
+								new Location(vertexTable.vertLats[v], vertexTable.vertLons[v]));
+						vertJBs[v] = vertJB;
 					}
-					rJB = Double.min(rJB, vertDists.getDistanceJB());
-					rRup = Double.min(rRup, vertDists.getDistanceRup());
+					rJB = Float.min(rJB, vertJB);
+					rRup = Float.min(rRup, (float)Math.sqrt(vertJB*vertJB + depth*depth));
+				}
+			} else {
+				for (Vertex vert : elem.getVertices()) {
+					Location loc = new Location((float)vert.getLatitude(),
+							(float)vert.getLongitude(), (float)vert.getDepth());
+					double vertJB = LocationUtils.horzDistanceFast(siteLoc, loc);
+					rJB = Float.min(rJB, (float)vertJB);
+					rRup = Float.min(rRup, (float)Math.sqrt(vertJB*vertJB + loc.getDepth()*loc.getDepth()));
 				}
-				dists = new SurfaceDistances(rRup, rJB, Double.NaN);
-				elemDistsMap.putIfAbsent(elem, dists);
 			}
-			return dists;
+			float[] dists = elemDists;
+			int index = 2*elem.getID();
+			if (index+1 >= dists.length)
+				dists = grow(index+1);
+			dists[index] = rJB;
+			dists[index+1] = rRup;
+			return offset == 0 ? rJB : rRup;
+		}
+		
+		private synchronized float[] grow(int maxIndex) {
+			float[] dists = elemDists;
+			if (maxIndex < dists.length)
+				return dists;
+			// values written to the old array by other threads after this copy are lost, they'll be recalculated
+			float[] grown = Arrays.copyOf(dists, Integer.max(maxIndex+1, 2*dists.length));
+			Arrays.fill(grown, dists.length, grown.length, Float.NaN);
+			elemDists = grown;
+			return grown;
 		}
 	}
 	
@@ -81,12 +223,22 @@ public class SimRuptureDistCalcUtils {
 			protected double calc(SurfaceDistances dists) {
 				return dists.getDistanceJB();
 			}
+
+			@Override
+			protected double calc(LocationElementDistanceCache cache, SimulatorElement elem) {
+				return cache.getDistanceJB(elem);
+			}
 		},
 		R_RUP("Rrup", "R<sub>Rup</sub>") {
 			@Override
 			protected double calc(SurfaceDistances dists) {
 				return dists.getDistanceRup();
 			}
+
+			@Override
+			protected double calc(LocationElementDistanceCache cache, SimulatorElement elem) {
+				return cache.getDistanceRup(elem);
+			}
 		};
 		
 		public final String displayName;
@@ -98,6 +250,8 @@ public class SimRuptureDistCalcUtils {
 		}
 		
 		protected abstract double calc(SurfaceDistances dists);
+		
+		protected abstract double calc(LocationElementDistanceCache cache, SimulatorElement elem);
 	}
 	
 	public static enum Scalar {
@@ -132,14 +286,54 @@ public class SimRuptureDistCalcUtils {
 	public static DiscretizedFunc calcDistScalarFunc(SimulatorEvent event, Location siteLoc,
 			LocationElementDistanceCache siteLocDistCache, DistanceType distType, Scalar scalar) {
 		List<SimulatorElement> elems = event.getAllElements();
+		double[] elemDists = new double[elems.size()];
+		for (int i=0; i<elemDists.length; i++)
+			elemDists[i] = distType.calc(siteLocDistCache, elems.get(i));
+		return calcDistScalarFunc(event, elemDists, scalar);
+	}
+	
+	/**
+	 * Calculates rJB and rRup from the given site to each element in the given event, without any caching. This is
+	 * useful when distances to each event are only needed once.
+	 * @param event
+	 * @param siteLoc
+	 * @param rJBs destination for rJB values, in the same order as event elements
+	 * @param rRups destination for rRup values, in the same order as event elements
+	 */
+	public static void calcElementDistances(SimulatorEvent event, Location siteLoc, double[] rJBs, double[] rRups) {
+		List<SimulatorElement> elems = event.getAllElements();
+		for (int i=0; i<elems.size(); i++) {
+			double rJB = Double.POSITIVE_INFINITY;
+			double rRup = Double.POSITIVE_INFINITY;
+			for (Vertex vert : elems.get(i).getVertices()) {
+				Location loc = new Location((float)vert.getLatitude(),
+						(float)vert.getLongitude(), (float)vert.getDepth());
+				double vertJB = LocationUtils.horzDistanceFast(siteLoc, loc);
+				rJB = Double.min(rJB, vertJB);
+				rRup = Double.min(rRup, Math.sqrt(vertJB*vertJB + loc.getDepth()*loc.getDepth()));
+			}
+			rJBs[i] = rJB;
+			rRups[i] = rRup;
+		}
+	}
+	
+	/**
+	 * @param event
+	 * @param elemDists distance to each element in the event, in the same order as event elements
+	 * @param scalar
+	 * @return cumulative scalar value as a function of distance
+	 */
+	public static DiscretizedFunc calcDistScalarFunc(SimulatorEvent event, double[] elemDists, Scalar scalar) {
+		List<SimulatorElement> elems = event.getAllElements();
 		double[] slips = event.getAllElementSlips();
+		Preconditions.checkState(elemDists.length == slips.length);
 		
 		DiscretizedFunc incrementalFunc = new ArbitrarilyDiscretizedFunc();
 		
 		for (int i=0; i<slips.length; i++) {
 			SimulatorElement elem = elems.get(i);
 			double scalarVal = scalar.calc(elem, slips[i]);
-			double dist = distType.calc(siteLocDistCache.getDistances(elem));
+			double dist = elemDists[i];
 			int xInd = incrementalFunc.getXIndex(dist);
 			if (xInd >= 0)
 				incrementalFunc.set(xInd, scalarVal + incrementalFunc.getY(xInd));
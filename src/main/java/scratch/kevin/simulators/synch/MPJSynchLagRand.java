@@ -3,6 +3,7 @@ package scratch.kevin.simulators.synch;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import mpi.MPI;
@@ -12,8 +13,6 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.opensha.commons.util.ClassUtils;
-import org.opensha.commons.util.threads.Task;
-import org.opensha.commons.util.threads.ThreadedTaskComputer;
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
@@ -29,7 +28,8 @@ import com.google.common.collect.Lists;
 
 public class MPJSynchLagRand extends MPJTaskCalculator {
 	
-	private List<double[][][]> gBarsList;
+	// packed results for each trial, see SynchTrialEngine.getIndex(m, n, lagIndex)
+	private List<double[]> gBarsList;
 	
 	private int numTrials;
 	private List<? extends SimulatorEvent> events;
@@ -46,6 +46,8 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 	private String setName;
 	
 	private EmpiricalMarkovChain origChain;
+	
+	private SynchTrialEngine engine;
 
 	public MPJSynchLagRand(CommandLine cmd, File outputDir) throws IOException {
 		super(cmd);
@@ -69,6 +71,10 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 		events = new SimAnalysisCatLoader(true, rupIdens, false).getEvents();
 		
 		nDims = rupIdens.size();
+		
+		Preconditions.checkState(SynchTrialEngine.isSupported(),
+				"Synchronization parameter configuration not supported by the trial engine");
+		engine = new SynchTrialEngine(nDims, lags);
 	}
 
 	@Override
@@ -80,22 +86,21 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 	protected void calculateBatch(int[] batch) throws Exception {
 		checkBuildOrigChain();
 		
-		for (int item : batch) {
-			double[][][] gBars = new double[nDims][nDims][lags.length];
-			EmpiricalMarkovChain chain = SynchParamCalculator.createRandomizedChain(events, rupIdens, dist, distSpacing);
-			
-			List<SynchCalc> tasks = Lists.newArrayList();
+		final double[][] batchGBars = new double[batch.length][];
+		engine.calcTrials(new SynchTrialEngine.PathSource() {
 			
-			for (int m=0; m<nDims; m++)
-				for (int n=m; n<nDims; n++)
-					for (int l=0; l<lags.length; l++)
-						tasks.add(new SynchCalc(chain, m, n, l, gBars));
-			
-			ThreadedTaskComputer comp = new ThreadedTaskComputer(tasks);
-			comp.computeThreaded(getNumThreads());
+			@Override
+			public List<int[]> buildPath(int trial) {
+				return SynchParamCalculator.createRandomizedPath(events, rupIdens, dist, distSpacing);
+			}
+		}, batch.length, getNumThreads(), new SynchTrialEngine.TrialConsumer() {
 			
-			gBarsList.add(gBars);
-		}
+			@Override
+			public void trialDone(int trial, double[] gBars) {
+				batchGBars[trial] = Arrays.copyOf(gBars, gBars.length);
+			}
+		});
+		gBarsList.addAll(Arrays.asList(batchGBars));
 	}
 	
 	private void checkBuildOrigChain() {
@@ -104,32 +109,6 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 		}
 	}
 	
-	static class SynchCalc implements Task {
-		
-		private EmpiricalMarkovChain chain;
-		private int m, n, l;
-		private double[][][] gBars;
-
-		public SynchCalc(EmpiricalMarkovChain chain, int m, int n, int l, double[][][] gBars) {
-			super();
-			this.chain = chain;
-			this.m = m;
-			this.n = n;
-			this.l = l;
-			this.gBars = gBars;
-		}
-
-		@Override
-		public void compute() {
-			int lag = lags[l];
-			double gBar = SynchParamCalculator.calcGBar(chain, m, n, lag);
-			
-			gBars[m][n][l] = gBar;
-			gBars[n][m][l] = gBar;
-		}
-		
-	}
-
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void doFinalAssembly() throws Exception {
@@ -143,22 +122,12 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 		
 		if (rank == 0) {
 			for (int i=1; i<size; i++) {
-				List<double[][][]> o = recvbuf[i];
+				List<double[]> o = recvbuf[i];
 				gBarsList.addAll(o);
 			}
 			
 			Preconditions.checkState(numTrials == gBarsList.size());
 			
-			double[][][][] gBars = new double[nDims][nDims][numTrials][lags.length];
-			
-			for (int t=0; t<numTrials; t++) {
-				double[][][] trialGBars = gBarsList.get(t);
-				for (int m=0; m<nDims; m++)
-					for (int n=0; n<nDims; n++)
-						for (int l=0; l<lags.length; l++)
-							gBars[m][n][t][l] = trialGBars[m][n][l];
-			}
-			
 			File writeDir = new File(outputDir, SynchParamCalculator.getDirName());
 			if (!writeDir.exists())
 				writeDir.mkdir();
@@ -167,8 +136,21 @@ public class MPJSynchLagRand extends MPJTaskCalculator {
 			if (!writeDir.exists())
 				writeDir.mkdir();
 			
+			File randTrialsDir = new File(writeDir, "rand_trials");
+			if (!randTrialsDir.exists())
+				randTrialsDir.mkdir();
+			File trialsFile = new File(randTrialsDir, "synch_params_"+numTrials+"_trials.bin");
+			SynchTrialEngine.TrialResultsWriter writer = new SynchTrialEngine.TrialResultsWriter(
+					trialsFile, nDims, lags, numTrials);
+			for (int t=0; t<numTrials; t++)
+				writer.write(t, gBarsList.get(t));
+			writer.close();
+			gBarsList = null;
+			
 			checkBuildOrigChain();
-			SynchParamCalculator.doWriteSynchStdDevParams(writeDir, rupIdens, origChain, lags, numTrials, nDims, gBars);
+			SynchTrialEngine.TrialResults results = SynchTrialEngine.TrialResults.load(trialsFile);
+			SynchParamCalculator.doWriteSynchStdDevParams(writeDir, rupIdens, origChain, results);
+			results.close();
 		}
 	}
 	
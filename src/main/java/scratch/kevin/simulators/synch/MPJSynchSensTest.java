@@ -20,8 +20,6 @@ import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.util.ClassUtils;
-import org.opensha.commons.util.threads.Task;
-import org.opensha.commons.util.threads.ThreadedTaskComputer;
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.SimulatorElement;
 import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
@@ -29,7 +27,6 @@ import org.opensha.sha.simulators.iden.LogicalAndRupIden;
 import org.opensha.sha.simulators.iden.LogicalOrRupIden;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
 
-import scratch.kevin.markov.EmpiricalMarkovChain;
 import scratch.kevin.simulators.MarkovChainBuilder;
 import scratch.kevin.simulators.PeriodicityPlotter;
 import scratch.kevin.simulators.SimAnalysisCatLoader;
@@ -107,6 +104,8 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 	
 	private List<ComputeTask> tasks;
 	
+	private SynchTrialEngine engine;
+	
 	/**
 	 * Inclusive!
 	 * @param min
@@ -208,6 +207,10 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 		
 		nDims = rupIdens.size();
 		
+		Preconditions.checkState(SynchTrialEngine.isSupported(),
+				"Synchronization parameter configuration not supported by the trial engine");
+		engine = new SynchTrialEngine(nDims, new int[] {0});
+		
 		tasks = Lists.newArrayList();
 		
 		gBarsMap = Maps.newHashMap();
@@ -326,12 +329,13 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 			if (numThreads > getNumThreads())
 				numThreads = getNumThreads();
 			
-			List<SynchCalc> tasks = Lists.newArrayList();
+			// first calculation is the original catalog if doOrig, all others are random trials
+			final List<double[][]> taskGBars = Lists.newArrayList();
 			
 			if (task.doOrig) {
 				double[][] gBars = new double[nDims][nDims];
 				
-				tasks.add(new SynchCalc(gBars, task.sensValue, false));
+				taskGBars.add(gBars);
 				
 				gBarsMap.put(task.sensValue, gBars);
 			}
@@ -339,21 +343,40 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 			for (int trial=0; trial<task.numTrials; trial++) {
 				double[][] gBars = new double[nDims][nDims];
 
-				tasks.add(new SynchCalc(gBars, task.sensValue, true));
+				taskGBars.add(gBars);
 
 				gBarsTrialsMap.get(task.sensValue).add(gBars);
 			}
 			
-			ThreadedTaskComputer comp = new ThreadedTaskComputer(tasks);
-			debug("Computing item "+item+" (sensVal="+task.sensValue+") with "+tasks.size()+" tasks, "
+			final ComputeTask myTask = task;
+			debug("Computing item "+item+" (sensVal="+task.sensValue+") with "+taskGBars.size()+" calcs, "
 					+numThreads+" threads ("+getMemoryDebug()+")");
-			comp.computeThreaded(numThreads);
+			engine.calcTrials(new SynchTrialEngine.PathSource() {
+				
+				@Override
+				public List<int[]> buildPath(int trial) {
+					return buildStatesPath(myTask.sensValue, !(myTask.doOrig && trial == 0));
+				}
+			}, taskGBars.size(), numThreads, new SynchTrialEngine.TrialConsumer() {
+				
+				@Override
+				public void trialDone(int trial, double[] vals) {
+					double[][] gBars = taskGBars.get(trial);
+					for (int m=0; m<nDims; m++) {
+						for (int n=m+1; n<nDims; n++) {
+							double gBar = vals[engine.getIndex(m, n, 0)];
+							gBars[m][n] = gBar;
+							gBars[n][m] = gBar;
+						}
+					}
+				}
+			});
 			debug("Done with item "+item+" ("+getMemoryDebug()+")");
 		}
 		debug("Done with batch  ("+getMemoryDebug()+")");
 	}
 	
-	private EmpiricalMarkovChain buildChain(double sensVal, boolean random) {
+	private List<int[]> buildStatesPath(double sensVal, boolean random) {
 		List<RuptureIdentifier> rupIdens = this.rupIdens;
 		double distSpacing = this.distSpacing;
 		List<SimulatorEvent> events = Lists.newArrayList(this.events);
@@ -435,7 +458,7 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 		if (random)
 			events = RandomCatalogBuilder.getRandomResampledCatalog(events, rupIdens, dist, true, 1);
 		
-		return MarkovChainBuilder.build(distSpacing, events, rupIdens, startTimeShift);
+		return MarkovChainBuilder.getStatesPath(distSpacing, events, rupIdens, startTimeShift);
 	}
 	
 	private String getMemoryDebug() {
@@ -447,38 +470,6 @@ public class MPJSynchSensTest extends MPJTaskCalculator {
 		return "mem t/u/f: "+totalMB+"/"+usedMB+"/"+freeMB;
 	}
 	
-	class SynchCalc implements Task {
-		
-		private double[][] gBars;
-		private double sensValue;
-		private boolean random;
-
-		public SynchCalc(double[][] gBars, double sensValue, boolean random) {
-			super();
-			this.gBars = gBars;
-			this.sensValue = sensValue;
-			this.random = random;
-		}
-
-		@Override
-		public void compute() {
-			EmpiricalMarkovChain chain = buildChain(sensValue, random);
-			
-			for (int m=0; m<nDims; m++) {
-				for (int n=m; n<nDims; n++) {
-					double gBar = SynchParamCalculator.calcGBar(chain, m, n, 0);
-					
-					gBars[m][n] = gBar;
-					gBars[n][m] = gBar;
-				}
-			}
-			
-			if (numTrials <= 100)
-				debug("Done with task ("+getMemoryDebug()+")");
-		}
-		
-	}
-
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	protected void doFinalAssembly() throws Exception {
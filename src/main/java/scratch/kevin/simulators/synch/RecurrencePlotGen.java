@@ -39,7 +39,6 @@ import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotSpec;
 import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotWindow;
 import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.util.ComparablePairing;
-import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.commons.util.cpt.CPTVal;
@@ -57,6 +56,7 @@ import scratch.kevin.simulators.MarkovChainBuilder;
 import scratch.kevin.simulators.SimAnalysisCatLoader;
 import scratch.kevin.simulators.SynchIdens;
 import scratch.kevin.simulators.SynchIdens.SynchFaults;
+import scratch.kevin.simulators.synch.RecurrenceTileEngine.RotatedBand;
 import scratch.kevin.simulators.momRateVariation.SimulatorMomRateVarCalc;
 import scratch.kevin.simulators.momRateVariation.UCERF3ComparisonAnalysis;
 import scratch.kevin.simulators.momRateVariation.UCERF3_ETASComparisons;
@@ -79,16 +79,44 @@ public class RecurrencePlotGen {
 					sum += Math.abs(state1[i] - state2[i]);
 				return sum;
 			}
+
+			@Override
+			public void calcRow(double[] states, int nDims, int i, int jStart, int jEnd, double[] dest, int destOffset) {
+				int offset1 = i*nDims;
+				for (int j=jStart; j<jEnd; j++) {
+					int offset2 = j*nDims;
+					double sum = 0d;
+					for (int k=0; k<nDims; k++)
+						sum += Math.abs(states[offset1+k] - states[offset2+k]);
+					dest[destOffset++] = sum;
+				}
+			}
 		},
 		L2_NORM {
 			@Override
 			public double calc(double[] state1, double[] state2) {
 				Preconditions.checkArgument(state1.length == state2.length);
 				double sum = 0d;
-				for (int i=0; i<state1.length; i++)
-					sum += Math.pow(state1[i] - state2[i], 2);
+				for (int i=0; i<state1.length; i++) {
+					double diff = state1[i] - state2[i];
+					sum += diff*diff;
+				}
 				return sum;
 			}
+
+			@Override
+			public void calcRow(double[] states, int nDims, int i, int jStart, int jEnd, double[] dest, int destOffset) {
+				int offset1 = i*nDims;
+				for (int j=jStart; j<jEnd; j++) {
+					int offset2 = j*nDims;
+					double sum = 0d;
+					for (int k=0; k<nDims; k++) {
+						double diff = states[offset1+k] - states[offset2+k];
+						sum += diff*diff;
+					}
+					dest[destOffset++] = sum;
+				}
+			}
 		},
 		LINFINITY_NORM {
 			@Override
@@ -102,90 +130,80 @@ public class RecurrencePlotGen {
 				}
 				return ret;
 			}
+
+			@Override
+			public void calcRow(double[] states, int nDims, int i, int jStart, int jEnd, double[] dest, int destOffset) {
+				int offset1 = i*nDims;
+				for (int j=jStart; j<jEnd; j++) {
+					int offset2 = j*nDims;
+					double ret = 0d;
+					for (int k=0; k<nDims; k++) {
+						double diff = Math.abs(states[offset1+k] - states[offset2+k]);
+						if (diff > ret)
+							ret = diff;
+					}
+					dest[destOffset++] = ret;
+				}
+			}
 		};
 		
 		public abstract double calc(double[] state1, double[] state2);
+		
+		/**
+		 * Calculates distances from state i to each state j in [jStart, jEnd) without any argument checking.
+		 * States are packed into a single array, state i occupies [i*nDims, (i+1)*nDims).
+		 * @param states packed states
+		 * @param nDims number of dimensions
+		 * @param i
+		 * @param jStart first state index (inclusive)
+		 * @param jEnd last state index (exclusive)
+		 * @param dest distance for state jStart will be stored at destOffset, jStart+1 at destOffset+1, etc
+		 * @param destOffset
+		 */
+		public abstract void calcRow(double[] states, int nDims, int i, int jStart, int jEnd,
+				double[] dest, int destOffset);
 	}
 	
 	public static BitSet[] calcBitSet(List<double[]> fullPath, DistanceMetric distCalc, double threshold) {
-		System.out.println("Calculating for "+distCalc.name()+", thresh="+threshold);
-		BitSet[] ret = new BitSet[fullPath.size()];
-		for (int i=0; i<fullPath.size(); i++)
-			ret[i] = new BitSet(fullPath.size());
-		
-		MinMaxAveTracker track = new MinMaxAveTracker();
-		int numBelow = 0;
-		int tot = 0;
-		
-		boolean below;
-		for (int i=0; i<fullPath.size(); i++) {
-			for (int j=0; j<fullPath.size(); j++) {
-				double val = distCalc.calc(fullPath.get(i), fullPath.get(j));
-				track.addValue(val);
-				below = val <= threshold;
-				if (below) {
-					numBelow++;
-					ret[i].set(j);
-				}
-				tot++;
-			}
-		}
-		
-		double percent = 100d*numBelow/(double)tot;
-		System.out.println(numBelow+"/"+tot+" below threshold of "+threshold+" ("+(float)percent+" %)");
-		System.out.println(track);
-		
-		return ret;
+		return calcBitSet(fullPath, distCalc, threshold, -1);
+	}
+	
+	/**
+	 * @param fullPath
+	 * @param distCalc
+	 * @param threshold
+	 * @param zoom if > 0, only the leading zoom x zoom block (the part shown by a zoomed plot) is computed
+	 * @return
+	 */
+	public static BitSet[] calcBitSet(List<double[]> fullPath, DistanceMetric distCalc, double threshold, int zoom) {
+		return new RecurrenceTileEngine(fullPath, distCalc).calcBitSet(threshold, zoom);
 	}
 	
 	public static double[][] calcDist(List<double[]> fullPath, DistanceMetric distCalc) {
-		System.out.println("Calculating for "+distCalc.name());
-		double[][] data = new double[fullPath.size()][fullPath.size()];
-		
-		MinMaxAveTracker track = new MinMaxAveTracker();
-		
-		for (int i=0; i<fullPath.size(); i++) {
-			for (int j=0; j<fullPath.size(); j++) {
-				double val = distCalc.calc(fullPath.get(i), fullPath.get(j));
-				track.addValue(val);
-				data[i][j] = val;
-			}
-		}
-		
-		System.out.println(track);
-		
-		return data;
+		return calcDist(fullPath, distCalc, -1);
+	}
+	
+	/**
+	 * @param fullPath
+	 * @param distCalc
+	 * @param zoom if > 0, only the leading zoom x zoom block (the part shown by a zoomed plot) is computed
+	 * @return
+	 */
+	public static double[][] calcDist(List<double[]> fullPath, DistanceMetric distCalc, int zoom) {
+		return new RecurrenceTileEngine(fullPath, distCalc).calcDist(zoom);
 	}
 	
 	public static double[][] calcRotated(List<double[]> fullPath, DistanceMetric distCalc, int width) {
-		Preconditions.checkArgument(width % 2 == 1, "Width must be odd so that there's a point on the axis");
-		
-		long len = fullPath.size()*width;
-		System.out.println("Calculating rotated for "+distCalc.name()+", size: "+fullPath.size()+" x "+width+" = "+len);
-		
-		int numBefore = width / 2;
-		
-		double[][] data = new double[fullPath.size()][width];
-		
-		MinMaxAveTracker track = new MinMaxAveTracker();
-		
-		for (int i=0; i<fullPath.size(); i++) {
-			for (int n=0; n<width; n++) {
-				int j = i - numBefore + n;
-				double val;
-				if (j < 0 || j >= fullPath.size()) {
-					val = Double.NaN;
-				} else {
-					val = distCalc.calc(fullPath.get(i), fullPath.get(j));
-					track.addValue(val);
-				}
-				data[i][n] = val;
-			}
-		}
-		
-		System.out.println(track);
-		
-		return data;
+		return new RecurrenceTileEngine(fullPath, distCalc).calcRotated(width);
+	}
+	
+	/**
+	 * Calculates rotated data in memory if it's small enough, otherwise streams it to a temporary tile store which
+	 * will be deleted when the returned band is closed.
+	 */
+	private static RotatedBand calcRotatedBand(List<double[]> fullPath, DistanceMetric distCalc, int width)
+			throws IOException {
+		return new RecurrenceTileEngine(fullPath, distCalc).calcRotatedBand(width, max_in_memory_rotated_values);
 	}
 	
 	private static BitSet[] distToBitSet(double[][] data, double threshold) {
@@ -603,29 +621,39 @@ public class RecurrencePlotGen {
 	}
 	
 	private static double[] calcMetrics(DistanceMetric distMetric, double threshold, CalcMetric[] calcMetrics,
-			List<int[]> fullPath) {
+			List<int[]> fullPath) throws IOException {
 		List<double[]> normPath = calcNormalizedPath(fullPath, calcMeanRIs(fullPath));
-		double[][] data = calcRotated(normPath, distMetric, calc_metrics_width);
+		RotatedBand data = calcRotatedBand(normPath, distMetric, calc_metrics_width);
 		
-		return calcMetrics(threshold, calcMetrics, data);
+		try {
+			return calcMetrics(threshold, calcMetrics, data);
+		} finally {
+			data.close();
+		}
 	}
 	
 	private static double[] calcMetrics(double threshold, CalcMetric[] calcMetrics,
 			double[][] data) {
-		int middleIndex = data[0].length/2 + 1;
+		return calcMetrics(threshold, calcMetrics, RecurrenceTileEngine.wrap(data));
+	}
+	
+	private static double[] calcMetrics(double threshold, CalcMetric[] calcMetrics,
+			RotatedBand data) {
+		int width = data.getWidth();
+		int middleIndex = width/2 + 1;
 		
 //		// now we need to get outside the main diagonal
 //		int skipStates = 10;
 		
 		HistogramFunction skipStatesHist = new HistogramFunction(0d, 100, 1d);
 		rowLoop:
-		for (double[] row : data) {
+		for (int r=0; r<data.getNumRows(); r++) {
 			int mySkipStates = 0;
 			for (int i=middleIndex; --i>=0;) {
-				double val = row[i];
+				double val = data.get(r, i);
 				if (Double.isNaN(val))
 					continue rowLoop;
-				if (row[i] > threshold)
+				if (val > threshold)
 					break;
 				mySkipStates = middleIndex - i;
 			}
@@ -644,7 +672,7 @@ public class RecurrencePlotGen {
 				break;
 		}
 		
-//		if (data.length > 20000) {
+//		if (data.getNumRows() > 20000) {
 //			// it's RSQSim, lets debug
 //			
 //			// now plot the histogram
@@ -697,17 +725,17 @@ public class RecurrencePlotGen {
 		return ret;
 	}
 	
-	private static double calcRR(double[][] data, int maxIndex, double threshold) {
+	private static double calcRR(RotatedBand data, int maxIndex, double threshold) {
 		long total = 0;
 		long below = 0;
 		
 		rowLoop:
-			for (double[] row : data) {
+			for (int r=0; r<data.getNumRows(); r++) {
 				int myNumBelow = 0;
 				// we don't want the full row, just one half not including the origin
 				// also don't want any rows with NaN's (start or end of plot) as that would bias results
 				for (int i=0; i<maxIndex; i++) {
-					double val = row[i];
+					double val = data.get(r, i);
 					if (Double.isNaN(val))
 						continue rowLoop;
 					if (val <= threshold)
@@ -722,19 +750,19 @@ public class RecurrencePlotGen {
 		return (double)below/(double)total;
 	}
 	
-	private static double calcDET(double[][] data, int maxIndex, double threshold) {
+	private static double calcDET(RotatedBand data, int maxIndex, double threshold) {
 		long total = 0;
 		long onDiag = 0;
-		for (int r=0; r<data.length; r++) {
-			double[] row = data[r];
+		int numRows = data.getNumRows();
+		for (int r=0; r<numRows; r++) {
 			// we don't want the full row, just one half not including the origin
 			for (int i=0; i<maxIndex; i++) {
-				double val = row[i];
+				double val = data.get(r, i);
 				if (Double.isNaN(val))
 					continue;
 				if (val <= threshold) {
-					if ((r > 0  && data[r-1][i] <= threshold)
-							|| (r < data.length-1 && data[r+1][i] <= threshold))
+					if ((r > 0  && data.get(r-1, i) <= threshold)
+							|| (r < numRows-1 && data.get(r+1, i) <= threshold))
 						onDiag++;
 					total++;
 				}
@@ -744,21 +772,22 @@ public class RecurrencePlotGen {
 		return (double)onDiag/(double)total;
 	}
 	
-	private static double calcLAM(double[][] data, int maxIndex, double threshold) {
-		if (data.length <= 1)
+	private static double calcLAM(RotatedBand data, int maxIndex, double threshold) {
+		int numRows = data.getNumRows();
+		if (numRows <= 1)
 			return Double.NaN;
+		int width = data.getWidth();
 		long total = 0;
 		long onDiag = 0;
-		for (int r=0; r<data.length; r++) {
-			double[] row = data[r];
+		for (int r=0; r<numRows; r++) {
 			// we don't want the full row, just one half not including the origin
 			for (int i=0; i<maxIndex; i++) {
-				double val = row[i];
+				double val = data.get(r, i);
 				if (Double.isNaN(val))
 					continue;
 				if (val <= threshold) {
-					if ((i > 0  && data[i-1][i] <= threshold)
-							|| (i < row.length-1 && data[i+1][i] <= threshold))
+					if ((i > 0  && data.get(i-1, i) <= threshold)
+							|| (i < width-1 && data.get(i+1, i) <= threshold))
 						onDiag++;
 					total++;
 				}
@@ -768,7 +797,7 @@ public class RecurrencePlotGen {
 		return (double)onDiag/(double)total;
 	}
 	
-	private static double calcDIAG_LEN(double[][] data, int maxIndex, double threshold) {
+	private static double calcDIAG_LEN(RotatedBand data, int maxIndex, double threshold) {
 		// we'll ignore any diagonals that start or end at the beginning
 		
 		Map<Integer, Integer> lenCount = doCalcDiagLengths(data, maxIndex, threshold);
@@ -790,15 +819,16 @@ public class RecurrencePlotGen {
 		return mean;
 	}
 	
-	private static Map<Integer, Integer> doCalcDiagLengths(double[][] data, int maxIndex, double threshold) {
+	private static Map<Integer, Integer> doCalcDiagLengths(RotatedBand data, int maxIndex, double threshold) {
 		// we'll ignore any diagonals that start or end at the beginning
 		
 		Map<Integer, Integer> lenCounts = Maps.newHashMap();
 		
+		int numRows = data.getNumRows();
 		for (int i=0; i<maxIndex; i++) {
 			int curStart = -2;
-			for (int r=0; r<data.length; r++) {
-				double val = data[r][i];
+			for (int r=0; r<numRows; r++) {
+				double val = data.get(r, i);
 				if (Double.isNaN(val)) {
 					curStart = -2;
 					continue;
@@ -824,7 +854,7 @@ public class RecurrencePlotGen {
 		return lenCounts;
 	}
 
-	private static double calcENTROPY(double[][] data, int maxIndex, double threshold) {
+	private static double calcENTROPY(RotatedBand data, int maxIndex, double threshold) {
 		
 		Map<Integer, Integer> lenCount = doCalcDiagLengths(data, maxIndex, threshold);
 		
@@ -1088,8 +1118,9 @@ public class RecurrencePlotGen {
 					List<double[]> normPath = calcNormalizedPath(myPath, calcMeanRIs(myPath));
 					DistanceMetric metric = metrics.get(0);
 					double threshold = thresholds.get(0);
-					BitSet[] data = calcBitSet(normPath, metric, threshold);
-					plotDiscrete(data, metric, threshold, outputFile, -1, distSpacing);
+					int zoom = -1;
+					BitSet[] data = calcBitSet(normPath, metric, threshold, zoom);
+					plotDiscrete(data, metric, threshold, outputFile, zoom, distSpacing);
 					data = null;
 					double[][] rotated = calcRotated(normPath, metric, rotated_width);
 					outputFile = new File(mySubDir, "orig_style_rotated.png");
@@ -1125,7 +1156,8 @@ public class RecurrencePlotGen {
 				
 				if (doCalcMetrics) {
 					List<double[]> normPath = calcNormalizedPath(fullPath, calcMeanRIs(fullPath));
-					double[][] data = calcRotated(normPath, metrics.get(0), calc_metrics_width);
+					// RSQSim paths can be very long, this will be on disk if too large
+					RotatedBand data = calcRotatedBand(normPath, metrics.get(0), calc_metrics_width);
 					
 					double[] result = calcMetrics(thresholds.get(0), calcMetrics, data);
 					List<double[]> funcResults = Lists.newArrayList();
@@ -1143,15 +1175,16 @@ public class RecurrencePlotGen {
 					// now time series
 					EvenlyDiscretizedFunc[] timeSeries = new EvenlyDiscretizedFunc[calcMetrics.length];
 					for (int m=0; m<calcMetrics.length; m++) {
-						timeSeries[m] = new EvenlyDiscretizedFunc(0d, data.length, distSpacing);
+						timeSeries[m] = new EvenlyDiscretizedFunc(0d, data.getNumRows(), distSpacing);
 						metricTimeSeries.get(calcMetrics[m]).add(timeSeries[m]);
 					}
-					for (int i=0; i<data.length; i++) {
-						double[][] subData = {data[i]};
+					for (int i=0; i<data.getNumRows(); i++) {
+						RotatedBand subData = RecurrenceTileEngine.getRows(data, i, 1);
 						result = calcMetrics(thresholds.get(0), calcMetrics, subData);
 						for (int m=0; m<calcMetrics.length; m++)
 							timeSeries[m].set(i, result[m]);
 					}
+					data.close();
 					
 					threshNames.add(name);
 				}
@@ -1727,6 +1760,8 @@ public class RecurrencePlotGen {
 	
 	private static final int rotated_width = 151;
 	private static final int calc_metrics_width = 5*(rotated_width-1)+1;
+	// rotated data larger than this (~1.6 GB) is streamed to disk when calculating metrics
+	private static final long max_in_memory_rotated_values = 200000000l;
 	private static final int rotated_pixel_width = 9;
 
 	public static void plotRecurrence(File outputDir, List<int[]> fullPath, double distSpacing,
@@ -1776,7 +1811,7 @@ public class RecurrencePlotGen {
 			DistanceMetric metric = metrics.get(i);
 			double threshold = thresholds.get(i);
 			
-//			double[][] dists = calcDist(squareSubPath, metric);
+//			double[][] dists = calcDist(squareSubPath, metric, squareZoomLevel);
 //			BitSet[] bitSets = distToBitSet(dists, threshold);
 			
 			String threshStr = "thresh";
@@ -0,0 +1,486 @@
+package scratch.kevin.simulators.synch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.kevin.simulators.synch.RecurrencePlotGen.DistanceMetric;
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Tiled, multithreaded distance calculations for recurrence plots. The path is packed into a single contiguous
+ * array and distances are computed a row segment at a time with loops specialized for each metric (see
+ * {@link DistanceMetric#calcRow(double[], int, int, int, int, double[], int)}).
+ * <br>
+ * Work is split into tiles of rows which are computed in parallel, and only the part of the plot which is needed
+ * is computed: the leading zoom x zoom block for square plots, or the band around the diagonal for rotated plots.
+ * Rotated bands which are too large to hold in memory can be streamed to a binary tile store as they are computed,
+ * which is then memory mapped for metric calculations. Stored values are double precision, so metrics don't depend
+ * on whether a band was held in memory or streamed.
+ * @author kevin
+ *
+ */
+public class RecurrenceTileEngine {
+
+	public static final int MAGIC = 0x52435442; // "RCTB"
+	public static final int VERSION = 2;
+	// magic, version, num rows, width
+	private static final int HEADER_LEN = 4*4;
+
+	private static final int default_tile_rows = 256;
+
+	private final double[] states;
+	private final int numStates;
+	private final int nDims;
+	private final DistanceMetric metric;
+	private final int numThreads;
+	private int tileRows = default_tile_rows;
+
+	public RecurrenceTileEngine(List<double[]> path, DistanceMetric metric) {
+		this(path, metric, Runtime.getRuntime().availableProcessors());
+	}
+
+	public RecurrenceTileEngine(List<double[]> path, DistanceMetric metric, int numThreads) {
+		Preconditions.checkArgument(!path.isEmpty(), "Path is empty");
+		Preconditions.checkArgument(numThreads > 0);
+		this.numStates = path.size();
+		this.nDims = path.get(0).length;
+		this.metric = metric;
+		this.numThreads = numThreads;
+
+		states = new double[numStates*nDims];
+		for (int i=0; i<numStates; i++) {
+			double[] state = path.get(i);
+			Preconditions.checkArgument(state.length == nDims);
+			System.arraycopy(state, 0, states, i*nDims, nDims);
+		}
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	public DistanceMetric getMetric() {
+		return metric;
+	}
+
+	public void setTileRows(int tileRows) {
+		Preconditions.checkArgument(tileRows > 0);
+		this.tileRows = tileRows;
+	}
+
+	private int getNumRows(int zoom) {
+		if (zoom > 0)
+			return Math.min(zoom, numStates);
+		return numStates;
+	}
+
+	/**
+	 * Running distance statistics for a tile, merged once all tiles are done
+	 */
+	private static class DistStats {
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private double sum = 0d;
+		private long count = 0;
+
+		private void add(double[] vals, int offset, int num, int weight) {
+			for (int i=offset; i<offset+num; i++) {
+				double val = vals[i];
+				if (val < min)
+					min = val;
+				if (val > max)
+					max = val;
+				sum += weight*val;
+			}
+			count += (long)weight*num;
+		}
+
+		private void add(DistStats o) {
+			min = Math.min(min, o.min);
+			max = Math.max(max, o.max);
+			sum += o.sum;
+			count += o.count;
+		}
+
+		@Override
+		public String toString() {
+			return "min: "+min+", max: "+max+", avg: "+(sum/count)+", tot: "+count;
+		}
+	}
+
+	/**
+	 * Runs a task for each tile of rows in [0, numRows) and merges the resulting statistics
+	 */
+	private DistStats runTiles(int numRows, final TileCalc calc) {
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+
+		List<Future<DistStats>> futures = new ArrayList<>();
+		for (int start=0; start<numRows; start+=tileRows) {
+			final int startRow = start;
+			final int endRow = Math.min(numRows, start+tileRows);
+			futures.add(exec.submit(new Callable<DistStats>() {
+
+				@Override
+				public DistStats call() throws Exception {
+					DistStats stats = new DistStats();
+					calc.calcTile(startRow, endRow, stats);
+					return stats;
+				}
+			}));
+		}
+
+		DistStats stats = new DistStats();
+		try {
+			for (Future<DistStats> future : futures)
+				stats.add(future.get());
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		return stats;
+	}
+
+	private interface TileCalc {
+		public void calcTile(int startRow, int endRow, DistStats stats) throws IOException;
+	}
+
+	/**
+	 * @param zoom if > 0, only the leading zoom x zoom block is computed
+	 * @return full (symmetric) distance matrix
+	 */
+	public double[][] calcDist(int zoom) {
+		final int num = getNumRows(zoom);
+		System.out.println("Calculating for "+metric.name()+", size: "+num+" x "+num);
+		final double[][] data = new double[num][num];
+
+		// each row only computes the upper triangle and mirrors it, cell (j, i) is only ever written by row i
+		DistStats stats = runTiles(num, new TileCalc() {
+
+			@Override
+			public void calcTile(int startRow, int endRow, DistStats stats) {
+				for (int i=startRow; i<endRow; i++) {
+					double[] row = data[i];
+					metric.calcRow(states, nDims, i, i, num, row, i);
+					for (int j=i+1; j<num; j++)
+						data[j][i] = row[j];
+					stats.add(row, i, 1, 1);
+					stats.add(row, i+1, num-i-1, 2);
+				}
+			}
+		});
+
+		System.out.println(stats);
+
+		return data;
+	}
+
+	/**
+	 * @param threshold
+	 * @param zoom if > 0, only the leading zoom x zoom block is computed
+	 * @return recurrence bit sets, with bit j of row i set if the distance between i and j is <= threshold
+	 */
+	public BitSet[] calcBitSet(final double threshold, int zoom) {
+		final int num = getNumRows(zoom);
+		System.out.println("Calculating for "+metric.name()+", thresh="+threshold);
+		final BitSet[] ret = new BitSet[num];
+		final long[] numBelows = new long[(num + tileRows - 1)/tileRows];
+
+		DistStats stats = runTiles(num, new TileCalc() {
+
+			@Override
+			public void calcTile(int startRow, int endRow, DistStats stats) {
+				double[] row = new double[num];
+				long numBelow = 0;
+				for (int i=startRow; i<endRow; i++) {
+					metric.calcRow(states, nDims, i, 0, num, row, 0);
+					stats.add(row, 0, num, 1);
+					BitSet bits = new BitSet(num);
+					for (int j=0; j<num; j++) {
+						if (row[j] <= threshold) {
+							bits.set(j);
+							numBelow++;
+						}
+					}
+					ret[i] = bits;
+				}
+				numBelows[startRow/tileRows] = numBelow;
+			}
+		});
+
+		long numBelow = 0;
+		for (long tileBelow : numBelows)
+			numBelow += tileBelow;
+		double percent = 100d*numBelow/(double)stats.count;
+		System.out.println(numBelow+"/"+stats.count+" below threshold of "+threshold+" ("+(float)percent+" %)");
+		System.out.println(stats);
+
+		return ret;
+	}
+
+	/**
+	 * Calculates a single row of the rotated plot, filling values outside of the path with NaN
+	 */
+	private void calcRotatedRow(int i, int width, double[] row, DistStats stats) {
+		int numBefore = width / 2;
+		int first = i - numBefore;
+		int jStart = Math.max(0, first);
+		int jEnd = Math.min(numStates, first + width);
+		Arrays.fill(row, 0, jStart - first, Double.NaN);
+		metric.calcRow(states, nDims, i, jStart, jEnd, row, jStart - first);
+		Arrays.fill(row, jEnd - first, width, Double.NaN);
+		stats.add(row, jStart - first, jEnd - jStart, 1);
+	}
+
+	/**
+	 * @param width
+	 * @return rotated recurrence data, [state][n] where n is the distance to state (state - width/2 + n), or NaN
+	 * if that is outside of the path
+	 */
+	public double[][] calcRotated(final int width) {
+		Preconditions.checkArgument(width % 2 == 1, "Width must be odd so that there's a point on the axis");
+
+		long len = (long)numStates*width;
+		System.out.println("Calculating rotated for "+metric.name()+", size: "+numStates+" x "+width+" = "+len);
+
+		final double[][] data = new double[numStates][width];
+
+		DistStats stats = runTiles(numStates, new TileCalc() {
+
+			@Override
+			public void calcTile(int startRow, int endRow, DistStats stats) {
+				for (int i=startRow; i<endRow; i++)
+					calcRotatedRow(i, width, data[i], stats);
+			}
+		});
+
+		System.out.println(stats);
+
+		return data;
+	}
+
+	/**
+	 * Calculates the rotated recurrence data, streaming each tile to the given file as double precision values
+	 * so that the whole band is never held in memory.
+	 * @param width
+	 * @param outputFile
+	 * @return memory mapped view of the written file
+	 * @throws IOException
+	 */
+	public RotatedTileStore writeRotated(final int width, File outputFile) throws IOException {
+		Preconditions.checkArgument(width % 2 == 1, "Width must be odd so that there's a point on the axis");
+
+		long len = (long)numStates*width;
+		System.out.println("Writing rotated for "+metric.name()+", size: "+numStates+" x "+width+" = "+len
+				+" to "+outputFile.getAbsolutePath());
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numStates);
+		out.writeInt(width);
+		out.close();
+
+		RandomAccessFile raFile = new RandomAccessFile(outputFile, "rw");
+		try {
+			raFile.setLength(HEADER_LEN + 8l*len);
+			final FileChannel channel = raFile.getChannel();
+
+			DistStats stats = runTiles(numStates, new TileCalc() {
+
+				@Override
+				public void calcTile(int startRow, int endRow, DistStats stats) throws IOException {
+					double[] row = new double[width];
+					ByteBuffer buffer = ByteBuffer.allocate(8*width*(endRow - startRow));
+					for (int i=startRow; i<endRow; i++) {
+						calcRotatedRow(i, width, row, stats);
+						for (double val : row)
+							buffer.putDouble(val);
+					}
+					buffer.flip();
+					long pos = HEADER_LEN + 8l*startRow*width;
+					while (buffer.hasRemaining())
+						pos += channel.write(buffer, pos);
+				}
+			});
+
+			System.out.println(stats);
+		} finally {
+			raFile.close();
+		}
+
+		return RotatedTileStore.load(outputFile);
+	}
+
+	/**
+	 * Calculates the rotated recurrence data in memory if it has no more than maxInMemoryValues values, otherwise
+	 * writes it to a temporary tile store which is deleted on close.
+	 * @param width
+	 * @param maxInMemoryValues
+	 * @return
+	 * @throws IOException
+	 */
+	public RotatedBand calcRotatedBand(int width, long maxInMemoryValues) throws IOException {
+		if ((long)numStates*width <= maxInMemoryValues)
+			return wrap(calcRotated(width));
+		File tempFile = File.createTempFile("recurrence_rotated_", ".bin");
+		tempFile.deleteOnExit();
+		RotatedTileStore store = writeRotated(width, tempFile);
+		store.deleteOnClose = true;
+		return store;
+	}
+
+	/**
+	 * Rotated recurrence data, either in memory or memory mapped from a tile store
+	 */
+	public interface RotatedBand extends Closeable {
+
+		public int getNumRows();
+
+		public int getWidth();
+
+		/**
+		 * @param row
+		 * @param index
+		 * @return distance between state row and state (row - width/2 + index), or NaN if outside of the path
+		 */
+		public double get(int row, int index);
+	}
+
+	public static RotatedBand wrap(final double[][] data) {
+		return new RotatedBand() {
+
+			@Override
+			public int getNumRows() {
+				return data.length;
+			}
+
+			@Override
+			public int getWidth() {
+				return data[0].length;
+			}
+
+			@Override
+			public double get(int row, int index) {
+				return data[row][index];
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+
+	/**
+	 * @param band
+	 * @param startRow
+	 * @param numRows
+	 * @return view of the given rows of the band. Closing the view does not close the band.
+	 */
+	public static RotatedBand getRows(final RotatedBand band, final int startRow, final int numRows) {
+		Preconditions.checkPositionIndexes(startRow, startRow+numRows, band.getNumRows());
+		return new RotatedBand() {
+
+			@Override
+			public int getNumRows() {
+				return numRows;
+			}
+
+			@Override
+			public int getWidth() {
+				return band.getWidth();
+			}
+
+			@Override
+			public double get(int row, int index) {
+				Preconditions.checkElementIndex(row, numRows);
+				return band.get(startRow + row, index);
+			}
+
+			@Override
+			public void close() {}
+		};
+	}
+
+	/**
+	 * Memory mapped rotated recurrence data written by {@link RecurrenceTileEngine#writeRotated(int, File)}
+	 */
+	public static class RotatedTileStore implements RotatedBand {
+
+		private MappedFileReader reader;
+		private final int numRows;
+		private final int width;
+		private boolean deleteOnClose = false;
+
+		private RotatedTileStore(MappedFileReader reader) {
+			Preconditions.checkState(reader.getInt(0) == MAGIC, "Not a recurrence tile file: %s", reader.getFile());
+			int version = reader.getInt(4);
+			Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+			numRows = reader.getInt(8);
+			width = reader.getInt(12);
+			long expectedLen = HEADER_LEN + 8l*numRows*width;
+			Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+					expectedLen, reader.length());
+			this.reader = reader;
+		}
+
+		public static RotatedTileStore load(File file) throws IOException {
+			return new RotatedTileStore(new MappedFileReader(file));
+		}
+
+		@Override
+		public int getNumRows() {
+			return numRows;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public double get(int row, int index) {
+			return reader.getDouble(HEADER_LEN + 8l*((long)row*width + index));
+		}
+
+		/**
+		 * Copies the given row into the destination array
+		 * @param row
+		 * @param dest
+		 */
+		public void getRow(int row, double[] dest) {
+			Preconditions.checkElementIndex(row, numRows);
+			reader.getDoubles(HEADER_LEN + 8l*row*width, dest, 0, width);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				File file = reader.getFile();
+				reader.close();
+				if (deleteOnClose)
+					file.delete();
+			}
+			reader = null;
+		}
+	}
+
+}
@@ -46,6 +46,7 @@ import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.RuptureIdentifier;
 
 import scratch.kevin.DistSpeedTest;
+import scratch.kevin.markov.CompactMarkovChain;
 import scratch.kevin.markov.EmpiricalMarkovChain;
 import scratch.kevin.markov.IndicesKey;
 import scratch.kevin.markov.MarkovChain;
@@ -171,29 +172,31 @@ public class SynchParamCalculator {
 
 		int totOccupancy = 0;
 
+		CompactMarkovChain compact = chain.getCompactChain();
+
 		Map<Integer, Double> mIndepFreqs;
 		Map<Integer, Double> nIndepFreqs;
 		Map<Integer, Double> mIndepProbs;
 		Map<Integer, Double> nIndepProbs;
 		if (lag == 0) {
-			mIndepProbs = calcIndepProbs(m, 0, false);
-			nIndepProbs = calcIndepProbs(n, 0, false);
-			mIndepFreqs = calcIndepProbs(m, 0, true);
-			nIndepFreqs = calcIndepProbs(n, 0, true);
+			mIndepProbs = calcIndepProbs(compact, m, 0, false);
+			nIndepProbs = calcIndepProbs(compact, n, 0, false);
+			mIndepFreqs = calcIndepProbs(compact, m, 0, true);
+			nIndepFreqs = calcIndepProbs(compact, n, 0, true);
 		} else if (lag < 0) {
 			// n precedes m
 			// we want m=0, and n=abs(lag)
-			mIndepProbs = calcIndepProbs(m, 0, false);
-			nIndepProbs = calcIndepProbs(n, -lag, false);
-			mIndepFreqs = calcIndepProbs(m, 0, true);
-			nIndepFreqs = calcIndepProbs(n, -lag, true);
+			mIndepProbs = calcIndepProbs(compact, m, 0, false);
+			nIndepProbs = calcIndepProbs(compact, n, -lag, false);
+			mIndepFreqs = calcIndepProbs(compact, m, 0, true);
+			nIndepFreqs = calcIndepProbs(compact, n, -lag, true);
 		} else {
 			// m precedes n
 			// we want n=0, and m=lag
-			mIndepProbs = calcIndepProbs(m, lag, false);
-			nIndepProbs = calcIndepProbs(n, 0, false);
-			mIndepFreqs = calcIndepProbs(m, lag, true);
-			nIndepFreqs = calcIndepProbs(n, 0, true);
+			mIndepProbs = calcIndepProbs(compact, m, lag, false);
+			nIndepProbs = calcIndepProbs(compact, n, 0, false);
+			mIndepFreqs = calcIndepProbs(compact, m, lag, true);
+			nIndepFreqs = calcIndepProbs(compact, n, 0, true);
 		}
 
 		List<Double> allFreqMs = Lists.newArrayList();
@@ -209,23 +212,26 @@ public class SynchParamCalculator {
 		List<Double> weightNumerators = Lists.newArrayList();
 		double weightDenominator = 0d;
 
-		for (int[] fromState : chain.getStateTransitionDataset().getPopulatedIndices()) {
-			PossibleStates possible = chain.getStateTransitionDataset().get(fromState);
-			if (possible == null || possible.getStates() == null || possible.getTot() == 0) {
+		// iterate over transitions in compressed sparse row form, without any per destination hashing
+		int[] state = new int[compact.getNDims()];
+		for (int fromID=0; fromID<compact.getNumStates(); fromID++) {
+			double tot = compact.getTotalFrequency(fromID);
+			if (compact.getNumDestinations(fromID) == 0 || tot == 0) {
 				// last state in the catalog can be a dead end if never reached earlier
 				numSubBails++;
 				continue;
 			}
+			int[] fromState = compact.getState(fromID);
 
 			double freqM = 0;
 			double freqN = 0;
 			double freqMN = 0;
 			double freqEither = 0;
-			double tot = possible.getTot();
 
-			for (int[] state : possible.getStates()) {
+			for (int d=0; d<compact.getNumDestinations(fromID); d++) {
+				compact.getState(compact.getDestinationID(fromID, d), state);
 				// frequency that we transition to state
-				double freq = possible.getFrequency(state);
+				double freq = compact.getDestinationFrequency(fromID, d);
 				if (lag == 0) {
 					// simple case, no lag
 					if (state[m] == 0)
@@ -306,7 +312,7 @@ public class SynchParamCalculator {
 			allFreqMNs.add(freqMN);
 			allFreqEithers.add(freqEither);
 			allStates.add(fromState);
-			allTotOccupancy += possible.getTot();
+			allTotOccupancy += tot;
 			allTots.add(tot);
 
 			numSubSums++;
@@ -360,7 +366,7 @@ public class SynchParamCalculator {
 				probMNs.add(probMN);
 
 				usedStates.add(fromState);
-				totOccupancy += possible.getTot();
+				totOccupancy += tot;
 
 				switch (weightingScheme) {
 				case FREQ_EITHERS:
@@ -368,8 +374,8 @@ public class SynchParamCalculator {
 					weightDenominator += freqEither;
 					break;
 				case TOT_OCCUPANCY:
-					weightNumerators.add(possible.getTot());
-					weightDenominator += possible.getTot();
+					weightNumerators.add(tot);
+					weightDenominator += tot;
 					break;
 				case FREQ_MNs:
 					weightNumerators.add(freqMN);
@@ -517,11 +523,16 @@ public class SynchParamCalculator {
 		//		Preconditions.checkState(Doubles.isFinite(cov), "COV isn't finite: "+cov);
 	}
 
-	private Map<Integer, Double> calcIndepProbs(int index, int target, boolean isFreq) {
+	private Map<Integer, Double> calcIndepProbs(CompactMarkovChain compact, int index, int target, boolean isFreq) {
 		Map<Integer, Double> freqs = Maps.newHashMap();
 		Map<Integer, Double> tots = Maps.newHashMap();
 
-		for (int[] indices : chain.getStateTransitionDataset().getPopulatedIndices()) {
+		int[] indices = new int[compact.getNDims()];
+		int[] state = new int[compact.getNDims()];
+		for (int fromID=0; fromID<compact.getNumStates(); fromID++) {
+			if (compact.getNumDestinations(fromID) == 0)
+				continue;
+			compact.getState(fromID, indices);
 			int myIndex = indices[index];
 			double tot, freq;
 			if (freqs.containsKey(myIndex)) {
@@ -531,14 +542,15 @@ public class SynchParamCalculator {
 				freq = 0;
 				tot = 0;
 			}
-			PossibleStates poss = chain.getStateTransitionDataset().get(indices);
-			tot += poss.getTot();
-			for (int[] state : poss.getStates()) {
+			tot += compact.getTotalFrequency(fromID);
+			for (int d=0; d<compact.getNumDestinations(fromID); d++) {
+				compact.getState(compact.getDestinationID(fromID, d), state);
+				double destFreq = compact.getDestinationFrequency(fromID, d);
 				if (target == 0) {
 					if (state[index] == 0)
-						freq += poss.getFrequency(state);
+						freq += destFreq;
 				} else {
-					freq += calcProbRupturedBefore(target, index, state, indices, chain)*poss.getFrequency(state);
+					freq += calcProbRupturedBefore(target, index, state, indices, chain)*destFreq;
 				}
 			}
 			freqs.put(myIndex, freq);
@@ -757,11 +769,13 @@ public class SynchParamCalculator {
 			EvenlyDiscrXYZ_DataSet occFreqXYZ = new EvenlyDiscrXYZ_DataSet(
 					100, 100, 0.5*distSpacing, 0.5*distSpacing, distSpacing);
 			SparseNDimensionalHashDataset<Double> totalStatesDataset = chain.getTotalStatesDataset();
-			for (int[] indices : totalStatesDataset.getPopulatedIndices()) {
-				if (indices[m] < occFreqXYZ.getNumX() && indices[n] < occFreqXYZ.getNumY()) {
-					Double val = totalStatesDataset.get(indices);
+			for (int slot=0; slot<totalStatesDataset.size(); slot++) {
+				int indM = totalStatesDataset.getIndex(slot, m);
+				int indN = totalStatesDataset.getIndex(slot, n);
+				if (indM < occFreqXYZ.getNumX() && indN < occFreqXYZ.getNumY()) {
+					Double val = totalStatesDataset.getValue(slot);
 					if (val != null && val > 0)
-						occFreqXYZ.set(indices[m], indices[n], occFreqXYZ.get(indices[m], indices[n])+val);
+						occFreqXYZ.set(indM, indN, occFreqXYZ.get(indM, indN)+val);
 				}
 			}
 			for (int x=0; x<occFreqXYZ.getNumX(); x++)
@@ -863,20 +877,51 @@ public class SynchParamCalculator {
 	private static int catLenMult = 1;
 	public static EmpiricalMarkovChain createRandomizedChain(List<? extends SimulatorEvent> events,
 			List<RuptureIdentifier> rupIdens, RandomDistType dist, double distSpacing) {
+		return new EmpiricalMarkovChain(createRandomizedPath(events, rupIdens, dist, distSpacing), distSpacing);
+	}
+	
+	/**
+	 * @return states path for a randomized catalog, without building a Markov chain
+	 */
+	public static List<int[]> createRandomizedPath(List<? extends SimulatorEvent> events,
+			List<RuptureIdentifier> rupIdens, RandomDistType dist, double distSpacing) {
 		List<SimulatorEvent> randEvents = RandomCatalogBuilder.getRandomResampledCatalog(events, rupIdens, dist, true, catLenMult);
 
-		EmpiricalMarkovChain chain = MarkovChainBuilder.build(distSpacing, randEvents, rupIdens);
-
-		return chain;
+		return MarkovChainBuilder.getStatesPath(distSpacing, randEvents, rupIdens, 0d);
 	}
 
 	public static void writeSynchParamsStdDev(
 			File dir, List<SimulatorEvent> events, List<RuptureIdentifier> rupIdens,
 			EmpiricalMarkovChain origChain, int[] lags, int numTrials, double distSpacing) throws IOException {
 		int nDims = rupIdens.size();
+		final RandomDistType dist = RandomDistType.ACTUAL;
+		
+		if (SynchTrialEngine.isSupported()) {
+			// single pass per trial, streamed to disk
+			File randTrialsDir = new File(dir, "rand_trials");
+			if (!randTrialsDir.exists())
+				randTrialsDir.mkdir();
+			File trialsFile = new File(randTrialsDir, "synch_params_"+numTrials+"_trials.bin");
+			SynchTrialEngine engine = new SynchTrialEngine(nDims, lags);
+			final List<SimulatorEvent> myEvents = events;
+			final List<RuptureIdentifier> myRupIdens = rupIdens;
+			final double myDistSpacing = distSpacing;
+			SynchTrialEngine.TrialResults results = engine.calcTrials(new SynchTrialEngine.PathSource() {
+				
+				@Override
+				public List<int[]> buildPath(int trial) {
+					return createRandomizedPath(myEvents, myRupIdens, dist, myDistSpacing);
+				}
+			}, numTrials, SynchRandTask.numThreads, trialsFile);
+			try {
+				doWriteSynchStdDevParams(dir, rupIdens, origChain, results);
+			} finally {
+				results.close();
+			}
+			return;
+		}
 
 		double[][][][] gBars = new double[nDims][nDims][numTrials][lags.length];
-		RandomDistType dist = RandomDistType.ACTUAL;
 
 		List<SynchRandTask> tasks = Lists.newArrayList();
 		for (int t=0; t<numTrials; t++)
@@ -900,115 +945,171 @@ public class SynchParamCalculator {
 			List<RuptureIdentifier> rupIdens, EmpiricalMarkovChain origChain,
 			int[] lags, int numTrials, int nDims,
 			double[][][][] trialGBars) throws IOException {
+		doWriteSynchStdDevParams(dir, rupIdens, lags, numTrials, nDims, trialGBars,
+				calcOrigGBars(origChain, lags, nDims));
+	}
+	
+	/**
+	 * Writes standard deviation results for trials which were streamed to disk by a {@link SynchTrialEngine}
+	 * @param dir
+	 * @param rupIdens
+	 * @param origChain
+	 * @param results
+	 * @throws IOException
+	 */
+	static void doWriteSynchStdDevParams(File dir,
+			List<RuptureIdentifier> rupIdens, EmpiricalMarkovChain origChain,
+			SynchTrialEngine.TrialResults results) throws IOException {
+		int nDims = results.getNDims();
+		int[] lags = results.getLags();
+		double[][][] origGBars = calcOrigGBars(origChain, lags, nDims);
+		for (int l=0; l<lags.length; l++)
+			doWriteSynchStdDevParams(dir, rupIdens, lags[l], l, results.getNumTrials(), nDims,
+					results.getLagGBars(l), origGBars);
+	}
+	
+	private static double[][][] calcOrigGBars(EmpiricalMarkovChain origChain, int[] lags, int nDims) {
 		double[][][] origGBars = new double[nDims][nDims][lags.length];
+		SynchTrialEngine engine = null;
+		double[] engineGBars = null;
+		if (SynchTrialEngine.isSupported()) {
+			engine = new SynchTrialEngine(nDims, lags);
+			engineGBars = engine.calcGBars(origChain.getFullPath());
+		}
 		for (int l=0; l<lags.length; l++) {
 			for (int i=0; i<nDims; i++) {
 				for (int j=i+1; j<nDims; j++) {
-					double gBar = calcGBar(origChain, i, j, lags[l]);
+					double gBar;
+					if (engine == null)
+						gBar = calcGBar(origChain, i, j, lags[l]);
+					else
+						gBar = engineGBars[engine.getIndex(i, j, l)];
 					origGBars[i][j][l] = gBar;
 					origGBars[j][i][l] = gBar;
 				}
 			}
 		}
-		doWriteSynchStdDevParams(dir, rupIdens, lags, numTrials, nDims, trialGBars, origGBars);
+		return origGBars;
 	}
 
 	static void doWriteSynchStdDevParams(File dir,
 			List<RuptureIdentifier> rupIdens, int[] lags, int numTrials, int nDims,
 			double[][][][] trialGBars, double[][][] origGBars) throws IOException {
 		for (int l=0; l<lags.length; l++) {
-			int lag = lags[l];
-			File stdDevCSV;
-			if (lag == 0) {
-				stdDevCSV = new File(dir, "synch_params_std_devs.csv");
-			} else {
-				File lagDir = new File(dir, "lag_stats");
-				if (!lagDir.exists())
-					lagDir.mkdir();
-				stdDevCSV = new File(lagDir, "synch_params_std_devs_lag_"+lag+".csv");
-			}
+			double[][][] lagGBars = new double[nDims][nDims][numTrials];
+			for (int m=0; m<nDims; m++)
+				for (int n=0; n<nDims; n++)
+					for (int t=0; t<numTrials; t++)
+						lagGBars[m][n][t] = trialGBars[m][n][t][l];
+			doWriteSynchStdDevParams(dir, rupIdens, lags[l], l, numTrials, nDims, lagGBars, origGBars);
+		}
+	}
 
-			File randTrialsDir = new File(dir, "rand_trials");
-			if (!randTrialsDir.exists())
-				randTrialsDir.mkdir();
+	/**
+	 * Writes results for a single lag
+	 * @param dir
+	 * @param rupIdens
+	 * @param lag
+	 * @param l lag index in origGBars
+	 * @param numTrials
+	 * @param nDims
+	 * @param lagGBars trial Gbar values for this lag, [m][n][trial]
+	 * @param origGBars
+	 * @throws IOException
+	 */
+	private static void doWriteSynchStdDevParams(File dir,
+			List<RuptureIdentifier> rupIdens, int lag, int l, int numTrials, int nDims,
+			double[][][] lagGBars, double[][][] origGBars) throws IOException {
+		File stdDevCSV;
+		if (lag == 0) {
+			stdDevCSV = new File(dir, "synch_params_std_devs.csv");
+		} else {
+			File lagDir = new File(dir, "lag_stats");
+			if (!lagDir.exists())
+				lagDir.mkdir();
+			stdDevCSV = new File(lagDir, "synch_params_std_devs_lag_"+lag+".csv");
+		}
 
-			List<List<String>> allValsLines = Lists.newArrayList();
-			for (int i=0; i<=numTrials; i++) {
-				List<String> line = Lists.newArrayList();
-				if (i == 0)
-					line.add("Trial");
-				else
-					line.add(i+"");
-				allValsLines.add(line);
-			}
-			for (int m=0; m<nDims; m++) {
-				for (int n=m+1; n<nDims; n++) {
-					String name = rupIdens.get(m).getName()+" vs "+rupIdens.get(n).getName();
-					allValsLines.get(0).add(name);
-					for (int i=0; i<numTrials; i++)
-						allValsLines.get(i+1).add(trialGBars[m][n][i][l]+"");
-				}
+		File randTrialsDir = new File(dir, "rand_trials");
+		if (!randTrialsDir.exists())
+			randTrialsDir.mkdir();
+
+		List<List<String>> allValsLines = Lists.newArrayList();
+		for (int i=0; i<=numTrials; i++) {
+			List<String> line = Lists.newArrayList();
+			if (i == 0)
+				line.add("Trial");
+			else
+				line.add(i+"");
+			allValsLines.add(line);
+		}
+		for (int m=0; m<nDims; m++) {
+			for (int n=m+1; n<nDims; n++) {
+				String name = rupIdens.get(m).getName()+" vs "+rupIdens.get(n).getName();
+				allValsLines.get(0).add(name);
+				for (int i=0; i<numTrials; i++)
+					allValsLines.get(i+1).add(lagGBars[m][n][i]+"");
 			}
-			CSVFile<String> allValsCSV = new CSVFile<String>(allValsLines, true);
-			allValsCSV.writeToFile(new File(randTrialsDir, "synch_params_"+numTrials+"_trials_lag"+lag+".csv"));
+		}
+		CSVFile<String> allValsCSV = new CSVFile<String>(allValsLines, true);
+		allValsCSV.writeToFile(new File(randTrialsDir, "synch_params_"+numTrials+"_trials_lag"+lag+".csv"));
 
-			double[][] stdDevs = new double[nDims][nDims];
-			double[][] means = new double[nDims][nDims];
-			double totBias = 0;
-			for (int m=0; m<nDims; m++) {
-				for (int n=0; n<nDims; n++) {
-					double[] lnVals = new double[numTrials];
-					for (int t=0; t<numTrials; t++)
-						lnVals[t] = Math.log(trialGBars[m][n][t][l]);
-					double mean = StatUtils.mean(lnVals);
-					double var = StatUtils.variance(lnVals, mean);
-					stdDevs[m][n] = Math.sqrt(var);
-					means[m][n] = mean;
-					if (n > m)
-						totBias += mean;
-				}
+		double[][] stdDevs = new double[nDims][nDims];
+		double[][] means = new double[nDims][nDims];
+		double totBias = 0;
+		for (int m=0; m<nDims; m++) {
+			for (int n=0; n<nDims; n++) {
+				double[] lnVals = new double[numTrials];
+				for (int t=0; t<numTrials; t++)
+					lnVals[t] = Math.log(lagGBars[m][n][t]);
+				double mean = StatUtils.mean(lnVals);
+				double var = StatUtils.variance(lnVals, mean);
+				stdDevs[m][n] = Math.sqrt(var);
+				means[m][n] = mean;
+				if (n > m)
+					totBias += mean;
 			}
+		}
+
+		System.out.println("Total Bias: "+totBias);
 
-			System.out.println("Total Bias: "+totBias);
+		List<String> header = Lists.newArrayList("");
+		for (RuptureIdentifier iden : rupIdens)
+			header.add(iden.getName());
 
-			List<String> header = Lists.newArrayList("");
-			for (RuptureIdentifier iden : rupIdens)
-				header.add(iden.getName());
+		CSVFile<String> csv = new CSVFile<String>(false);
 
-			CSVFile<String> csv = new CSVFile<String>(false);
+		csv.addLine("Std Dev of "+numTrials+" rand realizations (in Ln space)");
+		addTableToCSV(csv, header, stdDevs, true);
+		csv.addLine("");
+		csv.addLine("");
+		csv.addLine("Mean of "+numTrials+" rand realizations (in Ln space)");
+		addTableToCSV(csv, header, means, true);
+		csv.addLine("");
+		csv.addLine("");
+		csv.addLine("Print ready +/- (in Ln space)");
+		csv.addLine(header);
 
-			csv.addLine("Std Dev of "+numTrials+" rand realizations (in Ln space)");
-			addTableToCSV(csv, header, stdDevs, true);
-			csv.addLine("");
-			csv.addLine("");
-			csv.addLine("Mean of "+numTrials+" rand realizations (in Ln space)");
-			addTableToCSV(csv, header, means, true);
-			csv.addLine("");
-			csv.addLine("");
-			csv.addLine("Print ready +/- (in Ln space)");
-			csv.addLine(header);
+		DecimalFormat df = new DecimalFormat("0.00");
+		for (int i=0; i<nDims; i++) {
+			List<String> line = Lists.newArrayList();
 
-			DecimalFormat df = new DecimalFormat("0.00");
-			for (int i=0; i<nDims; i++) {
-				List<String> line = Lists.newArrayList();
-
-				line.add(header.get(i+1));
-				for (int j=0; j<nDims; j++) {
-					if (i == j)
-						line.add("");
-					else {
-						double stdDev = stdDevs[i][j];
-						double gBar = origGBars[i][j][l];
-						double mean = Math.log(gBar);
-						line.add(df.format(mean)+" ± "+df.format(stdDev));
-					}
+			line.add(header.get(i+1));
+			for (int j=0; j<nDims; j++) {
+				if (i == j)
+					line.add("");
+				else {
+					double stdDev = stdDevs[i][j];
+					double gBar = origGBars[i][j][l];
+					double mean = Math.log(gBar);
+					line.add(df.format(mean)+" ± "+df.format(stdDev));
 				}
-
-				csv.addLine(line);
 			}
 
-			csv.writeToFile(stdDevCSV);
+			csv.addLine(line);
 		}
+
+		csv.writeToFile(stdDevCSV);
 	}
 
 	public static double calcGBar(EmpiricalMarkovChain chain, int m, int n, int lag) {
@@ -2021,8 +2122,8 @@ public class SynchParamCalculator {
 			HistogramFunction occHist = new HistogramFunction(0d, 10, 1d);
 			
 			SparseNDimensionalHashDataset<PossibleStates> transData = myChain.getStateTransitionDataset();
-			for (int ind[] : transData.getPopulatedIndices()) {
-				PossibleStates s = transData.get(ind);
+			for (int slot=0; slot<transData.size(); slot++) {
+				PossibleStates s = transData.getValue(slot);
 				int numStates = s.getNumStates();
 				if (numStates >= destHist.size())
 					numStates = destHist.size()-1;
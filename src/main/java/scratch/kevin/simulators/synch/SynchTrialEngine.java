@@ -0,0 +1,428 @@
+package scratch.kevin.simulators.synch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import scratch.kevin.simulators.synch.SynchParamCalculator.WeightingScheme;
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Calculates synchronization parameters (Gbar) for every fault pair and lag in a single pass over a states path.
+ * With the {@link WeightingScheme#CATALOG_G} scheme and lags calculated by occupancy, Gbar for each pair and lag only
+ * depends on occupancy counts: the number of windows with each fault in its rupture bin, and the number of windows
+ * with one fault in its rupture bin and the other a given number of bins since its last rupture. Those are counted
+ * for all pairs at once, so no Markov chains (collapsed or otherwise) need to be built for randomized trials.
+ * <br>
+ * Counting buffers are reused per thread, and randomized trials are run on a work stealing pool. Trial results can
+ * be streamed to a binary file rather than held in memory:
+ * <pre>
+ * int magic, int version, int nDims, int numLags, int numTrials, int reserved, int[numLags] lags, padding to 8 bytes
+ * double[numTrials][numLags][numPairs] Gbar values for each pair m &lt; n, row major
+ * </pre>
+ * @author kevin
+ *
+ */
+public class SynchTrialEngine {
+
+	public static final int MAGIC = 0x53594E54; // "SYNT"
+	public static final int VERSION = 1;
+
+	/**
+	 * Builds the states path for a given trial. Called concurrently from multiple threads.
+	 */
+	public interface PathSource {
+		public List<int[]> buildPath(int trial);
+	}
+
+	/**
+	 * Receives the results for a given trial. Called concurrently from multiple threads, and the values array is
+	 * reused after this returns, so it must be copied if retained.
+	 */
+	public interface TrialConsumer {
+		public void trialDone(int trial, double[] gBars) throws IOException;
+	}
+
+	private final int nDims;
+	private final int[] lags;
+	private final int numPairs;
+	private final int numBins;
+
+	private final ThreadLocal<double[]> countBuffers;
+	private final ThreadLocal<double[]> resultBuffers;
+
+	public SynchTrialEngine(int nDims, int[] lags) {
+		Preconditions.checkArgument(nDims > 1, "Need at least 2 dimensions");
+		Preconditions.checkArgument(lags.length > 0, "Need at least one lag");
+		this.nDims = nDims;
+		this.lags = lags;
+		this.numPairs = nDims*(nDims-1)/2;
+		int maxAbsLag = 0;
+		for (int lag : lags)
+			maxAbsLag = Math.max(maxAbsLag, Math.abs(lag));
+		this.numBins = maxAbsLag+1;
+		final int countsLen = nDims*nDims*numBins + nDims;
+		countBuffers = new ThreadLocal<double[]>() {
+
+			@Override
+			protected double[] initialValue() {
+				return new double[countsLen];
+			}
+		};
+		final int resultsLen = getNumValues();
+		resultBuffers = new ThreadLocal<double[]>() {
+
+			@Override
+			protected double[] initialValue() {
+				return new double[resultsLen];
+			}
+		};
+	}
+
+	/**
+	 * @return true if the current {@link SynchParamCalculator} configuration can be calculated by this engine
+	 */
+	public static boolean isSupported() {
+		return SynchParamCalculator.weightingScheme == WeightingScheme.CATALOG_G
+				&& SynchParamCalculator.doLagByOcc && !SynchParamCalculator.doLagByShift;
+	}
+
+	public int getNDims() {
+		return nDims;
+	}
+
+	public int[] getLags() {
+		return lags;
+	}
+
+	/**
+	 * @return number of values in each result array (number of lags times number of fault pairs)
+	 */
+	public int getNumValues() {
+		return lags.length*numPairs;
+	}
+
+	private static int pairIndex(int nDims, int m, int n) {
+		// m < n
+		return m*(2*nDims - m - 1)/2 + (n - m - 1);
+	}
+
+	/**
+	 * @param m
+	 * @param n
+	 * @param lagIndex
+	 * @return index in result arrays for the given pair (in either order, m != n) and lag index
+	 */
+	public int getIndex(int m, int n, int lagIndex) {
+		Preconditions.checkArgument(m != n, "No values for identities");
+		if (m > n)
+			return getIndex(n, m, lagIndex);
+		return lagIndex*numPairs + pairIndex(nDims, m, n);
+	}
+
+	/**
+	 * Calculates Gbar values for all pairs and lags from the given states path.
+	 * @param path
+	 * @return new results array, see {@link #getIndex(int, int, int)}
+	 */
+	public double[] calcGBars(List<int[]> path) {
+		double[] ret = new double[getNumValues()];
+		calcGBars(path, ret);
+		return ret;
+	}
+
+	/**
+	 * Calculates Gbar values for all pairs and lags from the given states path. Equivalent to
+	 * {@link SynchParamCalculator#calcOccG(scratch.kevin.markov.MarkovChain, int, int, int)} on a chain built from
+	 * the path, for each pair and lag.
+	 * @param path
+	 * @param dest results array, see {@link #getIndex(int, int, int)}
+	 */
+	public void calcGBars(List<int[]> path, double[] dest) {
+		Preconditions.checkArgument(path.size() > 1, "Path must have at least one transition");
+		Preconditions.checkArgument(dest.length == getNumValues());
+		double[] counts = countBuffers.get();
+		Arrays.fill(counts, 0d);
+		int zerosOffset = nDims*nDims*numBins;
+
+		// occupancy is the destination of each transition, so skip the first state
+		for (int i=1; i<path.size(); i++) {
+			int[] state = path.get(i);
+			for (int x=0; x<nDims; x++) {
+				if (state[x] != 0)
+					continue;
+				counts[zerosOffset+x]++;
+				int offset = x*nDims*numBins;
+				for (int y=0; y<nDims; y++) {
+					int bin = state[y];
+					if (bin >= 0 && bin < numBins)
+						counts[offset + y*numBins + bin]++;
+				}
+			}
+		}
+
+		double tot = path.size()-1;
+		for (int l=0; l<lags.length; l++) {
+			int lag = lags[l];
+			for (int m=0; m<nDims; m++) {
+				double probE1 = counts[zerosOffset+m]/tot;
+				for (int n=m+1; n<nDims; n++) {
+					double probE2 = counts[zerosOffset+n]/tot;
+					double freqE1E2;
+					if (lag == 0)
+						freqE1E2 = counts[(m*nDims + n)*numBins];
+					else if (lag < 0)
+						// n precedes m, m in its rupture bin and n -lag bins later
+						freqE1E2 = counts[(m*nDims + n)*numBins - lag];
+					else
+						// m precedes n, n in its rupture bin and m lag bins later
+						freqE1E2 = counts[(n*nDims + m)*numBins + lag];
+					dest[l*numPairs + pairIndex(nDims, m, n)] = (freqE1E2/tot)/(probE1*probE2);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the given number of trials on a work stealing pool, passing results for each trial to the given consumer
+	 * as they complete
+	 * @param source
+	 * @param numTrials
+	 * @param numThreads
+	 * @param consumer
+	 * @throws IOException
+	 */
+	public void calcTrials(final PathSource source, final int numTrials, int numThreads,
+			final TrialConsumer consumer) throws IOException {
+		System.out.println("Calculating "+numTrials+" synchronization trials with "+numThreads+" threads");
+		Stopwatch watch = Stopwatch.createStarted();
+		final AtomicInteger numDone = new AtomicInteger();
+		final int printMod = Math.max(1, numTrials/20);
+		ExecutorService exec = Executors.newWorkStealingPool(numThreads);
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t=0; t<numTrials; t++) {
+			final int trial = t;
+			// callable so that consumer IOExceptions are the direct cause of any ExecutionException
+			futures.add(exec.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws IOException {
+					double[] gBars = resultBuffers.get();
+					calcGBars(source.buildPath(trial), gBars);
+					consumer.trialDone(trial, gBars);
+					int done = numDone.incrementAndGet();
+					if (done % printMod == 0 || done == numTrials)
+						System.out.println("Done with trial "+done+"/"+numTrials);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		watch.stop();
+		System.out.println("Calculated "+numTrials+" trials in "+watch.elapsed(TimeUnit.SECONDS)+" s");
+	}
+
+	/**
+	 * Runs the given number of trials, streaming results to the given binary file
+	 * @param source
+	 * @param numTrials
+	 * @param numThreads
+	 * @param outputFile
+	 * @return memory mapped results
+	 * @throws IOException
+	 */
+	public TrialResults calcTrials(PathSource source, int numTrials, int numThreads, File outputFile)
+			throws IOException {
+		final TrialResultsWriter writer = new TrialResultsWriter(outputFile, nDims, lags, numTrials);
+		try {
+			calcTrials(source, numTrials, numThreads, new TrialConsumer() {
+
+				@Override
+				public void trialDone(int trial, double[] gBars) throws IOException {
+					writer.write(trial, gBars);
+				}
+			});
+		} finally {
+			writer.close();
+		}
+		return TrialResults.load(outputFile);
+	}
+
+	private static int headerLen(int numLags) {
+		int len = 6*4 + 4*numLags;
+		return len + MappedFileReader.padding(len);
+	}
+
+	/**
+	 * Writes trial results to a binary file. Trials can be written in any order, from any thread.
+	 */
+	public static class TrialResultsWriter implements Closeable {
+
+		private final int numValues;
+		private final int headerLen;
+		private final int numTrials;
+		private RandomAccessFile raFile;
+		private FileChannel channel;
+		private final ThreadLocal<ByteBuffer> buffers;
+
+		public TrialResultsWriter(File outputFile, int nDims, int[] lags, int numTrials) throws IOException {
+			this.numValues = lags.length*nDims*(nDims-1)/2;
+			this.headerLen = headerLen(lags.length);
+			this.numTrials = numTrials;
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(nDims);
+			out.writeInt(lags.length);
+			out.writeInt(numTrials);
+			out.writeInt(0);
+			for (int lag : lags)
+				out.writeInt(lag);
+			for (int i=6*4 + 4*lags.length; i<headerLen; i++)
+				out.writeByte(0);
+			out.close();
+			raFile = new RandomAccessFile(outputFile, "rw");
+			raFile.setLength(headerLen + 8l*numValues*numTrials);
+			channel = raFile.getChannel();
+			buffers = new ThreadLocal<ByteBuffer>() {
+
+				@Override
+				protected ByteBuffer initialValue() {
+					return ByteBuffer.allocate(8*numValues);
+				}
+			};
+		}
+
+		public void write(int trial, double[] gBars) throws IOException {
+			Preconditions.checkElementIndex(trial, numTrials);
+			Preconditions.checkArgument(gBars.length == numValues);
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			for (double gBar : gBars)
+				buffer.putDouble(gBar);
+			buffer.flip();
+			long pos = headerLen + 8l*numValues*trial;
+			while (buffer.hasRemaining())
+				pos += channel.write(buffer, pos);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (raFile != null)
+				raFile.close();
+			raFile = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Memory mapped trial results
+	 */
+	public static class TrialResults implements Closeable {
+
+		private MappedFileReader reader;
+		private final int nDims;
+		private final int[] lags;
+		private final int numTrials;
+		private final int numPairs;
+		private final int headerLen;
+
+		private TrialResults(MappedFileReader reader) {
+			Preconditions.checkState(reader.getInt(0) == MAGIC, "Not a synch trials file: %s", reader.getFile());
+			int version = reader.getInt(4);
+			Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+			nDims = reader.getInt(8);
+			lags = new int[reader.getInt(12)];
+			numTrials = reader.getInt(16);
+			for (int l=0; l<lags.length; l++)
+				lags[l] = reader.getInt(24 + 4*l);
+			numPairs = nDims*(nDims-1)/2;
+			headerLen = headerLen(lags.length);
+			long expectedLen = headerLen + 8l*lags.length*numPairs*numTrials;
+			Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+					expectedLen, reader.length());
+			this.reader = reader;
+		}
+
+		public static TrialResults load(File file) throws IOException {
+			return new TrialResults(new MappedFileReader(file));
+		}
+
+		public int getNDims() {
+			return nDims;
+		}
+
+		public int[] getLags() {
+			return lags;
+		}
+
+		public int getNumTrials() {
+			return numTrials;
+		}
+
+		/**
+		 * @param lagIndex
+		 * @return Gbar values for each trial at the given lag index, [m][n][trial]. Values are symmetric, and
+		 * identities (m == n) are NaN.
+		 */
+		public double[][][] getLagGBars(int lagIndex) {
+			Preconditions.checkElementIndex(lagIndex, lags.length);
+			double[][][] ret = new double[nDims][nDims][numTrials];
+			for (int m=0; m<nDims; m++)
+				Arrays.fill(ret[m][m], Double.NaN);
+			double[] vals = new double[numPairs];
+			long recordLen = 8l*lags.length*numPairs;
+			for (int t=0; t<numTrials; t++) {
+				reader.getDoubles(headerLen + recordLen*t + 8l*lagIndex*numPairs, vals, 0, numPairs);
+				for (int m=0; m<nDims; m++) {
+					for (int n=m+1; n<nDims; n++) {
+						double gBar = vals[pairIndex(nDims, m, n)];
+						ret[m][n][t] = gBar;
+						ret[n][m][t] = gBar;
+					}
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null)
+				reader.close();
+			reader = null;
+		}
+	}
+
+}
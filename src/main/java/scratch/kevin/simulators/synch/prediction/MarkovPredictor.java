@@ -84,7 +84,7 @@ public class MarkovPredictor implements Predictor {
 			double totFreq = 0;
 			for (int i=0; i<states.size(); i++) {
 				int[] state = states.get(i);
-				double freq = possible.getFrequency(state);
+				double freq = possible.getFrequencyAt(i);
 				Preconditions.checkState(Doubles.isFinite(freq) && freq >= 0d);
 				
 				for (int j=0; j<state.length; j++)
@@ -0,0 +1,282 @@
+package scratch.kevin.spatialVar;
+
+import java.util.Random;
+
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Generates stationary Gaussian random fields with exponential correlation, exp(-3h/range), on a regular lat/lon
+ * grid using circulant embedding and 2D FFTs. This is O(N log N) per field, compared to O(N^3) setup and O(N^2)
+ * per field for the dense Cholesky approach, and never forms an N x N matrix.
+ * <br>
+ * The grid is embedded in a periodic grid at least twice as large in each dimension (rounded up to a power of 2),
+ * and the eigenvalues of the resulting block circulant covariance matrix are computed once with an FFT. Each call to
+ * {@link #nextFieldPair(Random)} then takes a single complex FFT, the real and imaginary parts of which are
+ * independent fields. Generators hold no per field state, so they can be shared across threads, and results only
+ * depend on the supplied random number generator.
+ * <br>
+ * Distances are computed with a local flat earth approximation using east-west spacing at the center latitude of
+ * the grid, which is what makes the covariance stationary on the grid. This matches
+ * {@link LocationUtils#horzDistanceFast(Location, Location)} near the center, with east-west distances
+ * over/underestimated by the ratio of cosines of latitude away from it.
+ *
+ * @author kevin
+ *
+ */
+public class CirculantEmbeddingFieldGenerator {
+
+	// small negative eigenvalues (relative to the max) are expected from round off and are set to zero
+	private static final double neg_eigen_tol = 1e-8;
+	// max number of times that padding will be doubled when large negative eigenvalues are encountered
+	private static final int max_pad_doublings = 2;
+
+	private final int numRows, numCols;
+	private final double rowSpacingKm, colSpacingKm;
+	private final double range;
+
+	// embedding dimensions, powers of 2
+	private int embedRows, embedCols;
+	// sqrt(eigenvalue/(embedRows*embedCols))
+	private double[] sqrtEigen;
+
+	/**
+	 * @param numRows number of rows (latitudes)
+	 * @param numCols number of columns (longitudes)
+	 * @param rowSpacingKm spacing between rows, in km
+	 * @param colSpacingKm spacing between columns, in km
+	 * @param range correlation range, in km. Correlation at distance h is exp(-3h/range)
+	 */
+	public CirculantEmbeddingFieldGenerator(int numRows, int numCols, double rowSpacingKm, double colSpacingKm,
+			double range) {
+		Preconditions.checkArgument(numRows > 0 && numCols > 0, "Grid must be non empty");
+		Preconditions.checkArgument(rowSpacingKm > 0 && colSpacingKm > 0, "Spacing must be positive");
+		Preconditions.checkArgument(range > 0, "Range must be positive");
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowSpacingKm = rowSpacingKm;
+		this.colSpacingKm = colSpacingKm;
+		this.range = range;
+
+		int rows = nextPow2(Math.max(1, 2*(numRows-1)));
+		int cols = nextPow2(Math.max(1, 2*(numCols-1)));
+		for (int i=0; i<=max_pad_doublings; i++) {
+			if (calcEigenvalues(rows, cols, i == max_pad_doublings))
+				break;
+			System.out.println("Circulant embedding has large negative eigenvalues with "+rows+"x"+cols
+					+" embedding, doubling padding");
+			rows *= 2;
+			cols *= 2;
+		}
+	}
+
+	/**
+	 * Generator for the bounding grid of the given gridded region, see {@link #getGridIndexes(GriddedRegion)}
+	 * @param gridReg
+	 * @param range correlation range, in km
+	 * @return
+	 */
+	public static CirculantEmbeddingFieldGenerator forRegion(GriddedRegion gridReg, double range) {
+		double midLat = gridReg.getMinGridLat() + 0.5*(gridReg.getNumLatNodes()-1)*gridReg.getLatSpacing();
+		double midLon = gridReg.getMinGridLon() + 0.5*(gridReg.getNumLonNodes()-1)*gridReg.getLonSpacing();
+		Location center = new Location(midLat, midLon);
+		double rowSpacingKm = LocationUtils.horzDistanceFast(center,
+				new Location(midLat + gridReg.getLatSpacing(), midLon));
+		double colSpacingKm = LocationUtils.horzDistanceFast(center,
+				new Location(midLat, midLon + gridReg.getLonSpacing()));
+		return new CirculantEmbeddingFieldGenerator(gridReg.getNumLatNodes(), gridReg.getNumLonNodes(),
+				rowSpacingKm, colSpacingKm, range);
+	}
+
+	/**
+	 * @param gridReg
+	 * @return index in the (row major, starting at the minimum lat/lon) bounding grid for each node in the region
+	 */
+	public static int[] getGridIndexes(GriddedRegion gridReg) {
+		int[] ret = new int[gridReg.getNodeCount()];
+		int numCols = gridReg.getNumLonNodes();
+		for (int i=0; i<ret.length; i++) {
+			Location loc = gridReg.getLocation(i);
+			int row = (int)Math.round((loc.getLatitude() - gridReg.getMinGridLat())/gridReg.getLatSpacing());
+			int col = (int)Math.round((loc.getLongitude() - gridReg.getMinGridLon())/gridReg.getLonSpacing());
+			Preconditions.checkState(row >= 0 && row < gridReg.getNumLatNodes()
+					&& col >= 0 && col < numCols, "Node %s doesn't map to the bounding grid", i);
+			ret[i] = row*numCols + col;
+		}
+		return ret;
+	}
+
+	private static int nextPow2(int val) {
+		int ret = 1;
+		while (ret < val)
+			ret <<= 1;
+		return ret;
+	}
+
+	private double correlation(int rowLag, int colLag) {
+		double dy = rowLag*rowSpacingKm;
+		double dx = colLag*colSpacingKm;
+		double h = Math.sqrt(dx*dx + dy*dy);
+		return Math.exp(-3d*h/range);
+	}
+
+	/**
+	 * Computes the eigenvalues of the embedded covariance matrix
+	 * @param rows
+	 * @param cols
+	 * @param force if true, any negative eigenvalues will be set to zero with a warning rather than failing
+	 * @return true if successful
+	 */
+	private boolean calcEigenvalues(int rows, int cols, boolean force) {
+		embedRows = rows;
+		embedCols = cols;
+		int size = rows*cols;
+		double[] re = new double[size];
+		double[] im = new double[size];
+
+		// first row of the block circulant matrix, with lags wrapped around
+		for (int r=0; r<rows; r++) {
+			int rowLag = Math.min(r, rows-r);
+			for (int c=0; c<cols; c++) {
+				int colLag = Math.min(c, cols-c);
+				re[r*cols + c] = correlation(rowLag, colLag);
+			}
+		}
+		fft2(re, im);
+
+		double max = 0d;
+		double minNeg = 0d;
+		int numNeg = 0;
+		for (int i=0; i<size; i++) {
+			max = Math.max(max, re[i]);
+			if (re[i] < 0) {
+				minNeg = Math.min(minNeg, re[i]);
+				numNeg++;
+			}
+		}
+		if (-minNeg > neg_eigen_tol*max) {
+			if (!force)
+				return false;
+			System.out.println("WARNING: circulant embedding has "+numNeg+" negative eigenvalues (min="
+					+(float)minNeg+", max="+(float)max+"), setting to zero. Field variance will be slightly off.");
+		}
+		sqrtEigen = new double[size];
+		for (int i=0; i<size; i++)
+			sqrtEigen[i] = re[i] > 0 ? Math.sqrt(re[i]/size) : 0d;
+		return true;
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	/**
+	 * Generates a single field. This discards the second field from the FFT, use {@link #nextFieldPair(Random)}
+	 * when more than one field is needed.
+	 * @param rng
+	 * @return new zero mean, unit variance random field, in row major order (numRows*numCols values)
+	 */
+	public double[] nextField(Random rng) {
+		return nextFieldPair(rng)[0];
+	}
+
+	/**
+	 * @param rng
+	 * @return two new independent zero mean, unit variance random fields, each in row major order
+	 * (numRows*numCols values)
+	 */
+	public double[][] nextFieldPair(Random rng) {
+		int size = embedRows*embedCols;
+		double[] re = new double[size];
+		double[] im = new double[size];
+		for (int i=0; i<size; i++) {
+			re[i] = sqrtEigen[i]*rng.nextGaussian();
+			im[i] = sqrtEigen[i]*rng.nextGaussian();
+		}
+		fft2(re, im);
+		double[] field1 = new double[numRows*numCols];
+		double[] field2 = new double[numRows*numCols];
+		for (int r=0; r<numRows; r++) {
+			for (int c=0; c<numCols; c++) {
+				int index = r*numCols + c;
+				int embedIndex = r*embedCols + c;
+				field1[index] = re[embedIndex];
+				field2[index] = im[embedIndex];
+			}
+		}
+		return new double[][] { field1, field2 };
+	}
+
+	/**
+	 * In place forward 2D FFT of the embedding grid (row major, embedRows x embedCols)
+	 */
+	private void fft2(double[] re, double[] im) {
+		for (int r=0; r<embedRows; r++)
+			fft(re, im, r*embedCols, embedCols);
+		double[] colRe = new double[embedRows];
+		double[] colIm = new double[embedRows];
+		for (int c=0; c<embedCols; c++) {
+			for (int r=0; r<embedRows; r++) {
+				colRe[r] = re[r*embedCols + c];
+				colIm[r] = im[r*embedCols + c];
+			}
+			fft(colRe, colIm, 0, embedRows);
+			for (int r=0; r<embedRows; r++) {
+				re[r*embedCols + c] = colRe[r];
+				im[r*embedCols + c] = colIm[r];
+			}
+		}
+	}
+
+	/**
+	 * In place iterative radix 2 forward FFT of n values starting at the given offset, n must be a power of 2
+	 */
+	static void fft(double[] re, double[] im, int offset, int n) {
+		// bit reversal permutation
+		for (int i=1, j=0; i<n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				double tmp = re[offset+i];
+				re[offset+i] = re[offset+j];
+				re[offset+j] = tmp;
+				tmp = im[offset+i];
+				im[offset+i] = im[offset+j];
+				im[offset+j] = tmp;
+			}
+		}
+		for (int len=2; len<=n; len<<=1) {
+			double ang = -2d*Math.PI/len;
+			double wRe = Math.cos(ang);
+			double wIm = Math.sin(ang);
+			int half = len >> 1;
+			for (int i=0; i<n; i+=len) {
+				double curRe = 1d;
+				double curIm = 0d;
+				for (int k=0; k<half; k++) {
+					int a = offset + i + k;
+					int b = a + half;
+					double tRe = re[b]*curRe - im[b]*curIm;
+					double tIm = re[b]*curIm + im[b]*curRe;
+					re[b] = re[a] - tRe;
+					im[b] = im[a] - tIm;
+					re[a] += tRe;
+					im[a] += tIm;
+					double nextRe = curRe*wRe - curIm*wIm;
+					curIm = curRe*wIm + curIm*wRe;
+					curRe = nextRe;
+				}
+			}
+		}
+	}
+
+}
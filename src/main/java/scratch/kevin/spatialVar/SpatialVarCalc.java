@@ -57,10 +57,62 @@ public class SpatialVarCalc {
 	private Matrix K1, K2, K3;
 	private Matrix L1, L2;
 
+	// circulant embedding FFT generators for gridded sites, used instead of L1 and L2 if non null
+	private CirculantEmbeddingFieldGenerator fieldGen1, fieldGen2;
+	// index in the generator bounding grid for each site
+	private int[] gridIndexes;
+
 	public SpatialVarCalc(double[] periods, List<? extends Site> sites) {
 		this.periods = periods;
 		this.numSites = sites.size();
 		
+		initPeriodFactors();
+		
+		// coregionalization matrices
+		Matrix D1 = new Matrix(sites.size(), sites.size());
+		Matrix D2 = new Matrix(sites.size(), sites.size());
+		for (int s1=0; s1<sites.size(); s1++) {
+			Location l1 = sites.get(s1).getLocation();
+			for (int s2=s1; s2<sites.size(); s2++) {
+				Location l2 = sites.get(s2).getLocation();
+				if (s1 == s2) {
+					D1.set(s1, s2, 1);
+					D2.set(s1, s2, 1);
+				} else {
+					double h = LocationUtils.horzDistanceFast(l1, l2);
+					D1.set(s1, s2, Math.exp(-3d*h/20d));
+					D2.set(s1, s2, Math.exp(-3d*h/70d));
+					D1.set(s2, s1, D1.get(s1, s2));
+					D2.set(s2, s1, D2.get(s1, s2));
+				}
+			}
+		}
+		
+		L1 = decompose(D1).getL();
+		L2 = decompose(D2).getL();
+	}
+	
+	/**
+	 * Spatial variability calculator for the nodes of a gridded region (in node order) which samples the same
+	 * exponential correlation fields with circulant embedding and FFTs (see {@link CirculantEmbeddingFieldGenerator})
+	 * rather than dense Cholesky factors. Memory and time scale as N log N, so this works for grids far too large
+	 * for the site list constructor. Cross period correlation is still applied through the K matrices.
+	 * 
+	 * @param periods
+	 * @param gridReg
+	 */
+	public SpatialVarCalc(double[] periods, GriddedRegion gridReg) {
+		this.periods = periods;
+		this.numSites = gridReg.getNodeCount();
+		
+		initPeriodFactors();
+		
+		gridIndexes = CirculantEmbeddingFieldGenerator.getGridIndexes(gridReg);
+		fieldGen1 = CirculantEmbeddingFieldGenerator.forRegion(gridReg, 20d);
+		fieldGen2 = CirculantEmbeddingFieldGenerator.forRegion(gridReg, 70d);
+	}
+	
+	private void initPeriodFactors() {
 		Matrix B1 = new Matrix(periods.length, periods.length);
 		Matrix B2 = new Matrix(periods.length, periods.length);
 		Matrix B3 = new Matrix(periods.length, periods.length);
@@ -133,29 +185,6 @@ public class SpatialVarCalc {
 //		printMatrix(B3);
 //		System.out.println();
 //		System.exit(0);
-		
-		// coregionalization matrices
-		Matrix D1 = new Matrix(sites.size(), sites.size());
-		Matrix D2 = new Matrix(sites.size(), sites.size());
-		for (int s1=0; s1<sites.size(); s1++) {
-			Location l1 = sites.get(s1).getLocation();
-			for (int s2=s1; s2<sites.size(); s2++) {
-				Location l2 = sites.get(s2).getLocation();
-				if (s1 == s2) {
-					D1.set(s1, s2, 1);
-					D2.set(s1, s2, 1);
-				} else {
-					double h = LocationUtils.horzDistanceFast(l1, l2);
-					D1.set(s1, s2, Math.exp(-3d*h/20d));
-					D2.set(s1, s2, Math.exp(-3d*h/70d));
-					D1.set(s2, s1, D1.get(s1, s2));
-					D2.set(s2, s1, D2.get(s1, s2));
-				}
-			}
-		}
-		
-		L1 = decompose(D1).getL();
-		L2 = decompose(D2).getL();
 	}
 	
 	private SpatialVarCalc(double[] periods, int numSites, Matrix K1, Matrix K2, Matrix K3, Matrix L1, Matrix L2) {
@@ -203,12 +232,19 @@ public class SpatialVarCalc {
 	}
 	
 	public Matrix computeRandomField(Random rng, double sigma) {
-		Matrix R1 = normRandArray(periods.length, numSites, rng);
-		Matrix R2 = normRandArray(periods.length, numSites, rng);
+		Matrix S1, S2;
+		if (fieldGen1 == null) {
+			Matrix R1 = normRandArray(periods.length, numSites, rng);
+			Matrix R2 = normRandArray(periods.length, numSites, rng);
+			
+			S1 = K1.times(R1).times(L1);
+			S2 = K2.times(R2).times(L2);
+		} else {
+			// each row is already spatially correlated, only need to correlate across periods
+			S1 = K1.times(fieldRandArray(fieldGen1, rng));
+			S2 = K2.times(fieldRandArray(fieldGen2, rng));
+		}
 		Matrix R3 = normRandArray(periods.length, numSites, rng);
-		
-		Matrix S1 = K1.times(R1).times(L1);
-		Matrix S2 = K2.times(R2).times(L2);
 		Matrix S3 = K3.times(R3);  
 
 		// code divides by 3 but Nan Wang via e-mail said not to (which is in line with docs)
@@ -236,6 +272,18 @@ public class SpatialVarCalc {
 		return ret;
 	}
 	
+	private Matrix fieldRandArray(CirculantEmbeddingFieldGenerator fieldGen, Random rng) {
+		Matrix ret = new Matrix(periods.length, numSites);
+		// each FFT yields two independent fields
+		for (int i=0; i<periods.length; i+=2) {
+			double[][] fields = fieldGen.nextFieldPair(rng);
+			for (int f=0; f<fields.length && i+f<periods.length; f++)
+				for (int j=0; j<numSites; j++)
+					ret.set(i+f, j, fields[f][gridIndexes[j]]);
+		}
+		return ret;
+	}
+	
 	private static void printMatrix(Matrix mat) {
 		for (int i=0; i<mat.getRowDimension(); i++) {
 			for (int j=0; j<mat.getColumnDimension(); j++)
@@ -294,6 +342,7 @@ public class SpatialVarCalc {
 	}
 	
 	public void writeCache(File cacheDir) throws IOException {
+		Preconditions.checkState(L1 != null && L2 != null, "Only Cholesky factors can be cached");
 		String prefix = getCachePrefix(numSites, periods);
 		System.out.println("Writing spatial correlation matrices to "+cacheDir.getAbsolutePath()+" with prefix: "+prefix);
 		writeMatrixCSV(new File(cacheDir, prefix+"_K1.csv"), K1);
@@ -68,6 +68,9 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 	
 	private FaultSystemSolutionERF erf;
 	private ProbEqkSource[] sourcesForFSSRuptures;
+	
+	private boolean indexedOutput;
+	private boolean indexedFloat;
 
 	public MPJ_UCERF3_ShakeMapPrecalc(CommandLine cmd) throws IOException, DocumentException, InvocationTargetException {
 		super(cmd);
@@ -127,6 +130,9 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 		Preconditions.checkState(rank != 0 || nodeOutputDir.exists() || nodeOutputDir.mkdir(),
 				"Couldn't create node output dir: %s", nodeOutputDir.getAbsoluteFile());
 		
+		indexedOutput = !cmd.hasOption("no-indexed-output");
+		indexedFloat = cmd.hasOption("indexed-float");
+		
 		String imtsOption = cmd.getOptionValue("imts");
 		imts = Lists.newArrayList();
 		imtFileNames = Lists.newArrayList();
@@ -171,10 +177,7 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 	@Override
 	protected void calculateBatch(int[] batch) throws Exception {
 		for (int index : batch) {
-			String prefix = index+"";
-			while (prefix.length() < numDigits)
-				prefix = "0"+prefix;
-			prefix = "site_"+prefix;
+			String prefix = getSitePrefix(index);
 			
 			if (isAlreadyDone(index, prefix)) {
 				debug(index+" is already done, skipping!");
@@ -237,6 +240,13 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 		}
 	}
 	
+	private String getSitePrefix(int index) {
+		String prefix = index+"";
+		while (prefix.length() < numDigits)
+			prefix = "0"+prefix;
+		return "site_"+prefix;
+	}
+	
 	// site index (int), lat (double), lon (double), num rups (int)
 	private static final long site_file_header_len = 4l + 8l + 8l + 4l;
 	
@@ -392,6 +402,16 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 		for (int i=0; i<imts.size(); i++) {
 			String imtName = imtFileNames.get(i);
 			
+			if (indexedOutput) {
+				// indexed, memory mappable format
+				List<File> siteFiles = Lists.newArrayList();
+				for (int index=0; index<getNumTasks(); index++)
+					siteFiles.add(new File(nodeOutputDir, getSitePrefix(index)+"_"+imtName+".bin"));
+				File indexedFile = new File(outputDir, "results_"+imtName+".smpi");
+				debug("Writing indexed file: "+indexedFile.getName());
+				ShakeMapPrecalcIndexedFile.write(siteFiles, indexedFile, indexedFloat);
+			}
+			
 			File outputFile = new File(outputDir, "results_"+imtName+".bin");
 			
 			// first write header with DataOutputStream
@@ -406,10 +426,7 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 			for (int index=0; index<getNumTasks(); index++) {
 				if (index % 100 == 0)
 					debug("Post processing site "+index);
-				String prefix = index+"";
-				while (prefix.length() < numDigits)
-					prefix = "0"+prefix;
-				prefix = "site_"+prefix;
+				String prefix = getSitePrefix(index);
 				File siteFile = new File(nodeOutputDir, prefix+"_"+imtName+".bin");
 				Preconditions.checkState(siteFile.exists(), "Site file doesn't exist! %s", siteFile.getAbsolutePath());
 				
@@ -455,6 +472,16 @@ public class MPJ_UCERF3_ShakeMapPrecalc extends MPJTaskCalculator {
 		outputDir.setRequired(true);
 		ops.addOption(outputDir);
 		
+		Option noIndexed = new Option("ni", "no-indexed-output", false,
+				"Flag to disable writing of indexed (memory mappable) results files in addition to the legacy format");
+		noIndexed.setRequired(false);
+		ops.addOption(noIndexed);
+		
+		Option indexedFloat = new Option("if", "indexed-float", false,
+				"Flag to store means and standard deviations as floats in the indexed results files");
+		indexedFloat.setRequired(false);
+		ops.addOption(indexedFloat);
+		
 		return ops;	
 	}
 	
@@ -0,0 +1,506 @@
+package scratch.kevin.ucerf3;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Maps;
+
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Indexed, memory mapped version of the {@link MPJ_UCERF3_ShakeMapPrecalc} output format. The legacy format is a
+ * sequential list of (site index, lat, lon, numRups, [fssIndex, mean, stdDev]...) records which must be scanned in
+ * order to find any given site. This format stores a header offset table followed by struct-of-arrays columns,
+ * allowing O(1) random access to any site without reading the rest of the file:
+ * <pre>
+ * int magic, int version, int numSites, int valueBytes (4=float, 8=double), long totalRups
+ * long[numSites+1] rupture offsets (start index of each site's ruptures in the columns below)
+ * double[numSites] latitudes
+ * double[numSites] longitudes
+ * int[totalRups] FSS indexes (padded to 8 bytes)
+ * float/double[totalRups] means (padded to 8 bytes)
+ * float/double[totalRups] standard deviations
+ * </pre>
+ * Legacy files can be converted with {@link #convert(File, File, boolean)} (also available via the main method).
+ *
+ * @author kevin
+ *
+ */
+public class ShakeMapPrecalcIndexedFile implements Closeable {
+
+	public static final int MAGIC = 0x534D5049; // "SMPI"
+	public static final int VERSION = 1;
+	private static final int HEADER_LEN = 4 + 4 + 4 + 4 + 8;
+
+	private MappedFileReader reader;
+	private final int numSites;
+	private final int valueBytes;
+	private final long totalRups;
+
+	private final long offsetsPos;
+	private final long latsPos;
+	private final long lonsPos;
+	private final long indexesPos;
+	private final long meansPos;
+	private final long stdDevsPos;
+
+	public ShakeMapPrecalcIndexedFile(File file) throws IOException {
+		reader = new MappedFileReader(file);
+		Preconditions.checkState(reader.getInt(0) == MAGIC, "Not an indexed shakemap precalc file: %s", file);
+		int version = reader.getInt(4);
+		Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+		numSites = reader.getInt(8);
+		valueBytes = reader.getInt(12);
+		Preconditions.checkState(valueBytes == 4 || valueBytes == 8, "Bad value size: %s", valueBytes);
+		totalRups = reader.getLong(16);
+
+		offsetsPos = HEADER_LEN;
+		latsPos = offsetsPos + 8l*(numSites+1);
+		lonsPos = latsPos + 8l*numSites;
+		indexesPos = lonsPos + 8l*numSites;
+		meansPos = padded(indexesPos + 4l*totalRups);
+		stdDevsPos = padded(meansPos + valueBytes*totalRups);
+		long expectedLen = stdDevsPos + valueBytes*totalRups;
+		Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+				expectedLen, reader.length());
+	}
+
+	private static long padded(long pos) {
+		return pos + MappedFileReader.padding(pos);
+	}
+
+	/**
+	 * @param file
+	 * @return true if the given file is in this indexed format, false if it's a legacy sequential file
+	 * @throws IOException
+	 */
+	public static boolean isIndexedFormat(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getNumSites() {
+		return numSites;
+	}
+
+	public long getTotalNumRuptures() {
+		return totalRups;
+	}
+
+	public boolean isFloatPrecision() {
+		return valueBytes == 4;
+	}
+
+	public Location getLocation(int siteIndex) {
+		return new Location(reader.getDouble(latsPos + 8l*siteIndex), reader.getDouble(lonsPos + 8l*siteIndex));
+	}
+
+	/**
+	 * @param siteIndex
+	 * @return global index of the first rupture for this site, used with the column accessors
+	 */
+	public long getFirstRuptureIndex(int siteIndex) {
+		return reader.getLong(offsetsPos + 8l*siteIndex);
+	}
+
+	public int getNumRuptures(int siteIndex) {
+		return (int)(reader.getLong(offsetsPos + 8l*(siteIndex+1)) - getFirstRuptureIndex(siteIndex));
+	}
+
+	public int getFSSIndex(long rupIndex) {
+		return reader.getInt(indexesPos + 4l*rupIndex);
+	}
+
+	public double getMean(long rupIndex) {
+		if (valueBytes == 4)
+			return reader.getFloat(meansPos + 4l*rupIndex);
+		return reader.getDouble(meansPos + 8l*rupIndex);
+	}
+
+	public double getStdDev(long rupIndex) {
+		if (valueBytes == 4)
+			return reader.getFloat(stdDevsPos + 4l*rupIndex);
+		return reader.getDouble(stdDevsPos + 8l*rupIndex);
+	}
+
+	/**
+	 * Primitive columns for a single site's ruptures, in file order
+	 */
+	public static class SiteColumns {
+		private final int[] fssIndexes;
+		private final double[] means;
+		private final double[] stdDevs;
+
+		private SiteColumns(int[] fssIndexes, double[] means, double[] stdDevs) {
+			this.fssIndexes = fssIndexes;
+			this.means = means;
+			this.stdDevs = stdDevs;
+		}
+
+		public int getNumRuptures() {
+			return fssIndexes.length;
+		}
+
+		/**
+		 * @return FSS index of each rupture. This is the backing array and should not be modified.
+		 */
+		public int[] getFSSIndexes() {
+			return fssIndexes;
+		}
+
+		/**
+		 * @return mean of each rupture. This is the backing array and should not be modified.
+		 */
+		public double[] getMeans() {
+			return means;
+		}
+
+		/**
+		 * @return standard deviation of each rupture. This is the backing array and should not be modified.
+		 */
+		public double[] getStdDevs() {
+			return stdDevs;
+		}
+	}
+
+	/**
+	 * Bulk copies the columns for the given site out of the mapped file into primitive arrays
+	 * @param siteIndex
+	 * @return
+	 */
+	public SiteColumns loadSiteColumns(int siteIndex) {
+		long start = getFirstRuptureIndex(siteIndex);
+		int numRups = getNumRuptures(siteIndex);
+		int[] fssIndexes = new int[numRups];
+		reader.getInts(indexesPos + 4l*start, fssIndexes, 0, numRups);
+		double[] means = new double[numRups];
+		double[] stdDevs = new double[numRups];
+		if (valueBytes == 4) {
+			float[] buf = new float[numRups];
+			reader.getFloats(meansPos + 4l*start, buf, 0, numRups);
+			for (int r=0; r<numRups; r++)
+				means[r] = buf[r];
+			reader.getFloats(stdDevsPos + 4l*start, buf, 0, numRups);
+			for (int r=0; r<numRups; r++)
+				stdDevs[r] = buf[r];
+		} else {
+			reader.getDoubles(meansPos + 8l*start, means, 0, numRups);
+			reader.getDoubles(stdDevsPos + 8l*start, stdDevs, 0, numRups);
+		}
+		return new SiteColumns(fssIndexes, means, stdDevs);
+	}
+
+	/**
+	 * Loads values for the given site in the same form as the legacy readers, see
+	 * {@link #loadSiteColumns(int)} for primitive access
+	 * @param siteIndex
+	 * @param fssIndexFilter if non null, only ruptures in this set will be included
+	 * @return map from FSS index to {mean, stdDev}
+	 */
+	public Map<Integer, double[]> loadSite(int siteIndex, Set<Integer> fssIndexFilter) {
+		SiteColumns cols = loadSiteColumns(siteIndex);
+		int[] fssIndexes = cols.getFSSIndexes();
+		Map<Integer, double[]> rupVals = Maps.newHashMap();
+		for (int r=0; r<fssIndexes.length; r++) {
+			int fssIndex = fssIndexes[r];
+			if (fssIndexFilter != null && !fssIndexFilter.contains(fssIndex))
+				continue;
+			Preconditions.checkState(!rupVals.containsKey(fssIndex));
+			rupVals.put(fssIndex, new double[] { cols.getMeans()[r], cols.getStdDevs()[r] });
+		}
+		return rupVals;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Source of legacy format site records
+	 */
+	interface SiteRecordStream extends Closeable {
+		/**
+		 * @return stream positioned at the start of the next site record
+		 * @throws IOException
+		 */
+		public DataInputStream nextSite() throws IOException;
+
+		/**
+		 * Resets back to the first site
+		 * @throws IOException
+		 */
+		public void reset() throws IOException;
+	}
+
+	/**
+	 * Legacy combined file, which is a site count followed by each site record
+	 */
+	static class LegacyFileRecordStream implements SiteRecordStream {
+
+		private File file;
+		private DataInputStream in;
+		private int numSites;
+
+		public LegacyFileRecordStream(File file) throws IOException {
+			this.file = file;
+			reset();
+		}
+
+		public int getNumSites() {
+			return numSites;
+		}
+
+		@Override
+		public DataInputStream nextSite() throws IOException {
+			return in;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			close();
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024*1024));
+			numSites = in.readInt();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Individual site files, as written by each {@link MPJ_UCERF3_ShakeMapPrecalc} task
+	 */
+	static class SiteFilesRecordStream implements SiteRecordStream {
+
+		private List<File> siteFiles;
+		private int index;
+		private DataInputStream in;
+
+		public SiteFilesRecordStream(List<File> siteFiles) {
+			this.siteFiles = siteFiles;
+		}
+
+		@Override
+		public DataInputStream nextSite() throws IOException {
+			close();
+			File file = siteFiles.get(index++);
+			Preconditions.checkState(file.exists(), "Site file doesn't exist! %s", file.getAbsolutePath());
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			return in;
+		}
+
+		@Override
+		public void reset() throws IOException {
+			close();
+			index = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+			in = null;
+		}
+	}
+
+	/**
+	 * Converts a legacy sequential precalc file to the indexed format
+	 * @param legacyFile
+	 * @param outputFile
+	 * @param floatPrecision if true, means and standard deviations will be stored as floats
+	 * @throws IOException
+	 */
+	public static void convert(File legacyFile, File outputFile, boolean floatPrecision) throws IOException {
+		LegacyFileRecordStream input = new LegacyFileRecordStream(legacyFile);
+		write(outputFile, input.getNumSites(), input, floatPrecision);
+		input.close();
+	}
+
+	/**
+	 * Writes an indexed file from individual site files
+	 * @param siteFiles
+	 * @param outputFile
+	 * @param floatPrecision if true, means and standard deviations will be stored as floats
+	 * @throws IOException
+	 */
+	public static void write(List<File> siteFiles, File outputFile, boolean floatPrecision) throws IOException {
+		SiteFilesRecordStream input = new SiteFilesRecordStream(siteFiles);
+		write(outputFile, siteFiles.size(), input, floatPrecision);
+		input.close();
+	}
+
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	static void write(File outputFile, int numSites, SiteRecordStream input, boolean floatPrecision) throws IOException {
+		int valueBytes = floatPrecision ? 4 : 8;
+
+		// first pass: read site headers and build offsets
+		long[] offsets = new long[numSites+1];
+		double[] lats = new double[numSites];
+		double[] lons = new double[numSites];
+		for (int s=0; s<numSites; s++) {
+			DataInputStream in = input.nextSite();
+			int index = in.readInt();
+			Preconditions.checkState(index == s, "Bad site index. Expected %s, encountered %s", s, index);
+			lats[s] = in.readDouble();
+			lons[s] = in.readDouble();
+			int numRups = in.readInt();
+			Preconditions.checkState(numRups >= 0);
+			offsets[s+1] = offsets[s] + numRups;
+			// 20 bytes per rupture: index (int=4), mean (double=8), stdDev (double=8)
+			skipFully(in, 20l*numRups);
+		}
+		long totalRups = offsets[numSites];
+
+		long offsetsPos = HEADER_LEN;
+		long latsPos = offsetsPos + 8l*(numSites+1);
+		long lonsPos = latsPos + 8l*numSites;
+		long indexesPos = lonsPos + 8l*numSites;
+		long meansPos = padded(indexesPos + 4l*totalRups);
+		long stdDevsPos = padded(meansPos + valueBytes*totalRups);
+		long totalLen = stdDevsPos + valueBytes*totalRups;
+
+		RandomAccessFile raFile = new RandomAccessFile(outputFile, "rw");
+		raFile.setLength(totalLen);
+		FileChannel channel = raFile.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate((int)indexesPos);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(numSites);
+		header.putInt(valueBytes);
+		header.putLong(totalRups);
+		for (long offset : offsets)
+			header.putLong(offset);
+		for (double lat : lats)
+			header.putDouble(lat);
+		for (double lon : lons)
+			header.putDouble(lon);
+		header.flip();
+		writeFully(channel, header, 0l);
+
+		// second pass: stream records into each column
+		input.reset();
+		ColumnWriter indexWriter = new ColumnWriter(channel, indexesPos);
+		ColumnWriter meanWriter = new ColumnWriter(channel, meansPos);
+		ColumnWriter stdDevWriter = new ColumnWriter(channel, stdDevsPos);
+		for (int s=0; s<numSites; s++) {
+			DataInputStream in = input.nextSite();
+			in.readInt();
+			in.readDouble();
+			in.readDouble();
+			int numRups = in.readInt();
+			Preconditions.checkState(numRups == offsets[s+1] - offsets[s], "Rupture count changed between passes");
+			for (int r=0; r<numRups; r++) {
+				indexWriter.ensureCapacity(4).putInt(in.readInt());
+				double mean = in.readDouble();
+				double stdDev = in.readDouble();
+				if (floatPrecision) {
+					meanWriter.ensureCapacity(4).putFloat((float)mean);
+					stdDevWriter.ensureCapacity(4).putFloat((float)stdDev);
+				} else {
+					meanWriter.ensureCapacity(8).putDouble(mean);
+					stdDevWriter.ensureCapacity(8).putDouble(stdDev);
+				}
+			}
+		}
+		indexWriter.flush();
+		meanWriter.flush();
+		stdDevWriter.flush();
+
+		channel.close();
+		raFile.close();
+	}
+
+	private static class ColumnWriter {
+		private FileChannel channel;
+		private long pos;
+		private ByteBuffer buf;
+
+		public ColumnWriter(FileChannel channel, long pos) {
+			this.channel = channel;
+			this.pos = pos;
+			this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		public ByteBuffer ensureCapacity(int bytes) throws IOException {
+			if (buf.remaining() < bytes)
+				flush();
+			return buf;
+		}
+
+		public void flush() throws IOException {
+			buf.flip();
+			pos += writeFully(channel, buf, pos);
+			buf.clear();
+		}
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		int written = 0;
+		while (buf.hasRemaining())
+			written += channel.write(buf, pos + written);
+		return written;
+	}
+
+	private static void skipFully(DataInputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			int skipped = in.skipBytes((int)Math.min(bytes, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				// skipBytes can return 0 before EOF, fall back to a read to detect EOF
+				in.readByte();
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("USAGE: "+ShakeMapPrecalcIndexedFile.class.getName()
+					+" <legacy-file> <output-file> [--float]");
+			System.exit(2);
+		}
+		File legacyFile = new File(args[0]);
+		File outputFile = new File(args[1]);
+		boolean floatPrecision = args.length == 3 && args[2].equals("--float");
+		Preconditions.checkState(!isIndexedFormat(legacyFile), "Input file is already indexed");
+
+		Stopwatch watch = Stopwatch.createStarted();
+		convert(legacyFile, outputFile, floatPrecision);
+		System.out.println("Converted in "+watch.elapsed(TimeUnit.SECONDS)+" secs");
+
+		watch.reset().start();
+		ShakeMapPrecalcIndexedFile indexed = new ShakeMapPrecalcIndexedFile(outputFile);
+		System.out.println("Opened "+indexed.getNumSites()+" sites, "+indexed.getTotalNumRuptures()
+			+" ruptures in "+watch.elapsed(TimeUnit.MILLISECONDS)+" ms");
+		indexed.close();
+	}
+
+}
@@ -43,7 +43,6 @@ import org.opensha.sra.vulnerability.VulnerabilityFetcher;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
-import com.google.common.collect.Table;
 
 import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
 import scratch.UCERF3.FaultSystemSolution;
@@ -81,6 +80,8 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 	
 	private DiscretizedFunc magThreshFunc;
 	
+	private SpatiallyCorrelatedLossEngine engine;
+	
 	public MPJ_SpatiallyCorrelatedLossCalc(CommandLine cmd, File outputDir) throws IOException, DocumentException {
 		super(cmd);
 		this.shuffle = false;
@@ -185,9 +186,15 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 		
 		double gridSpacing = Double.parseDouble(cmd.getOptionValue("field-spacing"));
 		
+		// use binary fields if available, otherwise CSV
+		String fieldSuffix = ".csv";
+		for (File file : fieldFiles)
+			if (file.getName().endsWith(".bin"))
+				fieldSuffix = ".bin";
+		
 		List<RandomFieldLoader> randFields = new ArrayList<>();
 		for (File file : fieldFiles)
-			if (file.getName().endsWith(".csv"))
+			if (file.getName().endsWith(fieldSuffix))
 				randFields.add(RandomFieldLoader.load(file, gridSpacing));
 		if (rank == 0)
 			debug("Loaded "+randFields.size()+" random fields");
@@ -195,6 +202,8 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 		
 		magThreshFunc = MPJ_CondLossCalc.getDefaultMagDistFunc();
 		
+		engine = new SpatiallyCorrelatedLossEngine(assets, fields, magThreshFunc);
+		
 		exec = Executors.newFixedThreadPool(getNumThreads());
 	}
 
@@ -205,16 +214,16 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 
 	@Override
 	protected void calculateBatch(int[] batch) throws Exception {
+		// submit ruptures for every branch in this batch before waiting on any of them, so that threads don't sit idle
+		// while the last few ruptures of each branch finish
+		List<List<Future<CalcCallable>>> branchFutures = new ArrayList<>();
 		for (int index : batch) {
 			U3_EAL_LogicTreeBranch branch = branches.get(index);
 			File binFile = branch.getFSSIndexedBinFile(); // not fss index, but full
 			double[][] results = MPJ_CondLossCalc.loadResults(binFile);
 			
 			List<Future<CalcCallable>> futures = new ArrayList<>();
-			
-			U3_EAL_GMMs gmmBranch = branch.getValue(U3_EAL_GMMs.class);
-			U3_EAL_GMM_Epistemic gmmEpiBranch = branch.getValue(U3_EAL_GMM_Epistemic.class);
-			U3_EAL_Vs30Model vs30Branch = branch.getValue(U3_EAL_Vs30Model.class);
+			branchFutures.add(futures);
 			
 			String dataPrefix = binFile.getAbsolutePath();
 			dataPrefix = dataPrefix.substring(0, dataPrefix.indexOf(".bin"));
@@ -286,7 +295,11 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 							meanLossAtMaxRate, betweenEventStdDevs)));
 				}
 			}
-			
+		}
+		
+		for (int b=0; b<batch.length; b++) {
+			int index = batch[b];
+			List<Future<CalcCallable>> futures = branchFutures.get(b);
 			debug("Waiting on "+futures.size()+" futures for "+index);
 			
 			List<CalcCallable> calls = new ArrayList<>();
@@ -298,62 +311,55 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 				}
 			}
 			
-			if (betweenEventStdDevs == null) {
-				// random samples
-				CSVFile<String> fullCSV = new CSVFile<>(true);
-				List<String> header = new ArrayList<>();
-				header.add("GMPE");
-				header.add("GMPE Epistempic Branch");
-				header.add("Vs30 Model");
-				header.add("Loss Bin");
-				header.add("Modal Rupture Rate");
-				header.add("Modal Rupture Mag");
-				header.add("Modal Rupture Mean Loss");
-				header.add("Between-Event Index");
-				header.add("Between-Event Term");
-				for (int f=0; f<fields.length; f++)
-					header.add("Loss for Field "+f);
-				fullCSV.addLine(header);
-				CSVFile<String> summaryCSV = new CSVFile<>(true);
-				header = new ArrayList<>();
-				header.add("GMPE");
-				header.add("GMPE Epistempic Branch");
-				header.add("Vs30 Model");
-				header.add("Loss Bin");
-				header.add("Modal Rupture Rate");
-				header.add("Modal Rupture Mag");
-				header.add("Modal Rupture Mean Loss");
-				header.add("Ln-Mean Calculated Loss");
-				header.add("Ln Loss Standard Deviation");
-				summaryCSV.addLine(header);
+			writeResults(branches.get(index), calls);
+			
+			debug("Done with "+index);
+		}
+	}
+	
+	private void writeResults(U3_EAL_LogicTreeBranch branch, List<CalcCallable> calls) throws IOException {
+		U3_EAL_GMMs gmmBranch = branch.getValue(U3_EAL_GMMs.class);
+		U3_EAL_GMM_Epistemic gmmEpiBranch = branch.getValue(U3_EAL_GMM_Epistemic.class);
+		U3_EAL_Vs30Model vs30Branch = branch.getValue(U3_EAL_Vs30Model.class);
+		double erfDuration = erf.getTimeSpan().getDuration();
+		
+		if (betweenEventStdDevs == null) {
+			// random samples
+			CSVFile<String> fullCSV = new CSVFile<>(true);
+			List<String> header = new ArrayList<>();
+			header.add("GMPE");
+			header.add("GMPE Epistempic Branch");
+			header.add("Vs30 Model");
+			header.add("Loss Bin");
+			header.add("Modal Rupture Rate");
+			header.add("Modal Rupture Mag");
+			header.add("Modal Rupture Mean Loss");
+			header.add("Between-Event Index");
+			header.add("Between-Event Term");
+			for (int f=0; f<fields.length; f++)
+				header.add("Loss for Field "+f);
+			fullCSV.addLine(header);
+			CSVFile<String> summaryCSV = new CSVFile<>(true);
+			header = new ArrayList<>();
+			header.add("GMPE");
+			header.add("GMPE Epistempic Branch");
+			header.add("Vs30 Model");
+			header.add("Loss Bin");
+			header.add("Modal Rupture Rate");
+			header.add("Modal Rupture Mag");
+			header.add("Modal Rupture Mean Loss");
+			header.add("Ln-Mean Calculated Loss");
+			header.add("Ln Loss Standard Deviation");
+			summaryCSV.addLine(header);
+			
+			for (CalcCallable call : calls) {
+				if (call.rup == null || call.losses == null)
+					continue;
 				
-				for (CalcCallable call : calls) {
-					if (call.rup == null || call.lossTable.isEmpty())
-						continue;
-					
-					double[] logLosses = new double[call.betweenEventStdDevs.length*fields.length];
-					int lossIndex = 0;
-					for (int t=0; t<call.betweenEventStdDevs.length; t++) {
-						double between = call.betweenEventStdDevs[t];
-						List<String> line = new ArrayList<>();
-						line.add(gmmBranch.getShortName());
-						line.add(gmmEpiBranch.getShortName());
-						line.add(vs30Branch.getShortName());
-						line.add((float)call.lossXVal+"");
-						line.add(call.rup.getMeanAnnualRate(erfDuration)+"");
-						line.add(call.rup.getMag()+"");
-						line.add(call.rupMeanLoss+"");
-						line.add(t+"");
-						line.add((float)between+"");
-						for (int i=0; i<fields.length; i++) {
-							double val = call.lossTable.get(between, fields[i]);
-							Preconditions.checkState(Double.isFinite(val));
-							line.add(val+"");
-							logLosses[lossIndex++] = Math.log(val);
-						}
-						fullCSV.addLine(line);
-					}
-					Preconditions.checkState(logLosses.length == lossIndex);
+				double[] logLosses = new double[call.betweenEventStdDevs.length*fields.length];
+				int lossIndex = 0;
+				for (int t=0; t<call.betweenEventStdDevs.length; t++) {
+					double between = call.betweenEventStdDevs[t];
 					List<String> line = new ArrayList<>();
 					line.add(gmmBranch.getShortName());
 					line.add(gmmEpiBranch.getShortName());
@@ -362,67 +368,84 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 					line.add(call.rup.getMeanAnnualRate(erfDuration)+"");
 					line.add(call.rup.getMag()+"");
 					line.add(call.rupMeanLoss+"");
-					double lnMean = StatUtils.mean(logLosses);
-					double std = Math.sqrt(StatUtils.variance(logLosses));
-					line.add(lnMean+"");
-					line.add(std+"");
-					summaryCSV.addLine(line);
+					line.add(t+"");
+					line.add((float)between+"");
+					for (int i=0; i<fields.length; i++) {
+						double val = call.losses[t][i];
+						Preconditions.checkState(Double.isFinite(val));
+						line.add(val+"");
+						logLosses[lossIndex++] = Math.log(val);
+					}
+					fullCSV.addLine(line);
 				}
-				
-				String outputPrefix = gmmBranch.encodeChoiceString()+"_"+gmmEpiBranch.encodeChoiceString()
-					+"_"+vs30Branch.encodeChoiceString();
-				String outputName = outputPrefix+".csv";
-				debug("Writing "+outputName);
-				fullCSV.writeToFile(new File(resultsDir, outputName));
+				Preconditions.checkState(logLosses.length == lossIndex);
+				List<String> line = new ArrayList<>();
+				line.add(gmmBranch.getShortName());
+				line.add(gmmEpiBranch.getShortName());
+				line.add(vs30Branch.getShortName());
+				line.add((float)call.lossXVal+"");
+				line.add(call.rup.getMeanAnnualRate(erfDuration)+"");
+				line.add(call.rup.getMag()+"");
+				line.add(call.rupMeanLoss+"");
+				double lnMean = StatUtils.mean(logLosses);
+				double std = Math.sqrt(StatUtils.variance(logLosses));
+				line.add(lnMean+"");
+				line.add(std+"");
+				summaryCSV.addLine(line);
+			}
+			
+			String outputPrefix = gmmBranch.encodeChoiceString()+"_"+gmmEpiBranch.encodeChoiceString()
+				+"_"+vs30Branch.encodeChoiceString();
+			String outputName = outputPrefix+".csv";
+			debug("Writing "+outputName);
+			fullCSV.writeToFile(new File(resultsDir, outputName));
 
-				outputName = outputPrefix+"_summary.csv";
-				debug("Writing "+outputName);
-				summaryCSV.writeToFile(new File(resultsDir, outputName));
-			} else {
-				CSVFile<String> csv = new CSVFile<>(true);
-				List<String> header = new ArrayList<>();
-				header.add("GMPE");
-				header.add("GMPE Epistempic Branch");
-				header.add("Vs30 Model");
-				header.add("Loss Bin");
-				header.add("Modal Rupture Rate");
-				header.add("Modal Rupture Mag");
-				header.add("Modal Rupture Mean Loss");
-				header.add("Modal Rupture Between-Event Term");
-				header.add("Field ID");
-				header.add("Loss");
-				csv.addLine(header);
+			outputName = outputPrefix+"_summary.csv";
+			debug("Writing "+outputName);
+			summaryCSV.writeToFile(new File(resultsDir, outputName));
+		} else {
+			CSVFile<String> csv = new CSVFile<>(true);
+			List<String> header = new ArrayList<>();
+			header.add("GMPE");
+			header.add("GMPE Epistempic Branch");
+			header.add("Vs30 Model");
+			header.add("Loss Bin");
+			header.add("Modal Rupture Rate");
+			header.add("Modal Rupture Mag");
+			header.add("Modal Rupture Mean Loss");
+			header.add("Modal Rupture Between-Event Term");
+			header.add("Field ID");
+			header.add("Loss");
+			csv.addLine(header);
+			
+			for (CalcCallable call : calls) {
+				if (call.rup == null || call.losses == null)
+					continue;
 				
-				for (CalcCallable call : calls) {
-					if (call.rup == null || call.lossTable.isEmpty())
-						continue;
-					
-					for (double between : betweenEventStdDevs) {
-						List<String> linePrefix = new ArrayList<>();
-						linePrefix.add(gmmBranch.getShortName());
-						linePrefix.add(gmmEpiBranch.getShortName());
-						linePrefix.add(vs30Branch.getShortName());
-						linePrefix.add((float)call.lossXVal+"");
-						linePrefix.add(call.rup.getMeanAnnualRate(erfDuration)+"");
-						linePrefix.add(call.rup.getMag()+"");
-						linePrefix.add(call.rupMeanLoss+"");
-						linePrefix.add((float)between+"");
-						for (int i=0; i<fields.length; i++) {
-							List<String> line = new ArrayList<>(linePrefix);
-							line.add(i+"");
-							line.add(call.lossTable.get(between, fields[i]).toString());
-							csv.addLine(line);
-						}
+				for (int t=0; t<betweenEventStdDevs.length; t++) {
+					double between = betweenEventStdDevs[t];
+					List<String> linePrefix = new ArrayList<>();
+					linePrefix.add(gmmBranch.getShortName());
+					linePrefix.add(gmmEpiBranch.getShortName());
+					linePrefix.add(vs30Branch.getShortName());
+					linePrefix.add((float)call.lossXVal+"");
+					linePrefix.add(call.rup.getMeanAnnualRate(erfDuration)+"");
+					linePrefix.add(call.rup.getMag()+"");
+					linePrefix.add(call.rupMeanLoss+"");
+					linePrefix.add((float)between+"");
+					for (int i=0; i<fields.length; i++) {
+						List<String> line = new ArrayList<>(linePrefix);
+						line.add(i+"");
+						line.add(call.losses[t][i]+"");
+						csv.addLine(line);
 					}
 				}
-				
-				String outputName = gmmBranch.encodeChoiceString()+"_"+gmmEpiBranch.encodeChoiceString()
-					+"_"+vs30Branch.encodeChoiceString()+".csv";
-				debug("Writing "+outputName);
-				csv.writeToFile(new File(resultsDir, outputName));
 			}
 			
-			debug("Done with "+index);
+			String outputName = gmmBranch.encodeChoiceString()+"_"+gmmEpiBranch.encodeChoiceString()
+				+"_"+vs30Branch.encodeChoiceString()+".csv";
+			debug("Writing "+outputName);
+			csv.writeToFile(new File(resultsDir, outputName));
 		}
 	}
 	
@@ -434,7 +457,8 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 		private double rupMeanLoss;
 		private double[] betweenEventStdDevs;
 		
-		private Table<Double, RandomFieldLoader, Double> lossTable;
+		// indexed as [betweenEvent][field], null if no assets passed the magnitude-distance cutoff
+		private double[][] losses;
 
 		public CalcCallable(ScalarIMR gmpe, ProbEqkRupture rup, double lossXVal,
 				double rupMeanLoss, double[] betweenEventStdDevs) {
@@ -453,8 +477,7 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 				return this;
 			
 			Location rupCentroid = SpatiallyCorrelatedLossCalc.calcRupCentroid(rup.getRuptureSurface());
-			lossTable =	SpatiallyCorrelatedLossCalc.calcSpatiallyCorrelatedLoss(
-							gmpe, assets, rup, rupCentroid, betweenEventStdDevs, fields, magThreshFunc);
+			losses = engine.calcLosses(gmpe, rup, rupCentroid, betweenEventStdDevs);
 			
 			return this;
 		}
@@ -512,7 +535,7 @@ public class MPJ_SpatiallyCorrelatedLossCalc extends MPJTaskCalculator {
 		options.addOption(randBetweenStdDevs);
 		
 		Option fieldsDir = new Option("fd", "fields-dir", true,
-				"Directory containing random field CSV files");
+				"Directory containing random field CSV or binary (.bin) files");
 		fieldsDir.setRequired(true);
 		options.addOption(fieldsDir);
 		
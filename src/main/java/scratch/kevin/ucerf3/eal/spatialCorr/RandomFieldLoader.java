@@ -1,100 +1,191 @@
 package scratch.kevin.ucerf3.eal.spatialCorr;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opensha.commons.data.CSVFile;
-import org.opensha.commons.data.xyz.EvenlyDiscrXYZ_DataSet;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
 import org.opensha.commons.geo.LocationVector;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 
-public class RandomFieldLoader {
+import com.google.common.base.Preconditions;
+
+import scratch.kevin.util.MappedFileReader;
+
+/**
+ * Random within-event field centered on the rupture centroid, which wraps (tiles) for sites beyond its extent.
+ * <br>
+ * Fields can be loaded from CSV files (x index, y index, value) or from a compact binary format which is memory
+ * mapped rather than read into the heap, so that hundreds of fields can be loaded quickly and shared across threads:
+ * <pre>
+ * int magic, int version, int nx, int ny, double gridSpacing
+ * float[ny*nx] values (x index varies fastest)
+ * </pre>
+ * CSV files can be converted with {@link #writeBinary(File)} (also available via the main method).
+ * <br>
+ * All value lookups are thread safe.
+ */
+public class RandomFieldLoader implements Closeable {
 	
 	protected static boolean D = false;
 	
-	private EvenlyDiscrXYZ_DataSet field;
-	private double centerX, centerY;
+	public static final int MAGIC = 0x52464C44; // "RFLD"
+	public static final int VERSION = 1;
+	private static final int HEADER_LEN = 4 + 4 + 4 + 4 + 8;
 	
-	private double wrapMinX, wrapMaxX, wrapMinY, wrapMaxY;
+	private final int nx, ny;
+	private final double gridSpacing;
+	private final double centerX, centerY;
 	
-	private long numWrappedCalcs;
-	private long totalNumCalcs;
-
-	private RandomFieldLoader(EvenlyDiscrXYZ_DataSet field) {
-		this.field = field;
-		
-		centerX = 0.5*(field.getMinX() + field.getMaxX());
-		centerY = 0.5*(field.getMinY() + field.getMaxY());
-		
-		double deltaX = field.getGridSpacingX();
-		double deltaY = field.getGridSpacingY();
+	// values from CSV files, indexed as y*nx + x
+	private double[] values;
+	// or memory mapped binary file
+	private MappedFileReader reader;
+	
+	private final LongAdder numWrappedCalcs = new LongAdder();
+	private final LongAdder totalNumCalcs = new LongAdder();
+	
+	private RandomFieldLoader(int nx, int ny, double gridSpacing) {
+		Preconditions.checkArgument(nx > 0 && ny > 0, "Field must be non empty");
+		Preconditions.checkArgument(gridSpacing > 0, "Grid spacing must be positive");
+		this.nx = nx;
+		this.ny = ny;
+		this.gridSpacing = gridSpacing;
 		
-		wrapMinX = field.getMinX() - 0.5*deltaX;
-		wrapMaxX = field.getMaxX() + 0.5*deltaX;
-		wrapMinY = field.getMinY() - 0.5*deltaY;
-		wrapMaxY = field.getMaxY() + 0.5*deltaY;
+		// min x and y are both zero
+		centerX = 0.5*(nx-1)*gridSpacing;
+		centerY = 0.5*(ny-1)*gridSpacing;
+	}
+	
+	private RandomFieldLoader(double[] values, int nx, int ny, double gridSpacing) {
+		this(nx, ny, gridSpacing);
+		Preconditions.checkArgument(values.length == nx*ny);
+		this.values = values;
+	}
+	
+	private RandomFieldLoader(MappedFileReader reader, int nx, int ny, double gridSpacing) {
+		this(nx, ny, gridSpacing);
+		long expectedLen = HEADER_LEN + 4l*nx*ny;
+		Preconditions.checkState(reader.length() == expectedLen, "Bad file length. Expected %s, actual %s",
+				expectedLen, reader.length());
+		this.reader = reader;
 	}
 	
 	public double getValue(Location siteLoc, Location ruptureCentroid) {
 		LocationVector vector = LocationUtils.vector(ruptureCentroid, siteLoc);
 		double dist = vector.getHorzDistance();
 		double az = vector.getAzimuthRad();
-		double x = centerX + dist*Math.sin(az);
-		double y = centerY + dist*Math.cos(az);
+		double offsetX = dist*Math.sin(az);
+		double offsetY = dist*Math.cos(az);
 		
-		if (D) System.out.println("GET "+totalNumCalcs);
-		if (D) System.out.println("\tx="+(float)x+"\ty="+(float)y);
+		if (D) System.out.println("GET "+totalNumCalcs.sum());
+		if (D) System.out.println("\tx="+(float)(centerX+offsetX)+"\ty="+(float)(centerY+offsetY));
 		
-//		field.getX(xIndex)
-		boolean wrapped = false;
-		while (x > wrapMaxX) {
-			wrapped = true;
-			x -= (wrapMaxX-wrapMinX);
-		}
-		while (x < wrapMinX) {
-			wrapped = true;
-			x += (wrapMaxX-wrapMinX);
-		}
-		while (y > wrapMaxY) {
-			wrapped = true;
-			y -= (wrapMaxY-wrapMinY);
-		}
-		while (y < wrapMinX) {
-			wrapped = true;
-			y += (wrapMaxY-wrapMinY);
-		}
+		double ret = getValue(offsetX, offsetY);
 		
-		if (wrapped == true)
-			numWrappedCalcs++;
-		totalNumCalcs++;
+		if (D) System.out.println("\tRET: "+ret);
 		
-		int xInd = field.getXIndex(x);
-		int yInd = field.getYIndex(y);
+		return ret;
+	}
+	
+	/**
+	 * @param offsetX east-west offset from the field center (rupture centroid) in km
+	 * @param offsetY north-south offset from the field center (rupture centroid) in km
+	 * @return field value at the given offset
+	 */
+	public double getValue(double offsetX, double offsetY) {
+		int xInd = (int)Math.round((centerX + offsetX)/gridSpacing);
+		int yInd = (int)Math.round((centerY + offsetY)/gridSpacing);
 		
-		if (D && wrapped)
-			System.out.println("\t\twrapped! new x="+(float)x+"\ty="+(float)y);
+		if (xInd < 0 || xInd >= nx || yInd < 0 || yInd >= ny) {
+			numWrappedCalcs.increment();
+			xInd = Math.floorMod(xInd, nx);
+			yInd = Math.floorMod(yInd, ny);
+			if (D) System.out.println("\t\twrapped!");
+		}
+		totalNumCalcs.increment();
 		
 		if (D) System.out.println("\txInd="+xInd+"\tyInd="+yInd);
 		
-		double ret = field.get(xInd, yInd);
-		
-		if (D) System.out.println("\tRET: "+ret);
-		
-		return ret;
+		return get(xInd, yInd);
 	}
-
+	
+	/**
+	 * Bulk version of {@link #getValue(double, double)}
+	 *
+	 * @param offsetsX east-west offsets from the field center in km
+	 * @param offsetsY north-south offsets from the field center in km
+	 * @param num number of offsets to look up
+	 * @param dest destination array for values, must be at least num long
+	 */
+	public void getValues(double[] offsetsX, double[] offsetsY, int num, double[] dest) {
+		long wrappedCount = 0l;
+		for (int i=0; i<num; i++) {
+			int xInd = (int)Math.round((centerX + offsetsX[i])/gridSpacing);
+			int yInd = (int)Math.round((centerY + offsetsY[i])/gridSpacing);
+			if (xInd < 0 || xInd >= nx || yInd < 0 || yInd >= ny) {
+				wrappedCount++;
+				xInd = Math.floorMod(xInd, nx);
+				yInd = Math.floorMod(yInd, ny);
+			}
+			dest[i] = get(xInd, yInd);
+		}
+		numWrappedCalcs.add(wrappedCount);
+		totalNumCalcs.add(num);
+	}
+	
+	private double get(int xInd, int yInd) {
+		int index = yInd*nx + xInd;
+		if (values != null)
+			return values[index];
+		return reader.getFloat(HEADER_LEN + 4l*index);
+	}
+	
 	public long getNumWrappedCalcs() {
-		return numWrappedCalcs;
+		return numWrappedCalcs.sum();
 	}
-
+	
 	public long getTotalNumCalcs() {
-		return totalNumCalcs;
+		return totalNumCalcs.sum();
+	}
+	
+	public int getNumX() {
+		return nx;
 	}
 	
-	public static RandomFieldLoader load(File csvFile, double gridSpacing) throws IOException {
-		CSVFile<String> csv = CSVFile.readFile(csvFile, true);
+	public int getNumY() {
+		return ny;
+	}
+	
+	public double getGridSpacing() {
+		return gridSpacing;
+	}
+	
+	/**
+	 * Loads the given random field, in either CSV or binary format (detected from the file contents)
+	 * @param file
+	 * @param gridSpacing grid spacing in km, only used for CSV files (binary files store their spacing, which must
+	 * match if this is positive)
+	 * @return
+	 * @throws IOException
+	 */
+	public static RandomFieldLoader load(File file, double gridSpacing) throws IOException {
+		if (isBinaryFormat(file)) {
+			RandomFieldLoader ret = loadBinary(file);
+			Preconditions.checkState(gridSpacing <= 0d || (float)gridSpacing == (float)ret.gridSpacing,
+					"Grid spacing mismatch for %s: %s != %s", file.getName(), gridSpacing, ret.gridSpacing);
+			return ret;
+		}
+		CSVFile<String> csv = CSVFile.readFile(file, true);
 		
 		int minXIndex = csv.getInt(1, 0);
 		int minYIndex = csv.getInt(1, 1);
@@ -104,35 +195,111 @@ public class RandomFieldLoader {
 		int nx = 1 + maxXIndex - minXIndex;
 		int ny = 1 + maxYIndex - minYIndex;
 		
-		double minX = 0d;
-		double minY = 0d;
-		
-		EvenlyDiscrXYZ_DataSet field = new EvenlyDiscrXYZ_DataSet(nx, ny, minX, minY, gridSpacing);
+		double[] values = new double[nx*ny];
 		for (int row=1; row<csv.getNumRows(); row++) {
 			int x = csv.getInt(row, 0)-minXIndex;
 			int y = csv.getInt(row, 1)-minYIndex;
-			field.set(x, y, csv.getDouble(row, 2));
+			values[y*nx + x] = csv.getDouble(row, 2);
 		}
 		
-		return new RandomFieldLoader(field);
+		return new RandomFieldLoader(values, nx, ny, gridSpacing);
 	}
-
+	
+	/**
+	 * @param file
+	 * @return true if the given file is in the binary format
+	 * @throws IOException
+	 */
+	public static boolean isBinaryFormat(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Memory maps the given binary random field file
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static RandomFieldLoader loadBinary(File file) throws IOException {
+		MappedFileReader reader = new MappedFileReader(file);
+		Preconditions.checkState(reader.getInt(0) == MAGIC, "Not a binary random field file: %s", file);
+		int version = reader.getInt(4);
+		Preconditions.checkState(version == VERSION, "Unsupported version: %s", version);
+		int nx = reader.getInt(8);
+		int ny = reader.getInt(12);
+		double gridSpacing = reader.getDouble(16);
+		return new RandomFieldLoader(reader, nx, ny, gridSpacing);
+	}
+	
+	/**
+	 * Writes this field in the binary format. Values are stored as floats.
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public void writeBinary(File outputFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(nx);
+		out.writeInt(ny);
+		out.writeDouble(gridSpacing);
+		for (int y=0; y<ny; y++)
+			for (int x=0; x<nx; x++)
+				out.writeFloat((float)get(x, y));
+		out.close();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+	}
+	
 	public static void main(String[] args) throws IOException {
+		if (args.length == 3) {
+			// convert a directory of CSV files to binary
+			File inputDir = new File(args[0]);
+			File outputDir = new File(args[1]);
+			double gridSpacing = Double.parseDouble(args[2]);
+			Preconditions.checkState(outputDir.exists() || outputDir.mkdir());
+			for (File file : inputDir.listFiles()) {
+				String name = file.getName();
+				if (!name.endsWith(".csv"))
+					continue;
+				RandomFieldLoader loader = load(file, gridSpacing);
+				File outputFile = new File(outputDir, name.substring(0, name.length()-4)+".bin");
+				System.out.println("Writing "+outputFile.getName());
+				loader.writeBinary(outputFile);
+			}
+			System.exit(0);
+		} else if (args.length != 0) {
+			System.err.println("USAGE: RandomFieldLoader [<csv-dir> <bin-dir> <grid-spacing>]");
+			System.exit(2);
+		}
 		File dir = new File("/home/kevin/OpenSHA/UCERF3/eal/random_fields/sa10_1km_800x800");
 		
 		RandomFieldLoader loader = load(new File(dir, "800x800SA10_001.csv"), 1d);
-		System.out.println(loader.field.getNumX()+" "+loader.field.getNumY());
-		System.out.println(loader.field.getMaxX()+" "+loader.field.getMaxY());
+		System.out.println(loader.nx+" "+loader.ny);
+		System.out.println((loader.nx-1)*loader.gridSpacing+" "+(loader.ny-1)*loader.gridSpacing);
 		
 		MinMaxAveTracker track = new MinMaxAveTracker();
-		for (int i=0; i<loader.field.size(); i++)
-			track.addValue(loader.field.get(i));
+		for (int y=0; y<loader.ny; y++)
+			for (int x=0; x<loader.nx; x++)
+				track.addValue(loader.get(x, y));
 		System.out.println("Field stats: "+track);
 		
 		Location centroid = new Location(34, -118);
 		
 		D = true;
-
+		
 		loader.getValue(new Location(34, -118), centroid);
 		loader.getValue(new Location(33.99, -118), centroid);
 		loader.getValue(new Location(0, -0), centroid);
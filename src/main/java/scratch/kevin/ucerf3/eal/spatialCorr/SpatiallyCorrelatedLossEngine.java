@@ -0,0 +1,238 @@
+package scratch.kevin.ucerf3.eal.spatialCorr;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.geo.LocationVector;
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_WrapperFullParam;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.ScalarGroundMotion;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.imr.param.OtherParams.StdDevTypeParam;
+import org.opensha.sra.gui.portfolioeal.Asset;
+import org.opensha.sra.vulnerability.Vulnerability;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Batched version of {@link SpatiallyCorrelatedLossCalc#calcSpatiallyCorrelatedLoss(ScalarIMR, List, EqkRupture,
+ * Location, double[], RandomFieldLoader[], DiscretizedFunc)} for large portfolios and many random fields.
+ * <br>
+ * Asset vulnerability models are resolved once up front, and site objects are built once per GMPE type rather than
+ * once per asset per rupture. For each rupture, the offset of each asset from the rupture centroid is computed once
+ * (rather than once per between-event term and field), all field values for a batch of assets are looked up into a
+ * primitive array, and losses are accumulated into a double[betweenEvent][field] array.
+ * <br>
+ * A single instance can be shared across threads as long as each thread uses its own GMPE instance.
+ *
+ * @author kevin
+ *
+ */
+public class SpatiallyCorrelatedLossEngine {
+
+	// number of assets for which field values are looked up at once
+	private static final int assets_per_batch = 10000;
+
+	private final List<Asset> assets;
+	private final RandomFieldLoader[] fields;
+	private final DiscretizedFunc magThreshFunc;
+
+	private final Location[] assetLocs;
+	private final double[] assetValues;
+	private final DiscretizedFunc[] vulnFuncs;
+	private final String[] imts;
+	private final double[] periods;
+
+	// sites for each asset, by GMPE short name
+	private final Map<String, Site[]> sitesCache = new HashMap<>();
+
+	/**
+	 * @param assets portfolio assets
+	 * @param fields random within-event fields
+	 * @param magThreshFunc magnitude-distance cutoff function, or null for no cutoff
+	 */
+	public SpatiallyCorrelatedLossEngine(List<Asset> assets, RandomFieldLoader[] fields,
+			DiscretizedFunc magThreshFunc) {
+		Preconditions.checkArgument(fields.length > 0, "Must supply at least one random field");
+		this.assets = assets;
+		this.fields = fields;
+		this.magThreshFunc = magThreshFunc;
+
+		int numAssets = assets.size();
+		assetLocs = new Location[numAssets];
+		assetValues = new double[numAssets];
+		vulnFuncs = new DiscretizedFunc[numAssets];
+		imts = new String[numAssets];
+		periods = new double[numAssets];
+		for (int a=0; a<numAssets; a++) {
+			Asset asset = assets.get(a);
+			Vulnerability vulnModel;
+			try {
+				vulnModel = asset.getVulnModel();
+			} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+			assetLocs[a] = asset.getLocation();
+			assetValues[a] = asset.getValue();
+			vulnFuncs[a] = vulnModel.getVulnerabilityFunc();
+			imts[a] = vulnModel.getIMT();
+			periods[a] = vulnModel.getPeriod();
+		}
+	}
+
+	public int getNumFields() {
+		return fields.length;
+	}
+
+	private synchronized Site[] getSites(ScalarIMR gmpe) {
+		Site[] sites = sitesCache.get(gmpe.getShortName());
+		if (sites == null) {
+			// this modifies the asset, so must be done within this synchronized block. sites are read only afterwards
+			sites = new Site[assets.size()];
+			for (int a=0; a<sites.length; a++) {
+				Asset asset = assets.get(a);
+				Site site = new Site();
+				for (Parameter<?> param : gmpe.getSiteParams())
+					site.addParameter((Parameter<?>)param.clone());
+				asset.siteSetup(site);
+				sites[a] = asset.getSite();
+			}
+			sitesCache.put(gmpe.getShortName(), sites);
+		}
+		return sites;
+	}
+
+	/**
+	 * Calculates the total portfolio loss for each between-event term and random field
+	 *
+	 * @param gmpe GMPE, must not be used concurrently by any other thread
+	 * @param rup
+	 * @param rupCentroid rupture centroid, the location of the center of each random field
+	 * @param betweenEventStdDevs between-event terms (in units of standard deviations)
+	 * @return losses indexed as [betweenEvent][field], or null if no assets pass the magnitude-distance cutoff
+	 */
+	public double[][] calcLosses(ScalarIMR gmpe, EqkRupture rup, Location rupCentroid,
+			double[] betweenEventStdDevs) {
+		Site[] sites = getSites(gmpe);
+		int numAssets = assets.size();
+		int numBetween = betweenEventStdDevs.length;
+		int numFields = fields.length;
+
+		double[][] losses = new double[numBetween][numFields];
+
+		gmpe.setEqkRupture(rup);
+		RuptureSurface surf = rup.getRuptureSurface();
+
+		// per asset values for the current batch
+		int[] batchAssets = new int[Math.min(assets_per_batch, numAssets)];
+		double[] offsetsX = new double[batchAssets.length];
+		double[] offsetsY = new double[batchAssets.length];
+		double[] means = new double[batchAssets.length];
+		double[] phis = new double[batchAssets.length];
+		double[] taus = new double[batchAssets.length];
+		// field values, indexed as [field][asset in batch]
+		double[][] fieldVals = new double[numFields][batchAssets.length];
+
+		boolean any = false;
+		int a = 0;
+		while (a < numAssets) {
+			// find the next batch of assets which pass the cutoff
+			int batchSize = 0;
+			for (; a<numAssets && batchSize<batchAssets.length; a++) {
+				Location loc = assetLocs[a];
+				if (magThreshFunc != null) {
+					double distance = surf.getQuickDistance(loc);
+					if (distance > magThreshFunc.getMaxX())
+						continue;
+					if (rup.getMag() < magThreshFunc.getInterpolatedY(distance))
+						continue;
+				}
+				LocationVector vector = LocationUtils.vector(rupCentroid, loc);
+				double dist = vector.getHorzDistance();
+				double az = vector.getAzimuthRad();
+				offsetsX[batchSize] = dist*Math.sin(az);
+				offsetsY[batchSize] = dist*Math.cos(az);
+				batchAssets[batchSize++] = a;
+			}
+			if (batchSize == 0)
+				continue;
+			any = true;
+
+			// ground motions
+			for (int i=0; i<batchSize; i++) {
+				int index = batchAssets[i];
+				gmpe.setSite(sites[index]);
+				gmpe.setIntensityMeasure(imts[index]);
+				if (imts[index].equals(SA_Param.NAME))
+					SA_Param.setPeriodInSA_Param(gmpe.getIntensityMeasure(), periods[index]);
+
+				if (gmpe instanceof NGAW2_WrapperFullParam) {
+					ScalarGroundMotion gm = ((NGAW2_WrapperFullParam)gmpe).getGroundMotion();
+					means[i] = gm.mean();
+					phis[i] = gm.phi();
+					taus[i] = gm.tau();
+				} else {
+					means[i] = gmpe.getMean();
+					StdDevTypeParam type = (StdDevTypeParam)(gmpe.getParameter(StdDevTypeParam.NAME));
+					type.setValue(StdDevTypeParam.STD_DEV_TYPE_INTER);
+					taus[i] = gmpe.getStdDev();
+					type.setValue(StdDevTypeParam.STD_DEV_TYPE_INTRA);
+					phis[i] = gmpe.getStdDev();
+					type.setValue(StdDevTypeParam.STD_DEV_TYPE_TOTAL);
+				}
+			}
+
+			// field values
+			for (int f=0; f<numFields; f++)
+				fields[f].getValues(offsetsX, offsetsY, batchSize, fieldVals[f]);
+
+			// accumulate losses
+			for (int i=0; i<batchSize; i++) {
+				int index = batchAssets[i];
+				DiscretizedFunc vulnFunc = vulnFuncs[index];
+				double minX = vulnFunc.getMinX();
+				double maxX = vulnFunc.getMaxX();
+				double maxY = vulnFunc.getMaxY();
+				double value = assetValues[index];
+				double mean = means[i];
+				double phi = phis[i];
+				double tau = taus[i];
+				for (int b=0; b<numBetween; b++) {
+					// ground motion considering the between-event term
+					double tauGM = mean + betweenEventStdDevs[b]*tau;
+					double[] betweenLosses = losses[b];
+					for (int f=0; f<numFields; f++) {
+						// ground motion considering the randomly sampled within-event term (and also tau)
+						double phiGM = tauGM + fieldVals[f][i]*phi;
+						Preconditions.checkState(Double.isFinite(phiGM),
+								"bad phiGM=%s for mean=%s, phi=%s, tau=%s, tauGM=%s",
+								phiGM, mean, phi, tau, tauGM);
+						double linearGM = Math.exp(phiGM);
+						double interpDF;
+						if (linearGM < minX)
+							interpDF = 0d;
+						else if (linearGM > maxX)
+							interpDF = maxY;
+						else
+							interpDF = vulnFunc.getInterpolatedY(linearGM);
+						betweenLosses[f] += value*interpDF;
+					}
+				}
+			}
+		}
+
+		if (!any)
+			return null;
+		return losses;
+	}
+
+}
@@ -8,14 +8,21 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -42,6 +49,7 @@ import org.opensha.commons.gui.plot.PlotLineType;
 import org.opensha.commons.gui.plot.PlotSpec;
 import org.opensha.commons.util.DataUtils;
 import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.FileNameComparator;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
@@ -73,6 +81,7 @@ import scratch.kevin.ucerf3.eal.UCERF3_BranchAvgLossFetcher;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
@@ -98,8 +107,13 @@ public class ETAS_CatalogEALCalculator {
 	}
 	
 	private UCERF3_BranchAvgLossFetcher fetcher;
+	// null if streaming from a binary file
 	private List<? extends List<ETAS_EqkRupture>> catalogs;
+	private File catalogsFile;
+	private double catalogsMinGriddedMag;
+	private int numCatalogs;
 	private long startTime;
+	private double maxCatalogDuration;
 	private FaultModels fm;
 	
 	// for getting fss index from Ned's "Nth" index
@@ -108,10 +122,22 @@ public class ETAS_CatalogEALCalculator {
 	
 	private ETAS_EqkRupture triggerRup;
 	
-	private static boolean rup_mean_loss = true; // otherwise propagate loss distribution
+	// if true (default), each fault rupture contributes its mean loss, otherwise loss distributions are propagated.
+	// propagation is opt in, see setPropagateLossDistributions(boolean)
+	private boolean rupMeanLoss = true;
+	// when propagating loss distributions, catalogs with more than this many loss combinations will be computed
+	// by binned convolution rather than exhaustive enumeration
+	private static final long max_exhaustive_loss_chains = 10000;
+	
+	private LossDistConvolver lossConvolver = new LossDistConvolver(1d, 50);
 	
 	private static final double outside_region_dist_tol = 10d; // km
 	
+	// number of catalogs processed by each parallel task
+	private static final int catalogs_per_task = 100;
+	
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	
 	private boolean triggeredOnly = false;
 	
 	private static int id_for_scenario = 0;
@@ -134,16 +160,65 @@ public class ETAS_CatalogEALCalculator {
 		
 		this.catalogs = catalogs;
 		startTime = Long.MAX_VALUE;
+		maxCatalogDuration = 0d;
 		for (List<ETAS_EqkRupture> catalog : catalogs) {
 			if (!catalog.isEmpty()) {
 				if (catalog.get(0).getOriginTime() < startTime)
 					startTime = catalog.get(0).getOriginTime();
 			}
+			maxCatalogDuration = Math.max(maxCatalogDuration, ETAS_MultiSimAnalysisTools.calcDurationYears(catalog));
 		}
+		numCatalogs = catalogs.size();
 		
 		Preconditions.checkState(!catalogs.isEmpty(), "No catalogs loaded!");
 		System.out.println("Loaded "+catalogs.size()+" catalogs");
 		
+		init(meanSol);
+	}
+	
+	/**
+	 * Streaming constructor: catalogs are never held in memory, but are instead read from the given binary file
+	 * each time losses are calculated. The file is scanned once here to determine the catalog count, start time
+	 * and maximum duration.
+	 * @param fetcher
+	 * @param meanSol
+	 * @param fm
+	 * @param resultsBinFile
+	 * @param minGriddedMag
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	public ETAS_CatalogEALCalculator(UCERF3_BranchAvgLossFetcher fetcher, FaultSystemSolution meanSol,
+			FaultModels fm, File resultsBinFile, double minGriddedMag) throws IOException, DocumentException {
+		Preconditions.checkArgument(resultsBinFile.exists(), "catalog file doesn't exist");
+		this.fetcher = fetcher;
+		this.fm = fm;
+		
+		this.catalogsFile = resultsBinFile;
+		this.catalogsMinGriddedMag = minGriddedMag;
+		startTime = Long.MAX_VALUE;
+		maxCatalogDuration = 0d;
+		numCatalogs = 0;
+		int numEmpty = 0;
+		for (List<ETAS_EqkRupture> catalog : ETAS_CatalogIO.getBinaryCatalogsIterable(resultsBinFile, minGriddedMag)) {
+			if (catalog.isEmpty()) {
+				numEmpty++;
+			} else {
+				if (catalog.get(0).getOriginTime() < startTime)
+					startTime = catalog.get(0).getOriginTime();
+			}
+			maxCatalogDuration = Math.max(maxCatalogDuration, ETAS_MultiSimAnalysisTools.calcDurationYears(catalog));
+			numCatalogs++;
+		}
+		
+		Preconditions.checkState(numCatalogs > 0, "No catalogs found!");
+		System.out.println("Scanned "+numCatalogs+" catalogs ("+numEmpty+" empty), will stream from "
+				+resultsBinFile.getName());
+		
+		init(meanSol);
+	}
+	
+	private void init(FaultSystemSolution meanSol) throws IOException, DocumentException {
 		LastEventData.populateSubSects(meanSol.getRupSet().getFaultSectionDataList(), LastEventData.load());
 		this.meanSol = meanSol;
 		System.out.println("Loading ERF");
@@ -155,6 +230,27 @@ public class ETAS_CatalogEALCalculator {
 		System.out.println("Done loading ERF");
 	}
 	
+	/**
+	 * @return number of catalogs, either in memory or in the streamed binary file
+	 */
+	public int getNumCatalogs() {
+		return numCatalogs;
+	}
+	
+	/**
+	 * @return catalogs over which losses are calculated. In streaming mode these are read from disk on each iteration
+	 */
+	private Iterable<? extends List<ETAS_EqkRupture>> getCatalogsIterable() throws IOException {
+		if (catalogs != null)
+			return catalogs;
+		return ETAS_CatalogIO.getBinaryCatalogsIterable(catalogsFile, catalogsMinGriddedMag);
+	}
+	
+	public void setNumThreads(int numThreads) {
+		Preconditions.checkArgument(numThreads > 0, "Must have at least one thread");
+		this.numThreads = numThreads;
+	}
+	
 //	static List<List<ETAS_EqkRupture>> loadCatalogs(File[] etasCatalogsDirs, double minGriddedMag) throws IOException {
 //		return loadCatalogs(etasCatalogsDirs, minGriddedMag, null);
 //	}
@@ -163,6 +259,30 @@ public class ETAS_CatalogEALCalculator {
 		this.triggeredOnly = triggeredOnly;
 	}
 	
+	/**
+	 * By default, each fault rupture contributes its mean conditional loss to the catalog loss, so each catalog has a
+	 * single loss value. If enabled, the full conditional loss distribution of each fault rupture is propagated
+	 * instead. Catalogs with few combinations are enumerated exactly, others are convolved with a
+	 * {@link LossDistConvolver}, whose error is bounded by {@link LossDistConvolver#getMaxAbsoluteError(double)} (a
+	 * fraction of the maximum possible catalog loss) regardless of the number of ruptures, plus one output bin width.
+	 * @param propagate
+	 */
+	public void setPropagateLossDistributions(boolean propagate) {
+		this.rupMeanLoss = !propagate;
+	}
+	
+	/**
+	 * Sets the loss grid used when convolving fault rupture loss distributions (only used if loss distributions are
+	 * propagated and a catalog has too many combinations to enumerate)
+	 * @param minLoss smallest non zero output loss grid value (unscaled loss units)
+	 * @param binsPerDecade output bins per factor of 10 in loss
+	 * @param tolerance maximum convolution error in loss at any exceedance level, as a fraction of the maximum
+	 * possible catalog loss
+	 */
+	public void setLossConvolutionGrid(double minLoss, int binsPerDecade, double tolerance) {
+		this.lossConvolver = new LossDistConvolver(minLoss, binsPerDecade, tolerance);
+	}
+	
 	/**
 	 * Load ETAS catalogs from file.
 	 * @param etasCatalogsDirs
@@ -257,15 +377,9 @@ public class ETAS_CatalogEALCalculator {
 		return getLossDists(attenRelRef, xAxisScale, durations, false);
 	}
 	
-	public static final int max_all_sub_durations_n = 1000000;
-	
 	private double getRoundedMaxCatalogDiration() {
-		double maxCatalogDuration = 0d;
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			maxCatalogDuration = Math.max(maxCatalogDuration, ETAS_MultiSimAnalysisTools.calcDurationYears(catalog));
 		// round to nearest year
-		maxCatalogDuration = Math.round(maxCatalogDuration);
-		return maxCatalogDuration;
+		return Math.round(maxCatalogDuration);
 	}
 	
 	public Map<Double, List<DiscretizedFunc>> getLossDists(
@@ -274,10 +388,86 @@ public class ETAS_CatalogEALCalculator {
 		return getLossDists(attenRelRef, xAxisScale, durations, allSubDurations, null, null);
 	}
 	
+	/**
+	 * Calculates loss distributions for each catalog (or each sub catalog if allSubDurations is true) for each
+	 * duration. Catalogs are streamed (from memory) in batches to a fork join pool, and sub catalogs are split out on
+	 * the fly within each task. Empty sub catalogs share a single zero loss function.
+	 * <br>
+	 * One function is returned per catalog/sub catalog, so this isn't available in streaming mode. Use
+	 * {@link #getLossHists(AttenRelRef, double, double[], boolean, double, EvenlyDiscretizedFunc, Map)} instead, for
+	 * which memory scales with the number of threads rather than the number of sub catalogs.
+	 */
 	public synchronized Map<Double, List<DiscretizedFunc>> getLossDists(
 			AttenRelRef attenRelRef, double xAxisScale, double[] durations, boolean allSubDurations,
 			EvenlyDiscretizedFunc magXVals, Map<Double, EvenlyDiscretizedFunc> durationMagDistMap)
 					throws IOException {
+		Preconditions.checkState(catalogs != null, "Per catalog loss distributions aren't available in streaming "
+				+ "mode, use getLossHists(...)");
+		DurationWindows[] windows = buildWindows(durations, allSubDurations);
+		DiscretizedFunc[][] durationFuncs = new DiscretizedFunc[durations.length][];
+		for (int d=0; d<durations.length; d++)
+			durationFuncs[d] = new DiscretizedFunc[Math.multiplyExact(numCatalogs, windows[d].getNumPer())];
+		
+		calcLosses(attenRelRef, xAxisScale, durations, windows, Double.NaN, durationFuncs, null,
+				magXVals, durationMagDistMap);
+		
+		Map<Double, List<DiscretizedFunc>> distsMap = Maps.newHashMap();
+		for (int d=0; d<durations.length; d++)
+			distsMap.put(durations[d], Arrays.asList(durationFuncs[d]));
+		
+		return distsMap;
+	}
+	
+	/**
+	 * Calculates the loss histogram across all catalogs (or all sub catalogs if allSubDurations is true) for each
+	 * duration. Catalogs are streamed (from memory, or from disk if this calculator was created in streaming mode)
+	 * in batches to a fork join pool. Each task splits its catalogs into sub catalogs on the fly and bins their losses
+	 * into a histogram for each duration, and task histograms are summed as they complete. Nothing is stored per
+	 * catalog, so memory scales with the number of threads rather than the number of sub catalogs.
+	 * <br>
+	 * Histograms have bins of width deltaX centered on (k+0.5)*deltaX (losses of zero are in the first bin), equivalent
+	 * to {@link #getLossHist(Map, double, boolean)} with linear bins. Y values are normalized to sum to 1.
+	 */
+	public synchronized Map<Double, HistogramFunction> getLossHists(
+			AttenRelRef attenRelRef, double xAxisScale, double[] durations, boolean allSubDurations, double deltaX,
+			EvenlyDiscretizedFunc magXVals, Map<Double, EvenlyDiscretizedFunc> durationMagDistMap)
+					throws IOException {
+		Preconditions.checkArgument(deltaX > 0, "Histogram delta must be positive");
+		DurationWindows[] windows = buildWindows(durations, allSubDurations);
+		LossHistAccumulator[] durationHists = new LossHistAccumulator[durations.length];
+		for (int d=0; d<durations.length; d++)
+			durationHists[d] = new LossHistAccumulator(deltaX);
+		
+		calcLosses(attenRelRef, xAxisScale, durations, windows, deltaX, null, durationHists,
+				magXVals, durationMagDistMap);
+		
+		Map<Double, HistogramFunction> histsMap = Maps.newHashMap();
+		for (int d=0; d<durations.length; d++) {
+			Preconditions.checkState(durationHists[d].getCount() == (long)numCatalogs*windows[d].getNumPer());
+			histsMap.put(durations[d], durationHists[d].toHist());
+			System.out.println("Duration "+durations[d]+": mean loss of "+durationHists[d].getCount()
+					+" catalogs: "+durationHists[d].getMeanLoss());
+		}
+		return histsMap;
+	}
+	
+	private DurationWindows[] buildWindows(double[] durations, boolean allSubDurations) {
+		double maxCatalogDuration = getRoundedMaxCatalogDiration();
+		System.out.println("Max duration: "+maxCatalogDuration+" yrs");
+		DurationWindows[] windows = new DurationWindows[durations.length];
+		for (int d=0; d<durations.length; d++)
+			windows[d] = new DurationWindows(durations[d], allSubDurations, maxCatalogDuration);
+		return windows;
+	}
+	
+	/**
+	 * Calculates losses for every catalog on a fork join pool. If histDelta is NaN, loss distributions for each
+	 * catalog/sub catalog are stored in durationFuncs, otherwise they are binned into durationHists.
+	 */
+	private void calcLosses(AttenRelRef attenRelRef, double xAxisScale, double[] durations,
+			DurationWindows[] windows, double histDelta, DiscretizedFunc[][] durationFuncs,
+			LossHistAccumulator[] durationHists, EvenlyDiscretizedFunc magXVals,
+			Map<Double, EvenlyDiscretizedFunc> durationMagDistMap) throws IOException {
 		// conditional loss distributions (x=loss, y=weight) for each rupture
 		DiscretizedFunc[] condLossDists = fetcher.getFaultLosses(attenRelRef, fm, true);
 		// mag/loss distributions at each grid node (x=mag, y=loss)
@@ -285,11 +475,6 @@ public class ETAS_CatalogEALCalculator {
 		DiscretizedFunc[] griddedMagLossDists = fetcher.getGriddedMagLossDists(
 				attenRelRef, region);
 		
-		double maxCatalogDuration = getRoundedMaxCatalogDiration();
-		System.out.println("Max duration: "+maxCatalogDuration+" yrs");
-		
-		Map<Double, List<DiscretizedFunc>> distsMap = Maps.newHashMap();
-		
 		if (magXVals != null) {
 			Preconditions.checkNotNull(durationMagDistMap);
 			for (double durationYears : durations)
@@ -298,191 +483,435 @@ public class ETAS_CatalogEALCalculator {
 			Preconditions.checkState(durationMagDistMap == null);
 		}
 		
-		for (double durationYears : durations) {
-			long maxTime = Long.MAX_VALUE;
-			if (durationYears > 00 && !Double.isInfinite(durationYears))
-				maxTime = startTime + (long)(durationYears*ProbabilityModelsCalc.MILLISEC_PER_YEAR);
-			
-			List<DiscretizedFunc> catalogDists = Lists.newArrayList();
-			
-			List<? extends List<ETAS_EqkRupture>> catalogs = this.catalogs;
+		Stopwatch watch = Stopwatch.createStarted();
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		// bound the number of batches in memory at once
+		int maxInFlight = 2*numThreads;
+		Deque<Future<LossTaskResult>> futures = new ArrayDeque<>();
+		int numSubmitted = 0;
+		try {
+			List<List<ETAS_EqkRupture>> batch = new ArrayList<>(catalogs_per_task);
+			for (List<ETAS_EqkRupture> catalog : getCatalogsIterable()) {
+				batch.add(catalog);
+				if (batch.size() == catalogs_per_task) {
+					futures.add(pool.submit(new LossTask(numSubmitted, batch, windows, condLossDists, region,
+							griddedMagLossDists, xAxisScale, histDelta, magXVals)));
+					numSubmitted += batch.size();
+					batch = new ArrayList<>(catalogs_per_task);
+					while (futures.size() >= maxInFlight)
+						futures.removeFirst().get().merge(windows, durationFuncs, durationHists, durations,
+								durationMagDistMap);
+				}
+			}
+			if (!batch.isEmpty()) {
+				futures.add(pool.submit(new LossTask(numSubmitted, batch, windows, condLossDists, region,
+						griddedMagLossDists, xAxisScale, histDelta, magXVals)));
+				numSubmitted += batch.size();
+			}
+			while (!futures.isEmpty())
+				futures.removeFirst().get().merge(windows, durationFuncs, durationHists, durations,
+						durationMagDistMap);
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+		Preconditions.checkState(numSubmitted == numCatalogs, "Expected %s catalogs, processed %s",
+				numCatalogs, numSubmitted);
+		System.out.println("Calculated losses for "+numCatalogs+" catalogs in "
+				+watch.elapsed(TimeUnit.MILLISECONDS)/1000d+" s with "+numThreads+" threads");
+		watch.stop();
+		
+		if (triggerRup != null)
+			printTriggerLoss(condLossDists, region, griddedMagLossDists, xAxisScale);
+	}
+	
+	private static class LossTaskResult {
+		private final int firstIndex;
+		// loss dists for each duration, then each catalog/sub catalog in the batch, or null if binned
+		private final DiscretizedFunc[][] funcs;
+		// binned losses for each duration, or null if not binned
+		private final LossHistAccumulator[] hists;
+		// mag/loss dists for each duration, or null
+		private final EvenlyDiscretizedFunc[] magFuncs;
+		
+		public LossTaskResult(int firstIndex, DiscretizedFunc[][] funcs, LossHistAccumulator[] hists,
+				EvenlyDiscretizedFunc[] magFuncs) {
+			this.firstIndex = firstIndex;
+			this.funcs = funcs;
+			this.hists = hists;
+			this.magFuncs = magFuncs;
+		}
+		
+		public void merge(DurationWindows[] windows, DiscretizedFunc[][] durationFuncs,
+				LossHistAccumulator[] durationHists, double[] durations,
+				Map<Double, EvenlyDiscretizedFunc> durationMagDistMap) {
+			for (int d=0; d<windows.length; d++) {
+				if (funcs != null)
+					System.arraycopy(funcs[d], 0, durationFuncs[d], firstIndex*windows[d].getNumPer(), funcs[d].length);
+				else
+					durationHists[d].add(hists[d]);
+				if (magFuncs != null) {
+					EvenlyDiscretizedFunc magFunc = durationMagDistMap.get(durations[d]);
+					for (int i=0; i<magFunc.size(); i++)
+						magFunc.add(i, magFuncs[d].getY(i));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Loss histogram with bins of a fixed width starting at zero, which grows as needed. Each catalog/sub catalog
+	 * loss distribution is added with unit total weight.
+	 */
+	private static class LossHistAccumulator {
+		private final double delta;
+		private double[] weights;
+		private int num;
+		private long count;
+		private double sumMeanLoss;
+		
+		public LossHistAccumulator(double delta) {
+			this.delta = delta;
+			this.weights = new double[100];
+		}
+		
+		private void ensureCapacity(int len) {
+			if (len > weights.length)
+				weights = Arrays.copyOf(weights, Math.max(len, weights.length*2));
+			num = Math.max(num, len);
+		}
+		
+		public void add(DiscretizedFunc lossDist) {
+			double meanLoss = 0d;
+			for (int i=0; i<lossDist.size(); i++) {
+				double loss = lossDist.getX(i);
+				double weight = lossDist.getY(i);
+				Preconditions.checkState(loss >= 0, "Losses must be non-negative");
+				meanLoss += loss*weight;
+				int index = (int)Math.min(Integer.MAX_VALUE-1, Math.floor(loss/delta));
+				ensureCapacity(index+1);
+				weights[index] += weight;
+			}
+			sumMeanLoss += meanLoss;
+			count++;
+		}
+		
+		public void add(LossHistAccumulator other) {
+			Preconditions.checkState(other.delta == delta);
+			ensureCapacity(other.num);
+			for (int i=0; i<other.num; i++)
+				weights[i] += other.weights[i];
+			sumMeanLoss += other.sumMeanLoss;
+			count += other.count;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public double getMeanLoss() {
+			return sumMeanLoss/count;
+		}
+		
+		/**
+		 * @return normalized histogram (at least 2 bins)
+		 */
+		public HistogramFunction toHist() {
+			HistogramFunction hist = new HistogramFunction(0.5*delta, Math.max(2, num), delta);
+			double sumY = 0d;
+			for (int i=0; i<num; i++)
+				sumY += weights[i];
+			Preconditions.checkState(sumY > 0, "No losses binned");
+			for (int i=0; i<num; i++)
+				hist.set(i, weights[i]/sumY);
+			return hist;
+		}
+	}
+	
+	// shared by all empty sub catalogs
+	private static final DiscretizedFunc zero_loss_func = new LightFixedXFunc(new double[] {0d}, new double[] {1d});
+	
+	/**
+	 * Time windows for a single duration. If all sub durations are requested and catalogs are long enough, each
+	 * catalog is split into consecutive windows of the given duration. Otherwise there is a single window which
+	 * starts at the start of the catalog.
+	 */
+	private class DurationWindows {
+		// inclusive upper bound on origin time for each window
+		private final long[] maxTimes;
+		private final boolean subDurations;
+		
+		public DurationWindows(double durationYears, boolean allSubDurations, double maxCatalogDuration) {
 			if (allSubDurations && maxCatalogDuration > durationYears*1.1) {
 				int numPer = (int)(maxCatalogDuration/durationYears);
 				System.out.println(numPer+" sub catalogs for "+durationYears+" yr");
-				if (numPer*catalogs.size() > max_all_sub_durations_n) {
-					numPer = max_all_sub_durations_n/catalogs.size();
-					System.out.println("Too many sub catalogs, trimming to "+numPer+" each");
-				}
-				Preconditions.checkState(numPer > 1, "bad numPer=%, durationYears=%s, maxCatDuration=%s",
+				Preconditions.checkState(numPer > 1, "bad numPer=%s, durationYears=%s, maxCatDuration=%s",
 						numPer, durationYears, maxCatalogDuration);
 				long millisEach = (long)(durationYears*ProbabilityModelsCalc.MILLISEC_PER_YEAR);
-				long[] maxTimes = new long[numPer];
+				maxTimes = new long[numPer];
 				for (int i=0; i<numPer; i++) {
 					if (i == 0)
 						maxTimes[i] = startTime + millisEach;
 					else
 						maxTimes[i] = maxTimes[i-1] + millisEach;
 				}
-				List<List<ETAS_EqkRupture>> subCatalogs = Lists.newArrayList();
-				for (List<ETAS_EqkRupture> catalog : catalogs) {
-					int curIndex = 0;
-					List<List<ETAS_EqkRupture>> mySubCatalogs = Lists.newArrayList();
-					for (int i=0; i<numPer; i++)
-						mySubCatalogs.add(null);
-					catalogLoop:
-					for (ETAS_EqkRupture rup : catalog) {
-						while (rup.getOriginTime() > maxTimes[curIndex]) {
-							curIndex++;
-							if (curIndex == maxTimes.length)
-								break catalogLoop;
+				subDurations = true;
+			} else {
+				long maxTime = Long.MAX_VALUE;
+				if (!allSubDurations && durationYears > 00 && !Double.isInfinite(durationYears))
+					maxTime = startTime + (long)(durationYears*ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+				maxTimes = new long[] { maxTime };
+				subDurations = false;
+			}
+		}
+		
+		public int getNumPer() {
+			return maxTimes.length;
+		}
+		
+		/**
+		 * @param catalog
+		 * @return sub catalog for each window, null if empty
+		 */
+		public List<List<ETAS_EqkRupture>> split(List<ETAS_EqkRupture> catalog) {
+			int curIndex = 0;
+			List<List<ETAS_EqkRupture>> subCatalogs = Lists.newArrayList();
+			for (int i=0; i<maxTimes.length; i++)
+				subCatalogs.add(null);
+			catalogLoop:
+			for (ETAS_EqkRupture rup : catalog) {
+				while (rup.getOriginTime() > maxTimes[curIndex]) {
+					curIndex++;
+					if (curIndex == maxTimes.length)
+						break catalogLoop;
+				}
+				if (subCatalogs.get(curIndex) == null)
+					subCatalogs.set(curIndex, new ArrayList<ETAS_EqkRupture>());
+				subCatalogs.get(curIndex).add(rup);
+			}
+			return subCatalogs;
+		}
+	}
+	
+	/**
+	 * Calculates loss distributions for a batch of consecutive catalogs, for each duration
+	 */
+	private class LossTask implements Callable<LossTaskResult> {
+		
+		private final int firstIndex;
+		private final List<List<ETAS_EqkRupture>> batch;
+		private final DurationWindows[] windows;
+		private final DiscretizedFunc[] condLossDists;
+		private final GriddedRegion region;
+		private final DiscretizedFunc[] griddedMagLossDists;
+		private final double xAxisScale;
+		// NaN to return loss dists for each catalog, otherwise losses are binned with this delta
+		private final double histDelta;
+		private final EvenlyDiscretizedFunc magXVals;
+
+		public LossTask(int firstIndex, List<List<ETAS_EqkRupture>> batch, DurationWindows[] windows,
+				DiscretizedFunc[] condLossDists, GriddedRegion region, DiscretizedFunc[] griddedMagLossDists,
+				double xAxisScale, double histDelta, EvenlyDiscretizedFunc magXVals) {
+			this.firstIndex = firstIndex;
+			this.batch = batch;
+			this.windows = windows;
+			this.condLossDists = condLossDists;
+			this.region = region;
+			this.griddedMagLossDists = griddedMagLossDists;
+			this.xAxisScale = xAxisScale;
+			this.histDelta = histDelta;
+			this.magXVals = magXVals;
+		}
+
+		@Override
+		public LossTaskResult call() throws Exception {
+			// convolver has internal buffers, so use one per task
+			LossDistConvolver convolver = new LossDistConvolver(
+					lossConvolver.getMinLoss(), lossConvolver.getBinsPerDecade(), lossConvolver.getTolerance());
+			boolean binned = !Double.isNaN(histDelta);
+			DiscretizedFunc[][] ret = binned ? null : new DiscretizedFunc[windows.length][];
+			LossHistAccumulator[] hists = binned ? new LossHistAccumulator[windows.length] : null;
+			EvenlyDiscretizedFunc[] magFuncs = magXVals == null ? null : new EvenlyDiscretizedFunc[windows.length];
+			for (int d=0; d<windows.length; d++) {
+				DurationWindows window = windows[d];
+				int numPer = window.getNumPer();
+				if (binned)
+					hists[d] = new LossHistAccumulator(histDelta);
+				else
+					ret[d] = new DiscretizedFunc[batch.size()*numPer];
+				EvenlyDiscretizedFunc magFunc = null;
+				if (magFuncs != null) {
+					magFunc = new EvenlyDiscretizedFunc(magXVals.getMinX(), magXVals.getMaxX(), magXVals.size());
+					magFuncs[d] = magFunc;
+				}
+				double rateEach = 1d/((double)numCatalogs*numPer);
+				for (int c=0; c<batch.size(); c++) {
+					List<ETAS_EqkRupture> catalog = batch.get(c);
+					if (window.subDurations) {
+						List<List<ETAS_EqkRupture>> subCatalogs = window.split(catalog);
+						for (int i=0; i<numPer; i++) {
+							List<ETAS_EqkRupture> subCatalog = subCatalogs.get(i);
+							int index = c*numPer + i;
+							DiscretizedFunc func;
+							if (subCatalog == null)
+								func = zero_loss_func;
+							else
+								func = calcCatalogLossDist(subCatalog, Long.MAX_VALUE, condLossDists, region,
+										griddedMagLossDists, xAxisScale, convolver, magFunc, rateEach,
+										"Catalog "+((long)firstIndex*numPer + index));
+							if (binned)
+								hists[d].add(func);
+							else
+								ret[d][index] = func;
 						}
-						if (mySubCatalogs.get(curIndex) == null)
-							mySubCatalogs.set(curIndex, new ArrayList<ETAS_EqkRupture>());
-						mySubCatalogs.get(curIndex).add(rup);
+					} else {
+						DiscretizedFunc func = calcCatalogLossDist(catalog, window.maxTimes[0], condLossDists, region,
+								griddedMagLossDists, xAxisScale, convolver, magFunc, rateEach,
+								"Catalog "+(firstIndex + c));
+						if (binned)
+							hists[d].add(func);
+						else
+							ret[d][c] = func;
 					}
-					subCatalogs.addAll(mySubCatalogs);
 				}
-				catalogs = subCatalogs;
 			}
+			return new LossTaskResult(firstIndex, ret, hists, magFuncs);
+		}
+		
+	}
+	
+	private DiscretizedFunc calcCatalogLossDist(List<ETAS_EqkRupture> catalog, long maxTime,
+			DiscretizedFunc[] condLossDists, GriddedRegion region, DiscretizedFunc[] griddedMagLossDists,
+			double xAxisScale, LossDistConvolver convolver, EvenlyDiscretizedFunc magFunc, double rateEach,
+			String catName) {
+		DiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		List<Double> singleLosses = Lists.newArrayList();
+		List<DiscretizedFunc> lossDists = Lists.newArrayList();
+		
+		if (triggeredOnly)
+			catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
+		
+		for (ETAS_EqkRupture rup : catalog) {
+			if (rup.getOriginTime() > maxTime)
+				break;
+			int fssIndex = getFSSIndex(rup);
 			
-			double rateEach = 1d/catalogs.size();
+			double mag = rup.getMag();
 			
-			for (int i = 0; i < catalogs.size(); i++) {
-				List<ETAS_EqkRupture> catalog = catalogs.get(i);
-				
-				DiscretizedFunc func;
-				if (catalog == null) {
-					func = new LightFixedXFunc(new double[] {0d}, new double[] {1d});
-				} else {
-					func = new ArbitrarilyDiscretizedFunc();
-					List<Double> singleLosses = Lists.newArrayList();
-					List<DiscretizedFunc> lossDists = Lists.newArrayList();
-					
-					if (triggeredOnly)
-						catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
-					
-					for (ETAS_EqkRupture rup : catalog) {
-						if (!allSubDurations && rup.getOriginTime() > maxTime)
-							break;
-						int fssIndex = getFSSIndex(rup);
-						
-						double mag = rup.getMag();
-						
-						double rupLoss = 0d;
-						if (fssIndex >= 0) {
-							// fault based source
-							double solMag = meanSol.getRupSet().getMagForRup(fssIndex);
-							Preconditions.checkState((float)mag == (float)solMag, "Bad fault mag! %s != %s", mag, solMag);
-							if (condLossDists[fssIndex].size() == 0)
-								continue;
-							lossDists.add(condLossDists[fssIndex]);
-							// make sure weights sum to 1
-							double sumY = 0;
-							for (Point2D pt : condLossDists[fssIndex]) {
-								sumY += pt.getY();
-								rupLoss += pt.getX()*pt.getY();
-							}
-							Preconditions.checkState((float)sumY == 1f, "rup losses don't sum to 1: "+(float)sumY);
-						} else {
-							// grid source
-							rupLoss = calcGridSourceLoss(rup, region, griddedMagLossDists, "Catalog "+i);
-							// single loss value with weight=1
-							singleLosses.add(rupLoss);
-						}
-						if (magXVals != null) {
-							EvenlyDiscretizedFunc magFunc = durationMagDistMap.get(durationYears);
-							int index = magFunc.getClosestXIndex(mag);
-							magFunc.add(index, rupLoss*xAxisScale*rateEach);
-						}
-					}
-					
-					// first sum up all single losses (easy)
-					double totSingleLosses = 0d;
-					for (double loss : singleLosses)
-						totSingleLosses += loss;
-					
-					if (rup_mean_loss) {
-						for (DiscretizedFunc lossDist : lossDists) {
-							double loss = 0;
-							double sumWeight = 0;
-							for (Point2D pt : lossDist) {
-								sumWeight += pt.getY();
-								loss += pt.getX()*pt.getY();
-							}
-							Preconditions.checkState((float)sumWeight == 1f, "Weights don't sum to 1: "+(float)sumWeight);
-							totSingleLosses += loss;
-						}
-					}
-					
-					if (lossDists.isEmpty() || rup_mean_loss) {
-						// only point sources
-						func.set(xAxisScale*totSingleLosses, 1d);
-					} else {
-						// calculate expected number of loss dists for verification
-						int expectedNum = 1;
-						for (DiscretizedFunc lossDist : lossDists)
-							expectedNum *= lossDist.size();
-						
-						List<LossChain> lossChains = getLossChains(totSingleLosses, lossDists);
-						Preconditions.checkState(lossChains.size() == expectedNum,
-								"expected "+expectedNum+" chains, got "+lossChains.size());
-						
-						double sumWeight = 0d;
-						for (LossChain chain : lossChains) {
-							double weight = chain.weight;
-							double loss = chain.totLoss;
-							sumWeight += weight;
-							int xInd = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(loss, func);
-							if (xInd < 0)
-								func.set(xAxisScale*loss, weight);
-							else
-								func.set(xAxisScale*loss, weight + func.getY(xInd));
-						}
-						Preconditions.checkState((float)sumWeight == 1f,
-								"chain weights don't sum to 1: "+sumWeight+" ("+lossChains.size()+" chains)");
-					}
+			double rupLoss = 0d;
+			if (fssIndex >= 0) {
+				// fault based source
+				double solMag = meanSol.getRupSet().getMagForRup(fssIndex);
+				Preconditions.checkState((float)mag == (float)solMag, "Bad fault mag! %s != %s", mag, solMag);
+				if (condLossDists[fssIndex].size() == 0)
+					continue;
+				lossDists.add(condLossDists[fssIndex]);
+				// make sure weights sum to 1
+				double sumY = 0;
+				for (Point2D pt : condLossDists[fssIndex]) {
+					sumY += pt.getY();
+					rupLoss += pt.getX()*pt.getY();
 				}
-				
-				
-//				double meanLoss = 0d;
-//				for (Point2D pt : func)
-//					meanLoss += pt.getX()*pt.getY();
-				
-				catalogDists.add(new LightFixedXFunc(func));
+				Preconditions.checkState((float)sumY == 1f, "rup losses don't sum to 1: "+(float)sumY);
+			} else {
+				// grid source
+				rupLoss = calcGridSourceLoss(rup, region, griddedMagLossDists, catName);
+				// single loss value with weight=1
+				singleLosses.add(rupLoss);
+			}
+			if (magFunc != null) {
+				int index = magFunc.getClosestXIndex(mag);
+				magFunc.add(index, rupLoss*xAxisScale*rateEach);
+			}
+		}
+		
+		// first sum up all single losses (easy)
+		double totSingleLosses = 0d;
+		for (double loss : singleLosses)
+			totSingleLosses += loss;
+		
+		if (rupMeanLoss) {
+			for (DiscretizedFunc lossDist : lossDists) {
+				double loss = 0;
+				double sumWeight = 0;
+				for (Point2D pt : lossDist) {
+					sumWeight += pt.getY();
+					loss += pt.getX()*pt.getY();
+				}
+				Preconditions.checkState((float)sumWeight == 1f, "Weights don't sum to 1: "+(float)sumWeight);
+				totSingleLosses += loss;
+			}
+		}
+		
+		if (lossDists.isEmpty() || rupMeanLoss) {
+			// only point sources
+			func.set(xAxisScale*totSingleLosses, 1d);
+		} else {
+			// calculate expected number of loss dists for verification
+			long expectedNum = 1;
+			for (DiscretizedFunc lossDist : lossDists) {
+				expectedNum *= lossDist.size();
+				if (expectedNum > max_exhaustive_loss_chains)
+					break;
 			}
 			
-			if (triggerRup != null) {
-				int fssIndex = getFSSIndex(triggerRup);
-				
-				double mag = triggerRup.getMag();
-				
-				double triggerLoss;
+			if (expectedNum > max_exhaustive_loss_chains) {
+				// too many combinations, convolve instead
+				func = convolver.sum(totSingleLosses, lossDists, xAxisScale);
+			} else {
+				List<LossChain> lossChains = getLossChains(totSingleLosses, lossDists);
+				Preconditions.checkState(lossChains.size() == expectedNum,
+						"expected "+expectedNum+" chains, got "+lossChains.size());
 				
-				if (fssIndex >= 0) {
-					// fault based source
-					Preconditions.checkState((float)mag == (float)meanSol.getRupSet().getMagForRup(fssIndex));
-					// make sure weights sum to 1
-					double meanLoss = 0;
-					double sumY = 0;
-					for (Point2D pt : condLossDists[fssIndex]) {
-						sumY += pt.getY();
-						meanLoss += pt.getX()*pt.getY();
-					}
-					Preconditions.checkState((float)sumY == 1f || condLossDists[fssIndex].size()==0,
-							"rup losses don't sum to 1: "+(float)sumY+" ("+condLossDists[fssIndex].size()+"");
-					triggerLoss = meanLoss;
-				} else {
-					// grid source
-					triggerLoss = calcGridSourceLoss(triggerRup, region, griddedMagLossDists, "TRIGGER");
+				double sumWeight = 0d;
+				for (LossChain chain : lossChains) {
+					double weight = chain.weight;
+					double loss = chain.totLoss;
+					sumWeight += weight;
+					int xInd = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(loss, func);
+					if (xInd < 0)
+						func.set(xAxisScale*loss, weight);
+					else
+						func.set(xAxisScale*loss, weight + func.getY(xInd));
 				}
-				triggerLoss *= xAxisScale;
-				System.out.println("Trigger M"+(float)mag+" rupture loss: "+triggerLoss);
+				Preconditions.checkState((float)sumWeight == 1f,
+						"chain weights don't sum to 1: "+sumWeight+" ("+lossChains.size()+" chains)");
 			}
-			
-			distsMap.put(durationYears, catalogDists);
 		}
 		
-		return distsMap;
+		return new LightFixedXFunc(func);
+	}
+	
+	private void printTriggerLoss(DiscretizedFunc[] condLossDists, GriddedRegion region,
+			DiscretizedFunc[] griddedMagLossDists, double xAxisScale) {
+		int fssIndex = getFSSIndex(triggerRup);
+		
+		double mag = triggerRup.getMag();
+		
+		double triggerLoss;
+		
+		if (fssIndex >= 0) {
+			// fault based source
+			Preconditions.checkState((float)mag == (float)meanSol.getRupSet().getMagForRup(fssIndex));
+			// make sure weights sum to 1
+			double meanLoss = 0;
+			double sumY = 0;
+			for (Point2D pt : condLossDists[fssIndex]) {
+				sumY += pt.getY();
+				meanLoss += pt.getX()*pt.getY();
+			}
+			Preconditions.checkState((float)sumY == 1f || condLossDists[fssIndex].size()==0,
+					"rup losses don't sum to 1: "+(float)sumY+" ("+condLossDists[fssIndex].size()+"");
+			triggerLoss = meanLoss;
+		} else {
+			// grid source
+			triggerLoss = calcGridSourceLoss(triggerRup, region, griddedMagLossDists, "TRIGGER");
+		}
+		triggerLoss *= xAxisScale;
+		System.out.println("Trigger M"+(float)mag+" rupture loss: "+triggerLoss);
 	}
 	
 	static int calcNodeIndex(ETAS_EqkRupture rup, GriddedRegion region) {
@@ -920,9 +1349,7 @@ public class ETAS_CatalogEALCalculator {
 				Preconditions.checkState(duration > 0);
 				// sub durations
 				int numPer = (int)(catalogDuration/duration);
-				myNForConf = numPer * nForConf;
-				if (myNForConf > max_all_sub_durations_n)
-					myNForConf = max_all_sub_durations_n;
+				myNForConf = Math.multiplyExact(numPer, nForConf);
 				System.out.println("All sub durations N for duration "+duration+": "+myNForConf);
 			}
 			exceeds.put(duration, toExceedFunc(lossHists.get(duration), myNForConf));
@@ -1362,10 +1789,14 @@ public class ETAS_CatalogEALCalculator {
 		// write maximum
 		double maxDur = durations.get(durations.size()-1);
 		List<DiscretizedFunc> maxLosses = lossDists.get(maxDur);
+		Preconditions.checkState(catalogs != null, "Can't write per catalog losses in streaming mode");
 		if (maxLosses.size() == catalogs.size()) {
-			// won't if all sub durations
 			File csvFile = new File(dir, prefix+"_"+getDurationLabel(maxDur).replaceAll(" ", "")+".csv");
 			writeLossesToCSV(csvFile, maxLosses);
+		} else {
+			// all sub durations, sub catalogs don't map to catalogs
+			System.out.println("Skipping per catalog details CSV for "+prefix+", have "+maxLosses.size()
+					+" sub catalogs for "+catalogs.size()+" catalogs");
 		}
 		
 		// can differ if all sub durations
@@ -1401,6 +1832,7 @@ public class ETAS_CatalogEALCalculator {
 	}
 	
 	public void writeLossesToCSV(File csvFile, List<DiscretizedFunc> lossDists) throws IOException {
+		Preconditions.checkState(catalogs != null, "Can't write per catalog losses in streaming mode");
 		Preconditions.checkState(lossDists.size() == catalogs.size(), "Have %s dists but %s catalogs!",
 				lossDists.size(), catalogs.size());
 		
@@ -1629,6 +2061,7 @@ public class ETAS_CatalogEALCalculator {
 		Preconditions.checkState(lossOutputDir.exists() || lossOutputDir.mkdir());
 		
 		List<Map<Double, List<DiscretizedFunc>>> lossDistsList = new ArrayList<>();
+		List<Map<Double, HistogramFunction>> lossHistsList = new ArrayList<>();
 		List<Double> lossWeights = new ArrayList<>();
 		Table<String, Double, DiscretizedFunc> allCombLossExceeds = HashBasedTable.create();
 		Map<String, Double> allExceedWeightMap = Maps.newHashMap();
@@ -1698,6 +2131,7 @@ public class ETAS_CatalogEALCalculator {
 			}
 			
 			List<Map<Double, List<DiscretizedFunc>>> myLossDists = Lists.newArrayList();
+			List<Map<Double, HistogramFunction>> myLossHists = Lists.newArrayList();
 			List<Double> myWeights = Lists.newArrayList();
 			
 			List<Map<Double, EvenlyDiscretizedFunc>> myMagLossDists = magDistLosses ? new ArrayList<>() : null;
@@ -1713,41 +2147,60 @@ public class ETAS_CatalogEALCalculator {
 				
 				System.out.println("Calculating catalog losses");
 				Map<Double, EvenlyDiscretizedFunc> durationMagDistMap = magDistLosses ? new HashMap<>() : null;
-				Map<Double, List<DiscretizedFunc>> lossDists =
-						calc.getLossDists(attenRelRef, xAxisScale, durations, allSubDurations, magXVals, durationMagDistMap);
-				
-				myLossDists.add(lossDists);
+				Map<Double, List<DiscretizedFunc>> lossDists = null;
+				Map<Double, HistogramFunction> lossHists;
+				if (allSubDurations) {
+					// bin as we go rather than keeping a distribution for every sub catalog
+					lossHists = calc.getLossHists(attenRelRef, xAxisScale, durations, allSubDurations, deltaX,
+							magXVals, durationMagDistMap);
+				} else {
+					lossDists = calc.getLossDists(attenRelRef, xAxisScale, durations, allSubDurations,
+							magXVals, durationMagDistMap);
+					myLossDists.add(lossDists);
+					lossHists = getLossHist(lossDists, deltaX, isLog10);
+				}
+				myLossHists.add(lossHists);
 				myWeights.add(imrWeight);
 				if (magDistLosses)
 					myMagLossDists.add(durationMagDistMap);
 				
-				Map<Double, HistogramFunction> lossHists = getLossHist(lossDists, deltaX, isLog10);
 //				writeLossHist(outputDir, attenRelRef.name(), lossHist, isLog10);
 				writeLossHist(outputDir, attenRelRef.name()+prefixAdd, lossHists, isLog10, triggeredOnly,
 						xAxisLabel, maxX);
-				Map<Double, DiscretizedFunc> exceedFuncs = toExceedFuncs(lossHists, calc.catalogs.size(),
+				Map<Double, DiscretizedFunc> exceedFuncs = toExceedFuncs(lossHists, calc.getNumCatalogs(),
 						allSubDurations, calc.getRoundedMaxCatalogDiration());
 				for (double duration : exceedFuncs.keySet())
 					gmpeCombLossExceeds.put(attenRelRef.name(), duration, exceedFuncs.get(duration));
 				exceedWeightMap.put(attenRelRef.name(), imrWeight);
 				writeLossExceed(outputDir, attenRelRef.name()+prefixAdd, exceedFuncs, isLog10, triggeredOnly, xAxisLabel, maxX);
 				
-				calc.writeLossesToCSV(outputDir, attenRelRef.name()+prefixAdd+"_losses"+csvPrefixAdd, lossDists);
+				if (lossDists != null)
+					calc.writeLossesToCSV(outputDir, attenRelRef.name()+prefixAdd+"_losses"+csvPrefixAdd, lossDists);
+				else
+					System.out.println("Not writing per sub catalog loss CSV, losses were binned");
 			}
 			
 			// combined for all atten rels
 			if (imrWeightsMap.size() > 1) {
-				Map<Double, List<DiscretizedFunc>> imrCombined = getCombinedLossDists(myLossDists, myWeights);
-				Map<Double, HistogramFunction> lossHists = getLossHist(imrCombined, deltaX, isLog10);
+				Map<Double, List<DiscretizedFunc>> imrCombined = null;
+				Map<Double, HistogramFunction> lossHists;
+				if (allSubDurations) {
+					lossHists = getCombinedLossHists(myLossHists, myWeights);
+				} else {
+					imrCombined = getCombinedLossDists(myLossDists, myWeights);
+					lossHists = getLossHist(imrCombined, deltaX, isLog10);
+				}
 				writeLossHist(outputDir, "gmpes_combined"+prefixAdd, lossHists, isLog10, triggeredOnly, xAxisLabel, maxX);
 				writeLossExceed(outputDir, "gmpes_combined"+prefixAdd, gmpeCombLossExceeds, exceedWeightMap, isLog10, triggeredOnly, xAxisLabel, maxX, false, true);
 //				writeLossExceed(outputDir, "gmpes_combined"+prefixAdd, lossHists, isLog10, triggeredOnly, xAxisLabel, maxX, calc.catalogs.size());
-				calc.writeLossesToCSV(outputDir, "gmpes_combined"+prefixAdd+"_losses"+csvPrefixAdd, imrCombined);
+				if (imrCombined != null)
+					calc.writeLossesToCSV(outputDir, "gmpes_combined"+prefixAdd+"_losses"+csvPrefixAdd, imrCombined);
 				Map<Double, EvenlyDiscretizedFunc> myMagDists = getCombinedMagLossDists(myMagLossDists, myWeights);
 				writeMagAverageLossesCSV(outputDir, "gmpes_combined"+prefixAdd+"_mean_mag_losses_dist"+csvPrefixAdd, magXVals, myMagDists);
 			}
 			
 			lossDistsList.addAll(myLossDists);
+			lossHistsList.addAll(myLossHists);
 			lossWeights.addAll(myWeights);
 			if (magDistLosses)
 				lossMagDistsList.addAll(myMagLossDists);
@@ -1770,12 +2223,19 @@ public class ETAS_CatalogEALCalculator {
 			if (!outputDir.exists())
 				outputDir.mkdir();
 			
-			Map<Double, List<DiscretizedFunc>> combined = getCombinedLossDists(lossDistsList, lossWeights);
-			Map<Double, HistogramFunction> lossHists = getLossHist(combined, deltaX, isLog10);
+			Map<Double, List<DiscretizedFunc>> combined = null;
+			Map<Double, HistogramFunction> lossHists;
+			if (allSubDurations) {
+				lossHists = getCombinedLossHists(lossHistsList, lossWeights);
+			} else {
+				combined = getCombinedLossDists(lossDistsList, lossWeights);
+				lossHists = getLossHist(combined, deltaX, isLog10);
+			}
 			writeLossHist(outputDir, "gmpes_combined"+prefixAdd, lossHists, isLog10, triggeredOnly, xAxisLabel, maxX);
 			writeLossExceed(outputDir, "gmpes_combined"+prefixAdd, allCombLossExceeds, allExceedWeightMap, isLog10, triggeredOnly, xAxisLabel, maxX, false, true);
 //			writeLossExceed(outputDir, "gmpes_combined"+prefixAdd, lossHists, isLog10, triggeredOnly, xAxisLabel, maxX, calc.catalogs.size());
-			calc.writeLossesToCSV(outputDir, "gmpes_combined"+prefixAdd+"_losses"+csvPrefixAdd, combined);
+			if (combined != null)
+				calc.writeLossesToCSV(outputDir, "gmpes_combined"+prefixAdd+"_losses"+csvPrefixAdd, combined);
 			if (magDistLosses) {
 				Map<Double, EvenlyDiscretizedFunc> magCombinedMap = getCombinedMagLossDists(lossMagDistsList, lossWeights);
 				writeMagAverageLossesCSV(outputDir, "gmpes_combined"+prefixAdd+"_mean_mag_losses_dist"+csvPrefixAdd, magXVals, magCombinedMap);
@@ -1783,6 +2243,39 @@ public class ETAS_CatalogEALCalculator {
 		}
 	}
 	
+	/**
+	 * Weighted average of normalized loss histograms for each duration. Histograms must share the same delta and
+	 * start at the same x value (as with {@link #getLossHists(AttenRelRef, double, double[], boolean, double,
+	 * EvenlyDiscretizedFunc, Map)}), but can have different lengths.
+	 */
+	private static Map<Double, HistogramFunction> getCombinedLossHists(
+			List<Map<Double, HistogramFunction>> lossHistsList, List<Double> lossWeights) {
+		double totWeight = 0d;
+		for (double weight : lossWeights)
+			totWeight += weight;
+		
+		Map<Double, HistogramFunction> combinedHists = Maps.newHashMap();
+		for (double duration : lossHistsList.get(0).keySet()) {
+			HistogramFunction hist0 = lossHistsList.get(0).get(duration);
+			int num = 0;
+			for (Map<Double, HistogramFunction> lossHists : lossHistsList) {
+				HistogramFunction hist = lossHists.get(duration);
+				Preconditions.checkState((float)hist.getDelta() == (float)hist0.getDelta()
+						&& (float)hist.getMinX() == (float)hist0.getMinX(), "Histogram discretization mismatch");
+				num = Math.max(num, hist.size());
+			}
+			HistogramFunction combined = new HistogramFunction(hist0.getMinX(), num, hist0.getDelta());
+			for (int i=0; i<lossHistsList.size(); i++) {
+				HistogramFunction hist = lossHistsList.get(i).get(duration);
+				double weight = lossWeights.get(i)/totWeight;
+				for (int j=0; j<hist.size(); j++)
+					combined.add(j, hist.getY(j)*weight);
+			}
+			combinedHists.put(duration, combined);
+		}
+		return combinedHists;
+	}
+	
 	private static Map<Double, List<DiscretizedFunc>> getCombinedLossDists(
 			List<Map<Double, List<DiscretizedFunc>>> lossDistsList, List<Double> lossWeights) {
 		Map<Double, List<DiscretizedFunc>> combinedLosses = Maps.newHashMap();
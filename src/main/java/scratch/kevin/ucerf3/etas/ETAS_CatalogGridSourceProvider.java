@@ -230,6 +230,13 @@ public class ETAS_CatalogGridSourceProvider extends AbstractGridSourceProvider {
 		return sampleMFD.getClosestXIndex(etasRup.getMag());
 	}
 	
+	/**
+	 * @return number of distinct values that can be returned by {@link #getMagIndex(ETAS_EqkRupture)}
+	 */
+	public int getNumMagIndexes() {
+		return sampleMFD.size();
+	}
+	
 	public Iterable<ProbEqkRupture> getConditionalRuptures(ETAS_EqkRupture etasRup) {
 		Preconditions.checkArgument(conditional, "Must be in conditional mode!");
 		int node = getNodeIndex(etasRup);
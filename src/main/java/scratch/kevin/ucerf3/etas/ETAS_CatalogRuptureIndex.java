@@ -0,0 +1,221 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Inverted index of ETAS catalog ruptures, used by {@link ETAS_HazardMapCalc} so that each site only visits
+ * (catalog, rupture) pairs which can possibly contribute. Fault based ruptures are bucketed by FSS index, and
+ * gridded ruptures are bucketed by the gridded source node that they are assigned to. Occurrences are stored as packed
+ * longs (catalog index in the upper 32 bits, rupture index in the lower) so that sorting them restores the original
+ * catalog/rupture iteration order.
+ *
+ * @author kevin
+ *
+ */
+class ETAS_CatalogRuptureIndex {
+
+	private final boolean[] catalogHasM5;
+
+	// packed occurrences for each FSS index, null if never triggered
+	private long[][] faultOccurrences;
+
+	// gridded node and mag indexes for each rupture, -1 if not gridded or not mappable
+	private final int[][] rupNodeIndexes;
+	private final int[][] rupMagIndexes;
+
+	// occupied gridded nodes
+	private int[] occupiedNodes;
+	private Location[] nodeLocs;
+	private double[] nodeLats;
+	private long[][] nodeOccurrences;
+	// added to the cutoff distance when testing node centers, accounts for node size
+	private double nodeBuffer;
+
+	public ETAS_CatalogRuptureIndex(List<? extends List<ETAS_EqkRupture>> catalogs,
+			ETAS_CatalogGridSourceProvider gridSources) {
+		int numCatalogs = catalogs.size();
+		catalogHasM5 = new boolean[numCatalogs];
+		rupNodeIndexes = new int[numCatalogs][];
+		rupMagIndexes = new int[numCatalogs][];
+
+		// first pass: count occurrences
+		int maxFSSIndex = -1;
+		for (List<ETAS_EqkRupture> catalog : catalogs)
+			for (ETAS_EqkRupture rup : catalog)
+				maxFSSIndex = Math.max(maxFSSIndex, rup.getFSSIndex());
+		int[] faultCounts = new int[maxFSSIndex+1];
+
+		GriddedRegion griddedReg = gridSources == null ? null : gridSources.getGriddedRegion();
+		int[] nodeCounts = griddedReg == null ? new int[0] : new int[griddedReg.getNodeCount()];
+
+		for (int c=0; c<numCatalogs; c++) {
+			List<ETAS_EqkRupture> catalog = catalogs.get(c);
+			rupNodeIndexes[c] = new int[catalog.size()];
+			rupMagIndexes[c] = new int[catalog.size()];
+			for (int r=0; r<catalog.size(); r++) {
+				ETAS_EqkRupture rup = catalog.get(r);
+				if (rup.getMag() > 5)
+					catalogHasM5[c] = true;
+				rupNodeIndexes[c][r] = -1;
+				rupMagIndexes[c][r] = -1;
+				if (rup.getFSSIndex() >= 0) {
+					faultCounts[rup.getFSSIndex()]++;
+				} else if (gridSources != null) {
+					int nodeIndex = gridSources.getNodeIndex(rup);
+					int magIndex = gridSources.getMagIndex(rup);
+					if (nodeIndex < 0 || magIndex < 0)
+						continue;
+					rupNodeIndexes[c][r] = nodeIndex;
+					rupMagIndexes[c][r] = magIndex;
+					nodeCounts[nodeIndex]++;
+				}
+			}
+		}
+
+		// second pass: fill in occurrences, in catalog/rupture order
+		faultOccurrences = new long[faultCounts.length][];
+		for (int i=0; i<faultCounts.length; i++)
+			if (faultCounts[i] > 0)
+				faultOccurrences[i] = new long[faultCounts[i]];
+		int numOccupied = 0;
+		for (int count : nodeCounts)
+			if (count > 0)
+				numOccupied++;
+		occupiedNodes = new int[numOccupied];
+		nodeLats = new double[numOccupied];
+		nodeLocs = new Location[numOccupied];
+		nodeOccurrences = new long[numOccupied][];
+		int[] nodeSlots = new int[nodeCounts.length];
+		int slot = 0;
+		for (int n=0; n<nodeCounts.length; n++) {
+			if (nodeCounts[n] == 0)
+				continue;
+			Location loc = griddedReg.getLocation(n);
+			occupiedNodes[slot] = n;
+			nodeLats[slot] = loc.getLatitude();
+			nodeLocs[slot] = loc;
+			nodeOccurrences[slot] = new long[nodeCounts[n]];
+			nodeSlots[n] = slot++;
+		}
+		if (griddedReg != null) {
+			// half diagonal of a node in km (at the equator, conservative) plus some slop for the fast distance calc
+			double halfDiag = 0.5*Math.sqrt(2d)*griddedReg.getSpacing()*111.2;
+			nodeBuffer = 1.1*halfDiag + 1d;
+		}
+
+		Arrays.fill(faultCounts, 0);
+		Arrays.fill(nodeCounts, 0);
+		for (int c=0; c<numCatalogs; c++) {
+			List<ETAS_EqkRupture> catalog = catalogs.get(c);
+			for (int r=0; r<catalog.size(); r++) {
+				long packed = pack(c, r);
+				int fssIndex = catalog.get(r).getFSSIndex();
+				if (fssIndex >= 0) {
+					faultOccurrences[fssIndex][faultCounts[fssIndex]++] = packed;
+				} else if (rupNodeIndexes[c][r] >= 0) {
+					int nodeIndex = rupNodeIndexes[c][r];
+					nodeOccurrences[nodeSlots[nodeIndex]][nodeCounts[nodeIndex]++] = packed;
+				}
+			}
+		}
+	}
+
+	static long pack(int catalogIndex, int rupIndex) {
+		return ((long)catalogIndex << 32) | (rupIndex & 0xFFFFFFFFL);
+	}
+
+	static int catalogIndex(long packed) {
+		return (int)(packed >>> 32);
+	}
+
+	static int rupIndex(long packed) {
+		return (int)packed;
+	}
+
+	public boolean hasM5(int catalogIndex) {
+		return catalogHasM5[catalogIndex];
+	}
+
+	public int getNodeIndex(int catalogIndex, int rupIndex) {
+		return rupNodeIndexes[catalogIndex][rupIndex];
+	}
+
+	public int getMagIndex(int catalogIndex, int rupIndex) {
+		return rupMagIndexes[catalogIndex][rupIndex];
+	}
+
+	/**
+	 * Adds all occurrences of the given FSS index to the candidate list
+	 * @param fssIndex
+	 * @param candidates
+	 */
+	public void gatherFault(int fssIndex, Candidates candidates) {
+		if (fssIndex >= faultOccurrences.length || faultOccurrences[fssIndex] == null)
+			return;
+		candidates.addAll(faultOccurrences[fssIndex]);
+	}
+
+	/**
+	 * Adds occurrences for all gridded nodes which could have a rupture within the given cutoff distance
+	 * of the site location. Nodes are either included in their entirety or not at all, so that per node
+	 * distance logic in the caller sees every rupture in that node.
+	 * @param siteLoc
+	 * @param distCutoff
+	 * @param candidates
+	 */
+	public void gatherGridded(Location siteLoc, double distCutoff, Candidates candidates) {
+		double maxDist = distCutoff + nodeBuffer;
+		// cheap latitude prefilter
+		double maxDeltaLat = maxDist/111d + 0.01;
+		double siteLat = siteLoc.getLatitude();
+		for (int i=0; i<occupiedNodes.length; i++) {
+			if (Math.abs(nodeLats[i] - siteLat) > maxDeltaLat)
+				continue;
+			double dist = LocationUtils.horzDistanceFast(siteLoc, nodeLocs[i]);
+			if (dist <= maxDist)
+				candidates.addAll(nodeOccurrences[i]);
+		}
+	}
+
+	/**
+	 * Growable buffer of packed (catalog, rupture) occurrences, reused across sites
+	 */
+	static class Candidates {
+		private long[] packed = new long[1024];
+		private int size = 0;
+
+		void addAll(long[] vals) {
+			if (size + vals.length > packed.length)
+				packed = Arrays.copyOf(packed, Math.max(size + vals.length, packed.length*2));
+			System.arraycopy(vals, 0, packed, size, vals.length);
+			size += vals.length;
+		}
+
+		/**
+		 * Sorts into original catalog/rupture order
+		 */
+		void sort() {
+			Arrays.sort(packed, 0, size);
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long get(int index) {
+			return packed[index];
+		}
+	}
+
+}
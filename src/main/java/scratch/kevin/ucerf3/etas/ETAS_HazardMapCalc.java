@@ -9,6 +9,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
@@ -23,6 +24,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingUtilities;
 
@@ -109,6 +111,7 @@ import scratch.UCERF3.erf.ETAS.ETAS_MultiSimAnalysisTools;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.ucerf3.ShakeMapPrecalcIndexedFile;
 
 public class ETAS_HazardMapCalc {
 	
@@ -116,6 +119,13 @@ public class ETAS_HazardMapCalc {
 	private static int debugCurvePlotModulus = 0;
 	private static int debugStopIndex = 0;
 	
+	// if true, catalog curves will be folded in primitive arrays rather than DiscretizedFunc tables
+	private static boolean use_primitive_kernel = true;
+	// if true, every primitive kernel result is checked against the legacy implementation (slow, debug only)
+	private static boolean validate_primitive_kernel = false;
+	// if true, the primitive kernel will use an inverted catalog index to only visit ruptures near each site
+	private static boolean use_catalog_index = true;
+	
 	// will rescale U3-TD/TI to other durations as needed
 	private static boolean RESCALE_U3 = true;
 	private static final double RESCALE_U3_MAX_DELTA = 1d; // don't rescale more than a year
@@ -125,6 +135,7 @@ public class ETAS_HazardMapCalc {
 	
 	private List<? extends List<ETAS_EqkRupture>> catalogs;
 	private HashSet<Integer> faultIndexesTriggered;
+	private int maxFaultIndexTriggered = -1;
 	protected GriddedRegion region;
 	private DiscretizedFunc xVals;
 	private DiscretizedFunc calcXVals;
@@ -133,6 +144,7 @@ public class ETAS_HazardMapCalc {
 	
 	// for precalc faults
 	private DataInputStream in;
+	private ShakeMapPrecalcIndexedFile indexedPrecalc;
 	int faultSiteIndex = 0;
 	// for on the fly faults
 	private FaultSystemSolution sol;
@@ -157,7 +169,8 @@ public class ETAS_HazardMapCalc {
 	private Duration[] longTermCalcDurations;
 	
 	protected Table<Duration, MapType, DiscretizedFunc[]> curves;
-	private int curvesCalculated;
+	private AtomicInteger curvesCalculated = new AtomicInteger();
+	private final ETAS_HazardMapMetrics metrics = new ETAS_HazardMapMetrics();
 	
 	enum MapType {
 		FAULT_ONLY("faults"),
@@ -363,8 +376,16 @@ public class ETAS_HazardMapCalc {
 			for (ETAS_EqkRupture rup : catalog)
 				if (rup.getFSSIndex() > 0)
 					faultIndexesTriggered.add(rup.getFSSIndex());
-		
-		if (precalcFile != null) {
+		for (int fssIndex : faultIndexesTriggered)
+			maxFaultIndexTriggered = Math.max(maxFaultIndexTriggered, fssIndex);
+		
+		if (precalcFile != null && ShakeMapPrecalcIndexedFile.isIndexedFormat(precalcFile)) {
+			// memory map precalculated fault data, random access
+			indexedPrecalc = new ShakeMapPrecalcIndexedFile(precalcFile);
+			Preconditions.checkState(indexedPrecalc.getNumSites() == region.getNodeCount(),
+					"Binary file has %s grid nodes, region has %s", indexedPrecalc.getNumSites(), region.getNodeCount());
+			calcFaults = true;
+		} else if (precalcFile != null) {
 			// load in precalculated fault data
 			in = new DataInputStream(new BufferedInputStream(new FileInputStream(precalcFile)));
 			int numSites = in.readInt();
@@ -543,6 +564,13 @@ public class ETAS_HazardMapCalc {
 		this.calcLongTerm = calcLongTerm;
 	}
 	
+	/**
+	 * @return metrics for curves calculated by this instance, reset at the start of each {@link #calculate()}
+	 */
+	public ETAS_HazardMapMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void setDistanceCutoff(double distCutoff) {
 		this.distCutoff = distCutoff;
 	}
@@ -616,14 +644,16 @@ public class ETAS_HazardMapCalc {
 		Stopwatch watch = Stopwatch.createStarted();
 		System.out.println("Calculating");
 		
-		curvesCalculated = 0;
+		curvesCalculated.set(0);
+		// reset in place, the instance is shared with executor threads and any periodic snapshot settings
+		metrics.reset();
 		
 		for (int index=0; index<region.getNodeCount(); index++) {
 			if (index % printModulus == 0)
 				System.out.println("Processing site "+index+"/"+region.getNodeCount());
 			
 			Map<Integer, double[]> precomputedFaultVals = null;
-			if (calcFaults && in != null) {
+			if (calcFaults && (in != null || indexedPrecalc != null)) {
 				Preconditions.checkState(faultSiteIndex == index);
 				precomputedFaultVals = loadNextSite();
 			}
@@ -663,8 +693,9 @@ public class ETAS_HazardMapCalc {
 		long secs = watch.elapsed(TimeUnit.SECONDS);
 		System.out.println("Calculation took "+secs+" secs");
 		watch.stop();
-		double curvesPerSecond = (double)curvesCalculated/(double)secs;
-		System.out.println((float)curvesPerSecond+" curves/sec");
+		double curvesPerSecond = (double)curvesCalculated.get()/(double)secs;
+		System.out.println((float)curvesPerSecond+" curves/sec ("+(use_primitive_kernel ? "primitive" : "legacy")+" kernel)");
+		System.out.println(metrics.getSummary());
 		
 		executor.shutdown();
 	}
@@ -691,9 +722,9 @@ public class ETAS_HazardMapCalc {
 				curves.get(duration, type)[index] = cell.getValue();
 			}
 			
-			curvesCalculated++;
-			if (curvesCalculated % printModulus == 0)
-				System.out.println("Calculated "+curvesCalculated+"/"+region.getNodeCount()+" sites");
+			int numCalculated = curvesCalculated.incrementAndGet();
+			if (numCalculated % printModulus == 0)
+				System.out.println("Calculated "+numCalculated+"/"+region.getNodeCount()+" sites");
 		}
 	}
 	
@@ -707,6 +738,48 @@ public class ETAS_HazardMapCalc {
 	 * @return HazardCalcResult instance
 	 */
 	Table<Duration, MapType, DiscretizedFunc> calculateCurves(Site site, Map<Integer, double[]> precomputedFaultVals) {
+		Table<Duration, MapType, DiscretizedFunc> curves;
+		if (use_primitive_kernel) {
+			curves = calculateETASCurvesPrimitive(site, precomputedFaultVals);
+			if (validate_primitive_kernel)
+				validateCurves(curves, calculateETASCurvesLegacy(site, precomputedFaultVals));
+		} else {
+			curves = calculateETASCurvesLegacy(site, precomputedFaultVals);
+		}
+		
+		if (calcLongTerm) {
+			long start = System.nanoTime();
+			calcLongTerm(site, getLongTermCalcDurations(), curves);
+			metrics.record(ETAS_HazardMapMetrics.Phase.LONG_TERM, start);
+		}
+		
+		metrics.increment(ETAS_HazardMapMetrics.Counter.CURVES);
+		metrics.checkWriteSnapshot();
+		
+		return curves;
+	}
+	
+	private static void validateCurves(Table<Duration, MapType, DiscretizedFunc> curves,
+			Table<Duration, MapType, DiscretizedFunc> legacyCurves) {
+		Preconditions.checkState(curves.size() == legacyCurves.size(), "Curve count mismatch: %s != %s",
+				curves.size(), legacyCurves.size());
+		for (Cell<Duration, MapType, DiscretizedFunc> cell : legacyCurves.cellSet()) {
+			DiscretizedFunc legacy = cell.getValue();
+			DiscretizedFunc curve = curves.get(cell.getRowKey(), cell.getColumnKey());
+			Preconditions.checkNotNull(curve, "Missing curve for %s, %s", cell.getRowKey(), cell.getColumnKey());
+			for (int i=0; i<legacy.size(); i++)
+				Preconditions.checkState(Double.doubleToLongBits(curve.getY(i)) == Double.doubleToLongBits(legacy.getY(i)),
+						"Kernel mismatch for %s, %s at x=%s: %s != %s", cell.getRowKey(), cell.getColumnKey(),
+						legacy.getX(i), curve.getY(i), legacy.getY(i));
+		}
+	}
+	
+	/**
+	 * Original DiscretizedFunc based ETAS curve calculation, kept for validation and benchmarking of
+	 * the primitive kernel. Long term curves are not included.
+	 */
+	private Table<Duration, MapType, DiscretizedFunc> calculateETASCurvesLegacy(
+			Site site, Map<Integer, double[]> precomputedFaultVals) {
 		Table<Duration, MapType, DiscretizedFunc> curves = getInitializedCurvesMap(xVals, 0d); // linear space
 		
 		if (calcFaults || calcGridded) {
@@ -863,12 +936,491 @@ public class ETAS_HazardMapCalc {
 				checkInGMPE(gmpe);
 		}
 		
-		if (calcLongTerm)
-			calcLongTerm(site, getLongTermCalcDurations(), curves);
+		return curves;
+	}
+	
+	private ThreadLocal<CurveKernelScratch> kernelScratch = new ThreadLocal<>();
+	
+	private CurveKernelScratch getKernelScratch() {
+		MapType[] types = getKernelTypes();
+		CurveKernelScratch scratch = kernelScratch.get();
+		if (scratch == null || !Arrays.equals(scratch.types, types)) {
+			scratch = new CurveKernelScratch(types);
+			kernelScratch.set(scratch);
+		}
+		return scratch;
+	}
+	
+	private MapType[] getKernelTypes() {
+		List<MapType> types = new ArrayList<>();
+		if (calcFaults)
+			types.add(MapType.FAULT_ONLY);
+		if (calcGridded)
+			types.add(MapType.GRIDDED_ONLY);
+		if (calcFaults && calcGridded)
+			types.add(MapType.COMBINED);
+		return types.toArray(new MapType[0]);
+	}
+	
+	/**
+	 * Per thread buffers for the primitive curve kernel. Curve values are stored in flat arrays indexed by
+	 * [duration][mapType][iml] so that no objects are allocated while folding catalogs.
+	 */
+	private class CurveKernelScratch {
+		private final MapType[] types;
+		private final int faultTypeIndex;
+		private final int griddedTypeIndex;
+		private final int combinedTypeIndex;
+		private final int numX;
+		private final double[] calcXs;
+		
+		// single catalog non-exceedance probabilities, [duration][mapType][iml]
+		private final double[] catVals;
+		// total exceedance probabilities across all catalogs, [duration][mapType][iml]
+		private final double[] totVals;
+		
+		// fault rupture non-exceedance probabilities, indexed by FSS index. only valid if stamp == siteStamp
+		private double[][] faultNonExceeds;
+		private int[] faultStamps;
+		private int siteStamp = 0;
+		// reused for GMPE exceedance probability calculations
+		private DiscretizedFunc gmpeFunc;
+		
+		// gridded conditional non-exceedance probabilities for each node/mag pair
+		private final IntSlotMap griddedSlots = new IntSlotMap();
+		private double[][] griddedNonExceeds = new double[64][];
+		private final IntSlotMap ignoreGriddedNodes = new IntSlotMap();
+		
+		// per site metrics, flushed to the shared metrics at the end of each site
+		private long griddedNanos;
+		private long rupturesFolded;
+		private long catalogsFolded;
+		
+		// (catalog, rupture) candidates from the catalog index
+		private final ETAS_CatalogRuptureIndex.Candidates candidates = new ETAS_CatalogRuptureIndex.Candidates();
+		
+		public CurveKernelScratch(MapType[] types) {
+			this.types = types;
+			this.faultTypeIndex = Arrays.asList(types).indexOf(MapType.FAULT_ONLY);
+			this.griddedTypeIndex = Arrays.asList(types).indexOf(MapType.GRIDDED_ONLY);
+			this.combinedTypeIndex = Arrays.asList(types).indexOf(MapType.COMBINED);
+			this.numX = calcXVals.size();
+			this.calcXs = new double[numX];
+			for (int i=0; i<numX; i++)
+				calcXs[i] = calcXVals.getX(i);
+			this.catVals = new double[durations.length*types.length*numX];
+			this.totVals = new double[catVals.length];
+			this.gmpeFunc = calcXVals.deepClone();
+		}
+		
+		private int offset(int durIndex, int typeIndex) {
+			return (durIndex*types.length + typeIndex)*numX;
+		}
+		
+		private void initSite(int maxFaultIndex) {
+			Arrays.fill(totVals, 0d);
+			griddedNanos = 0l;
+			rupturesFolded = 0l;
+			catalogsFolded = 0l;
+			griddedSlots.clear();
+			ignoreGriddedNodes.clear();
+			if (faultNonExceeds == null || faultNonExceeds.length <= maxFaultIndex) {
+				faultNonExceeds = new double[maxFaultIndex+1][];
+				faultStamps = new int[maxFaultIndex+1];
+				siteStamp = 0;
+			}
+			siteStamp++;
+		}
+		
+		private double[] faultRow(int fssIndex) {
+			if (faultNonExceeds[fssIndex] == null)
+				faultNonExceeds[fssIndex] = new double[numX];
+			faultStamps[fssIndex] = siteStamp;
+			return faultNonExceeds[fssIndex];
+		}
+		
+		private double[] getFaultNonExceed(int fssIndex) {
+			if (fssIndex >= faultStamps.length || faultStamps[fssIndex] != siteStamp)
+				return null;
+			return faultNonExceeds[fssIndex];
+		}
+		
+		private double[] griddedRow(int slot) {
+			if (slot >= griddedNonExceeds.length)
+				griddedNonExceeds = Arrays.copyOf(griddedNonExceeds, Math.max(slot+1, griddedNonExceeds.length*2));
+			if (griddedNonExceeds[slot] == null)
+				griddedNonExceeds[slot] = new double[numX];
+			return griddedNonExceeds[slot];
+		}
+	}
+	
+	/**
+	 * Minimal open addressing map from non-negative int keys to sequentially assigned int slots, used to avoid
+	 * boxing in the primitive curve kernel. Also usable as a set.
+	 */
+	static class IntSlotMap {
+		private int[] keys;
+		private int[] slots;
+		private int size;
+		
+		public IntSlotMap() {
+			keys = new int[64];
+			slots = new int[64];
+			Arrays.fill(keys, -1);
+		}
+		
+		private int bucket(int key) {
+			int h = key * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & (keys.length-1);
+		}
+		
+		/**
+		 * @param key
+		 * @return slot for the given key, or -1 if not present
+		 */
+		public int get(int key) {
+			int b = bucket(key);
+			while (true) {
+				int k = keys[b];
+				if (k == key)
+					return slots[b];
+				if (k < 0)
+					return -1;
+				b = (b+1) & (keys.length-1);
+			}
+		}
+		
+		public boolean contains(int key) {
+			return get(key) >= 0;
+		}
+		
+		/**
+		 * Adds the given key (if not already present)
+		 * @param key
+		 * @return slot for the given key
+		 */
+		public int add(int key) {
+			Preconditions.checkArgument(key >= 0);
+			int b = bucket(key);
+			while (keys[b] >= 0) {
+				if (keys[b] == key)
+					return slots[b];
+				b = (b+1) & (keys.length-1);
+			}
+			keys[b] = key;
+			slots[b] = size;
+			size++;
+			if (size*2 > keys.length)
+				rehash();
+			return size-1;
+		}
+		
+		private void rehash() {
+			int[] oldKeys = keys;
+			int[] oldSlots = slots;
+			keys = new int[oldKeys.length*2];
+			slots = new int[oldKeys.length*2];
+			Arrays.fill(keys, -1);
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] < 0)
+					continue;
+				int b = bucket(oldKeys[i]);
+				while (keys[b] >= 0)
+					b = (b+1) & (keys.length-1);
+				keys[b] = oldKeys[i];
+				slots[b] = oldSlots[i];
+			}
+		}
 		
+		public int size() {
+			return size;
+		}
+		
+		public void clear() {
+			if (size == 0)
+				return;
+			Arrays.fill(keys, -1);
+			size = 0;
+		}
+	}
+	
+	/**
+	 * Primitive array implementation of the ETAS portion of {@link #calculateCurves(Site, Map)}. All per site state
+	 * is kept in reusable per thread buffers and DiscretizedFunc instances are only created for the final curves.
+	 * Results are identical to the legacy implementation (same operations in the same order).
+	 */
+	private Table<Duration, MapType, DiscretizedFunc> calculateETASCurvesPrimitive(
+			Site site, Map<Integer, double[]> precomputedFaultVals) {
+		if (!calcFaults && !calcGridded)
+			return getInitializedCurvesMap(xVals, 0d);
+		
+		CurveKernelScratch scratch = getKernelScratch();
+		final int numX = scratch.numX;
+		final double[] calcXs = scratch.calcXs;
+		final double[] catVals = scratch.catVals;
+		final double[] totVals = scratch.totVals;
+		final int numTypes = scratch.types.length;
+		
+		int maxFaultIndex = maxFaultIndexTriggered;
+		if (precomputedFaultVals != null)
+			for (int fssIndex : precomputedFaultVals.keySet())
+				maxFaultIndex = Math.max(maxFaultIndex, fssIndex);
+		scratch.initSite(maxFaultIndex);
+		
+		// prepare inputs
+		ScalarIMR gmpe = null;
+		if (calcFaults) {
+			long faultStart = System.nanoTime();
+			int numFaultIMs = 0;
+			if (precomputedFaultVals == null) {
+				// calculate them now
+				gmpe = checkOutGMPE();
+				for (Integer fssIndex : faultIndexesTriggered) {
+					ProbEqkSource source = sourcesForFSSRuptures[fssIndex];
+					if (source == null)
+						continue;
+					Preconditions.checkState(source.getNumRuptures() == 1, "Must be a single rupture source");
+					if (source.getMinDistance(site) > distCutoff)
+						continue;
+					gmpe.setSite(site);
+					gmpe.setEqkRupture(source.getRupture(0));
+					DiscretizedFunc exceeds = gmpe.getExceedProbabilities(scratch.gmpeFunc);
+					double[] row = scratch.faultRow(fssIndex);
+					for (int i=0; i<numX; i++)
+						row[i] = 1d-exceeds.getY(i);
+					numFaultIMs++;
+				}
+			} else {
+				// use precomputed
+				for (Map.Entry<Integer, double[]> entry : precomputedFaultVals.entrySet()) {
+					double[] vals = entry.getValue();
+					double mean = vals[0];
+					double stdDev = vals[1];
+					double[] row = scratch.faultRow(entry.getKey());
+					for (int i=0; i<numX; i++)
+						row[i] = 1d-AttenuationRelationship.getExceedProbability(mean, stdDev, calcXs[i], null, null);
+					numFaultIMs++;
+				}
+			}
+			metrics.add(ETAS_HazardMapMetrics.Counter.FAULT_IMS, numFaultIMs);
+			metrics.record(ETAS_HazardMapMetrics.Phase.FAULT_IMS, faultStart);
+		}
+		
+		int numMags = -1;
+		if (calcGridded) {
+			Preconditions.checkState(gridSources.isConditional());
+			if (gmpe == null)
+				gmpe = checkOutGMPE();
+			gmpe.setSite(site);
+			numMags = gridSources.getNumMagIndexes();
+		}
+		
+		double rateEach = 1d/catalogs.size();
+		
+		ETAS_CatalogRuptureIndex index = use_catalog_index ? getCatalogRuptureIndex() : null;
+		
+		long foldStart = System.nanoTime();
+		if (index == null) {
+			// visit every rupture in every catalog
+			for (List<ETAS_EqkRupture> catalog : catalogs) {
+				boolean hasM5 = false;
+				for (ETAS_EqkRupture rup : catalog) {
+					if (rup.getMag() > 5) {
+						hasM5 = true;
+						break;
+					}
+				}
+				if (!hasM5)
+					continue;
+				Arrays.fill(catVals, 1d);
+				
+				for (ETAS_EqkRupture rup : catalog) {
+					int nodeIndex = -1, mfdIndex = -1;
+					if (rup.getFSSIndex() < 0 && calcGridded) {
+						nodeIndex = gridSources.getNodeIndex(rup);
+						mfdIndex = gridSources.getMagIndex(rup);
+					}
+					foldRupture(scratch, site, gmpe, rup, nodeIndex, mfdIndex, numMags);
+				}
+				
+				finishCatalog(scratch, rateEach);
+			}
+		} else {
+			// only visit (catalog, rupture) pairs which can contribute to this site. catalogs with no candidates
+			// would contribute exactly zero and are skipped
+			ETAS_CatalogRuptureIndex.Candidates candidates = scratch.candidates;
+			candidates.clear();
+			if (calcFaults)
+				for (int fssIndex : faultIndexesTriggered)
+					if (scratch.getFaultNonExceed(fssIndex) != null)
+						index.gatherFault(fssIndex, candidates);
+			if (calcGridded)
+				index.gatherGridded(site.getLocation(), distCutoff, candidates);
+			// restore original ordering so that results are identical
+			candidates.sort();
+			
+			int numCandidates = candidates.size();
+			int i = 0;
+			while (i < numCandidates) {
+				int catalogIndex = ETAS_CatalogRuptureIndex.catalogIndex(candidates.get(i));
+				int end = i+1;
+				while (end < numCandidates && ETAS_CatalogRuptureIndex.catalogIndex(candidates.get(end)) == catalogIndex)
+					end++;
+				if (index.hasM5(catalogIndex)) {
+					List<ETAS_EqkRupture> catalog = catalogs.get(catalogIndex);
+					Arrays.fill(catVals, 1d);
+					for (int j=i; j<end; j++) {
+						int rupIndex = ETAS_CatalogRuptureIndex.rupIndex(candidates.get(j));
+						foldRupture(scratch, site, gmpe, catalog.get(rupIndex), index.getNodeIndex(catalogIndex, rupIndex),
+								index.getMagIndex(catalogIndex, rupIndex), numMags);
+					}
+					finishCatalog(scratch, rateEach);
+				}
+				i = end;
+			}
+		}
+		
+		// gridded conditional curves are built lazily while folding, don't double count them
+		metrics.recordNanos(ETAS_HazardMapMetrics.Phase.CATALOG_FOLDING, System.nanoTime() - foldStart - scratch.griddedNanos);
+		metrics.add(ETAS_HazardMapMetrics.Counter.RUPTURES_FOLDED, scratch.rupturesFolded);
+		metrics.add(ETAS_HazardMapMetrics.Counter.CATALOGS_FOLDED, scratch.catalogsFolded);
+		
+		if (gmpe != null)
+			checkInGMPE(gmpe);
+		
+		Table<Duration, MapType, DiscretizedFunc> curves = HashBasedTable.create();
+		for (int d=0; d<durations.length; d++) {
+			for (int t=0; t<numTypes; t++) {
+				DiscretizedFunc curve = xVals.deepClone();
+				int offset = scratch.offset(d, t);
+				for (int k=0; k<numX; k++)
+					curve.set(k, totVals[offset+k]);
+				curves.put(durations[d], scratch.types[t], curve);
+			}
+		}
 		return curves;
 	}
 	
+	/**
+	 * Multiplies the conditional non-exceedance probabilities for the given rupture into the current catalog curves
+	 */
+	private void foldRupture(CurveKernelScratch scratch, Site site, ScalarIMR gmpe, ETAS_EqkRupture rup,
+			int nodeIndex, int mfdIndex, int numMags) {
+		final int numX = scratch.numX;
+		final double[] catVals = scratch.catVals;
+		double[] condNonExceed;
+		int typeIndex;
+		if (rup.getFSSIndex() >= 0) {
+			// fault based
+			if (!calcFaults)
+				return;
+			condNonExceed = scratch.getFaultNonExceed(rup.getFSSIndex());
+			if (condNonExceed == null)
+				// not within cutoff dist
+				return;
+			typeIndex = scratch.faultTypeIndex;
+		} else {
+			// gridded
+			if (!calcGridded)
+				return;
+			if (nodeIndex < 0 || mfdIndex < 0 || scratch.ignoreGriddedNodes.contains(nodeIndex))
+				return;
+			double dist = LocationUtils.horzDistanceFast(site.getLocation(), rup.getHypocenterLocation());
+			if (dist > distCutoff) {
+				scratch.ignoreGriddedNodes.add(nodeIndex);
+				return;
+			}
+			typeIndex = scratch.griddedTypeIndex;
+			int key = nodeIndex*numMags + mfdIndex;
+			int slot = scratch.griddedSlots.get(key);
+			if (slot >= 0) {
+				condNonExceed = scratch.griddedNonExceeds[slot];
+			} else {
+				// calculate it
+				// multiple ruptures with different focal mechanisms
+				Iterable<ProbEqkRupture> rups = gridSources.getConditionalRuptures(rup);
+				if (rups == null)
+					return;
+				
+				long griddedStart = System.nanoTime();
+				condNonExceed = scratch.griddedRow(scratch.griddedSlots.size());
+				Arrays.fill(condNonExceed, 1d);
+				double sumRate = 0d;
+				for (ProbEqkRupture subRup : rups) {
+					double subMag = subRup.getMag();
+					Preconditions.checkState(subMag >= rup.getMag()-0.06 && subMag <= rup.getMag()+0.06,
+							"Unexpected mag in sub-rupture. Expected %s, got %s", rup.getMag(), subMag);
+					gmpe.setEqkRupture(subRup);
+					double rupProb = subRup.getProbability();
+					double rupRate = -Math.log(1 - rupProb);
+					sumRate += rupRate;
+					
+					for (int i=0; i<numX; i++)
+						condNonExceed[i] = condNonExceed[i]*(1-rupRate*gmpe.getExceedProbability(scratch.calcXs[i]));
+				}
+				Preconditions.checkState((float)sumRate == 1f, "Rupture rates don't sum to 1! %s", sumRate);
+				
+				scratch.griddedSlots.add(key);
+				long griddedNanos = System.nanoTime() - griddedStart;
+				scratch.griddedNanos += griddedNanos;
+				metrics.recordNanos(ETAS_HazardMapMetrics.Phase.GRIDDED_CONDITIONAL, griddedNanos);
+				metrics.increment(ETAS_HazardMapMetrics.Counter.GRIDDED_CURVES);
+			}
+		}
+		
+		long ot = rup.getOriginTime();
+		scratch.rupturesFolded++;
+		
+		// now add the rupture to the appropriate curves
+		for (int d=0; d<durations.length; d++) {
+			// duration of 0 means all
+			if (ot < startOTs[d] || ot >= endOTs[d])
+				// rup occurs outside of window, skip
+				continue;
+			int offset = scratch.offset(d, typeIndex);
+			// multiply this into the total non-exceedance probability
+			for (int k=0; k<numX; k++)
+				catVals[offset+k] *= condNonExceed[k];
+		}
+	}
+	
+	/**
+	 * Builds combined curves for the current catalog and adds them into the total curves
+	 */
+	private void finishCatalog(CurveKernelScratch scratch, double rateEach) {
+		final int numX = scratch.numX;
+		final double[] catVals = scratch.catVals;
+		final double[] totVals = scratch.totVals;
+		scratch.catalogsFolded++;
+		if (scratch.combinedTypeIndex >= 0) {
+			// build combined catalog curves
+			for (int d=0; d<durations.length; d++) {
+				int faultOffset = scratch.offset(d, scratch.faultTypeIndex);
+				int griddedOffset = scratch.offset(d, scratch.griddedTypeIndex);
+				int combinedOffset = scratch.offset(d, scratch.combinedTypeIndex);
+				for (int k=0; k<numX; k++)
+					catVals[combinedOffset+k] = catVals[faultOffset+k] * catVals[griddedOffset+k];
+			}
+		}
+		
+		// convert from total non-exceed prob to total exceed prob and add into total curves
+		for (int i=0; i<catVals.length; i++)
+			totVals[i] = totVals[i] + rateEach*(1d-catVals[i]);
+	}
+	
+	private ETAS_CatalogRuptureIndex catalogRuptureIndex;
+	
+	private synchronized ETAS_CatalogRuptureIndex getCatalogRuptureIndex() {
+		if (catalogRuptureIndex == null) {
+			System.out.println("Building catalog rupture index");
+			Stopwatch watch = Stopwatch.createStarted();
+			catalogRuptureIndex = new ETAS_CatalogRuptureIndex(catalogs, calcGridded ? gridSources : null);
+			watch.stop();
+			System.out.println("Built catalog rupture index in "+watch.elapsed(TimeUnit.SECONDS)+" secs");
+		}
+		return catalogRuptureIndex;
+	}
+	
 	private void calcLongTerm(Site site, Duration[] calcDurations, Table<Duration, MapType, DiscretizedFunc> curves) {
 		FaultSystemSolutionERF erf = checkOutERF();
 		ScalarIMR gmpe = checkOutGMPE();
@@ -979,12 +1531,24 @@ public class ETAS_HazardMapCalc {
 	}
 	
 	private Map<Integer, double[]> loadNextSite() throws IOException {
-		Map<Integer, double[]> rupVals = loadSiteFromInputStream(in, faultSiteIndex);
+		Map<Integer, double[]> rupVals;
+		if (indexedPrecalc != null)
+			rupVals = loadSiteFromIndexedFile(indexedPrecalc, faultSiteIndex);
+		else
+			rupVals = loadSiteFromInputStream(in, faultSiteIndex);
 		
 		faultSiteIndex++;
 		return rupVals;
 	}
 	
+	Map<Integer, double[]> loadSiteFromIndexedFile(ShakeMapPrecalcIndexedFile indexed, int index) {
+		Location myLoc = indexed.getLocation(index);
+		Location gridLoc = region.getLocation(index);
+		Preconditions.checkState(gridLoc.equals(myLoc),
+				"Grid locations don't match.\n\tFrom region: %s\n\tFrom file: %s", gridLoc, myLoc);
+		return indexed.loadSite(index, faultIndexesTriggered);
+	}
+	
 	Map<Integer, double[]> loadSiteFromInputStream(DataInputStream in, int expectedIndex) throws IOException {
 		int index = in.readInt();
 		Preconditions.checkState(index == expectedIndex, "Bad site index. Expected %s, encountered %s", index, faultSiteIndex);
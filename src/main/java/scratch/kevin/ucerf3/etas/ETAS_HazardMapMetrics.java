@@ -0,0 +1,287 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensha.commons.data.CSVFile;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Thread safe counters and per phase timers for {@link ETAS_HazardMapCalc}. All updates go through
+ * {@link LongAdder}s so that many executor threads can record without contention. Snapshots are flat long arrays
+ * (see {@link #snapshot()}) which can be summed across MPJ ranks and written as CSV or JSON.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_HazardMapMetrics {
+
+	public enum Counter {
+		CURVES("Curves"),
+		CATALOGS_FOLDED("Catalogs Folded"),
+		RUPTURES_FOLDED("Ruptures Folded"),
+		FAULT_IMS("Fault IMs"),
+		GRIDDED_CURVES("Gridded Conditional Curves");
+
+		private final String name;
+
+		private Counter(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public enum Phase {
+		FAULT_IMS("Fault IM Computation"),
+		GRIDDED_CONDITIONAL("Gridded Conditional Curve Building"),
+		CATALOG_FOLDING("Catalog Folding"),
+		LONG_TERM("Long Term U3 Calculations");
+
+		private final String name;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private static final int NUM_COUNTERS = Counter.values().length;
+	private static final int NUM_PHASES = Phase.values().length;
+	// counters, then phase nanos, then phase counts, then elapsed nanos
+	static final int SNAPSHOT_LENGTH = NUM_COUNTERS + 2*NUM_PHASES + 1;
+
+	private final LongAdder[] counters;
+	private final LongAdder[] phaseNanos;
+	private final LongAdder[] phaseCounts;
+	private volatile long startNanos;
+
+	private File snapshotPrefix;
+	private long snapshotIntervalNanos;
+	private final AtomicLong lastSnapshotNanos;
+
+	public ETAS_HazardMapMetrics() {
+		counters = new LongAdder[NUM_COUNTERS];
+		for (int i=0; i<NUM_COUNTERS; i++)
+			counters[i] = new LongAdder();
+		phaseNanos = new LongAdder[NUM_PHASES];
+		phaseCounts = new LongAdder[NUM_PHASES];
+		for (int i=0; i<NUM_PHASES; i++) {
+			phaseNanos[i] = new LongAdder();
+			phaseCounts[i] = new LongAdder();
+		}
+		startNanos = System.nanoTime();
+		lastSnapshotNanos = new AtomicLong(startNanos);
+	}
+
+	/**
+	 * Enables periodic snapshots, written to &lt;prefix&gt;.csv and &lt;prefix&gt;.json
+	 * @param prefix
+	 * @param interval
+	 * @param unit
+	 */
+	public void setPeriodicSnapshots(File prefix, long interval, TimeUnit unit) {
+		this.snapshotPrefix = prefix;
+		this.snapshotIntervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * Clears all counters and timers and restarts the elapsed time clock. Periodic snapshot settings are retained.
+	 * Counts recorded concurrently with a reset may or may not be cleared.
+	 */
+	public void reset() {
+		for (LongAdder counter : counters)
+			counter.reset();
+		for (int i=0; i<NUM_PHASES; i++) {
+			phaseNanos[i].reset();
+			phaseCounts[i].reset();
+		}
+		startNanos = System.nanoTime();
+		lastSnapshotNanos.set(startNanos);
+	}
+
+	public void increment(Counter counter) {
+		counters[counter.ordinal()].increment();
+	}
+
+	public void add(Counter counter, long value) {
+		counters[counter.ordinal()].add(value);
+	}
+
+	public long get(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * Records time spent in the given phase
+	 * @param phase
+	 * @param startNanos value of {@link System#nanoTime()} when the phase started
+	 */
+	public void record(Phase phase, long startNanos) {
+		recordNanos(phase, System.nanoTime() - startNanos);
+	}
+
+	public void recordNanos(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()].add(nanos);
+		phaseCounts[phase.ordinal()].increment();
+	}
+
+	/**
+	 * @return snapshot of all counters and timers as a flat array, suitable for summing across ranks
+	 */
+	public long[] snapshot() {
+		long[] ret = new long[SNAPSHOT_LENGTH];
+		for (int i=0; i<NUM_COUNTERS; i++)
+			ret[i] = counters[i].sum();
+		for (int i=0; i<NUM_PHASES; i++) {
+			ret[NUM_COUNTERS+i] = phaseNanos[i].sum();
+			ret[NUM_COUNTERS+NUM_PHASES+i] = phaseCounts[i].sum();
+		}
+		ret[SNAPSHOT_LENGTH-1] = System.nanoTime() - startNanos;
+		return ret;
+	}
+
+	/**
+	 * Sums snapshots, e.g. from multiple MPJ ranks. Elapsed time is the maximum across snapshots.
+	 * @param snapshots
+	 * @return
+	 */
+	public static long[] sum(List<long[]> snapshots) {
+		long[] ret = new long[SNAPSHOT_LENGTH];
+		for (long[] snapshot : snapshots) {
+			Preconditions.checkState(snapshot.length == SNAPSHOT_LENGTH, "Bad snapshot length: %s", snapshot.length);
+			for (int i=0; i<SNAPSHOT_LENGTH-1; i++)
+				ret[i] += snapshot[i];
+			ret[SNAPSHOT_LENGTH-1] = Math.max(ret[SNAPSHOT_LENGTH-1], snapshot[SNAPSHOT_LENGTH-1]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes a snapshot if periodic snapshots are enabled and the interval has elapsed. Safe to call from
+	 * any thread, at most one thread will write for each interval.
+	 */
+	public void checkWriteSnapshot() {
+		if (snapshotPrefix == null)
+			return;
+		long now = System.nanoTime();
+		long prev = lastSnapshotNanos.get();
+		if (now - prev < snapshotIntervalNanos || !lastSnapshotNanos.compareAndSet(prev, now))
+			return;
+		try {
+			writeSnapshot(snapshotPrefix);
+		} catch (IOException e) {
+			System.err.println("WARNING: couldn't write metrics snapshot: "+e.getMessage());
+		}
+	}
+
+	public void writeSnapshot(File prefix) throws IOException {
+		long[] snapshot = snapshot();
+		writeCSV(new File(prefix.getAbsolutePath()+".csv"), snapshot);
+		writeJSON(new File(prefix.getAbsolutePath()+".json"), snapshot);
+	}
+
+	private static double secs(long nanos) {
+		return nanos/1e9;
+	}
+
+	public static void writeCSV(File file, long[] snapshot) throws IOException {
+		buildCSV(null, snapshot).writeToFile(file);
+	}
+
+	/**
+	 * @param labels optional row labels (e.g. rank), prepended as the first column
+	 * @param snapshots
+	 * @return CSV with a header row and one row per snapshot
+	 */
+	public static CSVFile<String> buildCSV(List<String> labels, long[]... snapshots) {
+		CSVFile<String> csv = new CSVFile<>(true);
+		List<String> header = new ArrayList<>();
+		if (labels != null)
+			header.add("Label");
+		header.add("Elapsed (s)");
+		for (Counter counter : Counter.values())
+			header.add(counter.toString());
+		for (Phase phase : Phase.values()) {
+			header.add(phase+" (s)");
+			header.add(phase+" Count");
+		}
+		header.add("Curves/sec");
+		csv.addLine(header);
+		for (int r=0; r<snapshots.length; r++) {
+			long[] snapshot = snapshots[r];
+			List<String> line = new ArrayList<>();
+			if (labels != null)
+				line.add(labels.get(r));
+			double elapsed = secs(snapshot[SNAPSHOT_LENGTH-1]);
+			line.add((float)elapsed+"");
+			for (int i=0; i<NUM_COUNTERS; i++)
+				line.add(snapshot[i]+"");
+			for (int i=0; i<NUM_PHASES; i++) {
+				line.add((float)secs(snapshot[NUM_COUNTERS+i])+"");
+				line.add(snapshot[NUM_COUNTERS+NUM_PHASES+i]+"");
+			}
+			line.add((float)(snapshot[Counter.CURVES.ordinal()]/elapsed)+"");
+			csv.addLine(line);
+		}
+		return csv;
+	}
+
+	public static void writeJSON(File file, long[] snapshot) throws IOException {
+		Map<String, Object> map = new LinkedHashMap<>();
+		double elapsed = secs(snapshot[SNAPSHOT_LENGTH-1]);
+		map.put("elapsedSecs", elapsed);
+		Map<String, Long> countMap = new LinkedHashMap<>();
+		for (Counter counter : Counter.values())
+			countMap.put(counter.name(), snapshot[counter.ordinal()]);
+		map.put("counters", countMap);
+		Map<String, Object> phaseMap = new LinkedHashMap<>();
+		for (Phase phase : Phase.values()) {
+			Map<String, Object> vals = new LinkedHashMap<>();
+			vals.put("secs", secs(snapshot[NUM_COUNTERS+phase.ordinal()]));
+			vals.put("count", snapshot[NUM_COUNTERS+NUM_PHASES+phase.ordinal()]);
+			phaseMap.put(phase.name(), vals);
+		}
+		map.put("phases", phaseMap);
+		map.put("curvesPerSec", snapshot[Counter.CURVES.ordinal()]/elapsed);
+
+		Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		FileWriter fw = new FileWriter(file);
+		fw.write(gson.toJson(map));
+		fw.write("\n");
+		fw.close();
+	}
+
+	/**
+	 * @return short single line summary, suitable for logging
+	 */
+	public String getSummary() {
+		long[] snapshot = snapshot();
+		StringBuilder str = new StringBuilder();
+		double elapsed = secs(snapshot[SNAPSHOT_LENGTH-1]);
+		str.append(snapshot[Counter.CURVES.ordinal()]).append(" curves in ").append((float)elapsed).append(" s");
+		str.append(" (").append((float)(snapshot[Counter.CURVES.ordinal()]/elapsed)).append(" curves/sec)");
+		for (Phase phase : Phase.values())
+			str.append("; ").append(phase).append(": ").append((float)secs(snapshot[NUM_COUNTERS+phase.ordinal()])).append(" s");
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,273 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Computes the distribution of the sum of independent discrete loss distributions by convolution on a uniform loss
+ * grid, rather than by enumerating every combination of values (which grows as the product of the distribution sizes).
+ * <br>
+ * The grid spans zero to the maximum possible total loss, L, with spacing h=L*tolerance/N for N distributions. Each
+ * input value is split between the two grid nodes which bracket it, weighted linearly so that the expected value is
+ * preserved, which moves it by less than h. Sums of grid nodes are themselves grid nodes, so the convolution (done with
+ * FFTs, all distributions are transformed, multiplied, then transformed back once) is exact on the grid. Each outcome
+ * of the sum is therefore moved by less than N*h=tolerance*L in total, which bounds the error in the loss at any
+ * exceedance level regardless of how many distributions are summed (see {@link #getMaxAbsoluteError(double)}). The
+ * mean of the result is identical to the sum of the input means (to floating point precision).
+ * <br>
+ * Results are resampled onto a log spaced output grid, with nodes 0 and minLoss*10^(k/binsPerDecade) for k=0,1,...,
+ * again with mean preserving splits. This is done once, so it moves each value by at most a relative bin width
+ * (see {@link #getRelativeBinWidth()}) without compounding.
+ * <br>
+ * Cost is O(N*P*log(P)) where P is the transform size, the next power of 2 above N/tolerance+N. Calculations which
+ * would need a transform larger than {@link #max_transform_size} are refused rather than run with a looser tolerance.
+ *
+ * @author kevin
+ *
+ */
+public class LossDistConvolver {
+	
+	/**
+	 * Default tolerance as a fraction of the maximum possible total loss
+	 */
+	public static final double default_tolerance = 1e-3;
+	
+	/**
+	 * Largest FFT size which will be used
+	 */
+	public static final int max_transform_size = 1 << 22;
+	
+	// FFT round off is of this order (relative to a total probability of 1), anything smaller is set to zero
+	private static final double fft_noise_floor = 1e-14;
+
+	private final double minLoss;
+	private final int binsPerDecade;
+	private final double tolerance;
+	private final double log10MinLoss;
+
+	// reusable buffers
+	private double[] grid;
+	private double[] outProbs;
+	private double[][] transform;
+	private double[][] product;
+
+	/**
+	 * @param minLoss smallest non zero output grid node, losses below this are split between zero and minLoss
+	 * @param binsPerDecade number of log spaced output bins per factor of 10 in loss
+	 */
+	public LossDistConvolver(double minLoss, int binsPerDecade) {
+		this(minLoss, binsPerDecade, default_tolerance);
+	}
+
+	/**
+	 * @param minLoss smallest non zero output grid node, losses below this are split between zero and minLoss
+	 * @param binsPerDecade number of log spaced output bins per factor of 10 in loss
+	 * @param tolerance maximum error in loss at any exceedance level before output resampling, as a fraction of
+	 * the maximum possible total loss
+	 */
+	public LossDistConvolver(double minLoss, int binsPerDecade, double tolerance) {
+		Preconditions.checkArgument(minLoss > 0, "Min loss must be positive");
+		Preconditions.checkArgument(binsPerDecade > 0, "Bins per decade must be positive");
+		Preconditions.checkArgument(tolerance > 0 && tolerance < 1, "Tolerance must be in (0, 1)");
+		this.minLoss = minLoss;
+		this.binsPerDecade = binsPerDecade;
+		this.tolerance = tolerance;
+		this.log10MinLoss = Math.log10(minLoss);
+	}
+
+	public double getMinLoss() {
+		return minLoss;
+	}
+
+	public int getBinsPerDecade() {
+		return binsPerDecade;
+	}
+
+	/**
+	 * @return maximum error in loss at any exceedance level before output resampling, as a fraction of the maximum
+	 * possible total loss
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return maximum relative error in loss at any exceedance level from resampling onto the log spaced output grid
+	 */
+	public double getRelativeBinWidth() {
+		return Math.pow(10, 1d/binsPerDecade) - 1d;
+	}
+
+	/**
+	 * @param maxTotalLoss maximum possible total loss (sum of the maximum of each distribution)
+	 * @return maximum error in loss at any exceedance level before output resampling, independent of the number of
+	 * distributions summed
+	 */
+	public double getMaxAbsoluteError(double maxTotalLoss) {
+		return tolerance*maxTotalLoss;
+	}
+
+	private static int getTransformSize(int len) {
+		int size = Integer.highestOneBit(len);
+		if (size < len)
+			size <<= 1;
+		return size;
+	}
+
+	private void buildGrid(double maxLoss) {
+		int numNonZero = 1;
+		if (maxLoss > minLoss)
+			numNonZero = (int)Math.ceil((Math.log10(maxLoss) - log10MinLoss)*binsPerDecade) + 2;
+		int num = numNonZero + 1;
+		if (grid == null || grid.length != num) {
+			grid = new double[num];
+			grid[0] = 0d;
+			for (int k=1; k<num; k++)
+				grid[k] = Math.pow(10, log10MinLoss + (double)(k-1)/(double)binsPerDecade);
+			outProbs = new double[num];
+		}
+		Preconditions.checkState(grid[grid.length-1] >= maxLoss);
+	}
+
+	/**
+	 * @param x
+	 * @return index of the output grid node at or below x
+	 */
+	private int lowerNode(double x) {
+		if (x < minLoss)
+			return 0;
+		int k = (int)((Math.log10(x) - log10MinLoss)*binsPerDecade) + 1;
+		// correct for any floating point error in the log calculation
+		if (k >= grid.length)
+			k = grid.length-1;
+		while (k > 0 && grid[k] > x)
+			k--;
+		while (k < grid.length-1 && grid[k+1] <= x)
+			k++;
+		return k;
+	}
+
+	/**
+	 * Adds the given probability mass at loss x to the binned output distribution, split between bracketing nodes
+	 * such that the mean is preserved
+	 */
+	private void deposit(double[] probs, double x, double prob) {
+		int k = lowerNode(x);
+		if (k == grid.length-1 || grid[k] == x) {
+			probs[k] += prob;
+			return;
+		}
+		double lower = grid[k];
+		double upper = grid[k+1];
+		double fractUpper = (x - lower)/(upper - lower);
+		probs[k] += prob*(1d - fractUpper);
+		probs[k+1] += prob*fractUpper;
+	}
+
+	/**
+	 * Computes the distribution of constantLoss + the sum of a random value from each distribution (x=loss, y=weight).
+	 * Weights in each distribution must sum to 1.
+	 *
+	 * @param constantLoss deterministic loss added to every outcome (e.g. the sum of all single valued losses). This is
+	 * added exactly after convolution and is not discretized.
+	 * @param dists independent loss distributions
+	 * @param xAxisScale scale factor applied to the output loss values
+	 * @return distribution of total loss (x=scaled loss, y=probability)
+	 * @throws IllegalStateException if the tolerance can't be met within {@link #max_transform_size}
+	 */
+	public DiscretizedFunc sum(double constantLoss, List<? extends DiscretizedFunc> dists, double xAxisScale) {
+		double maxTotal = 0d;
+		for (DiscretizedFunc dist : dists) {
+			Preconditions.checkState(dist.getMinX() >= 0, "Losses must be non-negative");
+			maxTotal += dist.getMaxX();
+		}
+		if (maxTotal == 0d)
+			return new LightFixedXFunc(new double[] { xAxisScale*constantLoss }, new double[] { 1d });
+
+		int numDists = dists.size();
+		long numIntervals = (long)Math.ceil(numDists/tolerance);
+		// each distribution can reach one node past its share of the grid after rounding up, so leave room for that
+		// to avoid any wrap around in the circular convolution
+		long maxIndex = numIntervals + numDists;
+		Preconditions.checkState(maxIndex < max_transform_size, "Can't sum %s loss distributions with a tolerance of "
+				+ "%s, would need a transform size above %s. Increase the tolerance.", numDists, tolerance,
+				max_transform_size);
+		int size = getTransformSize((int)maxIndex+1);
+		double spacing = maxTotal/numIntervals;
+
+		if (transform == null || transform[0].length != size) {
+			transform = new double[2][size];
+			product = new double[2][size];
+		}
+
+		for (int d=0; d<numDists; d++) {
+			DiscretizedFunc dist = dists.get(d);
+			double[][] dest = d == 0 ? product : transform;
+			Arrays.fill(dest[0], 0d);
+			Arrays.fill(dest[1], 0d);
+			for (int i=0; i<dist.size(); i++) {
+				double prob = dist.getY(i);
+				if (prob == 0d)
+					continue;
+				double pos = dist.getX(i)/spacing;
+				int k = (int)pos;
+				double fractUpper = pos - k;
+				dest[0][k] += prob*(1d - fractUpper);
+				if (fractUpper > 0d)
+					dest[0][k+1] += prob*fractUpper;
+			}
+			FastFourierTransformer.transformInPlace(dest, DftNormalization.STANDARD, TransformType.FORWARD);
+			if (d > 0) {
+				double[] re = product[0];
+				double[] im = product[1];
+				double[] tRe = transform[0];
+				double[] tIm = transform[1];
+				for (int i=0; i<size; i++) {
+					double pRe = re[i];
+					double pIm = im[i];
+					re[i] = pRe*tRe[i] - pIm*tIm[i];
+					im[i] = pRe*tIm[i] + pIm*tRe[i];
+				}
+			}
+		}
+		FastFourierTransformer.transformInPlace(product, DftNormalization.STANDARD, TransformType.INVERSE);
+
+		// resample onto the log spaced output grid
+		buildGrid(maxIndex*spacing);
+		Arrays.fill(outProbs, 0d);
+		double[] probs = product[0];
+		double sumProbs = 0d;
+		for (int k=0; k<=maxIndex; k++) {
+			// probabilities are non negative, anything this small is round off
+			if (probs[k] < fft_noise_floor)
+				continue;
+			deposit(outProbs, k*spacing, probs[k]);
+			sumProbs += probs[k];
+		}
+		Preconditions.checkState(Math.abs(sumProbs - 1d) < 1e-6, "Convolved probabilities sum to %s", sumProbs);
+
+		int numNonZero = 0;
+		for (int k=0; k<grid.length; k++)
+			if (outProbs[k] > 0d)
+				numNonZero++;
+		double[] xVals = new double[numNonZero];
+		double[] yVals = new double[numNonZero];
+		int index = 0;
+		for (int k=0; k<grid.length; k++) {
+			if (outProbs[k] > 0d) {
+				xVals[index] = xAxisScale*(constantLoss + grid[k]);
+				yVals[index++] = outProbs[k]/sumProbs;
+			}
+		}
+		return new LightFixedXFunc(xVals, yVals);
+	}
+
+}
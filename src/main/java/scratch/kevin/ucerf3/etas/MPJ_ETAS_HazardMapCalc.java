@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
@@ -39,6 +40,7 @@ import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
 import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.ucerf3.ShakeMapPrecalcIndexedFile;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.Duration;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.DurationConstants;
 import scratch.kevin.ucerf3.etas.ETAS_HazardMapCalc.MapType;
@@ -51,6 +53,8 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 	private RandomAccessFile raFile;
 	private long[] filePositions;
 	private int[] fileLengths;
+	// for indexed precomputed shakemaps, no position scan required
+	private ShakeMapPrecalcIndexedFile indexedFile;
 	
 	private GriddedRegion region;
 	
@@ -81,6 +85,8 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 	private DiscretizedFunc xVals;
 	
 	private boolean printEach;
+	
+	private File metricsDir;
 
 	public MPJ_ETAS_HazardMapCalc(CommandLine cmd) throws IOException, DocumentException {
 		super(cmd);
@@ -93,7 +99,10 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 			// precalc mode
 			File faultDataFile = new File(cmd.getOptionValue("fault-data-file"));
 			Preconditions.checkState(faultDataFile.exists());
-			raFile = new RandomAccessFile(faultDataFile, "r");
+			if (ShakeMapPrecalcIndexedFile.isIndexedFormat(faultDataFile))
+				indexedFile = new ShakeMapPrecalcIndexedFile(faultDataFile);
+			else
+				raFile = new RandomAccessFile(faultDataFile, "r");
 		} else {
 			Preconditions.checkArgument(cmd.hasOption("solution-file"),
 					"Must supply fault system solution file if no fault data precalc file");
@@ -173,10 +182,24 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 			mapCalc.setDistanceCutoff(distCutoff);
 		}
 		
+		metricsDir = new File(outputDir, "metrics");
+		// every rank writes periodic snapshots here, so don't rely on rank 0 having created it yet. another rank
+		// may create it concurrently, so check that it's a directory rather than trusting the mkdirs() result
+		metricsDir.mkdirs();
+		Preconditions.checkState(metricsDir.isDirectory(),
+				"Metrics directory doesn't exist or couldn't be created: %s", metricsDir.getAbsoluteFile());
+		if (cmd.hasOption("metrics-interval")) {
+			long interval = Long.parseLong(cmd.getOptionValue("metrics-interval"));
+			mapCalc.getMetrics().setPeriodicSnapshots(new File(metricsDir, "metrics_rank_"+rank), interval, TimeUnit.SECONDS);
+		}
+		
 		executor = mapCalc.createExecutor(getNumThreads());
 		
 		if (calcFault && raFile != null)
 			loadFilePositions();
+		if (indexedFile != null)
+			Preconditions.checkState(indexedFile.getNumSites() == getNumTasks(), "Bad count in file! Expected %s, got %s",
+					getNumTasks(), indexedFile.getNumSites());
 		
 		List<MapType> mapTypesList = Lists.newArrayList();
 		if (calcFault)
@@ -339,7 +362,10 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		}
 		
 		Map<Integer, double[]> precomputedFaultVals = null;
-		if (raFile != null) {
+		if (indexedFile != null) {
+			// random access through the memory mapped file
+			precomputedFaultVals = mapCalc.loadSiteFromIndexedFile(indexedFile, index);
+		} else if (raFile != null) {
 			// load precomputed fault shakemaps
 			long pos = filePositions[index];
 			int len = fileLengths[index];
@@ -447,6 +473,12 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		distCutoff.setRequired(false);
 		ops.addOption(distCutoff);
 		
+		Option metricsInterval = new Option("mi", "metrics-interval", true,
+				"Interval in seconds between periodic per rank metrics snapshots (CSV/JSON). Final metrics across all "
+				+ "ranks are always written.");
+		metricsInterval.setRequired(false);
+		ops.addOption(metricsInterval);
+		
 		return ops;
 	}
 
@@ -456,6 +488,32 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		archiver.close();
 		if (raFile != null)
 			raFile.close();
+		if (indexedFile != null)
+			indexedFile.close();
+		
+		// gather metrics from all ranks
+		Object[] metricsSendBuff = { mapCalc.getMetrics().snapshot() };
+		Object[] metricsRecvBuff = null;
+		if (rank == 0)
+			metricsRecvBuff = new Object[size];
+		MPI.COMM_WORLD.Gather(metricsSendBuff, 0, 1, MPI.OBJECT, metricsRecvBuff, 0, 1, MPI.OBJECT, 0);
+		
+		if (rank == 0) {
+			List<long[]> snapshots = Lists.newArrayList();
+			List<String> labels = Lists.newArrayList();
+			for (int i=0; i<size; i++) {
+				snapshots.add((long[])metricsRecvBuff[i]);
+				labels.add("Rank "+i);
+			}
+			long[] total = ETAS_HazardMapMetrics.sum(snapshots);
+			snapshots.add(total);
+			labels.add("Total");
+			ETAS_HazardMapMetrics.buildCSV(labels, snapshots.toArray(new long[0][])).writeToFile(
+					new File(metricsDir, "metrics_all_ranks.csv"));
+			ETAS_HazardMapMetrics.writeJSON(new File(metricsDir, "metrics_total.json"), total);
+			debug("Wrote metrics for "+total[ETAS_HazardMapMetrics.Counter.CURVES.ordinal()]+" curves to "
+					+metricsDir.getAbsolutePath());
+		}
 	}
 	
 	public static void main(String args[]) {
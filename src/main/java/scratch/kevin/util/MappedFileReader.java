@@ -0,0 +1,174 @@
+package scratch.kevin.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Read only memory mapped view of a (possibly &gt; 2 GB) binary file. The file is mapped in fixed size chunks, and
+ * values are read with absolute positions so that a single instance can be shared across threads.
+ * <br>
+ * Chunk sizes are a multiple of 8 bytes, so values will never straddle chunk boundaries as long as each value is
+ * aligned to its own size in the file. File formats using this class should pad sections accordingly.
+ *
+ * @author kevin
+ *
+ */
+public class MappedFileReader implements Closeable {
+
+	// 1 GB
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1l << CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final File file;
+	private final long length;
+	private RandomAccessFile raFile;
+	private MappedByteBuffer[] chunks;
+
+	public MappedFileReader(File file) throws IOException {
+		this(file, ByteOrder.BIG_ENDIAN);
+	}
+
+	public MappedFileReader(File file, ByteOrder order) throws IOException {
+		this.file = file;
+		raFile = new RandomAccessFile(file, "r");
+		FileChannel channel = raFile.getChannel();
+		length = channel.size();
+		int numChunks = (int)((length + CHUNK_SIZE - 1) >> CHUNK_BITS);
+		chunks = new MappedByteBuffer[numChunks];
+		for (int i=0; i<numChunks; i++) {
+			long start = (long)i << CHUNK_BITS;
+			long size = Math.min(CHUNK_SIZE, length - start);
+			chunks[i] = channel.map(MapMode.READ_ONLY, start, size);
+			chunks[i].order(order);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	private MappedByteBuffer chunk(long pos) {
+		return chunks[(int)(pos >> CHUNK_BITS)];
+	}
+
+	private static int offset(long pos) {
+		return (int)(pos & CHUNK_MASK);
+	}
+
+	public byte getByte(long pos) {
+		return chunk(pos).get(offset(pos));
+	}
+
+	public short getShort(long pos) {
+		return chunk(pos).getShort(offset(pos));
+	}
+
+	public int getInt(long pos) {
+		return chunk(pos).getInt(offset(pos));
+	}
+
+	public long getLong(long pos) {
+		return chunk(pos).getLong(offset(pos));
+	}
+
+	public float getFloat(long pos) {
+		return chunk(pos).getFloat(offset(pos));
+	}
+
+	public double getDouble(long pos) {
+		return chunk(pos).getDouble(offset(pos));
+	}
+
+	/**
+	 * Bulk copies the given int values into the destination array, handling chunk boundaries
+	 * @param pos
+	 * @param dest
+	 * @param destOffset
+	 * @param num
+	 */
+	public void getInts(long pos, int[] dest, int destOffset, int num) {
+		Preconditions.checkArgument(pos % 4l == 0l, "Unaligned int position: %s", pos);
+		while (num > 0) {
+			MappedByteBuffer chunk = chunk(pos);
+			int offset = offset(pos);
+			int numInChunk = Math.min(num, (chunk.capacity() - offset)/4);
+			for (int i=0; i<numInChunk; i++)
+				dest[destOffset+i] = chunk.getInt(offset + 4*i);
+			num -= numInChunk;
+			destOffset += numInChunk;
+			pos += 4l*numInChunk;
+		}
+	}
+
+	/**
+	 * Bulk copies the given float values into the destination array, handling chunk boundaries
+	 * @param pos
+	 * @param dest
+	 * @param destOffset
+	 * @param num
+	 */
+	public void getFloats(long pos, float[] dest, int destOffset, int num) {
+		Preconditions.checkArgument(pos % 4l == 0l, "Unaligned float position: %s", pos);
+		while (num > 0) {
+			MappedByteBuffer chunk = chunk(pos);
+			int offset = offset(pos);
+			int numInChunk = Math.min(num, (chunk.capacity() - offset)/4);
+			for (int i=0; i<numInChunk; i++)
+				dest[destOffset+i] = chunk.getFloat(offset + 4*i);
+			num -= numInChunk;
+			destOffset += numInChunk;
+			pos += 4l*numInChunk;
+		}
+	}
+
+	/**
+	 * Bulk copies the given double values into the destination array, handling chunk boundaries
+	 * @param pos
+	 * @param dest
+	 * @param destOffset
+	 * @param num
+	 */
+	public void getDoubles(long pos, double[] dest, int destOffset, int num) {
+		Preconditions.checkArgument(pos % 8l == 0l, "Unaligned double position: %s", pos);
+		while (num > 0) {
+			MappedByteBuffer chunk = chunk(pos);
+			int offset = offset(pos);
+			int numInChunk = Math.min(num, (chunk.capacity() - offset)/8);
+			for (int i=0; i<numInChunk; i++)
+				dest[destOffset+i] = chunk.getDouble(offset + 8*i);
+			num -= numInChunk;
+			destOffset += numInChunk;
+			pos += 8l*numInChunk;
+		}
+	}
+
+	/**
+	 * @param pos
+	 * @return number of padding bytes needed to align the given position to 8 bytes
+	 */
+	public static int padding(long pos) {
+		return (int)((8l - (pos % 8l)) % 8l);
+	}
+
+	@Override
+	public void close() throws IOException {
+		chunks = null;
+		if (raFile != null)
+			raFile.close();
+		raFile = null;
+	}
+
+}
@@ -4,6 +4,7 @@ import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
 import org.opensha.commons.data.function.HistogramFunction;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
 import org.opensha.sha.magdist.GaussianMagFreqDist;
@@ -21,6 +22,10 @@ import org.opensha.sha.magdist.GaussianMagFreqDist;
 //import org.apache.spark.sql.SparkSession;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.analysis.solvers.LaguerreSolver;
 import org.apache.commons.math3.complex.Complex;
@@ -39,6 +44,10 @@ import org.apache.commons.math3.complex.Complex;
 public class NearestNeighborDeclustering {
 	
 	static boolean D = true; // debugging flag
+	static boolean use_index = true; // otherwise compare every event against every earlier event
+	static boolean validate_index = false; // if true, also does the exhaustive search and reports any differences
+	
+	private static final int children_per_task = 1000;
 	
 	double b = 1.0; // GR b-value 
 	double d = 1.6; // fractal dimension of catalog
@@ -63,7 +72,12 @@ public class NearestNeighborDeclustering {
 	int[] numAftershocksForRupArray;
 	boolean[] rupIsAfteshockArray, rupIsForeshockArray;
 
-	public NearestNeighborDeclustering(ObsEqkRupList catalog, double minMag) {
+	/**
+	 * @param catalog - must be in chronological order
+	 * @param minMag
+	 * @param numThreads - number of threads used to search for parents (when the index is used)
+	 */
+	public NearestNeighborDeclustering(ObsEqkRupList catalog, double minMag, int numThreads) {
 		
 		// remove M<minMag events
 		fullCatalog = new ObsEqkRupList();
@@ -85,58 +99,75 @@ public class NearestNeighborDeclustering {
 			logNNDistanceToParentArray[i] = Double.MAX_VALUE;
 		
 		
-		decluster();
+		decluster(numThreads);
 	}
 	
-	private void decluster() {
-		
-		// search for aftershocks
-		int counter = 0;
-		for(int i=fullCatalog.size()-1;i>0;i--) {
-			counter += 1;
-			if(D && counter == 1000) {
-				System.out.println(i+" left to process");
-				counter = 0;
-			}
-			ObsEqkRupture rup = fullCatalog.get(i);
-			for(int j=i-1;j>=0;j--) {
-				ObsEqkRupture candidateParent = fullCatalog.get(j);
-				long timeDiffMills = rup.getOriginTime() - candidateParent.getOriginTime();
-				if(timeDiffMills < 0)
-					throw new RuntimeException("Error: catalog is not in chronological order");	
-				if(timeDiffMills == 0)
-					timeDiffMills = 1000;
+	public NearestNeighborDeclustering(ObsEqkRupList catalog, double minMag) {
+		this(catalog, minMag, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * This computes the rescaled (nearest-neighbor) distance between the given child and candidate parent
+	 * @param rup - child event
+	 * @param candidateParent - must not occur after the child
+	 * @param normDistTime - filled in with the normalized distance and normalized time
+	 * @return
+	 */
+	static double calcRescaledDistance(ObsEqkRupture rup, ObsEqkRupture candidateParent, double b, double d, double q,
+			double[] normDistTime) {
+		long timeDiffMills = rup.getOriginTime() - candidateParent.getOriginTime();
+		if(timeDiffMills < 0)
+			throw new RuntimeException("Error: catalog is not in chronological order");	
+		if(timeDiffMills == 0)
+			timeDiffMills = 1000;
 
-				double timeDiffYrs = (double)timeDiffMills/(double)(1e3*60*60*24*365.25);
-//				double distKm = LocationUtils.linearDistance(rup.getHypocenterLocation(), candidateAftershock.getHypocenterLocation());
-				double distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), candidateParent.getHypocenterLocation());
-				if(distKm==0.0) {
-					double newLat = candidateParent.getHypocenterLocation().getLatitude() + (-0.05+(0.1*Math.random()));
-					double newLon = candidateParent.getHypocenterLocation().getLongitude() + (-0.05+(0.1*Math.random()));
-					Location newLoc = new Location(newLat,newLon);
-					distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), newLoc);
-//					throw new RuntimeException("Zero Distance");
-				}
-				double mag = candidateParent.getMag();
-				double normDist = Math.pow(distKm, d)*Math.pow(10, -(1-q)*b*mag);
-				double normTime = timeDiffYrs*Math.pow(10, -q*b*mag);
-				double nnDist = normDist*normTime;
-				if(nnDist < logNNDistanceToParentArray[i]) {
-					indexOfParentArray[i] = j;
-					logNormDistToParentArray[i] = Math.log10(normDist);
-					logNormTimeToParentArray[i] = Math.log10(normTime);
-					logNNDistanceToParentArray[i] = Math.log10(nnDist);
-				}
-				if(nnDist==0.0) {
-					System.out.println("nnDist="+nnDist);
-					System.out.println("normDist="+normDist);
-					System.out.println("normTime="+normTime);
-					System.out.println("i, j="+i+", "+j);
-					System.out.println("timeDiffYrs="+timeDiffYrs);
-					System.out.println("distKm="+distKm);
-					throw new RuntimeException("Problem related to nnDist being zero");
-				}
+		double timeDiffYrs = (double)timeDiffMills/(double)(1e3*60*60*24*365.25);
+//		double distKm = LocationUtils.linearDistance(rup.getHypocenterLocation(), candidateAftershock.getHypocenterLocation());
+		double distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), candidateParent.getHypocenterLocation());
+		if(distKm==0.0) {
+			double newLat = candidateParent.getHypocenterLocation().getLatitude() + (-0.05+(0.1*Math.random()));
+			double newLon = candidateParent.getHypocenterLocation().getLongitude() + (-0.05+(0.1*Math.random()));
+			Location newLoc = new Location(newLat,newLon);
+			distKm = LocationUtils.horzDistanceFast(rup.getHypocenterLocation(), newLoc);
+//			throw new RuntimeException("Zero Distance");
+		}
+		double mag = candidateParent.getMag();
+		double normDist = Math.pow(distKm, d)*Math.pow(10, -(1-q)*b*mag);
+		double normTime = timeDiffYrs*Math.pow(10, -q*b*mag);
+		double nnDist = normDist*normTime;
+		if(nnDist==0.0) {
+			System.out.println("nnDist="+nnDist);
+			System.out.println("normDist="+normDist);
+			System.out.println("normTime="+normTime);
+			System.out.println("timeDiffYrs="+timeDiffYrs);
+			System.out.println("distKm="+distKm);
+			throw new RuntimeException("Problem related to nnDist being zero");
+		}
+		normDistTime[0] = normDist;
+		normDistTime[1] = normTime;
+		return nnDist;
+	}
+	
+	private void decluster(int numThreads) {
+		
+		if(use_index) {
+			long startMillis = System.currentTimeMillis();
+			findParentsIndexed(numThreads);
+			if(D) System.out.println("Indexed parent search took "+(System.currentTimeMillis()-startMillis)/1000d
+					+" secs with "+numThreads+" threads");
+			if(validate_index) {
+				int[] indexedParents = indexOfParentArray.clone();
+				findParentsExhaustive();
+				int numMismatches = 0;
+				for(int i=1; i<indexedParents.length; i++)
+					if(indexedParents[i] != indexOfParentArray[i])
+						numMismatches++;
+				// note that co-located events use randomly perturbed distances, so mismatches are possible there
+				System.out.println("Index validation: "+numMismatches+"/"+(indexedParents.length-1)
+						+" parent assignments differ from exhaustive search");
 			}
+		} else {
+			findParentsExhaustive();
 		}
 		
 		double[] shorterArray = new double[logNNDistanceToParentArray.length-1];
@@ -207,6 +238,109 @@ public class NearestNeighborDeclustering {
 		
 	}
 	
+	/**
+	 * This finds the parent of each event by comparing against every earlier event
+	 */
+	private void findParentsExhaustive() {
+		int counter = 0;
+		double[] normDistTime = new double[2];
+		for(int i=fullCatalog.size()-1;i>0;i--) {
+			counter += 1;
+			if(D && counter == 1000) {
+				System.out.println(i+" left to process");
+				counter = 0;
+			}
+			ObsEqkRupture rup = fullCatalog.get(i);
+			double bestNNDist = Double.MAX_VALUE;
+			for(int j=i-1;j>=0;j--) {
+				ObsEqkRupture candidateParent = fullCatalog.get(j);
+				double nnDist = calcRescaledDistance(rup, candidateParent, b, d, q, normDistTime);
+				if(nnDist < bestNNDist) {
+					bestNNDist = nnDist;
+					setParent(i, j, normDistTime);
+				}
+			}
+		}
+	}
+	
+	private void setParent(int i, int j, double[] normDistTime) {
+		indexOfParentArray[i] = j;
+		logNormDistToParentArray[i] = Math.log10(normDistTime[0]);
+		logNormTimeToParentArray[i] = Math.log10(normDistTime[1]);
+		logNNDistanceToParentArray[i] = Math.log10(normDistTime[0]*normDistTime[1]);
+	}
+	
+	/**
+	 * This finds the parent of each event using a spatial-temporal index (see {@link NearestNeighborIndex}),
+	 * processing blocks of child events in parallel
+	 * @param numThreads
+	 */
+	private void findParentsIndexed(int numThreads) {
+		for(int i=1; i<fullCatalog.size(); i++)
+			if(fullCatalog.get(i).getOriginTime() < fullCatalog.get(i-1).getOriginTime())
+				throw new RuntimeException("Error: catalog is not in chronological order");
+		
+		final NearestNeighborIndex index = new NearestNeighborIndex(fullCatalog, b, d, q);
+		if(D) System.out.println(index);
+		
+		if(numThreads <= 1) {
+			findParentsIndexed(index, 1, fullCatalog.size());
+			return;
+		}
+		
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for(int start=1; start<fullCatalog.size(); start+=children_per_task) {
+			final int myStart = start;
+			final int myEnd = Math.min(fullCatalog.size(), start+children_per_task);
+			futures.add(exec.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					findParentsIndexed(index, myStart, myEnd);
+				}
+			}));
+		}
+		try {
+			for(Future<?> future : futures)
+				future.get();
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+	}
+	
+	private void findParentsIndexed(NearestNeighborIndex index, int start, int end) {
+		double[] normDistTime = new double[2];
+		for(int i=start; i<end; i++) {
+			int j = index.findParent(i, normDistTime);
+			setParent(i, j, normDistTime);
+		}
+	}
+	
+	/**
+	 * @return index of the nearest-neighbor parent of each event in {@link #getFullCatalog()}
+	 * (the first event has no parent)
+	 */
+	public int[] getParentIndexes() {
+		return indexOfParentArray;
+	}
+	
+	/**
+	 * @return log10 of the rescaled distance to the parent of each event (the first event has no parent)
+	 */
+	public double[] getLogNNDistances() {
+		return logNNDistanceToParentArray;
+	}
+	
+	/**
+	 * @return catalog after removing events below the minimum magnitude
+	 */
+	public ObsEqkRupList getFullCatalog() {
+		return fullCatalog;
+	}
+	
 	public HistogramFunction getNNDistHistogram() {
 		int num = 108;
 //		for(int i=1; i<nnDistanceToParentArray.length;i++) {	// first rupture has no parent
@@ -0,0 +1,359 @@
+package scratch.ned.GK_Declustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
+import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
+
+/**
+ * Spatial-temporal index used to find the nearest-neighbor parent of each event for
+ * {@link NearestNeighborDeclustering} without comparing against every earlier event.
+ * <br>
+ * Events are split into magnitude buckets, and each bucket is stored in a kd-tree over hypocenter latitude and
+ * longitude. Each tree node keeps its bounding box, maximum magnitude, and its events in chronological order. For a
+ * fixed parent magnitude the rescaled distance (dist^d * time * 10^(-b*mag)) increases with both distance and time,
+ * so a lower bound for every possible parent in a node follows from the minimum distance to the node's box, the
+ * time since its latest event before the child (found by binary search), and its maximum magnitude. Nodes whose
+ * bound exceeds the best distance found so far are skipped, and events within leaf nodes are visited backwards in
+ * time until the bound is exceeded.
+ * <br>
+ * Candidate parents are evaluated with {@link NearestNeighborDeclustering#calcRescaledDistance}, and ties are broken
+ * in favor of the latest event, so results are identical to the exhaustive search. Instances are read only after
+ * construction and can be shared across threads.
+ *
+ * @author field
+ *
+ */
+class NearestNeighborIndex {
+
+	private static final int LEAF_SIZE = 16;
+	private static final double MAG_BUCKET_WIDTH = 1.0;
+	// slightly smaller than the mean earth radius used by LocationUtils, keeps distance bounds conservative
+	private static final double EARTH_RADIUS_LOWER = 6371.0;
+	// relative slack on lower bounds so that round off can never prune the true nearest neighbor
+	private static final double BOUND_SLACK = 1d - 1e-9;
+	private static final double MILLIS_PER_YEAR = 1e3*60*60*24*365.25;
+
+	private final ObsEqkRupList catalog;
+	private final double b, d, q;
+
+	private final double[] lats, lons, mags;
+	private final long[] times;
+
+	// one per populated magnitude bucket, largest magnitudes first
+	private final List<Tree> trees;
+
+	public NearestNeighborIndex(ObsEqkRupList catalog, double b, double d, double q) {
+		this.catalog = catalog;
+		this.b = b;
+		this.d = d;
+		this.q = q;
+
+		int num = catalog.size();
+		lats = new double[num];
+		lons = new double[num];
+		mags = new double[num];
+		times = new long[num];
+		double minMag = Double.POSITIVE_INFINITY;
+		for(int i=0; i<num; i++) {
+			ObsEqkRupture rup = catalog.get(i);
+			Location loc = rup.getHypocenterLocation();
+			lats[i] = loc.getLatitude();
+			lons[i] = loc.getLongitude();
+			mags[i] = rup.getMag();
+			times[i] = rup.getOriginTime();
+			minMag = Math.min(minMag, mags[i]);
+		}
+
+		// bucket by magnitude
+		List<List<Integer>> buckets = new ArrayList<>();
+		for(int i=0; i<num; i++) {
+			int bucket = (int)((mags[i] - minMag)/MAG_BUCKET_WIDTH);
+			while(buckets.size() <= bucket)
+				buckets.add(new ArrayList<Integer>());
+			buckets.get(bucket).add(i);
+		}
+		trees = new ArrayList<>();
+		for(List<Integer> bucket : buckets) {
+			if(bucket.isEmpty())
+				continue;
+			int[] indexes = new int[bucket.size()];
+			for(int i=0; i<indexes.length; i++)
+				indexes[i] = bucket.get(i);
+			trees.add(new Tree(indexes));
+		}
+		Collections.sort(trees, new Comparator<Tree>() {
+
+			@Override
+			public int compare(Tree o1, Tree o2) {
+				return Double.compare(o2.nodeMaxMag[0], o1.nodeMaxMag[0]);
+			}
+		});
+	}
+
+	/**
+	 * Finds the nearest-neighbor parent of the given event among all events with a lower index
+	 * @param i index of the child event, must be &gt; 0
+	 * @param normDistTime filled in with the normalized distance and normalized time to the parent
+	 * @return index of the parent
+	 */
+	public int findParent(int i, double[] normDistTime) {
+		Search search = new Search(i);
+		// seed with the previous event so that we start with a finite bound
+		search.test(i-1);
+		for(Tree tree : trees)
+			tree.search(search);
+		normDistTime[0] = search.bestNormDist;
+		normDistTime[1] = search.bestNormTime;
+		return search.bestIndex;
+	}
+
+	private class Search {
+		private final int childIndex;
+		private final ObsEqkRupture child;
+		private final double lat, lon;
+		private final long time;
+		private final double cosLat;
+
+		private double best = Double.MAX_VALUE;
+		private int bestIndex = -1;
+		private double bestNormDist, bestNormTime;
+		private final double[] normDistTime = new double[2];
+
+		private Search(int childIndex) {
+			this.childIndex = childIndex;
+			this.child = catalog.get(childIndex);
+			this.lat = lats[childIndex];
+			this.lon = lons[childIndex];
+			this.time = times[childIndex];
+			this.cosLat = Math.cos(Math.toRadians(Math.abs(lat)));
+		}
+
+		private void test(int j) {
+			double nnDist = NearestNeighborDeclustering.calcRescaledDistance(child, catalog.get(j), b, d, q, normDistTime);
+			// exhaustive search goes backwards in time and keeps the first minimum, so the latest event wins ties
+			if(nnDist < best || (nnDist == best && j > bestIndex)) {
+				best = nnDist;
+				bestIndex = j;
+				bestNormDist = normDistTime[0];
+				bestNormTime = normDistTime[1];
+			}
+		}
+	}
+
+	private class Tree {
+
+		private final int[] perm;
+
+		private int numNodes = 0;
+		private final int[] nodeLeft, nodeRight;
+		// catalog indexes in each node, in ascending (chronological) order
+		private final int[][] nodeSorted;
+		// for internal nodes, number of the first k sorted events which are in the left child (length is size+1).
+		// this lets child positions be found without another binary search
+		private final int[][] nodeLeftCounts;
+		private final boolean[] inLeft;
+		private final double[] nodeMinLat, nodeMaxLat, nodeMinLon, nodeMaxLon, nodeMaxMag;
+		// 10^(-b*maxMag), and cosine of the largest absolute latitude in each node
+		private final double[] nodeMagFactor, nodeMinCos;
+
+		private Tree(int[] indexes) {
+			this.perm = indexes;
+			int maxNodes = 2*indexes.length + 1;
+			nodeLeft = new int[maxNodes];
+			nodeRight = new int[maxNodes];
+			nodeSorted = new int[maxNodes][];
+			nodeLeftCounts = new int[maxNodes][];
+			inLeft = new boolean[catalog.size()];
+			nodeMinLat = new double[maxNodes];
+			nodeMaxLat = new double[maxNodes];
+			nodeMinLon = new double[maxNodes];
+			nodeMaxLon = new double[maxNodes];
+			nodeMaxMag = new double[maxNodes];
+			nodeMagFactor = new double[maxNodes];
+			nodeMinCos = new double[maxNodes];
+			build(0, indexes.length);
+		}
+
+		private int build(int start, int end) {
+			int node = numNodes++;
+			double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+			double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+			double maxMag = Double.NEGATIVE_INFINITY;
+			for(int k=start; k<end; k++) {
+				int i = perm[k];
+				minLat = Math.min(minLat, lats[i]);
+				maxLat = Math.max(maxLat, lats[i]);
+				minLon = Math.min(minLon, lons[i]);
+				maxLon = Math.max(maxLon, lons[i]);
+				maxMag = Math.max(maxMag, mags[i]);
+			}
+			nodeMinLat[node] = minLat;
+			nodeMaxLat[node] = maxLat;
+			nodeMinLon[node] = minLon;
+			nodeMaxLon[node] = maxLon;
+			nodeMaxMag[node] = maxMag;
+			nodeMagFactor[node] = Math.pow(10, -b*maxMag);
+			nodeMinCos[node] = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+			int[] sorted = Arrays.copyOfRange(perm, start, end);
+			Arrays.sort(sorted);
+			nodeSorted[node] = sorted;
+			if(end - start <= LEAF_SIZE) {
+				nodeLeft[node] = -1;
+				nodeRight[node] = -1;
+			} else {
+				// split the wider dimension
+				double latWidth = maxLat - minLat;
+				double lonWidth = (maxLon - minLon)*Math.cos(Math.toRadians(0.5*(minLat + maxLat)));
+				boolean splitLat = latWidth >= lonWidth;
+				int mid = (start + end) >>> 1;
+				select(start, end-1, mid, splitLat ? lats : lons);
+				for(int k=start; k<end; k++)
+					inLeft[perm[k]] = k < mid;
+				int[] leftCounts = new int[sorted.length+1];
+				for(int k=0; k<sorted.length; k++)
+					leftCounts[k+1] = leftCounts[k] + (inLeft[sorted[k]] ? 1 : 0);
+				nodeLeftCounts[node] = leftCounts;
+				nodeLeft[node] = build(start, mid);
+				nodeRight[node] = build(mid, end);
+			}
+			return node;
+		}
+
+		/**
+		 * Partially sorts perm[lo..hi] (inclusive) such that the element at k is in its sorted position,
+		 * with smaller or equal keys before it and larger or equal keys after it
+		 */
+		private void select(int lo, int hi, int k, double[] keys) {
+			while(hi > lo) {
+				double pivot = keys[perm[(lo + hi) >>> 1]];
+				int i = lo, j = hi;
+				while(i <= j) {
+					while(keys[perm[i]] < pivot)
+						i++;
+					while(keys[perm[j]] > pivot)
+						j--;
+					if(i <= j) {
+						int tmp = perm[i];
+						perm[i] = perm[j];
+						perm[j] = tmp;
+						i++;
+						j--;
+					}
+				}
+				if(k <= j)
+					hi = j;
+				else if(k >= i)
+					lo = i;
+				else
+					return;
+			}
+		}
+
+		/**
+		 * @return number of events in the root node before the search event
+		 */
+		private int rootNumPrior(Search search) {
+			int pos = Arrays.binarySearch(nodeSorted[0], search.childIndex);
+			// child itself may be in this tree, otherwise binary search returns (-insertion point - 1)
+			return pos >= 0 ? pos : -pos - 1;
+		}
+
+		/**
+		 * @return lower bound on the distance (km) from the search event to any event in this node
+		 */
+		private double minDist(Search search, int node) {
+			double dLat = 0;
+			if(search.lat < nodeMinLat[node])
+				dLat = nodeMinLat[node] - search.lat;
+			else if(search.lat > nodeMaxLat[node])
+				dLat = search.lat - nodeMaxLat[node];
+			double dLon = 0;
+			if(search.lon < nodeMinLon[node])
+				dLon = nodeMinLon[node] - search.lon;
+			else if(search.lon > nodeMaxLon[node])
+				dLon = search.lon - nodeMaxLon[node];
+			if(dLat == 0 && dLon == 0)
+				return 0;
+			// fast distance scales longitude by the cosine of the mid latitude, which can't be any further from the
+			// equator than the child or the node
+			double cosMin = Math.min(search.cosLat, nodeMinCos[node]);
+			double dLatRad = Math.toRadians(dLat);
+			double dLonRad = Math.toRadians(dLon)*Math.max(0d, cosMin);
+			return EARTH_RADIUS_LOWER*Math.sqrt(dLatRad*dLatRad + dLonRad*dLonRad);
+		}
+
+		/**
+		 * @return lower bound on the rescaled distance from the search event to any event in this node which
+		 * occurred at or before the given prior event
+		 */
+		private double lowerBound(Search search, int node, double minDist, int priorIndex) {
+			if(minDist == 0)
+				return 0;
+			// identical times are treated as 1 second apart, otherwise the minimum nonzero difference is 1 ms
+			long timeDiffMillis = Math.max(1l, search.time - times[priorIndex]);
+			double timeDiffYrs = (double)timeDiffMillis/MILLIS_PER_YEAR;
+			return BOUND_SLACK*Math.pow(minDist, d)*timeDiffYrs*nodeMagFactor[node];
+		}
+
+		/**
+		 * @param numPrior number of events in this node before the search event
+		 */
+		private double lowerBound(Search search, int node, int numPrior) {
+			if(numPrior == 0)
+				return Double.POSITIVE_INFINITY;
+			return lowerBound(search, node, minDist(search, node), nodeSorted[node][numPrior-1]);
+		}
+
+		private void search(Search search) {
+			int numPrior = rootNumPrior(search);
+			search(search, 0, numPrior, lowerBound(search, 0, numPrior));
+		}
+
+		private void search(Search search, int node, int numPrior, double bound) {
+			if(bound > search.best)
+				return;
+			int left = nodeLeft[node];
+			if(left < 0) {
+				// go backwards in time, stopping once even the closest possible event would be too far
+				int[] sorted = nodeSorted[node];
+				double minDist = minDist(search, node);
+				for(int k=numPrior-1; k>=0; k--) {
+					int j = sorted[k];
+					if(minDist > 0 && lowerBound(search, node, minDist, j) > search.best)
+						break;
+					// previous event was already tested as the seed
+					if(j < search.childIndex-1)
+						search.test(j);
+				}
+				return;
+			}
+			int right = nodeRight[node];
+			int leftPrior = nodeLeftCounts[node][numPrior];
+			int rightPrior = numPrior - leftPrior;
+			double leftBound = lowerBound(search, left, leftPrior);
+			double rightBound = lowerBound(search, right, rightPrior);
+			if(leftBound <= rightBound) {
+				search(search, left, leftPrior, leftBound);
+				search(search, right, rightPrior, rightBound);
+			} else {
+				search(search, right, rightPrior, rightBound);
+				search(search, left, leftPrior, leftBound);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		int[] sizes = new int[trees.size()];
+		for(int i=0; i<sizes.length; i++)
+			sizes[i] = trees.get(i).perm.length;
+		return "NearestNeighborIndex: "+catalog.size()+" events, bucket sizes: "+Arrays.toString(sizes);
+	}
+
+}
@@ -12,6 +12,10 @@ import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -146,6 +150,41 @@ public class U3ETAS_SimulationAnalysis {
 	}
 	
 	
+	/**
+	 * This runs nearest-neighbor declustering on each catalog. Catalogs are processed in parallel
+	 * (each one single threaded), which is much faster than threading within each catalog for large numbers of
+	 * small catalogs.
+	 * @param catalogList - each catalog must be in chronological order
+	 * @param minMag
+	 * @return declustering results in the same order as the input catalogs
+	 */
+	public static ArrayList<NearestNeighborDeclustering> getNN_Declustering(ArrayList<ObsEqkRupList> catalogList, 
+			final double minMag) {
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<NearestNeighborDeclustering>> futures = new ArrayList<Future<NearestNeighborDeclustering>>();
+		for(final ObsEqkRupList rupList: catalogList) {
+			futures.add(exec.submit(new Callable<NearestNeighborDeclustering>() {
+
+				@Override
+				public NearestNeighborDeclustering call() throws Exception {
+					return new NearestNeighborDeclustering(rupList, minMag, 1);
+				}
+			}));
+		}
+		ArrayList<NearestNeighborDeclustering> results = new ArrayList<NearestNeighborDeclustering>();
+		try {
+			for(Future<NearestNeighborDeclustering> future : futures)
+				results.add(future.get());
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			exec.shutdown();
+		}
+		return results;
+	}
+	
+	
 	/**
 	 * This declusters according to whether it was spontaneous in U3ETAS
 	 * @param catalogList